@@ -0,0 +1,430 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+import javax.imageio.ImageIO;
+
+/**
+ * Renders frames of a finished drawing turning about its centre, for
+ * animations of the spinning mandala.
+ * <p>
+ * The radius and angle of every output pixel are worked out once for the
+ * whole animation. A frame only adds its rotation to each angle and looks up
+ * the rotated source position in a table of sines and cosines, so no frame
+ * does trigonometry or a general affine transform per pixel. Angles are
+ * measured in <code>ANGLES</code> steps to the turn, which keeps them exact
+ * under addition and lets the segment a pixel lies in be found with a
+ * multiply and a shift. Each segment can be given a phase offset of its own
+ * per frame, which makes the segments sway against each other.
+ * <p>
+ * The source is sampled bilinearly, and anything rotated in from beyond the
+ * source is white. A built <code>Animation</code> is read only, so any number
+ * of frames can be rendered at once.
+ *
+ * @author chasehanson
+ */
+public class Animation {
+
+    /**
+     * The number of angle steps in a full turn is
+     * <code>1 &lt;&lt; ANGLE_BITS</code>.
+     */
+    public static final int ANGLE_BITS = 16;
+
+    /**
+     * The number of angle steps in a full turn.
+     */
+    public static final int ANGLES = 1 << ANGLE_BITS;
+
+    private static final int WHITE = 0xFFFFFF;
+
+    private static final float[] COS = new float[ANGLES], SIN = new float[ANGLES];
+
+    static {
+        for (int a = 0; a < ANGLES; a++) {
+            double t = 2 * Math.PI * a / ANGLES;
+            COS[a] = (float) Math.cos(t);
+            SIN[a] = (float) Math.sin(t);
+        }
+    }
+
+    private final int[] source;
+
+    private final int width, height;
+
+    /**
+     * The centre of rotation, in pixels.
+     */
+    private final int cx, cy;
+
+    /**
+     * For each output pixel, its distance from the centre and its angle in
+     * angle steps.
+     */
+    private final float[] radii;
+
+    private final char[] angles;
+
+    /**
+     * Constructs a new <code>Animation</code> of an image, turning about the
+     * same centre pixel as a <code>Mandala</code> of its size.
+     *
+     * @param source The RGB pixels of the image, row by row
+     * @param width The width of the image in pixels
+     * @param height The height of the image in pixels
+     */
+    public Animation(int[] source, int width, int height) {
+        if (source.length < width * height) {
+            throw new IllegalArgumentException("expected " + width * height + " pixels: " + source.length);
+        }
+        this.source = source;
+        this.width = width;
+        this.height = height;
+        cx = width / 2;
+        cy = height / 2;
+        radii = new float[width * height];
+        angles = new char[width * height];
+        IntStream.range(0, height).parallel().forEach(y -> {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                radii[i] = (float) Math.hypot(x - cx, y - cy);
+                double t = Math.atan2(y - cy, x - cx) / (2 * Math.PI);
+                angles[i] = (char) ((int) Math.round(t * ANGLES) & (ANGLES - 1));
+            }
+        });
+    }
+
+    /**
+     * Returns the width of each frame in pixels.
+     *
+     * @return The width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of each frame in pixels.
+     *
+     * @return The height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the rotation of a frame of an animation making a whole number
+     * of turns, so the last frame leads back into the first.
+     *
+     * @param frame The index of the frame
+     * @param frames The number of frames in the animation
+     * @param turns The number of turns over the animation, negative to turn
+     * the other way
+     * @return The rotation in angle steps
+     */
+    public static int rotation(int frame, int frames, int turns) {
+        return (int) ((long) ANGLES * turns * frame / frames);
+    }
+
+    /**
+     * Sets the phase offset of every segment for a frame, so that each one
+     * sways back and forth by up to <code>sway</code> of its own width, one
+     * segment behind the next. The sway completes whole cycles over the
+     * animation, so it loops along with the rotation.
+     *
+     * @param frame The index of the frame
+     * @param frames The number of frames in the animation
+     * @param sway The largest offset, as a fraction of a segment
+     * @param offsets Set to the offset of each segment, in angle steps
+     */
+    public static void sway(int frame, int frames, double sway, int[] offsets) {
+        int segments = offsets.length;
+        for (int j = 0; j < segments; j++) {
+            double t = 2 * Math.PI * ((double) frame / frames + (double) j / segments);
+            offsets[j] = (int) Math.round(Math.sin(t) * sway * ANGLES / segments);
+        }
+    }
+
+    /**
+     * Renders one frame.
+     *
+     * @param rotation The rotation of the frame in angle steps
+     * @param offsets The extra rotation of each of the equal segments the
+     * frame is divided into, counted from the positive x axis, or
+     * <code>null</code> to turn every pixel alike
+     * @param out Receives the RGB pixels of the frame, row by row
+     */
+    public void render(int rotation, int[] offsets, int[] out) {
+        int n = width * height;
+        int segments = offsets == null ? 0 : offsets.length;
+        for (int i = 0; i < n; i++) {
+            int a = angles[i];
+            int turn = rotation;
+            if (segments > 0) {
+                turn += offsets[(a * segments) >>> ANGLE_BITS];
+            }
+            //Sample where the pixel was before the turn
+            a = (a - turn) & (ANGLES - 1);
+            float r = radii[i];
+            out[i] = sample(cx + r * COS[a], cy + r * SIN[a]);
+        }
+    }
+
+    /**
+     * Bilinearly samples the source, using 8 bit weights summing to 256 so
+     * that areas of one colour come through unchanged.
+     */
+    private int sample(float x, float y) {
+        int x0 = (int) Math.floor(x);
+        int y0 = (int) Math.floor(y);
+        int fx = (int) ((x - x0) * 256);
+        int fy = (int) ((y - y0) * 256);
+        int p00 = pixel(x0, y0), p10 = pixel(x0 + 1, y0);
+        int p01 = pixel(x0, y0 + 1), p11 = pixel(x0 + 1, y0 + 1);
+        if (p00 == p10 && p00 == p01 && p00 == p11) {
+            return p00;
+        }
+        return lerp(lerp(p00, p10, fx), lerp(p01, p11, fx), fy);
+    }
+
+    private int pixel(int x, int y) {
+        return (x | y) >= 0 && x < width && y < height ? source[y * width + x] & WHITE : WHITE;
+    }
+
+    private static int lerp(int a, int b, int f) {
+        int g = 256 - f;
+        int rb = ((a & 0xFF00FF) * g + (b & 0xFF00FF) * f) >>> 8;
+        int gr = ((a & 0xFF00) * g + (b & 0xFF00) * f) >>> 8;
+        return (rb & 0xFF00FF) | (gr & 0xFF00);
+    }
+
+    /**
+     * Renders every frame on a pool of workers and hands them to a sink in
+     * order. At most <code>buffer</code> frames are rendered ahead of the one
+     * the sink is waiting for, and their rasters are reused, so memory stays
+     * bounded however long the animation is.
+     *
+     * @param frames The number of frames
+     * @param turns The number of turns over the animation
+     * @param segments The number of segments to sway, or 0 for none
+     * @param sway The largest sway, as a fraction of a segment
+     * @param pool Renders the frames
+     * @param buffer The most frames held at once, at least 1
+     * @param worker Run on the pool for each frame once it is rendered, may
+     * be <code>null</code>
+     * @param sink Receives the frames in order
+     * @throws IOException If the worker or sink fails
+     * @throws InterruptedException If interrupted while waiting for a frame
+     */
+    public void renderAll(int frames, int turns, int segments, double sway, ExecutorService pool, int buffer,
+            FrameSink worker, FrameSink sink) throws IOException, InterruptedException {
+        BlockingQueue<RasterCanvas> free = new ArrayBlockingQueue<>(buffer);
+        for (int i = 0; i < buffer; i++) {
+            free.add(new RasterCanvas(width, height));
+        }
+        ArrayDeque<Future<RasterCanvas>> window = new ArrayDeque<>(buffer);
+        try {
+            for (int k = 0, next = 0; k < frames; k++) {
+                while (next < frames && window.size() < buffer) {
+                    int frame = next++;
+                    RasterCanvas c = free.take();
+                    window.add(pool.submit(() -> {
+                        int[] offsets = null;
+                        if (segments > 0 && sway != 0) {
+                            offsets = new int[segments];
+                            sway(frame, frames, sway, offsets);
+                        }
+                        render(rotation(frame, frames, turns), offsets, c.getData());
+                        if (worker != null) {
+                            worker.frame(frame, c);
+                        }
+                        return c;
+                    }));
+                }
+                RasterCanvas c = window.poll().get();
+                sink.frame(k, c);
+                free.add(c);
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            for (Future<RasterCanvas> f : window) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Receives rendered frames.
+     */
+    public interface FrameSink {
+
+        /**
+         * Receives one frame.
+         *
+         * @param frame The index of the frame
+         * @param c The pixels of the frame, valid only during the call
+         * @throws IOException If the frame can't be written
+         */
+        void frame(int frame, RasterCanvas c) throws IOException;
+    }
+
+    /**
+     * Writes a frame as 8 bit RGB triples, row by row with no header, as
+     * read by video encoders given the raw <code>rgb24</code> format.
+     *
+     * @param c The frame
+     * @param out The stream to write to
+     * @param line A buffer of at least three bytes per pixel of a row
+     * @throws IOException If the stream can't be written
+     */
+    public static void writeRaw(RasterCanvas c, OutputStream out, byte[] line) throws IOException {
+        int w = c.getWidth();
+        int[] data = c.getData();
+        for (int y = 0; y < c.getHeight(); y++) {
+            for (int x = 0, i = 0; x < w; x++) {
+                int v = data[y * w + x];
+                line[i++] = (byte) (v >> 16);
+                line[i++] = (byte) (v >> 8);
+                line[i++] = (byte) v;
+            }
+            out.write(line, 0, 3 * w);
+        }
+    }
+
+    /**
+     * @param args The image to turn, the number of frames, and either a file
+     * name pattern such as <code>frames/mandala-%04d.png</code> for a numbered
+     * PNG sequence or <code>-</code> for raw RGB on standard output, then
+     * optionally <code>turns=N</code>, <code>segments=N</code> and
+     * <code>sway=F</code> to sway the segments, <code>threads=N</code>,
+     * <code>buffer=N</code> and <code>level=N</code> for the PNG compression
+     * @throws IOException If the image can't be read or a frame written
+     * @throws InterruptedException If interrupted while waiting for a frame
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length < 3) {
+            System.err.println("Usage: Animation <image> <frames> <pattern.png|-> [turns=N] [segments=N] [sway=F] [threads=N] [buffer=N] [level=N]");
+            System.exit(2);
+        }
+        int frames = Integer.parseInt(args[1]);
+        String output = args[2];
+        int turns = 1;
+        int segments = 8;
+        double sway = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int buffer = -1;
+        int level = 6;
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].startsWith("turns=")) {
+                turns = Integer.parseInt(args[i].substring(6));
+            } else if (args[i].startsWith("segments=")) {
+                segments = Integer.parseInt(args[i].substring(9));
+            } else if (args[i].startsWith("sway=")) {
+                sway = Double.parseDouble(args[i].substring(5));
+            } else if (args[i].startsWith("threads=")) {
+                threads = Integer.parseInt(args[i].substring(8));
+            } else if (args[i].startsWith("buffer=")) {
+                buffer = Integer.parseInt(args[i].substring(7));
+            } else if (args[i].startsWith("level=")) {
+                level = Integer.parseInt(args[i].substring(6));
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (frames <= 0 || threads <= 0) {
+            throw new IllegalArgumentException("frames and threads must be positive");
+        }
+        if (!output.equals("-") && !output.contains("%")) {
+            throw new IllegalArgumentException("Expected a pattern such as mandala-%04d.png: " + output);
+        }
+        //Enough frames in flight to keep every worker busy while the sink waits
+        buffer = Math.max(1, buffer < 0 ? 2 * threads : buffer);
+
+        long start = System.nanoTime();
+        BufferedImage image = ImageIO.read(new File(args[0]));
+        if (image == null) {
+            throw new IOException("Not a readable image: " + args[0]);
+        }
+        int w = image.getWidth();
+        int h = image.getHeight();
+        Animation a = new Animation(image.getRGB(0, 0, w, h, null, 0, w), w, h);
+        long built = System.nanoTime();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "Animation frame");
+            t.setDaemon(true);
+            return t;
+        });
+        Rectangle bounds = new Rectangle(0, 0, w, h);
+        int compression = level;
+        try {
+            if (output.equals("-")) {
+                byte[] line = new byte[3 * w];
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16)) {
+                    a.renderAll(frames, turns, segments, sway, pool, buffer, null, (k, c) -> writeRaw(c, out, line));
+                }
+            } else {
+                //Each worker encodes its own frame, so only the rendering order is kept
+                a.renderAll(frames, turns, segments, sway, pool, buffer, (k, c) -> {
+                    File f = new File(String.format(output, k));
+                    Snapshot s = Snapshot.take(c, bounds);
+                    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(f), 1 << 16)) {
+                        Exporter.writePng(s, out, compression, null);
+                    } finally {
+                        s.close(Runnable::run);
+                    }
+                }, (k, c) -> {
+                });
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        long rendered = System.nanoTime();
+
+        System.err.printf("%d frames of %dx%d: mapped in %d ms, rendered and written in %d ms on %d threads (%.1f fps)%n",
+                frames, w, h, (built - start) / 1_000_000, (rendered - built) / 1_000_000, threads,
+                frames * 1e9 / (rendered - built));
+    }
+}
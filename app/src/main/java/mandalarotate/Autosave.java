@@ -0,0 +1,968 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps a crash-safe copy of a <code>Mandala</code> on disk while it is
+ * drawn. Every finished stroke is appended to a write-ahead journal, along
+ * with every clear, undo, redo and change to the layers. Every so often a
+ * checkpoint saves the tiles of each layer written to since the previous
+ * one, and the journal before it is deleted. After a crash,
+ * <code>recover</code> loads the newest checkpoint and replays the journal
+ * written since.
+ * <p>
+ * Nothing touches the disk on the drawing threads. Records are encoded where
+ * they happen and queued for one background thread, which writes them
+ * sequentially through a buffer and forces them to disk at most
+ * <code>SYNC_INTERVAL</code> apart, so a crash loses at most that much.
+ * Checkpoints read the layers through copy-on-write <code>Snapshot</code>s,
+ * so drawing carries on while they are written.
+ * <p>
+ * <code>journal-N.log</code> holds what happened after
+ * <code>checkpoint-N.dat</code> was taken. Each checkpoint only holds the
+ * tiles changed since the one before, except the first, every
+ * <code>FULL_EVERY</code>th and the first after a clear, which hold every
+ * tile that has been drawn on; a chain of checkpoints is loaded from its last
+ * full one. Checkpoints are written to a temporary file, forced to disk and
+ * renamed into place, and both they and each journal record carry a
+ * checksum, so whatever a crash tears is detected and ignored.
+ * <p>
+ * Only one checkpoint is written at a time. One asked for while another is
+ * still being written, as by a quick run of undos, is put off and taken once
+ * that one is on disk, covering everything since. Nor is one taken while a
+ * stroke is being drawn, since the stroke is only journaled once it ends and
+ * would be replayed over what the checkpoint holds of it; it is put off until
+ * the stroke is journaled.
+ *
+ * @author chasehanson
+ */
+public class Autosave implements Canvas.TileGuard, Closeable {
+
+    /**
+     * The longest time, in nanoseconds, journal records are held before
+     * being forced to disk.
+     */
+    public static final long SYNC_INTERVAL = 1_000_000_000L;
+
+    /**
+     * The time between checkpoints in milliseconds, when something has
+     * changed.
+     */
+    public static final int CHECKPOINT_INTERVAL = 10_000;
+
+    /**
+     * Every checkpoint this many after a full one is full too, which bounds
+     * the chain loaded on recovery.
+     */
+    public static final int FULL_EVERY = 16;
+
+    private static final int MAGIC = 0x4D434B50;
+
+    private static final int VERSION = 1;
+
+    private static final int TILE_PIXELS = Canvas.TILE_SIZE * Canvas.TILE_SIZE;
+
+    //The types of journal record
+    private static final int STROKE = 1, CLEAR = 2, UNDO = 3, REDO = 4, LAYERS = 5, FILL = 6;
+
+    /**
+     * Asks the background thread to start journal <code>number</code>.
+     */
+    private static final class Rotate {
+
+        final int number;
+
+        Rotate(int number) {
+            this.number = number;
+        }
+    }
+
+    /**
+     * Asks the background thread to write a checkpoint.
+     */
+    private static final class Checkpoint {
+
+        final int number;
+
+        final boolean full;
+
+        final byte[] layers;
+
+        final BitSet[] tiles;
+
+        final Snapshot[] snapshots;
+
+        Checkpoint(int number, boolean full, byte[] layers, BitSet[] tiles, Snapshot[] snapshots) {
+            this.number = number;
+            this.full = full;
+            this.layers = layers;
+            this.tiles = tiles;
+            this.snapshots = snapshots;
+        }
+    }
+
+    private static final Object CLOSE = new Object();
+
+    private final File dir;
+
+    private final Mandala m;
+
+    private final Executor writer;
+
+    private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * Every layer seen, by the id it is saved under. Only used on the thread
+     * that writes to the layers.
+     */
+    private final List<Layer> layers = new ArrayList<>();
+
+    /**
+     * The tiles of each layer written to since the last checkpoint, by id.
+     */
+    private final List<BitSet> dirty = new ArrayList<>();
+
+    /**
+     * The number of layers guarded so far, which are the first ones.
+     */
+    private int guarded;
+
+    /**
+     * The id of the active layer, for strokes journaled by the input thread.
+     */
+    private volatile int activeId;
+
+    private int next = 1;
+
+    private int sinceFull;
+
+    private boolean fullNext = true;
+
+    private final AtomicLong journaled = new AtomicLong();
+
+    private long journaledAtCheckpoint;
+
+    /**
+     * The number of the last checkpoint queued, which is being written until
+     * <code>written</code> reaches it.
+     */
+    private int inFlight;
+
+    /**
+     * Whether a checkpoint has been asked for but put off until the one in
+     * flight is written.
+     */
+    private volatile boolean checkpointNext;
+
+    /**
+     * Whether a stroke has been started but not yet journaled, set while
+     * holding the lock on <code>queue</code>.
+     */
+    private volatile boolean stroking;
+
+    /**
+     * The number of the last checkpoint written, set by the background
+     * thread while holding the lock on this.
+     */
+    private int written;
+
+    private Thread thread;
+
+    private volatile boolean failed;
+
+    //Only used by the background thread
+    private FileOutputStream journalFile;
+
+    private DataOutputStream journal;
+
+    private boolean unsynced;
+
+    private long syncedAt;
+
+    /**
+     * Constructs a new <code>Autosave</code> keeping the given
+     * <code>Mandala</code> in a directory, which is created if needed.
+     * Nothing is saved until <code>start</code> is called.
+     *
+     * @param dir The directory to keep the journal and checkpoints in
+     * @param m The <code>Mandala</code> to save
+     * @param writer Runs tasks on the thread that writes to the layers
+     * @throws IOException If the directory can't be created
+     */
+    public Autosave(File dir, Mandala m, Executor writer) throws IOException {
+        this.dir = dir;
+        this.m = m;
+        this.writer = writer;
+        Files.createDirectories(dir.toPath());
+        for (int i = 0; i < m.layers.size(); i++) {
+            layers.add(m.layers.get(i));
+        }
+    }
+
+    /**
+     * Loads the newest checkpoint in the directory into the
+     * <code>Mandala</code> and replays every journal written since, then
+     * forgets the undo history so the recovered drawing can't be undone.
+     * Must be called before <code>start</code>, while the
+     * <code>Mandala</code> is not being drawn into or painted.
+     *
+     * @param radius The maximum allowed radius of the <code>Mandala</code>,
+     * as given to its <code>Pen</code>
+     * @return <code>true</code> if anything was recovered
+     * @throws IOException If the saved files can't be read, are of a
+     * different size of canvas, or a chain of checkpoints is broken
+     */
+    public boolean recover(double radius) throws IOException {
+        long start = System.nanoTime();
+        List<File> checkpoints = list("checkpoint-", ".dat");
+        List<File> journals = list("journal-", ".log");
+        File[] temporary = dir.listFiles((d, name) -> name.endsWith(".tmp"));
+        if (temporary != null) {
+            for (File f : temporary) {
+                Files.delete(f.toPath());
+            }
+        }
+        for (File f : checkpoints) {
+            next = Math.max(next, number(f) + 1);
+        }
+        for (File f : journals) {
+            next = Math.max(next, number(f) + 1);
+        }
+
+        //Walk back from the newest checkpoint to the full one its chain starts from
+        ArrayList<byte[]> chain = new ArrayList<>();
+        int base = 0;
+        for (int i = checkpoints.size() - 1; i >= 0; i--) {
+            byte[] b = readCheckpoint(checkpoints.get(i));
+            if (b == null) {
+                if (chain.isEmpty()) {
+                    continue;
+                }
+                throw new IOException(checkpoints.get(i) + " is damaged");
+            }
+            if (chain.isEmpty()) {
+                base = number(checkpoints.get(i));
+            }
+            chain.add(0, b);
+            if (b[16] != 0) {
+                break;
+            }
+            if (i == 0) {
+                throw new IOException("No full checkpoint before " + checkpoints.get(0));
+            }
+        }
+        if (chain.isEmpty() && journals.isEmpty()) {
+            return false;
+        }
+
+        Runnable drain = m.drainRequest;
+        boolean antialias = m.antialias;
+        Brush brush = m.brush;
+        m.drainRequest = m::offloadPoints;
+        int tiles = 0;
+        int records = 0;
+        try {
+            for (byte[] b : chain) {
+                tiles += loadCheckpoint(b);
+            }
+            Pen pen = new Pen(m, radius);
+            pen.smoother = null;
+            for (File f : journals) {
+                if (number(f) >= base) {
+                    records += replay(Files.readAllBytes(f.toPath()), pen);
+                }
+            }
+            m.offloadPoints();
+        } finally {
+            m.antialias = antialias;
+            m.brush = brush;
+            m.drainRequest = drain;
+        }
+        m.setLayer(m.layers.indexOf(layers.get(activeId)));
+        m.forgetHistory();
+        m.layers.composite();
+        System.out.printf("Recovered %d tiles from %d checkpoints and %d journal records in %.1f ms%n",
+                tiles, chain.size(), records, (System.nanoTime() - start) / 1e6);
+        return true;
+    }
+
+    /**
+     * Starts saving. A full checkpoint of the <code>Mandala</code> as it is
+     * now is taken first, and the files it makes obsolete are deleted once it
+     * is on disk. Must be called on the thread that writes to the layers.
+     */
+    public void start() {
+        thread = new Thread(this::run, "Autosave");
+        thread.setDaemon(true);
+        fullNext = true;
+        checkpoint();
+        thread.start();
+    }
+
+    /**
+     * Notes that a stroke is being started, so checkpoints are put off until
+     * it is journaled. May be called on the thread that adds points, before
+     * the first point of the stroke is added.
+     */
+    public void press() {
+        synchronized (queue) {
+            stroking = true;
+        }
+    }
+
+    /**
+     * Journals a finished stroke drawn on the active layer with the brush it
+     * was started with, then takes any checkpoint put off while it was drawn
+     * on the thread that writes to the layers. May be called on the thread
+     * that adds points.
+     *
+     * @param xy The conditioned master points of the stroke, x then y
+     * @param n The number of points
+     */
+    public void stroke(double[] xy, int n) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream(35 + 16 * n);
+        DataOutputStream out = new DataOutputStream(b);
+        Brush brush = m.getStrokeBrush();
+        try {
+            out.writeByte(STROKE);
+            out.writeInt(activeId);
+            out.writeInt(m.segments);
+            out.writeBoolean(m.antialias);
+            out.writeBoolean(brush != null);
+            if (brush != null) {
+                out.writeDouble(brush.radius);
+                out.writeDouble(brush.hardness);
+                out.writeByte(brush.flow);
+                out.writeDouble(brush.spacing);
+            }
+            out.writeInt(n);
+            for (int i = 0; i < 2 * n; i++) {
+                out.writeDouble(xy[i]);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        synchronized (queue) {
+            journal(b.toByteArray());
+            stroking = false;
+        }
+        if (checkpointNext) {
+            writer.execute(this::checkpointIfNext);
+        }
+    }
+
+    /**
+     * Journals a clear, and makes the next checkpoint full. Must be called
+     * on the thread that writes to the layers.
+     */
+    public void clear() {
+        journal(new byte[]{CLEAR});
+        fullNext = true;
+    }
+
+    /**
+     * Journals an undo and marks that a checkpoint is to be taken next, since
+     * an undo can only be replayed while the stroke it undoes is in the
+     * journal. It is taken straight away unless another is being written.
+     * Must be called on the thread that writes to the layers.
+     */
+    public void undo() {
+        journal(new byte[]{UNDO});
+        checkpointNext = true;
+        checkpointIfNext();
+    }
+
+    /**
+     * Journals a redo and marks that a checkpoint is to be taken next. Must
+     * be called on the thread that writes to the layers.
+     */
+    public void redo() {
+        journal(new byte[]{REDO});
+        checkpointNext = true;
+        checkpointIfNext();
+    }
+
+    /**
+     * Journals a fill of the active layer. Must be called on the thread that
+     * writes to the layers.
+     *
+     * @param x The x coordinate of the point filled around, relative to the
+     * centre
+     * @param y The y coordinate of the point
+     * @param tolerance The tolerance the fill was made with
+     */
+    public void fill(double x, double y, int tolerance) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream(25);
+        DataOutputStream out = new DataOutputStream(b);
+        try {
+            out.writeByte(FILL);
+            out.writeInt(activeId);
+            out.writeDouble(x);
+            out.writeDouble(y);
+            out.writeInt(tolerance);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        journal(b.toByteArray());
+    }
+
+    /**
+     * Journals the layers after one has been added, chosen, or has had any
+     * of its settings changed. Must be called on the thread that writes to
+     * the layers.
+     */
+    public void layers() {
+        guardNewLayers();
+        byte[] state = layerState();
+        byte[] record = new byte[state.length + 1];
+        record[0] = LAYERS;
+        System.arraycopy(state, 0, record, 1, state.length);
+        journal(record);
+    }
+
+    /**
+     * Takes a checkpoint if anything has been drawn or journaled since the
+     * last one, or one has been put off, unless another is still being
+     * written. Must be called on the thread that writes to the layers.
+     *
+     * @return <code>true</code> if a checkpoint was taken
+     */
+    public boolean checkpointIfChanged() {
+        boolean changed = checkpointNext || journaled.get() != journaledAtCheckpoint || fullNext;
+        for (int i = 0; i < guarded && !changed; i++) {
+            changed = !dirty.get(i).isEmpty();
+        }
+        if (!changed || writing() || stroking) {
+            return false;
+        }
+        checkpoint();
+        return true;
+    }
+
+    /**
+     * Takes a checkpoint of the tiles written to since the last one, or of
+     * every tile drawn on if it is to be full, and starts a new journal. The
+     * tiles are only read, and written to disk, by the background thread.
+     * If another checkpoint is still being written, this one is put off
+     * until the next call once it has been, and while a stroke is being
+     * drawn it is put off until the stroke is journaled. Must be called on
+     * the thread that writes to the layers.
+     */
+    public void checkpoint() {
+        checkpointNext = true;
+        if (writing()) {
+            return;
+        }
+        guardNewLayers();
+        boolean full = fullNext || sinceFull + 1 >= FULL_EVERY;
+        BitSet[] tiles = new BitSet[guarded];
+        Snapshot[] snapshots = new Snapshot[guarded];
+        int number;
+        //Hold back journaling until the new journal is started, so every stroke journaled before it is in the snapshots
+        synchronized (queue) {
+            //The open stroke's pixels would be in the snapshots and then replayed from its record
+            if (stroking) {
+                return;
+            }
+            m.offloadPoints();
+            try {
+                for (int id = 0; id < guarded; id++) {
+                    Layer l = layers.get(id);
+                    tiles[id] = (BitSet) (full ? l.used : dirty.get(id)).clone();
+                    snapshots[id] = Snapshot.take(l.getCanvas(), tiles[id]);
+                }
+            } catch (RuntimeException e) {
+                //Nothing has changed, so the next checkpoint covers the same tiles
+                for (Snapshot s : snapshots) {
+                    if (s != null) {
+                        s.close(Runnable::run);
+                    }
+                }
+                throw e;
+            }
+            number = next++;
+            queue.add(new Rotate(number));
+            journaledAtCheckpoint = journaled.get();
+        }
+
+        for (int id = 0; id < guarded; id++) {
+            Canvas c = layers.get(id).getCanvas();
+            BitSet d = dirty.get(id);
+            for (int t = d.nextSetBit(0); t >= 0; t = d.nextSetBit(t + 1)) {
+                c.arm(this, t);
+            }
+            d.clear();
+        }
+        sinceFull = full ? 0 : sinceFull + 1;
+        fullNext = false;
+        checkpointNext = false;
+        inFlight = number;
+        queue.add(new Checkpoint(number, full, layerState(), tiles, snapshots));
+    }
+
+    /**
+     * Stops saving once everything journaled so far is on disk, first
+     * taking any checkpoint put off while another was being written. The
+     * <code>Mandala</code> should no longer be drawn into.
+     */
+    @Override
+    public void close() {
+        if (thread != null && checkpointNext) {
+            synchronized (this) {
+                try {
+                    while (writing()) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (!writing()) {
+                checkpoint();
+            }
+        }
+        queue.add(CLOSE);
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void beforeWrite(Canvas c, int tile) {
+        for (int id = 0; id < guarded; id++) {
+            if (layers.get(id).getCanvas() == c) {
+                dirty.get(id).set(tile);
+                return;
+            }
+        }
+    }
+
+    private void journal(byte[] record) {
+        synchronized (queue) {
+            if (!failed) {
+                journaled.incrementAndGet();
+                queue.add(record);
+            }
+        }
+    }
+
+    /**
+     * Takes the checkpoint marked to be taken next, unless another is still
+     * being written.
+     */
+    private void checkpointIfNext() {
+        if (checkpointNext && !writing()) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Returns whether the background thread is still writing the last
+     * checkpoint queued.
+     */
+    private synchronized boolean writing() {
+        return written < inFlight && thread != null && thread.isAlive();
+    }
+
+    /**
+     * Gives ids to layers added since last time and starts tracking their
+     * tiles, counting any already drawn on as dirty.
+     */
+    private void guardNewLayers() {
+        for (int i = 0; i < m.layers.size(); i++) {
+            if (!layers.contains(m.layers.get(i))) {
+                layers.add(m.layers.get(i));
+            }
+        }
+        for (; guarded < layers.size(); guarded++) {
+            Layer l = layers.get(guarded);
+            l.getCanvas().addGuard(this);
+            dirty.add((BitSet) l.used.clone());
+            l.getCanvas().armAll(this);
+        }
+        activeId = layers.indexOf(m.layers.getActive());
+    }
+
+    private byte[] layerState() {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(b);
+        try {
+            out.writeInt(m.layers.size());
+            out.writeInt(activeId);
+            for (int i = 0; i < m.layers.size(); i++) {
+                Layer l = m.layers.get(i);
+                out.writeInt(layers.indexOf(l));
+                out.writeUTF(l.getName());
+                out.writeInt(l.getColour());
+                out.writeInt(l.getOpacity());
+                out.writeBoolean(l.isVisible());
+                out.writeInt(l.getSegments());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return b.toByteArray();
+    }
+
+    /**
+     * Brings the layers of the <code>Mandala</code> in line with a saved
+     * state, adding any that are missing.
+     */
+    private void applyLayerState(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        int active = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int id = in.readInt();
+            while (layers.size() <= id) {
+                layers.add(m.addLayer("", 0));
+            }
+            Layer l = layers.get(id);
+            l.setName(in.readUTF());
+            l.setColour(in.readInt());
+            l.setOpacity(in.readInt());
+            l.setVisible(in.readBoolean());
+            l.setSegments(in.readInt());
+            int from = m.layers.indexOf(l);
+            if (from != i) {
+                m.layers.move(from, i);
+            }
+        }
+        activeId = active;
+        m.layers.setActive(m.layers.indexOf(layers.get(active)));
+    }
+
+    /**
+     * Reads a checkpoint, returning <code>null</code> unless its checksum
+     * matches.
+     */
+    private static byte[] readCheckpoint(File f) throws IOException {
+        byte[] b = Files.readAllBytes(f.toPath());
+        if (b.length < 25) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(b, 0, b.length - 8);
+        long stored = 0;
+        for (int i = b.length - 8; i < b.length; i++) {
+            stored = stored << 8 | (b[i] & 0xFF);
+        }
+        return stored == crc.getValue() ? b : null;
+    }
+
+    private int loadCheckpoint(byte[] b) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(b, 0, b.length - 8));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a checkpoint");
+        }
+        int w = in.readInt();
+        int h = in.readInt();
+        if (w != m.canvas.getWidth() || h != m.canvas.getHeight()) {
+            throw new IOException("The autosave is of a " + w + "x" + h + " canvas, not "
+                    + m.canvas.getWidth() + "x" + m.canvas.getHeight());
+        }
+        in.readBoolean();
+        applyLayerState(in);
+
+        int[] pixels = new int[TILE_PIXELS];
+        byte[] raw = new byte[3 * TILE_PIXELS];
+        byte[] packed = new byte[0];
+        Inflater inflater = new Inflater();
+        int count = 0;
+        try {
+            for (int id = in.readInt(); id >= 0; id = in.readInt()) {
+                int tile = in.readInt();
+                int length = in.readInt();
+                if (packed.length < length) {
+                    packed = new byte[length];
+                }
+                in.readFully(packed, 0, length);
+                inflater.reset();
+                inflater.setInput(packed, 0, length);
+                if (inflater.inflate(raw) != raw.length) {
+                    throw new IOException("Truncated tile");
+                }
+                for (int i = 0, j = 0; i < TILE_PIXELS; i++, j += 3) {
+                    pixels[i] = (raw[j] & 0xFF) << 16 | (raw[j + 1] & 0xFF) << 8 | (raw[j + 2] & 0xFF);
+                }
+                layers.get(id).getCanvas().writeTile(tile, pixels);
+                count++;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+        return count;
+    }
+
+    /**
+     * Replays the records of a journal up to the first torn one.
+     */
+    private int replay(byte[] b, Pen pen) throws IOException {
+        CRC32 crc = new CRC32();
+        int count = 0;
+        int at = 0;
+        while (b.length - at >= 8) {
+            int length = (b[at] & 0xFF) << 24 | (b[at + 1] & 0xFF) << 16 | (b[at + 2] & 0xFF) << 8 | (b[at + 3] & 0xFF);
+            int sum = (b[at + 4] & 0xFF) << 24 | (b[at + 5] & 0xFF) << 16 | (b[at + 6] & 0xFF) << 8 | (b[at + 7] & 0xFF);
+            at += 8;
+            if (length <= 0 || length > b.length - at) {
+                break;
+            }
+            crc.reset();
+            crc.update(b, at, length);
+            if ((int) crc.getValue() != sum) {
+                break;
+            }
+            apply(new DataInputStream(new ByteArrayInputStream(b, at, length)), pen);
+            at += length;
+            count++;
+        }
+        return count;
+    }
+
+    private void apply(DataInputStream in, Pen pen) throws IOException {
+        switch (in.readByte()) {
+            case STROKE:
+                int layer = m.layers.indexOf(layers.get(in.readInt()));
+                if (layer != m.layers.getActiveIndex()) {
+                    m.setLayer(layer);
+                }
+                m.segments = in.readInt();
+                m.antialias = in.readBoolean();
+                m.brush = in.readBoolean()
+                        ? new Brush(in.readDouble(), in.readDouble(), in.readUnsignedByte(), in.readDouble())
+                        : null;
+                int n = in.readInt();
+                pen.press(in.readDouble(), in.readDouble());
+                for (int i = 1; i < n; i++) {
+                    pen.move(in.readDouble(), in.readDouble());
+                }
+                pen.release();
+                break;
+            case FILL:
+                int filled = m.layers.indexOf(layers.get(in.readInt()));
+                if (filled != m.layers.getActiveIndex()) {
+                    m.setLayer(filled);
+                }
+                m.fill(in.readDouble(), in.readDouble(), pen.getRadius(), in.readInt());
+                break;
+            case CLEAR:
+                m.clear();
+                break;
+            case UNDO:
+                m.undo();
+                break;
+            case REDO:
+                m.redo();
+                break;
+            case LAYERS:
+                applyLayerState(in);
+                break;
+            default:
+                throw new IOException("Unknown journal record");
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                Object o;
+                if (unsynced) {
+                    long wait = syncedAt + SYNC_INTERVAL - System.nanoTime();
+                    o = queue.poll(Math.max(0, wait), TimeUnit.NANOSECONDS);
+                } else {
+                    o = queue.take();
+                }
+                if (o == CLOSE) {
+                    break;
+                } else if (o instanceof byte[]) {
+                    byte[] record = (byte[]) o;
+                    CRC32 crc = new CRC32();
+                    crc.update(record);
+                    journal.writeInt(record.length);
+                    journal.writeInt((int) crc.getValue());
+                    journal.write(record);
+                    if (!unsynced) {
+                        unsynced = true;
+                        syncedAt = System.nanoTime();
+                    }
+                } else if (o instanceof Rotate) {
+                    closeJournal();
+                    File f = new File(dir, String.format("journal-%08d.log", ((Rotate) o).number));
+                    journalFile = new FileOutputStream(f);
+                    journal = new DataOutputStream(new BufferedOutputStream(journalFile, 1 << 16));
+                } else if (o instanceof Checkpoint) {
+                    writeCheckpoint((Checkpoint) o);
+                    synchronized (this) {
+                        written = ((Checkpoint) o).number;
+                        notifyAll();
+                    }
+                }
+                if (unsynced && System.nanoTime() - syncedAt >= SYNC_INTERVAL) {
+                    sync();
+                }
+            }
+            closeJournal();
+        } catch (IOException e) {
+            failed = true;
+            System.err.println("Autosave stopped: " + e);
+        } catch (InterruptedException e) {
+            failed = true;
+        } finally {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void sync() throws IOException {
+        journal.flush();
+        journalFile.getChannel().force(false);
+        unsynced = false;
+    }
+
+    private void closeJournal() throws IOException {
+        if (journal != null) {
+            sync();
+            journal.close();
+            journal = null;
+        }
+    }
+
+    private void writeCheckpoint(Checkpoint c) throws IOException {
+        File tmp = new File(dir, String.format("checkpoint-%08d.tmp", c.number));
+        int[] pixels = new int[TILE_PIXELS];
+        byte[] raw = new byte[3 * TILE_PIXELS];
+        byte[] packed = new byte[raw.length + 1024];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        CRC32 crc = new CRC32();
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), crc));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(c.snapshots[0].getWidth());
+            out.writeInt(c.snapshots[0].getHeight());
+            out.writeBoolean(c.full);
+            out.write(c.layers);
+            for (int id = 0; id < c.tiles.length; id++) {
+                BitSet tiles = c.tiles[id];
+                for (int t = tiles.nextSetBit(0); t >= 0; t = tiles.nextSetBit(t + 1)) {
+                    c.snapshots[id].readTile(t, pixels);
+                    for (int i = 0, j = 0; i < TILE_PIXELS; i++, j += 3) {
+                        int p = pixels[i];
+                        raw[j] = (byte) (p >>> 16);
+                        raw[j + 1] = (byte) (p >>> 8);
+                        raw[j + 2] = (byte) p;
+                    }
+                    deflater.reset();
+                    deflater.setInput(raw);
+                    deflater.finish();
+                    int length = 0;
+                    while (!deflater.finished()) {
+                        if (length == packed.length) {
+                            packed = Arrays.copyOf(packed, packed.length * 2);
+                        }
+                        length += deflater.deflate(packed, length, packed.length - length);
+                    }
+                    out.writeInt(id);
+                    out.writeInt(t);
+                    out.writeInt(length);
+                    out.write(packed, 0, length);
+                }
+            }
+            out.writeInt(-1);
+            out.writeLong(crc.getValue());
+            out.flush();
+            file.getChannel().force(true);
+        } finally {
+            deflater.end();
+            for (Snapshot s : c.snapshots) {
+                s.close(writer);
+            }
+        }
+        Files.move(tmp.toPath(), new File(dir, String.format("checkpoint-%08d.dat", c.number)).toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+
+        //Everything before this checkpoint is now in it or in its chain
+        for (File f : list("journal-", ".log")) {
+            if (number(f) < c.number) {
+                Files.delete(f.toPath());
+            }
+        }
+        if (c.full) {
+            for (File f : list("checkpoint-", ".dat")) {
+                if (number(f) < c.number) {
+                    Files.delete(f.toPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists the numbered files with the given prefix and suffix, oldest
+     * first.
+     */
+    private List<File> list(String prefix, String suffix) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix) && name.endsWith(suffix));
+        List<File> list = new ArrayList<>(files == null ? List.of() : Arrays.asList(files));
+        list.sort((a, b) -> Integer.compare(number(a), number(b)));
+        return list;
+    }
+
+    private static int number(File f) {
+        String name = f.getName();
+        return Integer.parseInt(name.substring(name.indexOf('-') + 1, name.lastIndexOf('.')));
+    }
+}
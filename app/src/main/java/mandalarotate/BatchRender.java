@@ -0,0 +1,455 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.imageio.ImageIO;
+
+/**
+ * Renders a file of strokes into a high resolution <code>Mandala</code>
+ * image without a display. The canvas is split into square tiles, every
+ * rotated copy of every stroke segment is binned into the tiles it touches,
+ * and the tiles are then rasterized in parallel on a
+ * <code>ForkJoinPool</code>. Each tile is owned by exactly one task, so no
+ * two threads ever write the same pixel. With <code>mapped</code> the canvas
+ * is kept in a memory-mapped file, for posters too large for the heap.
+ * <p>
+ * The stroke file holds one point per line as <code>x y</code>, measured in
+ * pixels from the centre of a source canvas (800x800 unless given), with
+ * blank lines separating strokes and <code>#</code> starting a comment. A
+ * line <code>layer RRGGBB N</code> draws the strokes after it in the hex
+ * colour <code>RRGGBB</code> with <code>N</code> segments, instead of in
+ * black with the segments given on the command line. Usage:
+ *
+ * <pre>
+ * java -Xmx2g mandalarotate.BatchRender strokes.txt 8 16384x16384 out.png [source=800x800] [tile=512] [antialias] [mapped]
+ * </pre>
+ *
+ * @author chasehanson
+ */
+public class BatchRender {
+
+    /**
+     * The side length of a tile in pixels.
+     */
+    private final int tileSize;
+
+    private final int width, height, tilesX, tilesY;
+
+    private final boolean antialias;
+
+    /**
+     * The end points of every rotated segment, four values per segment.
+     */
+    private double[] segs = new double[1024];
+
+    private int segCount;
+
+    /**
+     * The RGB colour of every rotated segment.
+     */
+    private int[] colours = new int[256];
+
+    /**
+     * For each tile, the indices of the segments that touch it.
+     */
+    private final int[][] bins;
+
+    private final int[] binSizes;
+
+    private final Canvas canvas;
+
+    /**
+     * Constructs a new <code>BatchRender</code> onto a white canvas of the
+     * given size.
+     *
+     * @param width The width of the output in pixels
+     * @param height The height of the output in pixels
+     * @param tileSize The side length of a tile in pixels
+     * @param antialias <code>true</code> to draw anti-aliased lines
+     */
+    public BatchRender(int width, int height, int tileSize, boolean antialias) {
+        this(new RasterCanvas(width, height), tileSize, antialias);
+    }
+
+    /**
+     * Constructs a new <code>BatchRender</code> onto the given canvas, which
+     * is filled white. The canvas must have no tile guards.
+     *
+     * @param canvas The canvas to render into
+     * @param tileSize The side length of a tile in pixels
+     * @param antialias <code>true</code> to draw anti-aliased lines
+     */
+    public BatchRender(Canvas canvas, int tileSize, boolean antialias) {
+        this.canvas = canvas;
+        this.width = canvas.getWidth();
+        this.height = canvas.getHeight();
+        this.tileSize = tileSize;
+        this.antialias = antialias;
+        tilesX = (width + tileSize - 1) / tileSize;
+        tilesY = (height + tileSize - 1) / tileSize;
+        bins = new int[tilesX * tilesY][];
+        binSizes = new int[tilesX * tilesY];
+        canvas.fill(Color.white.getRGB());
+    }
+
+    /**
+     * Returns the <code>Canvas</code> being rendered into.
+     *
+     * @return The canvas
+     */
+    public Canvas getCanvas() {
+        return canvas;
+    }
+
+    /**
+     * Expands a stroke through the <code>Mandala</code> symmetry and bins
+     * every rotated segment into the tiles it touches. A stroke of a single
+     * point is kept as a segment of zero length.
+     *
+     * @param xs The x coordinates of the stroke, relative to the centre
+     * @param ys The y coordinates of the stroke, relative to the centre
+     * @param count The number of points in the stroke
+     * @param symmetry The rotation table to expand the stroke with
+     * @param radius The maximum allowed radius of the copies
+     */
+    public void addStroke(double[] xs, double[] ys, int count, Symmetry symmetry, double radius) {
+        addStroke(xs, ys, count, symmetry, radius, Color.black.getRGB());
+    }
+
+    /**
+     * Expands a stroke through the <code>Mandala</code> symmetry and bins
+     * every rotated segment into the tiles it touches, to be drawn in the
+     * given colour over the strokes added before it.
+     *
+     * @param xs The x coordinates of the stroke, relative to the centre
+     * @param ys The y coordinates of the stroke, relative to the centre
+     * @param count The number of points in the stroke
+     * @param symmetry The rotation table to expand the stroke with
+     * @param radius The maximum allowed radius of the copies
+     * @param rgb The RGB colour to draw the stroke in
+     */
+    public void addStroke(double[] xs, double[] ys, int count, Symmetry symmetry, double radius, int rgb) {
+        if (count == 0) {
+            return;
+        }
+        int n = symmetry.copies();
+        double[] cx = new double[count * n];
+        double[] cy = new double[count * n];
+        symmetry.expand(xs, ys, 0, count, radius, cx, cy, 0);
+
+        for (int c = 0; c < n; c++) {
+            if (count == 1) {
+                addSegment(cx[c], cy[c], cx[c], cy[c], rgb);
+            }
+            for (int i = 1; i < count; i++) {
+                addSegment(cx[(i - 1) * n + c], cy[(i - 1) * n + c], cx[i * n + c], cy[i * n + c], rgb);
+            }
+        }
+    }
+
+    private void addSegment(double x0, double y0, double x1, double y1, int rgb) {
+        if (segs.length < (segCount + 1) * 4) {
+            segs = Arrays.copyOf(segs, segs.length * 2);
+            colours = Arrays.copyOf(colours, segs.length / 4);
+        }
+        int s = segCount++;
+        colours[s] = rgb;
+        segs[s * 4] = x0;
+        segs[s * 4 + 1] = y0;
+        segs[s * 4 + 2] = x1;
+        segs[s * 4 + 3] = y1;
+
+        //Bin by bounding box, padded by a pixel for rounding and anti-aliasing
+        int tx0 = tile(Math.min(x0, x1) + width / 2 - 1, tilesX);
+        int tx1 = tile(Math.max(x0, x1) + width / 2 + 2, tilesX);
+        int ty0 = tile(Math.min(y0, y1) + height / 2 - 1, tilesY);
+        int ty1 = tile(Math.max(y0, y1) + height / 2 + 2, tilesY);
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                int t = ty * tilesX + tx;
+                if (bins[t] == null) {
+                    bins[t] = new int[16];
+                } else if (bins[t].length == binSizes[t]) {
+                    bins[t] = Arrays.copyOf(bins[t], binSizes[t] * 2);
+                }
+                bins[t][binSizes[t]++] = s;
+            }
+        }
+    }
+
+    private int tile(double v, int tiles) {
+        return Math.max(0, Math.min(tiles - 1, (int) Math.floor(v / tileSize)));
+    }
+
+    /**
+     * Rasterizes every binned segment into the canvas, one task per range of
+     * tiles.
+     *
+     * @param pool The pool to run the tile tasks on
+     */
+    public void render(ForkJoinPool pool) {
+        pool.invoke(new TileTask(0, bins.length));
+    }
+
+    /**
+     * Rasterizes the segments of one tile, keeping only the pixels that fall
+     * inside it. Each segment is clipped to the tile first, so a long one
+     * costs each tile only the steps that cross it.
+     *
+     * @param t The index of the tile
+     * @param scratch A buffer for the pixels of one segment
+     * @return The buffer, grown if it was too small
+     */
+    private long[] renderTile(int t, long[] scratch) {
+        int left = (t % tilesX) * tileSize;
+        int top = (t / tilesX) * tileSize;
+        int right = Math.min(left + tileSize, width);
+        int bottom = Math.min(top + tileSize, height);
+        int cx = width / 2;
+        int cy = height / 2;
+
+        for (int k = 0; k < binSizes[t]; k++) {
+            int rgb = colours[bins[t][k]];
+            int s = bins[t][k] * 4;
+            double x0 = segs[s], y0 = segs[s + 1], x1 = segs[s + 2], y1 = segs[s + 3];
+            int need = LineRasterizer.capacity(Math.hypot(x1 - x0, y1 - y0));
+            if (scratch.length < need) {
+                scratch = new long[need];
+            }
+            int count = antialias
+                    ? LineRasterizer.wu(x0, y0, x1, y1, left - cx, top - cy, right - cx, bottom - cy, scratch, 0)
+                    : LineRasterizer.bresenham((int) (.5 + x0), (int) (.5 + y0), (int) (.5 + x1), (int) (.5 + y1), true,
+                            left - cx, top - cy, right - cx, bottom - cy, scratch, 0);
+            for (int i = 0; i < count; i++) {
+                long p = scratch[i];
+                int x = PointBuffer.x(p) + cx;
+                int y = PointBuffer.y(p) + cy;
+                if (x >= left && x < right && y >= top && y < bottom) {
+                    canvas.plot(x, y, rgb, PointBuffer.alpha(p));
+                }
+            }
+        }
+        return scratch;
+    }
+
+    /**
+     * Splits a range of tiles in half until it is small enough to rasterize
+     * directly.
+     */
+    private class TileTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to;
+
+        TileTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 4) {
+                long[] scratch = new long[1024];
+                for (int t = from; t < to; t++) {
+                    scratch = renderTile(t, scratch);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new TileTask(from, mid), new TileTask(mid, to));
+            }
+        }
+    }
+
+    /**
+     * Reads a stroke file, scaling every point by the given factor.
+     *
+     * @param f The file to read
+     * @param scale The factor to multiply every coordinate by
+     * @return Each stroke as its x and y arrays and a pair of its RGB colour
+     * and number of segments, where 0 segments means those given on the
+     * command line
+     * @throws IOException If the file can't be read or is malformed
+     */
+    public static List<double[][]> readStrokes(File f, double scale) throws IOException {
+        List<double[][]> strokes = new ArrayList<>();
+        double[] xs = new double[64];
+        double[] ys = new double[64];
+        int n = 0;
+        double[] style = {Color.black.getRGB(), 0};
+        try (BufferedReader in = new BufferedReader(new FileReader(f))) {
+            String line;
+            int number = 0;
+            while ((line = in.readLine()) != null) {
+                number++;
+                int hash = line.indexOf('#');
+                if (hash >= 0) {
+                    line = line.substring(0, hash);
+                }
+                line = line.trim();
+                String[] parts = line.split("\\s+");
+                if (line.isEmpty() || parts[0].equals("layer")) {
+                    if (n > 0) {
+                        strokes.add(new double[][]{Arrays.copyOf(xs, n), Arrays.copyOf(ys, n), style});
+                        n = 0;
+                    }
+                    if (!line.isEmpty()) {
+                        try {
+                            if (parts.length != 3) {
+                                throw new NumberFormatException("expected \"layer RRGGBB segments\"");
+                            }
+                            int segments = Integer.parseInt(parts[2]);
+                            if (segments < 1) {
+                                throw new NumberFormatException("expected at least 1 segment");
+                            }
+                            style = new double[]{Integer.parseInt(parts[1], 16), segments};
+                        } catch (NumberFormatException e) {
+                            throw new IOException(f + ":" + number + ": " + e.getMessage());
+                        }
+                    }
+                    continue;
+                }
+                if (parts.length != 2) {
+                    throw new IOException(f + ":" + number + ": expected \"x y\"");
+                }
+                if (n == xs.length) {
+                    xs = Arrays.copyOf(xs, n * 2);
+                    ys = Arrays.copyOf(ys, n * 2);
+                }
+                try {
+                    xs[n] = Double.parseDouble(parts[0]) * scale;
+                    ys[n] = Double.parseDouble(parts[1]) * scale;
+                } catch (NumberFormatException e) {
+                    throw new IOException(f + ":" + number + ": " + e.getMessage());
+                }
+                n++;
+            }
+        }
+        if (n > 0) {
+            strokes.add(new double[][]{Arrays.copyOf(xs, n), Arrays.copyOf(ys, n), style});
+        }
+        return strokes;
+    }
+
+    private static int[] parseSize(String s) {
+        int x = s.indexOf('x');
+        if (x < 0) {
+            throw new IllegalArgumentException("Expected a size of the form WxH: " + s);
+        }
+        return new int[]{Integer.parseInt(s.substring(0, x)), Integer.parseInt(s.substring(x + 1))};
+    }
+
+    /**
+     * @param args The stroke file, the number of segments, the output size,
+     * the output file, and optionally <code>source=WxH</code>,
+     * <code>tile=N</code>, <code>antialias</code> and <code>mapped</code> to
+     * keep the canvas in a memory-mapped file instead of on the heap
+     * @throws IOException If the strokes can't be read or the image written
+     */
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length < 4) {
+            System.err.println("Usage: BatchRender <strokes> <segments> <W>x<H> <output> [source=WxH] [tile=N] [antialias] [mapped]");
+            System.exit(2);
+        }
+        int segments = Integer.parseInt(args[1]);
+        int[] size = parseSize(args[2]);
+        File output = new File(args[3]);
+        int[] source = {800, 800};
+        int tile = 512;
+        boolean antialias = false;
+        boolean mapped = false;
+        for (int i = 4; i < args.length; i++) {
+            if (args[i].startsWith("source=")) {
+                source = parseSize(args[i].substring(7));
+            } else if (args[i].startsWith("tile=")) {
+                tile = Integer.parseInt(args[i].substring(5));
+            } else if (args[i].equals("antialias")) {
+                antialias = true;
+            } else if (args[i].equals("mapped")) {
+                mapped = true;
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        double scale = Math.min((double) size[0] / source[0], (double) size[1] / source[1]);
+        long start = System.nanoTime();
+        List<double[][]> strokes = readStrokes(new File(args[0]), scale);
+
+        Canvas canvas = mapped ? new MappedCanvas(size[0], size[1], null) : new RasterCanvas(size[0], size[1]);
+        BatchRender r = new BatchRender(canvas, tile, antialias);
+        Map<Integer, Symmetry> symmetries = new HashMap<>();
+        double radius = Math.min(size[0], size[1]) / 2.0;
+        for (double[][] s : strokes) {
+            int n = s[2][1] == 0 ? segments : (int) s[2][1];
+            r.addStroke(s[0], s[1], s[0].length, symmetries.computeIfAbsent(n, Symmetry::new), radius, (int) s[2][0]);
+        }
+        long binned = System.nanoTime();
+
+        r.render(ForkJoinPool.commonPool());
+        long rendered = System.nanoTime();
+
+        String name = output.getName();
+        String format = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+        if (format.equals("png") || format.equals("bmp")) {
+            //Stream the rows, so a mapped canvas never has to fit on the heap
+            Snapshot s = Snapshot.take(canvas, new Rectangle(0, 0, size[0], size[1]));
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output), 1 << 16)) {
+                if (format.equals("png")) {
+                    Exporter.writePng(s, out, 6, null);
+                } else {
+                    Exporter.writeBmp(s, out, null);
+                }
+            }
+        } else if (canvas instanceof RasterCanvas) {
+            if (!ImageIO.write(((RasterCanvas) canvas).getImage(), format, output)) {
+                throw new IOException("No image writer for " + format);
+            }
+        } else {
+            throw new IOException("A mapped canvas can only be written as png or bmp");
+        }
+        long written = System.nanoTime();
+
+        System.out.printf("%d strokes, %d segments: binned in %d ms, rendered in %d ms on %d threads, written in %d ms%n",
+                strokes.size(), r.segCount, (binned - start) / 1_000_000, (rendered - binned) / 1_000_000,
+                ForkJoinPool.commonPool().getParallelism(), (written - rendered) / 1_000_000);
+    }
+}
@@ -0,0 +1,143 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+/**
+ * The settings of a round brush: how wide it is, how sharp its edge is and
+ * how much ink each dab lays down. A stroke drawn with a brush is a row of
+ * dabs, spaced along it by a fraction of the brush's diameter, each of which
+ * blends the brush's <code>Stamp</code> into the active layer. The colour is
+ * that of the layer.
+ * <p>
+ * A <code>Brush</code> never changes; the <code>with</code> methods return a
+ * new one, so it can be handed from the event thread to the input thread
+ * without locking.
+ *
+ * @author chasehanson
+ */
+public class Brush {
+
+    /**
+     * The largest radius allowed, in pixels.
+     */
+    public static final double MAX_RADIUS = 256;
+
+    /**
+     * The default distance between dabs, as a fraction of the diameter.
+     */
+    public static final double DEFAULT_SPACING = .25;
+
+    /**
+     * The radius of the brush in pixels, from 0.5 to <code>MAX_RADIUS</code>.
+     */
+    public final double radius;
+
+    /**
+     * The fraction of the radius drawn at full strength before the edge
+     * starts to fade, from 0 for a soft brush to 1 for a hard one.
+     */
+    public final double hardness;
+
+    /**
+     * The ink laid down by the centre of each dab, from 0 to 255.
+     */
+    public final int flow;
+
+    /**
+     * The distance between dabs as a fraction of the diameter.
+     */
+    public final double spacing;
+
+    /**
+     * Constructs a new <code>Brush</code> with the default spacing.
+     *
+     * @param radius The radius of the brush in pixels
+     * @param hardness The hardness of the brush, from 0 to 1
+     * @param flow The ink laid down by each dab, from 0 to 255
+     */
+    public Brush(double radius, double hardness, int flow) {
+        this(radius, hardness, flow, DEFAULT_SPACING);
+    }
+
+    /**
+     * Constructs a new <code>Brush</code>, clamping each setting to its
+     * allowed range.
+     *
+     * @param radius The radius of the brush in pixels
+     * @param hardness The hardness of the brush, from 0 to 1
+     * @param flow The ink laid down by each dab, from 0 to 255
+     * @param spacing The distance between dabs as a fraction of the diameter
+     */
+    public Brush(double radius, double hardness, int flow, double spacing) {
+        this.radius = Math.max(.5, Math.min(MAX_RADIUS, radius));
+        this.hardness = Math.max(0, Math.min(1, hardness));
+        this.flow = Math.max(0, Math.min(255, flow));
+        this.spacing = Math.max(.01, spacing);
+    }
+
+    /**
+     * Returns a brush like this one with another radius.
+     *
+     * @param r The new radius in pixels
+     * @return The new brush
+     */
+    public Brush withRadius(double r) {
+        return new Brush(r, hardness, flow, spacing);
+    }
+
+    /**
+     * Returns a brush like this one with another hardness.
+     *
+     * @param h The new hardness, from 0 to 1
+     * @return The new brush
+     */
+    public Brush withHardness(double h) {
+        return new Brush(radius, h, flow, spacing);
+    }
+
+    /**
+     * Returns a brush like this one with another flow.
+     *
+     * @param f The new flow, from 0 to 255
+     * @return The new brush
+     */
+    public Brush withFlow(int f) {
+        return new Brush(radius, hardness, f, spacing);
+    }
+
+    /**
+     * Returns the distance between dabs in pixels, never less than one.
+     *
+     * @return The distance between dabs
+     */
+    public double step() {
+        return Math.max(1, 2 * radius * spacing);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Brush: radius %.1f px, hardness %d%%, flow %d%%", radius,
+                Math.round(hardness * 100), Math.round(flow * 100 / 255.0));
+    }
+}
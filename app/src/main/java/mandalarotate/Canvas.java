@@ -0,0 +1,427 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+/**
+ * A drawing surface of RGB pixels. Every write is clipped explicitly, so
+ * drawing outside of the <code>Canvas</code> is silently ignored rather than
+ * throwing. <code>RasterCanvas</code> keeps the pixels on the heap behind a
+ * <code>BufferedImage</code>, <code>SparseCanvas</code> keeps only the tiles
+ * that have been drawn on, and <code>MappedCanvas</code> keeps them in a
+ * memory-mapped file for canvases too large for the heap.
+ * <p>
+ * The pixels are divided into square tiles of <code>TILE_SIZE</code>. A
+ * <code>TileGuard</code> can arm any tile to be told just before the first
+ * write into it, which is enough to build copy-on-write snapshots and undo
+ * history on top. Guards are added, armed and notified on the thread that
+ * writes to the <code>Canvas</code>.
+ *
+ * @author chasehanson
+ */
+public abstract class Canvas {
+
+    /**
+     * The side length of a tile is <code>1 &lt;&lt; TILE_SHIFT</code>.
+     */
+    public static final int TILE_SHIFT = 7;
+
+    /**
+     * The side length of a tile in pixels.
+     */
+    public static final int TILE_SIZE = 1 << TILE_SHIFT;
+
+    /**
+     * Told before the first write into each tile it has armed.
+     */
+    public interface TileGuard {
+
+        /**
+         * Called just before a tile is written to. The tile still holds its
+         * previous pixels.
+         *
+         * @param c The <code>Canvas</code> being written to
+         * @param tile The index of the tile
+         */
+        void beforeWrite(Canvas c, int tile);
+    }
+
+    /**
+     * The most guards a <code>Canvas</code> can hold at once.
+     */
+    private static final int MAX_GUARDS = 8;
+
+    private final TileGuard[] guards = new TileGuard[MAX_GUARDS];
+
+    /**
+     * For each tile, one bit per guard that wants to hear about the next
+     * write. Subclasses check it inline in their bulk loops and call
+     * <code>touch</code> only for armed tiles.
+     */
+    protected final byte[] armed;
+
+    protected final int width, height, tilesX, tilesY;
+
+    /**
+     * Constructs a new <code>Canvas</code> of the given size.
+     *
+     * @param width The width of the <code>Canvas</code> in pixels
+     * @param height The height of the <code>Canvas</code> in pixels
+     */
+    protected Canvas(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("size must be positive: " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        tilesX = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+        tilesY = (height + TILE_SIZE - 1) >> TILE_SHIFT;
+        armed = new byte[tilesX * tilesY];
+    }
+
+    /**
+     * Returns the number of tile columns.
+     *
+     * @return The number of tiles across
+     */
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    /**
+     * Returns the number of tile rows.
+     *
+     * @return The number of tiles down
+     */
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    /**
+     * Returns the index of the tile holding a pixel, which must lie on the
+     * <code>Canvas</code>.
+     *
+     * @param x The x coordinate of the pixel
+     * @param y The y coordinate of the pixel
+     * @return The index of the tile
+     */
+    public int tileAt(int x, int y) {
+        return (y >> TILE_SHIFT) * tilesX + (x >> TILE_SHIFT);
+    }
+
+    /**
+     * Returns <code>true</code> if a tile is known to hold nothing but one
+     * colour, so that it can be skipped rather than read. Canvases that don't
+     * keep track of this always return <code>false</code>.
+     *
+     * @param tile The index of the tile
+     * @return <code>true</code> if every pixel of the tile is the same
+     */
+    public boolean isBlank(int tile) {
+        return false;
+    }
+
+    /**
+     * Copies the pixels of a tile into an array, row by row. Tiles on the
+     * right and bottom edges may be smaller than <code>TILE_SIZE</code>.
+     *
+     * @param tile The index of the tile
+     * @param out The array to copy into, at least
+     * <code>TILE_SIZE * TILE_SIZE</code> long
+     */
+    public abstract void readTile(int tile, int[] out);
+
+    /**
+     * Overwrites the pixels of a tile from an array laid out as by
+     * <code>readTile</code>. Armed guards are told first.
+     *
+     * @param tile The index of the tile
+     * @param in The pixels to copy in
+     */
+    public abstract void writeTile(int tile, int[] in);
+
+    /**
+     * Copies a rectangle of pixels into an array, which must lie on the
+     * <code>Canvas</code>.
+     *
+     * @param x The x coordinate of the top left corner
+     * @param y The y coordinate of the top left corner
+     * @param w The width of the rectangle
+     * @param h The height of the rectangle
+     * @param out The array to copy into
+     * @param offset The index in <code>out</code> of the top left pixel
+     * @param scan The distance in <code>out</code> between rows
+     */
+    public abstract void readRect(int x, int y, int w, int h, int[] out, int offset, int scan);
+
+    /**
+     * Overwrites a rectangle of pixels from an array laid out as by
+     * <code>readRect</code>. The rectangle must lie on the
+     * <code>Canvas</code>. Armed guards are told first.
+     *
+     * @param x The x coordinate of the top left corner
+     * @param y The y coordinate of the top left corner
+     * @param w The width of the rectangle
+     * @param h The height of the rectangle
+     * @param in The pixels to copy in
+     * @param offset The index in <code>in</code> of the top left pixel
+     * @param scan The distance in <code>in</code> between rows
+     */
+    public abstract void writeRect(int x, int y, int w, int h, int[] in, int offset, int scan);
+
+    /**
+     * Adds a guard, which starts out with no tiles armed.
+     *
+     * @param g The guard to add
+     * @throws IllegalStateException If the <code>Canvas</code> already holds
+     * the most guards it can
+     */
+    public void addGuard(TileGuard g) {
+        for (int i = 0; i < MAX_GUARDS; i++) {
+            if (guards[i] == null) {
+                guards[i] = g;
+                return;
+            }
+        }
+        throw new IllegalStateException("Too many tile guards");
+    }
+
+    /**
+     * Removes a guard and disarms all of its tiles.
+     *
+     * @param g The guard to remove
+     */
+    public void removeGuard(TileGuard g) {
+        int bit = bit(g);
+        if (bit != 0) {
+            for (int t = 0; t < armed.length; t++) {
+                armed[t] &= ~bit;
+            }
+            guards[Integer.numberOfTrailingZeros(bit)] = null;
+        }
+    }
+
+    /**
+     * Arms a tile for a guard, so the guard is told before the next write
+     * into it.
+     *
+     * @param g The guard, which must have been added
+     * @param tile The index of the tile
+     */
+    public void arm(TileGuard g, int tile) {
+        armed[tile] |= bit(g);
+    }
+
+    /**
+     * Arms every tile for a guard.
+     *
+     * @param g The guard, which must have been added
+     */
+    public void armAll(TileGuard g) {
+        byte bit = (byte) bit(g);
+        for (int t = 0; t < armed.length; t++) {
+            armed[t] |= bit;
+        }
+    }
+
+    private int bit(TileGuard g) {
+        for (int i = 0; i < MAX_GUARDS; i++) {
+            if (guards[i] == g) {
+                return 1 << i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Tells every guard that armed a tile that it is about to be written,
+     * then disarms it.
+     *
+     * @param tile The index of the tile
+     */
+    protected final void touch(int tile) {
+        int bits = armed[tile] & 0xFF;
+        if (bits != 0) {
+            armed[tile] = 0;
+            while (bits != 0) {
+                int i = Integer.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                guards[i].beforeWrite(this, tile);
+            }
+        }
+    }
+
+    /**
+     * Tells the guards of every armed tile within a rectangle of tiles.
+     *
+     * @param tx0 The first tile column, inclusive
+     * @param ty0 The first tile row, inclusive
+     * @param tx1 The last tile column, inclusive
+     * @param ty1 The last tile row, inclusive
+     */
+    protected final void touch(int tx0, int ty0, int tx1, int ty1) {
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                if (armed[ty * tilesX + tx] != 0) {
+                    touch(ty * tilesX + tx);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the width of the <code>Canvas</code> in pixels.
+     *
+     * @return The width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the <code>Canvas</code> in pixels.
+     *
+     * @return The height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns <code>true</code> if the given pixel lies on the
+     * <code>Canvas</code>.
+     *
+     * @param x The x coordinate of the pixel
+     * @param y The y coordinate of the pixel
+     * @return <code>true</code> if the pixel is inside the bounds
+     */
+    public boolean contains(int x, int y) {
+        return (x | y) >= 0 && x < width && y < height;
+    }
+
+    /**
+     * Returns the colour of a pixel, or <code>0</code> if it lies outside of
+     * the <code>Canvas</code>.
+     *
+     * @param x The x coordinate of the pixel
+     * @param y The y coordinate of the pixel
+     * @return The RGB colour of the pixel
+     */
+    public abstract int get(int x, int y);
+
+    /**
+     * Sets every pixel of the <code>Canvas</code> to one colour.
+     *
+     * @param rgb The RGB colour to fill with
+     */
+    public abstract void fill(int rgb);
+
+    /**
+     * Sets every pixel inside a rectangle to one colour. The rectangle is
+     * clipped to the <code>Canvas</code>.
+     *
+     * @param x The x coordinate of the top left corner
+     * @param y The y coordinate of the top left corner
+     * @param w The width of the rectangle
+     * @param h The height of the rectangle
+     * @param rgb The RGB colour to fill with
+     */
+    public abstract void fillRect(int x, int y, int w, int h, int rgb);
+
+    /**
+     * Sets a single pixel, if it lies on the <code>Canvas</code>.
+     *
+     * @param x The x coordinate of the pixel
+     * @param y The y coordinate of the pixel
+     * @param rgb The RGB colour to set
+     */
+    public abstract void plot(int x, int y, int rgb);
+
+    /**
+     * Blends a colour over a pixel with the given coverage, using integer
+     * arithmetic on two channels at a time.
+     *
+     * @param dst The existing RGB colour
+     * @param src The RGB colour to blend over it
+     * @param alpha The coverage of <code>src</code>, from 0 to 255
+     * @return The blended RGB colour
+     */
+    public static int blend(int dst, int src, int alpha) {
+        int inv = 255 - alpha;
+        int rb = ((src & 0xFF00FF) * alpha + (dst & 0xFF00FF) * inv) >>> 8;
+        int g = ((src & 0xFF00) * alpha + (dst & 0xFF00) * inv) >>> 8;
+        return (rb & 0xFF00FF) | (g & 0xFF00);
+    }
+
+    /**
+     * Blends a colour over a single pixel, if it lies on the
+     * <code>Canvas</code>.
+     *
+     * @param x The x coordinate of the pixel
+     * @param y The y coordinate of the pixel
+     * @param rgb The RGB colour to blend
+     * @param alpha The coverage of the colour, from 0 to 255
+     */
+    public abstract void plot(int x, int y, int rgb, int alpha);
+
+    /**
+     * Sets a batch of packed pixels, each shifted by an offset. Partially
+     * covered pixels are blended. Pixels that fall outside of the
+     * <code>Canvas</code> are skipped.
+     *
+     * @param pixels The pixels, packed by <code>PointBuffer.pack</code>
+     * @param from The index of the first pixel, inclusive
+     * @param to The index of the last pixel, exclusive
+     * @param dx The offset added to every x coordinate
+     * @param dy The offset added to every y coordinate
+     * @param rgb The RGB colour to set
+     */
+    public abstract void plot(long[] pixels, int from, int to, int dx, int dy, int rgb);
+
+    /**
+     * Sets a range of the pixels held by a <code>PointBuffer</code>, each
+     * shifted by an offset. Partially covered pixels are blended. Must be
+     * called from the buffer's consumer thread.
+     *
+     * @param pixels The buffer holding the pixels
+     * @param start The index of the first pixel, inclusive
+     * @param end The index of the last pixel, exclusive
+     * @param dx The offset added to every x coordinate
+     * @param dy The offset added to every y coordinate
+     * @param rgb The RGB colour to set
+     */
+    public abstract void plot(PointBuffer pixels, long start, long end, int dx, int dy, int rgb);
+
+    /**
+     * Blends a colour over the pixels under a <code>Stamp</code>, each with
+     * the stamp's coverage scaled by <code>flow</code>. Pixels that fall
+     * outside of the <code>Canvas</code> are skipped.
+     *
+     * @param s The stamp
+     * @param cx The x coordinate of the centre of the stamp
+     * @param cy The y coordinate of the centre of the stamp
+     * @param rgb The RGB colour to blend
+     * @param flow The coverage of the centre of the stamp, from 0 to 255
+     */
+    public abstract void stamp(Stamp s, int cx, int cy, int rgb, int flow);
+}
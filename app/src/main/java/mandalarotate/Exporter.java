@@ -0,0 +1,331 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Encodes <code>Snapshot</code>s to disk on a background thread, so saving
+ * never blocks drawing. Rows are streamed straight from the snapshot into the
+ * file, either as a PNG with a chosen compression level or as a raw 24 bit
+ * BMP, without building a second image in memory.
+ *
+ * @author chasehanson
+ */
+public class Exporter {
+
+    /**
+     * The file formats an <code>Exporter</code> can write.
+     */
+    public enum Format {
+        PNG("png"), BMP("bmp");
+
+        /**
+         * The usual file extension of the format.
+         */
+        public final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    /**
+     * Told about the progress of an export, on the export thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called as rows are written.
+         *
+         * @param f The file being written
+         * @param fraction The fraction of rows written, from 0 to 1
+         */
+        void progress(File f, double fraction);
+
+        /**
+         * Called once the file has been written and closed.
+         *
+         * @param f The file written
+         * @param nanos The time taken to encode and write it
+         */
+        void finished(File f, long nanos);
+
+        /**
+         * Called if the export fails.
+         *
+         * @param f The file being written
+         * @param e The cause of the failure
+         */
+        void failed(File f, Exception e);
+    }
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Mandala export");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Encodes a snapshot to a file in the background. The snapshot is closed
+     * once it has been read.
+     *
+     * @param s The snapshot to encode
+     * @param f The file to write
+     * @param format The format to write
+     * @param level The PNG compression level from 0 to 9, ignored for BMP
+     * @param listener Told about progress, may be <code>null</code>
+     * @param writer Runs tasks on the thread that writes to the snapshot's
+     * <code>Canvas</code>
+     * @return A <code>Future</code> completing when the file is written
+     */
+    public Future<?> export(Snapshot s, File f, Format format, int level, Listener listener, Executor writer) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("compression level must be from 0 to 9: " + level);
+        }
+        return worker.submit(() -> {
+            long start = System.nanoTime();
+            int step = Math.max(1, s.getHeight() / 100);
+            Snapshot.RowSink progress = listener == null ? null : (rgb, done) -> {
+                if (done % step == 0 || done == s.getHeight()) {
+                    listener.progress(f, (double) done / s.getHeight());
+                }
+            };
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(f), 1 << 16)) {
+                if (format == Format.PNG) {
+                    writePng(s, out, level, progress);
+                } else {
+                    writeBmp(s, out, progress);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (listener != null) {
+                    listener.failed(f, e);
+                }
+                return;
+            } finally {
+                s.close(writer);
+            }
+            if (listener != null) {
+                listener.finished(f, System.nanoTime() - start);
+            }
+        });
+    }
+
+    /**
+     * Stops accepting exports and waits for those already submitted.
+     *
+     * @param timeout The longest time to wait
+     * @param unit The unit of <code>timeout</code>
+     * @return <code>true</code> if every export finished in time
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        worker.shutdown();
+        return worker.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Streams a snapshot as an 8 bit RGB PNG. Each row is deflated as it
+     * arrives and the compressed stream is cut into IDAT chunks.
+     *
+     * @param s The snapshot to encode
+     * @param out The stream to write to
+     * @param level The compression level from 0 to 9
+     * @param progress Told about every row, may be <code>null</code>
+     * @throws IOException If the stream can't be written
+     */
+    public static void writePng(Snapshot s, OutputStream out, int level, Snapshot.RowSink progress) throws IOException {
+        int w = s.getWidth();
+        out.write(PNG_SIGNATURE);
+        ChunkOutputStream header = new ChunkOutputStream(out, "IHDR", 13);
+        DataOutputStream ihdr = new DataOutputStream(header);
+        ihdr.writeInt(w);
+        ihdr.writeInt(s.getHeight());
+        ihdr.writeByte(8); //Bit depth
+        ihdr.writeByte(2); //Truecolour
+        ihdr.writeByte(0); //Deflate
+        ihdr.writeByte(0); //Adaptive filtering
+        ihdr.writeByte(0); //No interlace
+        header.finish();
+
+        Deflater deflater = new Deflater(level);
+        ChunkOutputStream idat = new ChunkOutputStream(out, "IDAT", 1 << 16);
+        DeflaterOutputStream z = new DeflaterOutputStream(idat, deflater, 1 << 16);
+        byte[] line = new byte[1 + 3 * w];
+        s.readRows(false, (rgb, done) -> {
+            //Filter type 0, no filtering
+            for (int x = 0, i = 1; x < w; x++) {
+                int v = rgb[x];
+                line[i++] = (byte) (v >> 16);
+                line[i++] = (byte) (v >> 8);
+                line[i++] = (byte) v;
+            }
+            z.write(line);
+            if (progress != null) {
+                progress.row(rgb, done);
+            }
+        });
+        z.finish();
+        deflater.end();
+        idat.finish();
+        new ChunkOutputStream(out, "IEND", 0).finish();
+    }
+
+    /**
+     * Streams a snapshot as an uncompressed 24 bit BMP, bottom row first.
+     *
+     * @param s The snapshot to encode
+     * @param out The stream to write to
+     * @param progress Told about every row, may be <code>null</code>
+     * @throws IOException If the stream can't be written
+     */
+    public static void writeBmp(Snapshot s, OutputStream out, Snapshot.RowSink progress) throws IOException {
+        int w = s.getWidth();
+        int h = s.getHeight();
+        int stride = (3 * w + 3) & ~3;
+        long imageSize = (long) stride * h;
+        byte[] header = new byte[54];
+        header[0] = 'B';
+        header[1] = 'M';
+        putInt(header, 2, (int) (54 + imageSize));
+        putInt(header, 10, 54);
+        putInt(header, 14, 40);
+        putInt(header, 18, w);
+        putInt(header, 22, h);
+        header[26] = 1; //Planes
+        header[28] = 24; //Bits per pixel
+        putInt(header, 34, (int) imageSize);
+        putInt(header, 38, 2835); //72 DPI
+        putInt(header, 42, 2835);
+        out.write(header);
+
+        byte[] line = new byte[stride];
+        s.readRows(true, (rgb, done) -> {
+            for (int x = 0, i = 0; x < w; x++) {
+                int v = rgb[x];
+                line[i++] = (byte) v;
+                line[i++] = (byte) (v >> 8);
+                line[i++] = (byte) (v >> 16);
+            }
+            out.write(line);
+            if (progress != null) {
+                progress.row(rgb, done);
+            }
+        });
+    }
+
+    private static void putInt(byte[] b, int i, int v) {
+        b[i] = (byte) v;
+        b[i + 1] = (byte) (v >> 8);
+        b[i + 2] = (byte) (v >> 16);
+        b[i + 3] = (byte) (v >> 24);
+    }
+
+    /**
+     * Buffers bytes and writes them out as PNG chunks of a given type.
+     */
+    private static class ChunkOutputStream extends OutputStream {
+
+        private final OutputStream out;
+
+        private final byte[] type;
+
+        private final byte[] buffer;
+
+        private int size;
+
+        private boolean written;
+
+        ChunkOutputStream(OutputStream out, String type, int capacity) {
+            this.out = out;
+            this.type = type.getBytes(StandardCharsets.US_ASCII);
+            buffer = new byte[Math.max(capacity, 1)];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == buffer.length) {
+                flushChunk();
+            }
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (size == buffer.length) {
+                    flushChunk();
+                }
+                int n = Math.min(len, buffer.length - size);
+                System.arraycopy(b, off, buffer, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void flushChunk() throws IOException {
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(buffer, 0, size);
+            DataOutputStream d = new DataOutputStream(out);
+            d.writeInt(size);
+            d.write(type);
+            d.write(buffer, 0, size);
+            d.writeInt((int) crc.getValue());
+            size = 0;
+            written = true;
+        }
+
+        /**
+         * Writes out what remains, as an empty chunk if nothing was written.
+         */
+        void finish() throws IOException {
+            if (size > 0 || !written) {
+                flushChunk();
+            }
+        }
+
+        @Override
+        public void close() {
+            //The underlying stream is closed by the caller
+        }
+    }
+}
@@ -0,0 +1,721 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Fills the region of a drawing around a seed pixel, taking advantage of its
+ * rotational symmetry. The region is the set of pixels within the disc of the
+ * <code>Mandala</code>, connected to the seed through their four neighbours,
+ * whose colour in the source canvas is within a tolerance of the seed's; it
+ * is filled with ink in the target canvas, so the region can be read from the
+ * composite and painted into a layer.
+ * <p>
+ * A drawing made with <code>segments</code> segments looks the same after
+ * each of the <code>2 * segments</code> transforms of its
+ * <code>Symmetry</code>, so a region is the union of the copies of its part
+ * in the master wedge, the angles from 0 to <code>PI / segments</code>. The
+ * scanline fill is run in the master wedge alone. Every other pixel of the
+ * region is then found by mapping it back to the wedge through the inverse
+ * of the transform of the wedge it lies in, an affine map stepped along each
+ * row in fixed point, rows being mapped in parallel and each pixel kept
+ * only if it matches the seed too.
+ * <p>
+ * Strokes are rasterised separately in each copy, so the copies of a
+ * boundary can differ by a pixel, and a gap in one copy can be missing from
+ * another. The mapped pixels are walked from the seed a word of pixels at a
+ * time, keeping only those connected to it, and the scanline fill is carried
+ * on from their edges to pick up what the copies have that the wedge lacks.
+ * If that adds more than half as many pixels again, the drawing isn't
+ * symmetric about the seed, and the whole disc is filled instead: its pixels
+ * are classified in parallel and the bit mask walked from the seed. So is a
+ * region that covers most of the disc, for which mapping saves nothing.
+ * Either way the pixels filled are exactly those of the region.
+ * <p>
+ * A <code>FloodFill</code> keeps its masks from one fill to the next, so it
+ * should be used by one thread at a time.
+ *
+ * @author chasehanson
+ */
+public class FloodFill {
+
+    /**
+     * The default largest difference in any channel from the seed's colour
+     * for a pixel to be filled, which takes in the lighter anti-aliased edges
+     * of strokes.
+     */
+    public static final int DEFAULT_TOLERANCE = 64;
+
+    /**
+     * The number of rows each parallel task classifies or maps.
+     */
+    private static final int BAND = 16;
+
+    /**
+     * The inverse of the largest share of the mapped pixels that may be added
+     * from their edge before the drawing is taken to be asymmetric.
+     */
+    private static final int EDGE_SHARE = 2;
+
+    /**
+     * The share of the disc beyond which a region is filled whole, since
+     * mapping it would read nearly every pixel of the disc anyway.
+     */
+    private static final double WHOLE_SHARE = .5;
+
+    /**
+     * The number of fractional bits in the fixed point positions mapped back
+     * to the wedge.
+     */
+    private static final int FIXED_SHIFT = 32;
+
+    /**
+     * A test of whether a pixel belongs to the region being filled.
+     */
+    private interface Test {
+
+        boolean at(int x, int y);
+    }
+
+    private final Symmetry symmetry = new Symmetry(1);
+
+    private int width, height, words;
+
+    /**
+     * One bit per pixel, row by row, each row starting a new word: the pixels
+     * filled, the part of the region in the master wedge, and the pixels that
+     * may be filled.
+     */
+    private long[] filled = new long[0], region = new long[0], fillable = new long[0];
+
+    /**
+     * The rows that may have been set in the masks since they were last
+     * cleared.
+     */
+    private int usedTop, usedBottom = -1;
+
+    private Canvas source;
+
+    private int cx, cy, seed, tolerance;
+
+    private long radius2;
+
+    private double wedgeCos, wedgeSin;
+
+    private int top, bottom, left, right;
+
+    private int count;
+
+    private boolean symmetric;
+
+    private int[] stack = new int[256];
+
+    /**
+     * Fills the region around a seed pixel.
+     *
+     * @param source The canvas the region is found in
+     * @param target The canvas to fill the region of with ink, the same size
+     * as <code>source</code>
+     * @param cx The x coordinate of the centre pixel of the drawing
+     * @param cy The y coordinate of the centre pixel of the drawing
+     * @param radius The radius of the disc the fill is kept within
+     * @param segments The number of segments the drawing is symmetric in, or
+     * 0 if it isn't
+     * @param x The x coordinate of the seed pixel
+     * @param y The y coordinate of the seed pixel
+     * @param tolerance The largest difference in any channel from the seed's
+     * colour for a pixel to be filled
+     * @param rgb The RGB colour of the ink
+     * @return The number of pixels filled, 0 if the seed is outside the disc
+     */
+    public int fill(Canvas source, Canvas target, int cx, int cy, double radius, int segments,
+            int x, int y, int tolerance, int rgb) {
+        prepare(source, cx, cy, radius, tolerance);
+        if (!inside(x, y)) {
+            return 0;
+        }
+        seed = source.get(x, y) & 0xFFFFFF;
+        symmetric = segments > 0 && fillSymmetric(segments, x, y);
+        if (!symmetric) {
+            clear();
+            fillWhole(x, y);
+        }
+        paint(target, rgb);
+        return count;
+    }
+
+    /**
+     * Returns <code>true</code> if the last fill was mapped from the master
+     * wedge, and <code>false</code> if the whole disc had to be classified.
+     *
+     * @return Whether the last fill used the symmetry of the drawing
+     */
+    public boolean wasSymmetric() {
+        return symmetric;
+    }
+
+    private void prepare(Canvas c, int cx, int cy, double radius, int tolerance) {
+        source = c;
+        this.cx = cx;
+        this.cy = cy;
+        this.tolerance = tolerance;
+        radius2 = (long) Math.floor(radius * radius);
+        if (c.getWidth() != width || c.getHeight() != height) {
+            width = c.getWidth();
+            height = c.getHeight();
+            words = (width + 63) >>> 6;
+            filled = new long[words * height];
+            region = new long[words * height];
+            fillable = new long[words * height];
+            usedBottom = -1;
+        }
+        clear();
+        usedTop = height;
+        usedBottom = -1;
+    }
+
+    /**
+     * Clears the rows of the masks set so far.
+     */
+    private void clear() {
+        if (usedBottom >= usedTop) {
+            int from = usedTop * words;
+            int to = (usedBottom + 1) * words;
+            Arrays.fill(filled, from, to, 0);
+            Arrays.fill(region, from, to, 0);
+            Arrays.fill(fillable, from, to, 0);
+        }
+        count = 0;
+    }
+
+    private void use(int y0, int y1) {
+        usedTop = Math.min(usedTop, Math.max(y0, 0));
+        usedBottom = Math.max(usedBottom, Math.min(y1, height - 1));
+    }
+
+    private void resetBounds() {
+        top = left = Integer.MAX_VALUE;
+        bottom = right = Integer.MIN_VALUE;
+    }
+
+    private boolean inside(int x, int y) {
+        long dx = x - cx;
+        long dy = y - cy;
+        return (x | y) >= 0 && x < width && y < height && dx * dx + dy * dy <= radius2;
+    }
+
+    /**
+     * Returns half the width of the disc in a row, or -1 if the row misses
+     * it.
+     */
+    private int chord(int y) {
+        long dy = y - cy;
+        long rest = radius2 - dy * dy;
+        if (rest < 0) {
+            return -1;
+        }
+        int half = (int) Math.sqrt(rest);
+        while ((long) (half + 1) * (half + 1) <= rest) {
+            half++;
+        }
+        while ((long) half * half > rest) {
+            half--;
+        }
+        return half;
+    }
+
+    private boolean matches(int rgb) {
+        if (((seed ^ rgb) & 0xFFFFFF) == 0) {
+            return true;
+        }
+        return Math.abs(((rgb >> 16) & 0xFF) - ((seed >> 16) & 0xFF)) <= tolerance
+                && Math.abs(((rgb >> 8) & 0xFF) - ((seed >> 8) & 0xFF)) <= tolerance
+                && Math.abs((rgb & 0xFF) - (seed & 0xFF)) <= tolerance;
+    }
+
+    private boolean open(int x, int y) {
+        return inside(x, y) && matches(source.get(x, y));
+    }
+
+    private static boolean get(long[] mask, int words, int x, int y) {
+        return (mask[y * words + (x >>> 6)] & 1L << x) != 0;
+    }
+
+    private static void set(long[] mask, int words, int x, int y) {
+        mask[y * words + (x >>> 6)] |= 1L << x;
+    }
+
+    /**
+     * Sets the bits of a row from <code>from</code> to <code>to</code>,
+     * exclusive.
+     */
+    private static void set(long[] mask, int words, int y, int from, int to) {
+        int row = y * words;
+        for (int x = from; x < to;) {
+            int end = Math.min(to, (x | 63) + 1);
+            long bits = end - x == 64 ? -1L : ((1L << (end - x)) - 1) << x;
+            mask[row + (x >>> 6)] |= bits;
+            x = end;
+        }
+    }
+
+    /**
+     * Returns the first set bit of a row at or after <code>from</code>, or
+     * <code>width</code> if there is none.
+     */
+    private int nextSet(long[] mask, int y, int from) {
+        int row = y * words;
+        int w = from >>> 6;
+        if (w >= words) {
+            return width;
+        }
+        long bits = mask[row + w] & -1L << from;
+        while (bits == 0) {
+            if (++w == words) {
+                return width;
+            }
+            bits = mask[row + w];
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * Returns the first clear bit of a row at or after <code>from</code>, or
+     * <code>width</code> if there is none.
+     */
+    private int nextClear(long[] mask, int y, int from) {
+        int row = y * words;
+        int w = from >>> 6;
+        if (w >= words) {
+            return width;
+        }
+        long bits = ~mask[row + w] & -1L << from;
+        while (bits == 0) {
+            if (++w == words) {
+                return width;
+            }
+            bits = ~mask[row + w];
+        }
+        return Math.min((w << 6) + Long.numberOfTrailingZeros(bits), width);
+    }
+
+    private boolean inWedge(int x, int y) {
+        double dx = x - cx;
+        double dy = y - cy;
+        return dy >= -.5 && wedgeCos * dy - wedgeSin * dx <= .5;
+    }
+
+    /**
+     * Returns the index of the copy that maps the master wedge onto wedge
+     * <code>w</code>, counting anticlockwise from the master.
+     */
+    private int copyOf(int w) {
+        int n = symmetry.getSegments();
+        //Even wedges are rotations of the master, odd ones reflections
+        return (w & 1) == 0 ? w + 1 : 2 * ((w / 2 + 1) % n);
+    }
+
+    private boolean fillSymmetric(int segments, int x, int y) {
+        symmetry.setSegments(segments);
+        wedgeCos = Math.cos(Math.PI / segments);
+        wedgeSin = Math.sin(Math.PI / segments);
+        double theta = Math.atan2(y - cy, x - cx);
+        if (theta < 0) {
+            theta += 2 * Math.PI;
+        }
+        int wedge = Math.min((int) (theta * segments / Math.PI), 2 * segments - 1);
+        double[] p = new double[2];
+        symmetry.inverse(copyOf(wedge), x - cx, y - cy, p);
+        int sx = (int) Math.floor(p[0] + .5) + cx;
+        int sy = (int) Math.floor(p[1] + .5) + cy;
+        if (!open(sx, sy)) {
+            return false;
+        }
+        resetBounds();
+        int part = scanline(region, sx, sy, (i, j) -> inWedge(i, j) && open(i, j), Integer.MAX_VALUE);
+        use(top, bottom);
+        if ((double) part * symmetry.copies() > Math.PI * radius2 * WHOLE_SHARE) {
+            return false;
+        }
+        int[] rows = map();
+        //Keep only the mapped pixels connected to the seed
+        set(fillable, words, x, y);
+        resetBounds();
+        count = flood(fillable, filled, x, y);
+        return patch(rows) >= 0;
+    }
+
+    /**
+     * Marks every pixel of the disc that may be filled because it maps into
+     * the wedge's part of the region, and returns the first and last rows
+     * that were mapped.
+     */
+    private int[] map() {
+        int n = symmetry.getSegments();
+        int copies = symmetry.copies();
+        int[][] images = new int[copies][];
+        double[] p = new double[2];
+        int y0 = height, y1 = -1;
+        for (int c = 0; c < copies; c++) {
+            int[] image = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+            for (int corner = 0; corner < 4; corner++) {
+                double u = ((corner & 1) == 0 ? left - 1 : right + 1) - cx;
+                double v = ((corner & 2) == 0 ? top - 1 : bottom + 1) - cy;
+                symmetry.transform(c, u, v, p);
+                image[0] = Math.min(image[0], (int) Math.floor(p[0]) + cx - 1);
+                image[1] = Math.min(image[1], (int) Math.floor(p[1]) + cy - 1);
+                image[2] = Math.max(image[2], (int) Math.ceil(p[0]) + cx + 1);
+                image[3] = Math.max(image[3], (int) Math.ceil(p[1]) + cy + 1);
+            }
+            images[c] = image;
+            y0 = Math.min(y0, image[1]);
+            y1 = Math.max(y1, image[3]);
+        }
+        y0 = Math.max(y0, 0);
+        y1 = Math.min(y1, height - 1);
+        //The bounding rays of each wedge, and its inverse as steps along a row
+        double[] cos = new double[2 * n + 1], sin = new double[2 * n + 1];
+        for (int w = 0; w <= 2 * n; w++) {
+            cos[w] = Math.cos(w * Math.PI / n);
+            sin[w] = Math.sin(w * Math.PI / n);
+        }
+        double[][] inverse = new double[2 * n][];
+        for (int w = 0; w < 2 * n; w++) {
+            double[] m = new double[4];
+            symmetry.inverse(copyOf(w), 1, 0, p);
+            m[0] = p[0];
+            m[1] = p[1];
+            symmetry.inverse(copyOf(w), 0, 1, p);
+            m[2] = p[0];
+            m[3] = p[1];
+            inverse[w] = m;
+        }
+        use(y0, y1);
+        int first = y0, rows = y1 - y0 + 1;
+        IntStream.range(0, (rows + BAND - 1) / BAND).parallel().forEach(b -> {
+            int[] row = new int[width];
+            for (int y = first + b * BAND; y < Math.min(first + (b + 1) * BAND, first + rows); y++) {
+                int half = chord(y);
+                if (half < 0) {
+                    continue;
+                }
+                double v = y - cy;
+                for (int w = 0; w < 2 * n; w++) {
+                    int[] image = images[copyOf(w)];
+                    if (y < image[1] || y > image[3]) {
+                        continue;
+                    }
+                    //Clip the row to the wedge, with a pixel to spare either side
+                    double uMin = Math.max(-half, image[0] - cx);
+                    double uMax = Math.min(half, image[2] - cx);
+                    double a = sin[w], bound = 1 + cos[w] * v;
+                    if (a > 1e-9) {
+                        uMax = Math.min(uMax, bound / a);
+                    } else if (a < -1e-9) {
+                        uMin = Math.max(uMin, bound / a);
+                    } else if (bound < 0) {
+                        continue;
+                    }
+                    a = -sin[w + 1];
+                    bound = 1 - cos[w + 1] * v;
+                    if (a > 1e-9) {
+                        uMax = Math.min(uMax, bound / a);
+                    } else if (a < -1e-9) {
+                        uMin = Math.max(uMin, bound / a);
+                    } else if (bound < 0) {
+                        continue;
+                    }
+                    int from = cx + (int) Math.ceil(uMin);
+                    int to = cx + (int) Math.floor(uMax);
+                    if (from > to) {
+                        continue;
+                    }
+                    source.readRect(from, y, to - from + 1, 1, row, 0, width);
+                    double[] m = inverse[w];
+                    double u = from - cx;
+                    long mx = (long) Math.floor((m[0] * u + m[2] * v + cx + .5) * (1L << FIXED_SHIFT));
+                    long my = (long) Math.floor((m[1] * u + m[3] * v + cy + .5) * (1L << FIXED_SHIFT));
+                    long dx = Math.round(m[0] * (1L << FIXED_SHIFT));
+                    long dy = Math.round(m[1] * (1L << FIXED_SHIFT));
+                    for (int x = from; x <= to; x++, mx += dx, my += dy) {
+                        int i = (int) (mx >> FIXED_SHIFT);
+                        int j = (int) (my >> FIXED_SHIFT);
+                        if ((i | j) < 0 || i >= width || j >= height) {
+                            continue;
+                        }
+                        if (get(region, words, i, j) && matches(row[x - from])) {
+                            set(fillable, words, x, y);
+                        }
+                    }
+                }
+            }
+        });
+        return new int[]{y0, y1};
+    }
+
+    /**
+     * Fills the rest of the region from the edge of the mapped pixels,
+     * returning the number of pixels added, or -1 if they would be more than
+     * a share of the region, so the drawing isn't symmetric enough for
+     * mapping to be worth it.
+     */
+    private int patch(int[] rows) {
+        int y0 = Math.max(rows[0] - 1, 0);
+        int y1 = Math.min(rows[1] + 1, height - 1);
+        use(y0, y1);
+        int[][] found = IntStream.range(0, (y1 - y0 + BAND) / BAND).parallel().mapToObj(b -> {
+            int[] out = new int[16];
+            int n = 0;
+            for (int y = y0 + b * BAND; y <= Math.min(y0 + (b + 1) * BAND - 1, y1); y++) {
+                for (int w = 0; w < words; w++) {
+                    long f = filled[y * words + w];
+                    long near = f << 1 | f >>> 1;
+                    if (w > 0) {
+                        near |= filled[y * words + w - 1] >>> 63;
+                    }
+                    if (w < words - 1) {
+                        near |= filled[y * words + w + 1] << 63;
+                    }
+                    if (y > 0) {
+                        near |= filled[(y - 1) * words + w];
+                    }
+                    if (y < height - 1) {
+                        near |= filled[(y + 1) * words + w];
+                    }
+                    for (long edge = near & ~f; edge != 0; edge &= edge - 1) {
+                        int x = (w << 6) + Long.numberOfTrailingZeros(edge);
+                        if (x < width && open(x, y)) {
+                            if (n + 2 > out.length) {
+                                out = Arrays.copyOf(out, out.length * 2);
+                            }
+                            out[n++] = x;
+                            out[n++] = y;
+                        }
+                    }
+                }
+            }
+            return Arrays.copyOf(out, n);
+        }).toArray(int[][]::new);
+        int limit = Math.max(count / EDGE_SHARE, 1 << 12);
+        int added = 0;
+        for (int[] f : found) {
+            for (int i = 0; i < f.length && added >= 0; i += 2) {
+                int n = scanline(filled, f[i], f[i + 1], this::open, limit - added);
+                added = n < 0 ? -1 : added + n;
+            }
+        }
+        use(top, bottom);
+        count += Math.max(added, 0);
+        return added;
+    }
+
+    private int push(int n, int x, int y) {
+        if (n + 2 > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[n] = x;
+        stack[n + 1] = y;
+        return n + 2;
+    }
+
+    /**
+     * Fills the region without regard to symmetry, classifying the pixels of
+     * the disc in parallel first.
+     */
+    private void fillWhole(int x, int y) {
+        int r = (int) Math.sqrt(radius2);
+        int y0 = Math.max(cy - r, 0);
+        int y1 = Math.min(cy + r, height - 1);
+        use(y0, y1);
+        IntStream.range(0, (y1 - y0 + BAND) / BAND).parallel().forEach(b -> {
+            int[] row = new int[width];
+            for (int j = y0 + b * BAND; j <= Math.min(y0 + (b + 1) * BAND - 1, y1); j++) {
+                int half = chord(j);
+                int from = Math.max(cx - half, 0);
+                int to = Math.min(cx + half, width - 1);
+                if (half < 0 || from > to) {
+                    continue;
+                }
+                source.readRect(from, j, to - from + 1, 1, row, 0, width);
+                for (int i = from; i <= to; i++) {
+                    if (matches(row[i - from])) {
+                        set(fillable, words, i, j);
+                    }
+                }
+            }
+        });
+        resetBounds();
+        count = flood(fillable, filled, x, y);
+    }
+
+    /**
+     * Sets the bits of the region around a seed in a mask, one horizontal run
+     * at a time, and returns the number of pixels set, or -1 once there are
+     * more than <code>limit</code>.
+     */
+    private int scanline(long[] mask, int sx, int sy, Test t, int limit) {
+        int n = push(0, sx, sy);
+        int total = 0;
+        while (n > 0) {
+            int y = stack[--n];
+            int x = stack[--n];
+            if (get(mask, words, x, y) || !t.at(x, y)) {
+                continue;
+            }
+            int l = x;
+            while (l > 0 && !get(mask, words, l - 1, y) && t.at(l - 1, y)) {
+                l--;
+            }
+            int r = x;
+            while (r < width - 1 && !get(mask, words, r + 1, y) && t.at(r + 1, y)) {
+                r++;
+            }
+            set(mask, words, y, l, r + 1);
+            total += r - l + 1;
+            top = Math.min(top, y);
+            bottom = Math.max(bottom, y);
+            left = Math.min(left, l);
+            right = Math.max(right, r);
+            if (total > limit) {
+                return -1;
+            }
+            //Seed each run of the rows above and below once
+            for (int j = y - 1; j <= y + 1; j += 2) {
+                if (j < 0 || j >= height) {
+                    continue;
+                }
+                for (int i = l; i <= r; i++) {
+                    if (!get(mask, words, i, j) && t.at(i, j)) {
+                        n = push(n, i, j);
+                        while (i < r && !get(mask, words, i + 1, j) && t.at(i + 1, j)) {
+                            i++;
+                        }
+                    }
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Sets the bits of the run of a mask around a seed in another, and of
+     * every run connected to it, a word of pixels at a time, and returns the
+     * number of bits set.
+     */
+    private int flood(long[] allowed, long[] out, int sx, int sy) {
+        int n = push(0, sx, sy);
+        int total = 0;
+        while (n > 0) {
+            int y = stack[--n];
+            int x = stack[--n];
+            if (!get(allowed, words, x, y) || get(out, words, x, y)) {
+                continue;
+            }
+            int row = y * words;
+            int w = x >>> 6;
+            long blocked = ~(allowed[row + w] & ~out[row + w]) & ((1L << x) - 1);
+            while (blocked == 0 && w > 0) {
+                w--;
+                blocked = ~(allowed[row + w] & ~out[row + w]);
+            }
+            int l = blocked == 0 ? 0 : (w << 6) + 64 - Long.numberOfLeadingZeros(blocked);
+            w = x >>> 6;
+            blocked = ~(allowed[row + w] & ~out[row + w]) & (-2L << x);
+            while (blocked == 0 && w < words - 1) {
+                w++;
+                blocked = ~(allowed[row + w] & ~out[row + w]);
+            }
+            int r = blocked == 0 ? width - 1 : (w << 6) + Long.numberOfTrailingZeros(blocked) - 1;
+            set(out, words, y, l, r + 1);
+            total += r - l + 1;
+            top = Math.min(top, y);
+            bottom = Math.max(bottom, y);
+            //Seed the start of each run of the rows above and below
+            for (int j = y - 1; j <= y + 1; j += 2) {
+                if (j < 0 || j >= height) {
+                    continue;
+                }
+                long carry = 0;
+                for (w = l >>> 6; w <= r >>> 6; w++) {
+                    long range = -1L;
+                    if (w == l >>> 6) {
+                        range &= -1L << l;
+                    }
+                    if (w == r >>> 6) {
+                        range &= -1L >>> (63 - (r & 63));
+                    }
+                    long bits = allowed[j * words + w] & ~out[j * words + w] & range;
+                    for (long starts = bits & ~(bits << 1 | carry); starts != 0; starts &= starts - 1) {
+                        n = push(n, (w << 6) + Long.numberOfTrailingZeros(starts), j);
+                    }
+                    carry = bits >>> 63;
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Writes the filled pixels into the target, one run at a time. Each tile
+     * is first written to once from this thread, so that its guards are told
+     * here, and the tile rows are then written in parallel.
+     */
+    private void paint(Canvas target, int rgb) {
+        if (usedBottom < usedTop) {
+            return;
+        }
+        int ty0 = usedTop >> Canvas.TILE_SHIFT;
+        int ty1 = usedBottom >> Canvas.TILE_SHIFT;
+        int tileWords = Canvas.TILE_SIZE >>> 6;
+        for (int ty = ty0; ty <= ty1; ty++) {
+            int y0 = Math.max(ty << Canvas.TILE_SHIFT, usedTop);
+            int y1 = Math.min((ty + 1) << Canvas.TILE_SHIFT, usedBottom + 1);
+            for (int w0 = 0; w0 < words; w0 += tileWords) {
+                tile:
+                for (int y = y0; y < y1; y++) {
+                    for (int w = w0; w < Math.min(w0 + tileWords, words); w++) {
+                        long f = filled[y * words + w];
+                        if (f != 0) {
+                            target.fillRect((w << 6) + Long.numberOfTrailingZeros(f), y, 1, 1, rgb);
+                            break tile;
+                        }
+                    }
+                }
+            }
+        }
+        IntStream.rangeClosed(ty0, ty1).parallel().forEach(ty -> {
+            int y0 = Math.max(ty << Canvas.TILE_SHIFT, usedTop);
+            int y1 = Math.min((ty + 1) << Canvas.TILE_SHIFT, usedBottom + 1);
+            for (int y = y0; y < y1; y++) {
+                for (int x = nextSet(filled, y, 0); x < width;) {
+                    int end = nextClear(filled, y, x);
+                    target.fillRect(x, y, end - x, 1, rgb);
+                    x = nextSet(filled, y, end);
+                }
+            }
+        });
+    }
+}
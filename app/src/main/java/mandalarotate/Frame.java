@@ -0,0 +1,219 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import javax.swing.JPanel;
+import javax.swing.Timer;
+
+/**
+ * Represents the screen into which the Mandala is drawn - allows for graphics.
+ * Also, handles mouse clicking behavior
+ *
+ * @author chasehanson
+ */
+public class Frame extends JPanel {
+
+    /**
+     * The stored <code>Mandala</code> object
+     */
+    public Mandala m;
+
+    /**
+     * <code>true</code> if the mouse is currently pressed, otherwise
+     * <code>false</code>
+     */
+    public boolean mousePressed;
+
+    /**
+     * Reused by <code>repaintDirty</code> to receive the changed region.
+     */
+    private final Rectangle dirty = new Rectangle();
+
+    /**
+     * <code>true</code> from a call to <code>repaintDirty</code> until the
+     * next paint has completed.
+     */
+    public volatile boolean paintPending;
+
+    /**
+     * The recent time taken by <code>paintComponent</code>, in nanoseconds.
+     */
+    public volatile long paintNanos;
+
+    /**
+     * If not <code>null</code>, run at the end of every paint.
+     */
+    public Runnable painted;
+
+    /**
+     * The region covered by the metrics overlay.
+     */
+    private static final Rectangle OVERLAY = new Rectangle(8, 8, 380, 96);
+
+    private static final Color OVERLAY_BACKGROUND = new Color(0, 0, 0, 160);
+
+    /**
+     * Refreshes the metrics overlay while it is shown.
+     */
+    private final Timer overlayTimer = new Timer(250, e -> repaint(OVERLAY));
+
+    private long overlayNanos, overlayGenerated;
+
+    private double pointsPerSecond;
+
+    /**
+     * Constructs a new <code>Frame</code> based on a default
+     * <code>JPanel</code>
+     */
+    public Frame() {
+        super();
+    }
+
+    /**
+     * Triggered upon clicking the mouse
+     */
+    public void pressed() {
+        mousePressed = true;
+    }
+
+    /**
+     * Triggered upon releasing the mouse. Also, causes the <code>Mandala</code>
+     * to reduce drawing latency by offloading stored points
+     */
+    public void released() {
+        mousePressed = false;
+        m.offloadPoints();
+    }
+
+    /**
+     * Returns <code>true</code> if the metrics overlay is shown.
+     *
+     * @return <code>true</code> if the overlay is shown
+     */
+    public boolean isShowingMetrics() {
+        return overlayTimer.isRunning();
+    }
+
+    /**
+     * Shows or hides the metrics overlay in the top left corner.
+     *
+     * @param show <code>true</code> to show the overlay
+     */
+    public void setShowMetrics(boolean show) {
+        if (show) {
+            overlayTimer.start();
+        } else {
+            overlayTimer.stop();
+        }
+        repaint(OVERLAY);
+    }
+
+    /**
+     * Stores a new <code>Mandala</code> in the Frame
+     *
+     * @param m The new <code>Mandala</code> object
+     */
+    public void add(Mandala m) {
+        this.m = m;
+    }
+
+    /**
+     * Requests a repaint of only the region of the <code>Mandala</code>
+     * changed since the last call. Does nothing if nothing has changed, so an
+     * idle canvas is never repainted. Must be called from the thread that
+     * adds points to the <code>Mandala</code>.
+     *
+     * @return <code>true</code> if a repaint was requested
+     */
+    public boolean repaintDirty() {
+        if (m != null && m.takeDirty(dirty)) {
+            Viewport v = m.viewport;
+            int x0 = (int) Math.floor(v.toScreenX(dirty.x, getWidth()));
+            int y0 = (int) Math.floor(v.toScreenY(dirty.y, getHeight()));
+            int x1 = (int) Math.ceil(v.toScreenX(dirty.x + dirty.width, getWidth()));
+            int y1 = (int) Math.ceil(v.toScreenY(dirty.y + dirty.height, getHeight()));
+            repaint(x0, y0, Math.max(1, x1 - x0), Math.max(1, y1 - y0));
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void paintComponent(Graphics G) {
+        //Draws each frame, only within the clip
+        long start = System.nanoTime();
+        super.paintComponent(G);
+
+        Dimension d = getSize();
+
+        if (m != null) {
+            m.draw(G, d);
+
+            if (overlayTimer.isRunning() && G.hitClip(OVERLAY.x, OVERLAY.y, OVERLAY.width, OVERLAY.height)) {
+                drawOverlay(G, m.metrics);
+            }
+        }
+
+        long end = System.nanoTime();
+        long time = end - start;
+        paintNanos += (time - paintNanos) / 8;
+        if (m != null) {
+            m.metrics.painted(start, end);
+        }
+        paintPending = false;
+        if (painted != null) {
+            painted.run();
+        }
+    }
+
+    private void drawOverlay(Graphics G, Metrics s) {
+        long now = System.nanoTime();
+        long generated = s.getPointsGenerated();
+        if (now - overlayNanos > 200_000_000L) {
+            pointsPerSecond = overlayNanos == 0 ? 0 : (generated - overlayGenerated) * 1e9 / (now - overlayNanos);
+            overlayNanos = now;
+            overlayGenerated = generated;
+        }
+
+        G.setColor(OVERLAY_BACKGROUND);
+        G.fillRect(OVERLAY.x, OVERLAY.y, OVERLAY.width, OVERLAY.height);
+        G.setColor(Color.white);
+        int x = OVERLAY.x + 6;
+        int y = OVERLAY.y + 15;
+        G.drawString(String.format("points %,d/s  generated %,d  offloaded %,d",
+                (long) pointsPerSecond, generated, s.getPointsOffloaded()), x, y);
+        G.drawString(String.format("pending %,d  p99 at offload %,d  dropped %,d",
+                s.getPending(), s.getPendingAtOffloadP99(), s.getSamplesDropped()), x, y + 16);
+        G.drawString(String.format("frame p50 %,d us  p99 %,d us  max %,d us",
+                s.getFrameTimeP50(), s.getFrameTimeP99(), s.getFrameTimeMax()), x, y + 32);
+        G.drawString(String.format("input to paint p50 %,d us  p99 %,d us",
+                s.getInputLatencyP50(), s.getInputLatencyP99()), x, y + 48);
+        G.drawString(String.format("offload p99 %,d us  threshold %,d  limit %,d",
+                s.getOffloadTimeP99(), s.getOffloadThreshold(), s.getOffloadLimit()), x, y + 64);
+    }
+}
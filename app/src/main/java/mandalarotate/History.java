@@ -0,0 +1,491 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stroke level undo and redo for a <code>Canvas</code>, stored as tile deltas.
+ * Further canvases of the same size can be tracked alongside the first, such
+ * as the layers of a <code>LayerStack</code>, and a step then covers every
+ * tile it changed in any of them.
+ * While a step is open every tile is armed, so the first write into a tile
+ * saves a copy of how it looked before the step. Only the tiles a step
+ * actually changes are ever copied. The first few are plain copies into
+ * scratch tiles kept from step to step; any further, as in a clear, are
+ * run-length encoded as they are copied, so a step changing every tile of
+ * a huge canvas holds little more than what is drawn on it.
+ * <p>
+ * When the step is closed each copy is replaced by the exclusive or of the
+ * tile before and after the step, run-length encoded. Unchanged pixels xor to
+ * zero, so a delta costs a few bytes per run of changed pixels. Applying the
+ * delta again turns either side of the step into the other, so undo and redo
+ * are the same operation and cost time in proportion to the tiles the step
+ * changed. The oldest steps are forgotten whenever the deltas, together with
+ * the copies and scratch tiles of the open step, outgrow the memory budget.
+ * A step that outgrows it on its own is not recorded at all.
+ * <p>
+ * A <code>History</code> must only be used from the thread that writes to
+ * its canvases.
+ *
+ * @author chasehanson
+ */
+public class History implements Canvas.TileGuard {
+
+    /**
+     * The default limit on the encoded size of every delta, in bytes.
+     */
+    public static final long DEFAULT_BUDGET = 64L << 20;
+
+    private static final int TILE_PIXELS = Canvas.TILE_SIZE * Canvas.TILE_SIZE;
+
+    private static final int TILE_BYTES = 4 * TILE_PIXELS;
+
+    /**
+     * The most tiles a step copies plainly, before encoding the rest.
+     */
+    private static final int SCRATCH_TILES = 64;
+
+    private static final int[] BLANK = new int[TILE_PIXELS];
+
+    /**
+     * The encoded deltas of the tiles changed by one closed step.
+     */
+    private static class Step {
+
+        private final Canvas[] canvases;
+
+        private final int[] tiles;
+
+        private final byte[][] deltas;
+
+        private long bytes;
+
+        Step(int count) {
+            canvases = new Canvas[count];
+            tiles = new int[count];
+            deltas = new byte[count][];
+        }
+    }
+
+    private final List<Canvas> canvases = new ArrayList<>();
+
+    private final ArrayDeque<Step> undo = new ArrayDeque<>();
+
+    private final ArrayDeque<Step> redo = new ArrayDeque<>();
+
+    /**
+     * The tiles changed by the open step, the canvases holding them and their
+     * copies from before it, either plain in <code>scratch</code> or encoded
+     * in <code>saved</code>.
+     */
+    private Canvas[] openCanvases;
+
+    private int[] openTiles;
+
+    private final int[][] scratch = new int[SCRATCH_TILES][];
+
+    private byte[][] saved;
+
+    private int open;
+
+    /**
+     * The number of scratch tiles allocated, and the encoded size of the
+     * copies in <code>saved</code>.
+     */
+    private int scratchTiles;
+
+    private long savedBytes;
+
+    /**
+     * Whether the open step has outgrown the budget and is not recorded.
+     */
+    private boolean dropped;
+
+    private long budget;
+
+    private long bytes;
+
+    private boolean restoring;
+
+    private final int[] pixels = new int[TILE_PIXELS], copy = new int[TILE_PIXELS];
+
+    private byte[] encoded = new byte[1 << 12];
+
+    /**
+     * Constructs a new <code>History</code> for a <code>Canvas</code> and
+     * opens its first step.
+     *
+     * @param canvas The <code>Canvas</code> to record
+     * @param budget The limit on the encoded size of every delta, in bytes
+     */
+    public History(Canvas canvas, long budget) {
+        this.budget = budget;
+        openCanvases = new Canvas[0];
+        openTiles = new int[0];
+        saved = new byte[0][];
+        track(canvas);
+    }
+
+    /**
+     * Starts recording another <code>Canvas</code> as part of the same steps.
+     *
+     * @param canvas The <code>Canvas</code> to record, the same size as the
+     * first
+     * @throws IllegalArgumentException If the <code>Canvas</code> is a
+     * different size
+     */
+    public void track(Canvas canvas) {
+        if (!canvases.isEmpty() && (canvas.getWidth() != canvases.get(0).getWidth()
+                || canvas.getHeight() != canvases.get(0).getHeight())) {
+            throw new IllegalArgumentException("canvas size differs: " + canvas.getWidth() + "x" + canvas.getHeight());
+        }
+        canvases.add(canvas);
+        //Each tile of each canvas is copied at most once per step
+        int tiles = canvas.getTilesX() * canvas.getTilesY() * canvases.size();
+        openCanvases = Arrays.copyOf(openCanvases, tiles);
+        openTiles = Arrays.copyOf(openTiles, tiles);
+        saved = Arrays.copyOf(saved, tiles);
+        canvas.addGuard(this);
+        canvas.armAll(this);
+    }
+
+    /**
+     * Closes the open step, if it changed anything, and opens a new one.
+     *
+     * @return <code>true</code> if a step was closed that can be undone,
+     * <code>false</code> if the open step changed nothing or was too large
+     * to keep
+     */
+    public boolean beginStep() {
+        boolean sealed = seal();
+        armAll();
+        return sealed;
+    }
+
+    private void armAll() {
+        for (Canvas c : canvases) {
+            c.armAll(this);
+        }
+    }
+
+    /**
+     * Undoes the most recent step, including the open one.
+     *
+     * @return <code>false</code> if there was nothing to undo
+     */
+    public boolean undo() {
+        return move(undo, redo);
+    }
+
+    /**
+     * Redoes the most recently undone step. Steps can only be redone until
+     * something new is drawn.
+     *
+     * @return <code>false</code> if there was nothing to redo
+     */
+    public boolean redo() {
+        return move(redo, undo);
+    }
+
+    /**
+     * Returns the number of steps that can be undone, including the open one
+     * if it changed anything.
+     *
+     * @return The number of steps
+     */
+    public int undoSteps() {
+        return undo.size() + (open > 0 ? 1 : 0);
+    }
+
+    /**
+     * Returns the number of steps that can be redone.
+     *
+     * @return The number of steps
+     */
+    public int redoSteps() {
+        return redo.size();
+    }
+
+    /**
+     * Returns the encoded size of every delta, together with the copies held
+     * by the open step and the scratch tiles kept for them.
+     *
+     * @return The size in bytes
+     */
+    public long size() {
+        return bytes + held();
+    }
+
+    /**
+     * Changes the memory budget, forgetting the oldest steps if it is now
+     * exceeded, and any scratch tiles it no longer has room for.
+     *
+     * @param budget The limit on the encoded size of every delta, in bytes
+     */
+    public void setBudget(long budget) {
+        this.budget = budget;
+        trimScratch();
+        evict();
+    }
+
+    /**
+     * Forgets every step and stops recording.
+     */
+    public void close() {
+        for (Canvas c : canvases) {
+            c.removeGuard(this);
+        }
+        undo.clear();
+        redo.clear();
+        Arrays.fill(saved, 0, open, null);
+        open = 0;
+        savedBytes = 0;
+        bytes = 0;
+        budget = 0;
+        trimScratch();
+    }
+
+    @Override
+    public void beforeWrite(Canvas c, int tile) {
+        if (restoring || dropped) {
+            return;
+        }
+        if (open == 0 && !redo.isEmpty()) {
+            //Drawing something new ends the chance to redo
+            for (Step s : redo) {
+                bytes -= s.bytes;
+            }
+            redo.clear();
+        }
+        if (open < scratchLimit()) {
+            if (scratch[open] == null) {
+                scratch[open] = new int[TILE_PIXELS];
+                scratchTiles++;
+            }
+            read(c, tile, scratch[open]);
+        } else {
+            read(c, tile, pixels);
+            saved[open] = encode(pixels, BLANK);
+            savedBytes += saved[open].length;
+        }
+        openCanvases[open] = c;
+        openTiles[open++] = tile;
+        evict();
+        if (bytes + held() > budget) {
+            //Not even the open step fits, so it can't be undone
+            Arrays.fill(openCanvases, 0, open, null);
+            Arrays.fill(saved, 0, open, null);
+            open = 0;
+            savedBytes = 0;
+            dropped = true;
+        }
+    }
+
+    /**
+     * Turns the copies of the open step into deltas and pushes it onto the
+     * undo steps.
+     *
+     * @return <code>true</code> if the step is kept
+     */
+    private boolean seal() {
+        dropped = false;
+        if (open == 0) {
+            return false;
+        }
+        Step s = new Step(open);
+        for (int i = 0; i < open; i++) {
+            read(openCanvases[i], openTiles[i], pixels);
+            s.canvases[i] = openCanvases[i];
+            s.tiles[i] = openTiles[i];
+            openCanvases[i] = null;
+            int[] old = copy;
+            if (saved[i] == null) {
+                old = scratch[i];
+            } else {
+                Arrays.fill(copy, 0);
+                xor(saved[i], copy);
+                saved[i] = null;
+            }
+            s.deltas[i] = encode(old, pixels);
+            s.bytes += s.deltas[i].length;
+        }
+        open = 0;
+        savedBytes = 0;
+        undo.addLast(s);
+        bytes += s.bytes;
+        trimScratch();
+        evict();
+        return undo.peekLast() == s;
+    }
+
+    /**
+     * Returns the number of tiles a step may copy plainly, as many scratch
+     * tiles as fit in the budget.
+     */
+    private int scratchLimit() {
+        return (int) Math.min(SCRATCH_TILES, Math.max(budget, 0) / TILE_BYTES);
+    }
+
+    /**
+     * Lets go of the scratch tiles beyond the limit that the open step isn't
+     * using.
+     */
+    private void trimScratch() {
+        for (int i = Math.max(scratchLimit(), open); i < SCRATCH_TILES; i++) {
+            if (scratch[i] != null) {
+                scratch[i] = null;
+                scratchTiles--;
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes held for the open step.
+     */
+    private long held() {
+        return (long) scratchTiles * TILE_BYTES + savedBytes;
+    }
+
+    private boolean move(ArrayDeque<Step> from, ArrayDeque<Step> to) {
+        seal();
+        Step s = from.pollLast();
+        if (s != null) {
+            restoring = true;
+            try {
+                for (int i = 0; i < s.tiles.length; i++) {
+                    apply(s.canvases[i], s.tiles[i], s.deltas[i]);
+                }
+            } finally {
+                restoring = false;
+            }
+            to.addLast(s);
+        }
+        //Tiles written by the swap were disarmed, so start over
+        armAll();
+        return s != null;
+    }
+
+    /**
+     * Forgets the oldest undo steps, then the furthest redo steps, until the
+     * budget is met.
+     */
+    private void evict() {
+        long held = held();
+        while (bytes + held > budget && !undo.isEmpty()) {
+            bytes -= undo.pollFirst().bytes;
+        }
+        while (bytes + held > budget && !redo.isEmpty()) {
+            bytes -= redo.pollFirst().bytes;
+        }
+    }
+
+    /**
+     * Copies a tile, zeroing the part of a tile on the edge that lies beyond
+     * the <code>Canvas</code>, so it never shows up in a delta.
+     */
+    private void read(Canvas canvas, int tile, int[] out) {
+        int tilesX = canvas.getTilesX();
+        if ((tile % tilesX + 1) << Canvas.TILE_SHIFT > canvas.getWidth()
+                || (tile / tilesX + 1) << Canvas.TILE_SHIFT > canvas.getHeight()) {
+            Arrays.fill(out, 0);
+        }
+        canvas.readTile(tile, out);
+    }
+
+    /**
+     * Run-length encodes the exclusive or of two copies of a tile. A run is
+     * its length as a variable length integer followed by the value. Runs of
+     * unchanged pixels are found with <code>Arrays.mismatch</code>, which
+     * compares many pixels at a time.
+     */
+    private byte[] encode(int[] old, int[] now) {
+        int n = 0;
+        for (int i = 0; i < TILE_PIXELS;) {
+            int run = Arrays.mismatch(old, i, TILE_PIXELS, now, i, TILE_PIXELS);
+            int v = 0;
+            if (run < 0) {
+                run = TILE_PIXELS - i;
+            } else if (run == 0) {
+                v = old[i] ^ now[i];
+                run = 1;
+                while (i + run < TILE_PIXELS && (old[i + run] ^ now[i + run]) == v) {
+                    run++;
+                }
+            }
+            i += run;
+            if (n + 8 > encoded.length) {
+                encoded = Arrays.copyOf(encoded, encoded.length * 2);
+            }
+            while (run >= 0x80) {
+                encoded[n++] = (byte) (run | 0x80);
+                run >>>= 7;
+            }
+            encoded[n++] = (byte) run;
+            encoded[n++] = (byte) (v >> 24);
+            encoded[n++] = (byte) (v >> 16);
+            encoded[n++] = (byte) (v >> 8);
+            encoded[n++] = (byte) v;
+        }
+        return Arrays.copyOf(encoded, n);
+    }
+
+    /**
+     * Applies an encoded delta to a tile.
+     */
+    private void apply(Canvas canvas, int tile, byte[] delta) {
+        canvas.readTile(tile, pixels);
+        xor(delta, pixels);
+        canvas.writeTile(tile, pixels);
+    }
+
+    /**
+     * Applies an encoded delta to a copy of a tile, skipping the runs that
+     * leave pixels unchanged.
+     */
+    private static void xor(byte[] delta, int[] pixels) {
+        for (int i = 0, n = 0; n < delta.length;) {
+            int run = 0;
+            for (int shift = 0;; shift += 7) {
+                byte b = delta[n++];
+                run |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            int v = (delta[n] << 24) | ((delta[n + 1] & 0xFF) << 16)
+                    | ((delta[n + 2] & 0xFF) << 8) | (delta[n + 3] & 0xFF);
+            n += 4;
+            if (v != 0) {
+                for (int j = i; j < i + run; j++) {
+                    pixels[j] ^= v;
+                }
+            }
+            i += run;
+        }
+    }
+}
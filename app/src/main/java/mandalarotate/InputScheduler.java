@@ -0,0 +1,259 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionListener;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Captures mouse input as events and turns it into strokes on a paced render
+ * thread. The listeners run on the event dispatch thread and only queue each
+ * press, drag and release into a lock-free buffer, so no motion between frames
+ * is lost. Should the render thread fall far behind, drags are dropped once
+ * only <code>RESERVE</code> slots are left, which are kept for presses and
+ * releases so no stroke is lost or left open. The render thread drains every queued sample once per frame, feeds
+ * them through a <code>Pen</code> and requests a repaint of the changed region.
+ * <p>
+ * The frame interval adapts to the work: it is the time recently spent adding
+ * points plus the time recently spent painting, kept between
+ * <code>MIN_INTERVAL</code> and <code>MAX_INTERVAL</code>. A new repaint is
+ * only requested once the previous one has been painted, and the render
+ * thread parks whenever there is nothing to do, so an idle canvas costs no
+ * CPU at all.
+ *
+ * @author chasehanson
+ */
+public class InputScheduler implements MouseListener, MouseMotionListener, Runnable {
+
+    /**
+     * Event types, stored in the coverage byte of each queued sample.
+     */
+    private static final int PRESS = 0, MOVE = 1, RELEASE = 2;
+
+    /**
+     * Samples are queued in fractions of a canvas pixel, so zooming in can
+     * draw between pixels.
+     */
+    private static final int SUBPIXEL = 16;
+
+    /**
+     * The number of queue slots only presses and releases may take.
+     */
+    private static final int RESERVE = 1 << 12;
+
+    /**
+     * The shortest time between frames, 120 frames per second.
+     */
+    public static final long MIN_INTERVAL = 1_000_000_000L / 120;
+
+    /**
+     * The longest time between frames, 20 frames per second.
+     */
+    public static final long MAX_INTERVAL = 1_000_000_000L / 20;
+
+    private final Frame frame;
+
+    private final Pen pen;
+
+    /**
+     * Samples queued by the event dispatch thread for the render thread.
+     */
+    private final PointBuffer events = new PointBuffer(1 << 16);
+
+    /**
+     * Reused by the event dispatch thread to queue one sample.
+     */
+    private final long[] sample = new long[1];
+
+    private volatile Thread worker;
+
+    /**
+     * The recent time spent adding points per frame, in nanoseconds.
+     */
+    private long workNanos;
+
+    private volatile long interval = MIN_INTERVAL;
+
+    /**
+     * Constructs a new <code>InputScheduler</code> and starts listening to
+     * the mouse on <code>frame</code>.
+     *
+     * @param frame The <code>Frame</code> to listen to and repaint
+     * @param pen The <code>Pen</code> that turns samples into strokes
+     */
+    public InputScheduler(Frame frame, Pen pen) {
+        this.frame = frame;
+        this.pen = pen;
+        frame.painted = () -> LockSupport.unpark(worker);
+        frame.addMouseListener(this);
+        frame.addMouseMotionListener(this);
+    }
+
+    /**
+     * Returns the current time between frames.
+     *
+     * @return The frame interval in nanoseconds
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Returns the number of drag samples dropped because the render thread
+     * fell nearly a full queue behind. The stroke runs straight from the
+     * sample before each to the one after.
+     *
+     * @return The number of dropped samples
+     */
+    public long getDropped() {
+        return frame.m.metrics.samplesDropped.get();
+    }
+
+    private void queue(int type, MouseEvent e) {
+        //Map through the view the sample was made in, not the one it is drawn in
+        Viewport v = frame.m.viewport;
+        sample[0] = PointBuffer.pack((int) Math.round(v.toCanvasX(e.getX(), frame.getWidth()) * SUBPIXEL),
+                (int) Math.round(v.toCanvasY(e.getY(), frame.getHeight()) * SUBPIXEL), type);
+        if (type == MOVE && events.size() > events.capacity() - RESERVE) {
+            frame.m.metrics.samplesDropped.incrementAndGet();
+        } else {
+            //Only once the reserve is spent too; the render thread may be waiting on this thread to offload
+            while (events.offer(sample, 0, 1) == 0) {
+                LockSupport.unpark(worker);
+                frame.m.offloadPoints();
+                LockSupport.parkNanos(100_000L);
+            }
+            frame.m.metrics.inputCaptured(System.nanoTime());
+        }
+        LockSupport.unpark(worker);
+    }
+
+    @Override
+    public void mousePressed(MouseEvent e) {
+        //Only the left button draws; the others are left to move the view
+        if (e.getButton() == MouseEvent.BUTTON1) {
+            frame.pressed();
+            queue(PRESS, e);
+        }
+    }
+
+    @Override
+    public void mouseDragged(MouseEvent e) {
+        if ((e.getModifiersEx() & MouseEvent.BUTTON1_DOWN_MASK) != 0) {
+            queue(MOVE, e);
+        }
+    }
+
+    @Override
+    public void mouseReleased(MouseEvent e) {
+        if (e.getButton() == MouseEvent.BUTTON1) {
+            queue(RELEASE, e);
+            frame.released();
+        }
+    }
+
+    @Override
+    public void mouseClicked(MouseEvent e) {
+        return;
+    }
+
+    @Override
+    public void mouseEntered(MouseEvent e) {
+        return;
+    }
+
+    @Override
+    public void mouseExited(MouseEvent e) {
+        return;
+    }
+
+    @Override
+    public void mouseMoved(MouseEvent e) {
+        return;
+    }
+
+    /**
+     * Runs the render loop on the calling thread until it is interrupted. The
+     * calling thread becomes the only thread adding points to the
+     * <code>Mandala</code>.
+     */
+    @Override
+    public void run() {
+        worker = Thread.currentThread();
+        long nextFrame = System.nanoTime();
+        boolean deferred = false;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            if (events.size() == 0 && !(deferred && !frame.paintPending)) {
+                //Nothing to do until an event arrives or a paint completes
+                LockSupport.park(this);
+                continue;
+            }
+            long now = System.nanoTime();
+            if (now < nextFrame) {
+                LockSupport.parkNanos(this, nextFrame - now);
+                continue;
+            }
+
+            long end = events.end();
+            for (long i = events.start(); i < end; i++) {
+                long e = events.get(i);
+                double x = PointBuffer.x(e) / (double) SUBPIXEL;
+                double y = PointBuffer.y(e) / (double) SUBPIXEL;
+                switch (PointBuffer.alpha(e)) {
+                    case PRESS:
+                        pen.press(x, y);
+                        break;
+                    case MOVE:
+                        pen.move(x, y);
+                        break;
+                    case RELEASE:
+                        pen.move(x, y);
+                        pen.release();
+                        break;
+                    default:
+                        break;
+                }
+            }
+            events.consume((int) (end - events.start()));
+            frame.m.metrics.inputProcessed();
+
+            //Let the dirty region grow rather than queue paints the EDT can't keep up with
+            deferred = frame.paintPending;
+            if (!deferred) {
+                frame.paintPending = true;
+                if (!frame.repaintDirty()) {
+                    frame.paintPending = false;
+                }
+            }
+
+            long work = System.nanoTime() - now;
+            workNanos += (work - workNanos) / 8;
+            interval = Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, workNanos + frame.paintNanos));
+            nextFrame = now + interval;
+        }
+    }
+}
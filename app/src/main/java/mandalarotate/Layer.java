@@ -0,0 +1,213 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.awt.Color;
+import java.util.BitSet;
+
+/**
+ * One layer of a <code>LayerStack</code>. A layer keeps its strokes as ink on
+ * a <code>Canvas</code> of its own, black on white just like a single layer
+ * drawing, and is tinted with its colour and opacity only when the stack is
+ * composited. Changing how a layer is shown therefore never touches its
+ * pixels, only the tiles of the composite that it has ink in.
+ * <p>
+ * A layer must only be changed from the thread that composites its stack.
+ *
+ * @author chasehanson
+ */
+public class Layer {
+
+    private final LayerStack stack;
+
+    final Canvas canvas;
+
+    /**
+     * The tiles of <code>canvas</code> written since the layer was last
+     * cleared.
+     */
+    final BitSet used = new BitSet();
+
+    private String name;
+
+    private int rgb;
+
+    private int opacity = 255;
+
+    private boolean visible = true;
+
+    private int segments;
+
+    /**
+     * The colour at every coverage, used to draw pending pixels.
+     */
+    private final Color[] shades = new Color[256];
+
+    Layer(LayerStack stack, Canvas canvas, String name, int rgb, int segments) {
+        this.stack = stack;
+        this.canvas = canvas;
+        this.name = name;
+        this.segments = segments;
+        setColour(rgb);
+    }
+
+    /**
+     * Returns the <code>Canvas</code> holding the ink of this layer, which is
+     * white where nothing has been drawn.
+     *
+     * @return The ink of the layer
+     */
+    public Canvas getCanvas() {
+        return canvas;
+    }
+
+    /**
+     * Returns the name of this layer.
+     *
+     * @return The name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Renames this layer.
+     *
+     * @param name The new name
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the colour the ink of this layer is shown in.
+     *
+     * @return The RGB colour
+     */
+    public int getColour() {
+        return rgb;
+    }
+
+    /**
+     * Changes the colour the ink of this layer is shown in, including the ink
+     * already drawn.
+     *
+     * @param rgb The RGB colour
+     */
+    public void setColour(int rgb) {
+        rgb &= 0xFFFFFF;
+        if (rgb != this.rgb || shades[0] == null) {
+            this.rgb = rgb;
+            updateShades();
+            stack.invalidate(this);
+        }
+    }
+
+    /**
+     * Returns the opacity of this layer.
+     *
+     * @return The opacity, from 0 to 255
+     */
+    public int getOpacity() {
+        return opacity;
+    }
+
+    /**
+     * Changes the opacity of this layer.
+     *
+     * @param opacity The opacity, from 0 to 255
+     */
+    public void setOpacity(int opacity) {
+        opacity = Math.max(0, Math.min(255, opacity));
+        if (opacity != this.opacity) {
+            this.opacity = opacity;
+            updateShades();
+            stack.invalidate(this);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if this layer is shown.
+     *
+     * @return <code>true</code> if the layer is shown
+     */
+    public boolean isVisible() {
+        return visible;
+    }
+
+    /**
+     * Shows or hides this layer. Hidden layers can still be drawn on.
+     *
+     * @param visible <code>true</code> to show the layer
+     */
+    public void setVisible(boolean visible) {
+        if (visible != this.visible) {
+            this.visible = visible;
+            stack.invalidate(this);
+        }
+    }
+
+    /**
+     * Returns the number of segments new strokes on this layer are rotated
+     * into.
+     *
+     * @return The number of segments
+     */
+    public int getSegments() {
+        return segments;
+    }
+
+    /**
+     * Changes the number of segments new strokes on this layer are rotated
+     * into. Strokes already drawn are left as they are.
+     *
+     * @param segments The number of segments
+     */
+    public void setSegments(int segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * Returns the colour pending pixels of this layer are drawn in at a
+     * coverage, taking its opacity into account.
+     *
+     * @param alpha The coverage, from 0 to 255
+     * @return The colour to draw with
+     */
+    public Color shade(int alpha) {
+        return shades[alpha];
+    }
+
+    private void updateShades() {
+        for (int i = 0; i < shades.length; i++) {
+            shades[i] = new Color(rgb >> 16 & 0xFF, rgb >> 8 & 0xFF, rgb & 0xFF, i * opacity / 255);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s #%06X %d%% %d segments%s", name, rgb, opacity * 100 / 255, segments,
+                visible ? "" : " hidden");
+    }
+}
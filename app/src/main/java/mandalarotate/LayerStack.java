@@ -0,0 +1,324 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A stack of coloured layers blended into one composite <code>Canvas</code>.
+ * The composite is cached, and only the tiles that have changed since it was
+ * last brought up to date are blended again, so an idle frame costs no more
+ * than it would with a single layer.
+ * <p>
+ * The <code>LayerStack</code> is a <code>TileGuard</code> on every layer: the
+ * first write into a tile marks it dirty in the composite, and the tile is
+ * re-armed once it has been blended again, just as the <code>Pyramid</code>
+ * does. Each layer also remembers which tiles it has ever had ink in, so
+ * showing, hiding, recolouring or moving a layer only marks those tiles
+ * dirty and costs time in proportion to them rather than to the canvas.
+ * <p>
+ * Layers are blended over white from the bottom up. The ink of a layer is
+ * read from the blue channel of its black on white pixels, scaled by its
+ * opacity, and used as the coverage of its colour. A <code>LayerStack</code>
+ * must only be used from the thread that writes to its layers.
+ *
+ * @author chasehanson
+ */
+public class LayerStack implements Canvas.TileGuard, Closeable {
+
+    private static final int WHITE = 0xFFFFFF;
+
+    private static final int TILE_PIXELS = Canvas.TILE_SIZE * Canvas.TILE_SIZE;
+
+    private final Canvas composite;
+
+    /**
+     * The layers from the bottom up.
+     */
+    private final List<Layer> layers = new ArrayList<>();
+
+    /**
+     * The tiles of the composite that have to be blended again.
+     */
+    private final BitSet dirty = new BitSet();
+
+    private int active;
+
+    /**
+     * <code>true</code> while the layers are being cleared, so the writes
+     * don't mark every tile dirty.
+     */
+    private boolean clearing;
+
+    private final int[] tile = new int[TILE_PIXELS], ink = new int[TILE_PIXELS];
+
+    /**
+     * Constructs a new, empty <code>LayerStack</code> blending into a
+     * <code>Canvas</code>, which is made white.
+     *
+     * @param composite The <code>Canvas</code> to blend the layers into
+     */
+    public LayerStack(Canvas composite) {
+        this.composite = composite;
+        composite.fill(WHITE);
+    }
+
+    /**
+     * Adds a new, empty layer on top of the others. Its pixels use the same
+     * kind of <code>Canvas</code> as the composite, so the layers of a
+     * memory-mapped canvas stay off the heap as well, and those on the heap
+     * only hold the tiles that have been drawn on.
+     *
+     * @param name The name of the layer
+     * @param rgb The RGB colour of the layer
+     * @param segments The number of segments strokes on the layer are
+     * rotated into
+     * @return The new layer
+     * @throws IOException If the composite is memory-mapped and the layer
+     * can't be mapped
+     */
+    public Layer add(String name, int rgb, int segments) throws IOException {
+        int w = composite.getWidth();
+        int h = composite.getHeight();
+        Canvas c = composite instanceof MappedCanvas ? new MappedCanvas(w, h, null) : new SparseCanvas(w, h);
+        c.fill(WHITE);
+        c.addGuard(this);
+        c.armAll(this);
+        Layer l = new Layer(this, c, name, rgb, segments);
+        layers.add(l);
+        return l;
+    }
+
+    /**
+     * Returns the number of layers.
+     *
+     * @return The number of layers
+     */
+    public int size() {
+        return layers.size();
+    }
+
+    /**
+     * Returns a layer.
+     *
+     * @param i The index of the layer, where 0 is the bottom
+     * @return The layer
+     */
+    public Layer get(int i) {
+        return layers.get(i);
+    }
+
+    /**
+     * Returns a copy of the order of the layers, so they can be read on
+     * another thread while this stack is changed.
+     *
+     * @return The layers, from the bottom up
+     */
+    public List<Layer> list() {
+        return new ArrayList<>(layers);
+    }
+
+    /**
+     * Returns the index of a layer.
+     *
+     * @param l The layer
+     * @return The index of the layer, or -1 if it is not in this stack
+     */
+    public int indexOf(Layer l) {
+        return layers.indexOf(l);
+    }
+
+    /**
+     * Returns the index of the layer being drawn on.
+     *
+     * @return The index of the active layer
+     */
+    public int getActiveIndex() {
+        return active;
+    }
+
+    /**
+     * Returns the layer being drawn on.
+     *
+     * @return The active layer
+     */
+    public Layer getActive() {
+        return layers.get(active);
+    }
+
+    /**
+     * Chooses the layer to draw on.
+     *
+     * @param i The index of the layer
+     * @throws IndexOutOfBoundsException If there is no such layer
+     */
+    public void setActive(int i) {
+        Objects.checkIndex(i, layers.size());
+        active = i;
+    }
+
+    /**
+     * Moves a layer to a new place in the stack. The active layer stays
+     * active.
+     *
+     * @param from The index of the layer to move
+     * @param to The index to move it to
+     * @throws IndexOutOfBoundsException If either index is out of range
+     */
+    public void move(int from, int to) {
+        Layer a = getActive();
+        Layer l = layers.remove(from);
+        layers.add(to, l);
+        active = layers.indexOf(a);
+        //Only the order of the moved layer against the others changed
+        invalidate(l);
+    }
+
+    /**
+     * Erases the ink of every layer. The layers themselves and how they are
+     * shown are kept.
+     */
+    public void clear() {
+        clearing = true;
+        try {
+            for (Layer l : layers) {
+                dirty.or(l.used);
+                l.used.clear();
+                l.canvas.fill(WHITE);
+                l.canvas.armAll(this);
+            }
+        } finally {
+            clearing = false;
+        }
+    }
+
+    /**
+     * Marks every tile a layer has ink in dirty, after a change in how it is
+     * shown.
+     */
+    void invalidate(Layer l) {
+        dirty.or(l.used);
+    }
+
+    /**
+     * Returns <code>true</code> if some tiles of the composite are out of
+     * date.
+     *
+     * @return <code>true</code> if <code>composite</code> has work to do
+     */
+    public boolean isDirty() {
+        return !dirty.isEmpty();
+    }
+
+    @Override
+    public void beforeWrite(Canvas c, int t) {
+        if (clearing) {
+            return;
+        }
+        for (Layer l : layers) {
+            if (l.canvas == c) {
+                l.used.set(t);
+                dirty.set(t);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Blends every dirty tile of the layers into the composite.
+     *
+     * @return The number of tiles blended
+     */
+    public int composite() {
+        int count = 0;
+        for (int t = dirty.nextSetBit(0); t >= 0; t = dirty.nextSetBit(t + 1)) {
+            blend(t);
+            count++;
+        }
+        dirty.clear();
+        return count;
+    }
+
+    private void blend(int t) {
+        boolean blank = true;
+        for (Layer l : layers) {
+            //Arm before reading, so any write after this marks it again
+            l.canvas.arm(this, t);
+            if (!l.isVisible() || l.getOpacity() == 0 || !l.used.get(t)) {
+                continue;
+            }
+            int rgb = l.getColour();
+            int opacity = l.getOpacity();
+            if (blank && rgb == 0 && opacity == 255) {
+                //Opaque black ink over white is its own composite
+                l.canvas.readTile(t, tile);
+                blank = false;
+                continue;
+            }
+            if (blank) {
+                Arrays.fill(tile, WHITE);
+                blank = false;
+            }
+            l.canvas.readTile(t, ink);
+            for (int i = 0; i < TILE_PIXELS; i++) {
+                int a = 255 - (ink[i] & 0xFF);
+                if (a != 0) {
+                    a = opacity == 255 ? a : a * opacity / 255;
+                    tile[i] = a == 255 ? rgb : Canvas.blend(tile[i], rgb, a);
+                }
+            }
+        }
+        if (blank) {
+            //Leaves the tile of a sparse composite blank rather than white
+            int tilesX = composite.getTilesX();
+            composite.fillRect((t % tilesX) << Canvas.TILE_SHIFT, (t / tilesX) << Canvas.TILE_SHIFT,
+                    Canvas.TILE_SIZE, Canvas.TILE_SIZE, WHITE);
+        } else {
+            composite.writeTile(t, tile);
+        }
+    }
+
+    /**
+     * Removes the stack from its layers and releases them. The composite is
+     * left to its owner.
+     *
+     * @throws IOException If a memory-mapped layer can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        for (Layer l : layers) {
+            l.canvas.removeGuard(this);
+            if (l.canvas instanceof MappedCanvas) {
+                ((MappedCanvas) l.canvas).close();
+            }
+        }
+        layers.clear();
+    }
+}
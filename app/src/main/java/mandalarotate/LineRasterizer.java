@@ -0,0 +1,288 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+/**
+ * Rasterizes line segments into packed pixels, either with Bresenham's
+ * algorithm or, for anti-aliased lines, with Xiaolin Wu's algorithm. Pixels
+ * are written into a caller supplied <code>long[]</code> in the format of
+ * <code>PointBuffer.pack</code>, so no objects are created per pixel.
+ *
+ * @author chasehanson
+ */
+public class LineRasterizer {
+
+    private LineRasterizer() {
+    }
+
+    /**
+     * Returns the number of array slots needed to rasterize any segment of
+     * the given length, in any orientation and with either algorithm.
+     *
+     * @param length The Euclidean length of the segment in pixels
+     * @return The maximum number of pixels produced
+     */
+    public static int capacity(double length) {
+        return 2 * (int) Math.ceil(length) + 8;
+    }
+
+    /**
+     * Rasterizes a solid segment between two pixels with Bresenham's
+     * algorithm. The end pixel is always included.
+     *
+     * @param x0 The x coordinate of the start pixel
+     * @param y0 The y coordinate of the start pixel
+     * @param x1 The x coordinate of the end pixel
+     * @param y1 The y coordinate of the end pixel
+     * @param includeStart <code>false</code> to leave out the start pixel, so
+     * consecutive segments of a stroke don't share a pixel
+     * @param out The array to write the packed pixels into
+     * @param offset The index of the first pixel in <code>out</code>
+     * @return The number of pixels written
+     */
+    public static int bresenham(int x0, int y0, int x1, int y1, boolean includeStart, long[] out, int offset) {
+        int dx = Math.abs(x1 - x0);
+        int dy = -Math.abs(y1 - y0);
+        int sx = x0 < x1 ? 1 : -1;
+        int sy = y0 < y1 ? 1 : -1;
+        int err = dx + dy;
+        int j = offset;
+        if (includeStart) {
+            out[j++] = PointBuffer.pack(x0, y0);
+        }
+        while (x0 != x1 || y0 != y1) {
+            int e2 = 2 * err;
+            if (e2 >= dy) {
+                err += dy;
+                x0 += sx;
+            }
+            if (e2 <= dx) {
+                err += dx;
+                y0 += sy;
+            }
+            out[j++] = PointBuffer.pack(x0, y0);
+        }
+        return j - offset;
+    }
+
+    /**
+     * Rasterizes the part of a solid segment near a rectangle with
+     * Bresenham's algorithm, stepping only along the part of the segment
+     * clipped to it. Every pixel the whole segment has within the rectangle
+     * is written, exactly as <code>bresenham</code> would, along with a few
+     * just outside it.
+     *
+     * @param x0 The x coordinate of the start pixel
+     * @param y0 The y coordinate of the start pixel
+     * @param x1 The x coordinate of the end pixel
+     * @param y1 The y coordinate of the end pixel
+     * @param includeStart <code>false</code> to leave out the start pixel
+     * @param left The x coordinate of the left edge of the rectangle
+     * @param top The y coordinate of the top edge of the rectangle
+     * @param right The x coordinate just past its right edge
+     * @param bottom The y coordinate just past its bottom edge
+     * @param out The array to write the packed pixels into
+     * @param offset The index of the first pixel in <code>out</code>
+     * @return The number of pixels written
+     */
+    public static int bresenham(int x0, int y0, int x1, int y1, boolean includeStart,
+            int left, int top, int right, int bottom, long[] out, int offset) {
+        //Pixels are within half a pixel of the line, so a margin of one is enough
+        double[] t = {0, 1};
+        if (!clip(x0, y0, x1, y1, left - 1, top - 1, right + 1, bottom + 1, t)) {
+            return 0;
+        }
+        int dx = Math.abs(x1 - x0);
+        int dy = Math.abs(y1 - y0);
+        int sx = x0 < x1 ? 1 : -1;
+        int sy = y0 < y1 ? 1 : -1;
+        boolean steep = dy > dx;
+        long major = steep ? dy : dx;
+        long minor = steep ? dx : dy;
+        int from = Math.max(includeStart ? 0 : 1, (int) Math.floor(t[0] * major) - 1);
+        int to = (int) Math.min(major, (long) Math.ceil(t[1] * major) + 1);
+        int j = offset;
+        for (int k = from; k <= to; k++) {
+            //The minor step the incremental loop has taken after k major steps
+            int m = major == 0 ? 0 : (int) ((2 * k * minor + major) / (2 * major));
+            out[j++] = steep ? PointBuffer.pack(x0 + sx * m, y0 + sy * k) : PointBuffer.pack(x0 + sx * k, y0 + sy * m);
+        }
+        return j - offset;
+    }
+
+    /**
+     * Rasterizes an anti-aliased segment with Xiaolin Wu's algorithm. Each
+     * step along the major axis covers two pixels, weighted by their distance
+     * from the ideal line.
+     *
+     * @param x0 The x coordinate of the start point
+     * @param y0 The y coordinate of the start point
+     * @param x1 The x coordinate of the end point
+     * @param y1 The y coordinate of the end point
+     * @param out The array to write the packed pixels into
+     * @param offset The index of the first pixel in <code>out</code>
+     * @return The number of pixels written
+     */
+    public static int wu(double x0, double y0, double x1, double y1, long[] out, int offset) {
+        return wu(x0, y0, x1, y1, Integer.MIN_VALUE, Integer.MAX_VALUE, out, offset);
+    }
+
+    /**
+     * Rasterizes the part of an anti-aliased segment near a rectangle with
+     * Xiaolin Wu's algorithm, stepping only along the part of the segment
+     * clipped to it. Every pixel the whole segment has within the rectangle
+     * is written, exactly as <code>wu</code> would, along with a few just
+     * outside it.
+     *
+     * @param x0 The x coordinate of the start point
+     * @param y0 The y coordinate of the start point
+     * @param x1 The x coordinate of the end point
+     * @param y1 The y coordinate of the end point
+     * @param left The x coordinate of the left edge of the rectangle
+     * @param top The y coordinate of the top edge of the rectangle
+     * @param right The x coordinate just past its right edge
+     * @param bottom The y coordinate just past its bottom edge
+     * @param out The array to write the packed pixels into
+     * @param offset The index of the first pixel in <code>out</code>
+     * @return The number of pixels written
+     */
+    public static int wu(double x0, double y0, double x1, double y1,
+            int left, int top, int right, int bottom, long[] out, int offset) {
+        //Pixels are within a pixel of the line, and the end points are
+        //rounded by up to half a pixel along it
+        double[] t = {0, 1};
+        if (!clip(x0, y0, x1, y1, left - 2, top - 2, right + 2, bottom + 2, t)) {
+            return 0;
+        }
+        boolean steep = Math.abs(y1 - y0) > Math.abs(x1 - x0);
+        double a = steep ? y0 + t[0] * (y1 - y0) : x0 + t[0] * (x1 - x0);
+        double b = steep ? y0 + t[1] * (y1 - y0) : x0 + t[1] * (x1 - x0);
+        return wu(x0, y0, x1, y1, (int) Math.floor(Math.min(a, b)) - 1, (int) Math.ceil(Math.max(a, b)) + 1, out, offset);
+    }
+
+    /**
+     * Rasterizes the steps of an anti-aliased segment whose major coordinate
+     * lies between <code>from</code> and <code>to</code> inclusive. The
+     * intercept of each step is computed afresh rather than accumulated, so
+     * a step comes out the same whichever range it is rasterized in.
+     */
+    private static int wu(double x0, double y0, double x1, double y1, int from, int to, long[] out, int offset) {
+        boolean steep = Math.abs(y1 - y0) > Math.abs(x1 - x0);
+        double t;
+        if (steep) {
+            t = x0; x0 = y0; y0 = t;
+            t = x1; x1 = y1; y1 = t;
+        }
+        if (x0 > x1) {
+            t = x0; x0 = x1; x1 = t;
+            t = y0; y0 = y1; y1 = t;
+        }
+        double dx = x1 - x0;
+        double gradient = dx == 0 ? 1 : (y1 - y0) / dx;
+        int j = offset;
+
+        //First end point
+        double xEnd = Math.floor(x0 + .5);
+        double yEnd = y0 + gradient * (xEnd - x0);
+        double xGap = 1 - fraction(x0 + .5);
+        int xStart = (int) xEnd;
+        int yPixel = (int) Math.floor(yEnd);
+        if (xStart >= from && xStart <= to) {
+            j = plot(steep, xStart, yPixel, (1 - fraction(yEnd)) * xGap, out, j);
+            j = plot(steep, xStart, yPixel + 1, fraction(yEnd) * xGap, out, j);
+        }
+        double yStart = yEnd;
+
+        //Second end point
+        xEnd = Math.floor(x1 + .5);
+        yEnd = y1 + gradient * (xEnd - x1);
+        xGap = fraction(x1 + .5);
+        int xStop = (int) xEnd;
+        yPixel = (int) Math.floor(yEnd);
+        if (xStop != xStart && xStop >= from && xStop <= to) {
+            j = plot(steep, xStop, yPixel, (1 - fraction(yEnd)) * xGap, out, j);
+            j = plot(steep, xStop, yPixel + 1, fraction(yEnd) * xGap, out, j);
+        }
+
+        //Main loop
+        for (int x = Math.max(xStart + 1, from), end = Math.min(xStop - 1, to); x <= end; x++) {
+            double intery = yStart + gradient * (x - xStart);
+            int y = (int) Math.floor(intery);
+            double f = intery - y;
+            j = plot(steep, x, y, 1 - f, out, j);
+            j = plot(steep, x, y + 1, f, out, j);
+        }
+        return j - offset;
+    }
+
+    /**
+     * Narrows the parameter range <code>t</code> of a segment to the part of
+     * it inside a rectangle, by Liang-Barsky clipping.
+     *
+     * @return <code>false</code> if no part of the segment is inside
+     */
+    private static boolean clip(double x0, double y0, double x1, double y1,
+            double left, double top, double right, double bottom, double[] t) {
+        double dx = x1 - x0;
+        double dy = y1 - y0;
+        return clip(-dx, x0 - left, t) && clip(dx, right - x0, t)
+                && clip(-dy, y0 - top, t) && clip(dy, bottom - y0, t);
+    }
+
+    /**
+     * Clips the parameter range against one edge, where the segment is
+     * inside wherever <code>p * t &lt;= q</code>.
+     */
+    private static boolean clip(double p, double q, double[] t) {
+        if (p == 0) {
+            return q >= 0;
+        }
+        double r = q / p;
+        if (p < 0) {
+            if (r > t[1]) {
+                return false;
+            }
+            t[0] = Math.max(t[0], r);
+        } else {
+            if (r < t[0]) {
+                return false;
+            }
+            t[1] = Math.min(t[1], r);
+        }
+        return true;
+    }
+
+    private static double fraction(double v) {
+        return v - Math.floor(v);
+    }
+
+    private static int plot(boolean steep, int x, int y, double coverage, long[] out, int j) {
+        int alpha = (int) (coverage * 255 + .5);
+        if (alpha <= 0) {
+            return j;
+        }
+        out[j] = steep ? PointBuffer.pack(y, x, alpha) : PointBuffer.pack(x, y, alpha);
+        return j + 1;
+    }
+}
@@ -0,0 +1,1116 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Represents a set of Points with equidistant copies rotated around the origin.
+ * Additionally, contains a second set of Points, rotated with a small offset.
+ * The number of copies is determined by a preset number of segments. This
+ * creates a mandala where lines appear to meet at the edges of the segments.
+ *
+ * @author chasehanson
+ */
+public class Mandala {
+
+    /**
+     * The pixels waiting to be offloaded into the <code>Canvas</code>.
+     * Points are added by a single input thread and drawn, offloaded and
+     * cleared by the event dispatch thread, without locking
+     */
+    public PointBuffer points;
+
+    /**
+     * <code>true</code> to draw strokes with anti-aliased lines, otherwise
+     * strokes are drawn with solid single pixel lines.
+     */
+    public boolean antialias;
+
+    /**
+     * Decides when pending points are offloaded, from the measured cost of
+     * painting and offloading them.
+     */
+    public final OffloadPolicy policy = new OffloadPolicy();
+
+    /**
+     * Counters and latency histograms for the hot paths.
+     */
+    public final Metrics metrics = new Metrics(this);
+
+    /**
+     * Undo and redo for the strokes offloaded into the layers. Replaced along
+     * with the canvas, so only the event dispatch thread may use it.
+     */
+    public History history;
+
+    /**
+     * The limit on the memory used by <code>history</code>, in bytes.
+     */
+    public long historyBudget = History.DEFAULT_BUDGET;
+
+    /**
+     * Every master stroke drawn, kept as vectors so the drawing can be
+     * rendered again at any size or exported as SVG.
+     */
+    public final Scene scene = new Scene();
+
+    /**
+     * Run by the input thread whenever <code>points</code> is full, so the
+     * drawing side can be asked to offload. Usually a repaint request, or
+     * <code>offloadPoints</code> itself when one thread both adds and draws.
+     */
+    public Runnable drainRequest;
+
+    /**
+     * The brush new strokes are drawn with, or <code>null</code> to draw
+     * them as lines one pixel wide. Read once at the start of each stroke.
+     */
+    public volatile Brush brush;
+
+    /**
+     * The number of segments used when rotating new Points around the origin.
+     * Kept equal to that of the active layer by <code>setSegments</code> and
+     * <code>setLayer</code>.
+     */
+    public int segments;
+
+    /**
+     * Holds the composite of the layers, on the heap in the tiles that have
+     * been drawn on or in a memory-mapped file.
+     */
+    public Canvas canvas;
+
+    /**
+     * The layers points are offloaded into, blended into
+     * <code>canvas</code>. Replaced along with the canvas, so only the event
+     * dispatch thread may use it.
+     */
+    public LayerStack layers;
+
+    /**
+     * Half size copies of <code>canvas</code>, sampled when the view is
+     * zoomed out.
+     */
+    public Pyramid pyramid;
+
+    /**
+     * The part of the <code>Mandala</code> shown on the screen. Set from the
+     * event dispatch thread and read by the input thread.
+     */
+    public volatile Viewport viewport = Viewport.ACTUAL_SIZE;
+
+    /**
+     * The width of the <code>Mandala</code> in pixels
+     */
+    public int width,
+            /**
+             * The height of the <code>Mandala</code> in pixels.
+             */
+            height;
+
+    /**
+     * The border pixel width to be used on the <code>Canvas</code>.
+     */
+    public int border;
+
+    /**
+     * <code>true</code> to keep the canvas in a memory-mapped file instead of
+     * on the heap, in <code>mapFile</code> or a temporary file if that is
+     * <code>null</code>.
+     */
+    private final boolean mapped;
+
+    private final File mapFile;
+
+    /**
+     * Reusable image the visible part of a memory-mapped or zoomed canvas is
+     * copied into for drawing.
+     */
+    private BufferedImage view;
+
+    /**
+     * Reused to merge the pending points painted by <code>draw</code> and
+     * those plotted by <code>offloadPoints</code> in memory order.
+     */
+    private final PixelBatch paintBatch = new PixelBatch(), offloadBatch = new PixelBatch();
+
+    /**
+     * For each column of the clip, the pixel of the sampled level shown there.
+     */
+    private int[] columns = new int[0];
+
+    /**
+     * The rotation table used to expand master points, rebuilt whenever
+     * <code>segments</code> changes.
+     */
+    private final Symmetry symmetry;
+
+    /**
+     * Reusable buffers holding the expanded copies of the current batch.
+     */
+    private double[] copiesX = new double[0], copiesY = new double[0];
+
+    /**
+     * Reusable buffer holding the packed pixels of the current batch.
+     */
+    private long[] packed = new long[0];
+
+    /**
+     * The bounds of every pixel added since the last call to
+     * <code>takeDirty</code>, relative to the centre. Only touched by the
+     * input thread; empty while <code>dirtyX0 &gt; dirtyX1</code>.
+     */
+    private int dirtyX0 = Integer.MAX_VALUE, dirtyY0 = Integer.MAX_VALUE,
+            dirtyX1 = Integer.MIN_VALUE, dirtyY1 = Integer.MIN_VALUE;
+
+    /**
+     * The indices in <code>points</code> at which strokes begin, so the
+     * drawing thread can start a new history step at the right pixel.
+     */
+    private final PointBuffer strokes = new PointBuffer(STROKES);
+
+    /**
+     * Reusable buffer holding the stroke start being published.
+     */
+    private final long[] strokeStart = new long[1];
+
+    /**
+     * The stamp of each stroke in <code>strokes</code>, at the same index, or
+     * <code>null</code> for a stroke of one pixel lines. The points of a
+     * stroke with a stamp are the centres of its dabs, with the flow as their
+     * coverage.
+     */
+    private final Stamp[] strokeStamps = new Stamp[STROKES];
+
+    /**
+     * The number of the stroke the open <code>history</code> step holds, or
+     * -1 if it holds none. Only used by the drawing thread.
+     */
+    private long openStroke = -1;
+
+    /**
+     * The stamps of recent brushes. Only used by the input thread.
+     */
+    private final StampCache stamps = new StampCache(StampCache.DEFAULT_CAPACITY);
+
+    /**
+     * Fills regions for <code>fill</code>, keeping its masks between fills.
+     * Only used by the drawing thread.
+     */
+    private final FloodFill floodFill = new FloodFill();
+
+    /**
+     * The brush and stamp of the stroke being added, and the distance along
+     * it since its last dab. Only used by the input thread.
+     */
+    private Brush strokeBrush;
+
+    private Stamp strokeStamp;
+
+    private double dabCarry;
+
+    /**
+     * Reusable buffers holding the master dabs of the current segment.
+     */
+    private double[] dabX = new double[16], dabY = new double[16];
+
+    /**
+     * The stamp of the stroke being offloaded. Only used by the drawing
+     * thread.
+     */
+    private Stamp offloadStamp;
+
+    /**
+     * The number of pending pixels that can be held before the input thread
+     * has to wait for them to be offloaded.
+     */
+    private static final int CAPACITY = 1 << 18;
+
+    /**
+     * The number of stroke starts that can wait to be offloaded. Any more
+     * wait for the oldest to be offloaded, as points do.
+     */
+    private static final int STROKES = 1 << 10;
+
+    /**
+     * Constructs a new <code>Mandala</code> of given <code>width</code> and
+     * <code>height</code> with 8 segments.
+     *
+     * @param width The width of the <code>Mandala</code> in pixels
+     * @param height The height of the <code>Mandala</code> in pixels
+     */
+    public Mandala(int width, int height) {
+        this(8, width, height);
+    }
+
+    /**
+     * Constructs a new <code>Mandala</code> of given width, height, and number
+     * of segments.
+     *
+     * @param s The number of segments to use
+     * @param width The width of the <code>Mandala</code> in pixels
+     * @param height The height of the <code>Mandala</code> in pixels
+     */
+    public Mandala(int s, int width, int height) {
+        this(s, width, height, false, null);
+    }
+
+    /**
+     * Constructs a new <code>Mandala</code> of given width, height, and number
+     * of segments, optionally keeping its pixels in a memory-mapped file so
+     * that heap use does not grow with its size.
+     *
+     * @param s The number of segments to use
+     * @param width The width of the <code>Mandala</code> in pixels
+     * @param height The height of the <code>Mandala</code> in pixels
+     * @param mapped <code>true</code> to keep the pixels in a memory-mapped
+     * file
+     * @param mapFile The file to map, or <code>null</code> for a temporary
+     * file
+     */
+    public Mandala(int s, int width, int height, boolean mapped, File mapFile) {
+        segments = s;
+        symmetry = new Symmetry(segments);
+        this.mapped = mapped;
+        this.mapFile = mapFile;
+        setup(width, height);
+    }
+
+    /**
+     * Sets the border size, width, and height of the <code>Mandala</code>.
+     * Also, empties the <code>PointBuffer</code> and erases every layer,
+     * reusing them if the size is unchanged. Otherwise the layers are
+     * replaced by a single black one
+     *
+     * @param w The width of the <code>Mandala</code> in pixels
+     * @param h The height of the <code>Mandala</code> in pixels
+     * @throws UncheckedIOException If a memory-mapped canvas can't be created
+     */
+    public void setup(int w, int h) {
+        border = 4;
+        width = w;
+        height = h;
+        if (points == null) {
+            points = new PointBuffer(CAPACITY);
+        } else {
+            //Only the drawing thread may release points, so keep the buffer
+            points.clear();
+        }
+        if (canvas == null || canvas.getWidth() != w + border * 2 || canvas.getHeight() != h + border * 2) {
+            if (history != null) {
+                history.close();
+            }
+            try {
+                if (pyramid != null) {
+                    pyramid.close();
+                }
+                if (layers != null) {
+                    layers.close();
+                }
+                if (mapped) {
+                    if (canvas != null) {
+                        ((MappedCanvas) canvas).close();
+                    }
+                    canvas = new MappedCanvas(w + border * 2, h + border * 2, mapFile);
+                } else {
+                    canvas = new SparseCanvas(w + border * 2, h + border * 2);
+                }
+                //Whiten the composite first, so the blank levels of the pyramid start out white too
+                layers = new LayerStack(canvas);
+                pyramid = new Pyramid(canvas);
+                layers.add("Layer 1", Color.black.getRGB(), segments);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            history = new History(layers.get(0).getCanvas(), historyBudget);
+        } else {
+            layers.clear();
+        }
+        layers.composite();
+    }
+
+    /**
+     * Adds a new, empty layer on top of the others. The active layer is left
+     * as it is.
+     *
+     * @param name The name of the layer
+     * @param rgb The RGB colour of the layer
+     * @return The new layer
+     * @throws UncheckedIOException If a memory-mapped layer can't be created
+     */
+    public Layer addLayer(String name, int rgb) {
+        try {
+            Layer l = layers.add(name, rgb, segments);
+            history.track(l.getCanvas());
+            return l;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Offloads every pending point into the active layer, then makes another
+     * layer active and takes up its number of segments.
+     *
+     * @param i The index of the layer to draw on
+     */
+    public void setLayer(int i) {
+        offloadPoints();
+        layers.setActive(i);
+        segments = layers.getActive().getSegments();
+    }
+
+    /**
+     * Changes the number of segments new strokes are rotated into, both now
+     * and whenever the active layer is chosen again.
+     *
+     * @param s The number of segments to use
+     */
+    public void setSegments(int s) {
+        segments = s;
+        layers.getActive().setSegments(s);
+    }
+
+    /**
+     * Reruns setup in order to reinitialize the <code>Mandala</code> to its
+     * initial state. Clearing is an undo step of its own.
+     */
+    public void clear() {
+        beginStep();
+        setup(width, height);
+        scene.clear(beginStep());
+    }
+
+    /**
+     * Offloads every pending point, then fills the region of the drawing
+     * around a point with ink in the active layer, as one undo step if it
+     * fills anything. The region is found in the composite, so it is
+     * bounded by what every visible layer shows, and is taken to share the
+     * symmetry of all their segments. Must be called from the drawing
+     * thread.
+     *
+     * @param x The x coordinate of the point, relative to the centre
+     * @param y The y coordinate of the point, relative to the centre
+     * @param radius The radius of the disc the fill is kept within
+     * @param tolerance The largest difference in any channel from the colour
+     * at the point for a pixel to be filled
+     * @return The number of pixels filled
+     */
+    public int fill(double x, double y, double radius, int tolerance) {
+        offloadPoints();
+        int common = 0;
+        for (int i = 0; i < layers.size(); i++) {
+            Layer l = layers.get(i);
+            if (l.isVisible() && l.getOpacity() > 0) {
+                common = gcd(common, l.getSegments());
+            }
+        }
+        int cx = border + width / 2;
+        int cy = border + height / 2;
+        beginStep();
+        int n = floodFill.fill(canvas, layers.getActive().getCanvas(), cx, cy, radius, common,
+                (int) (.5 + x) + cx, (int) (.5 + y) + cy, tolerance, Color.black.getRGB());
+        if (beginStep()) {
+            scene.mark();
+        }
+        layers.composite();
+        return n;
+    }
+
+    /**
+     * Returns <code>true</code> if the last fill used the symmetry of the
+     * drawing, rather than filling the whole disc.
+     *
+     * @return Whether the last fill was symmetric
+     */
+    public boolean wasFillSymmetric() {
+        return floodFill.wasSymmetric();
+    }
+
+    private static int gcd(int a, int b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    /**
+     * Forgets every undo step, so that what has been drawn so far can no
+     * longer be undone.
+     */
+    public void forgetHistory() {
+        history.close();
+        history = new History(layers.get(0).getCanvas(), historyBudget);
+        for (int i = 1; i < layers.size(); i++) {
+            history.track(layers.get(i).getCanvas());
+        }
+        scene.trim(0, 0);
+    }
+
+    /**
+     * Closes the open <code>history</code> step and commits the stroke it
+     * held, if any, to the <code>scene</code>, so the scene only undoes the
+     * strokes the raster can. Must be called from the drawing thread.
+     *
+     * @return <code>true</code> if a step was closed that can be undone
+     */
+    private boolean beginStep() {
+        boolean sealed = history.beginStep();
+        if (openStroke >= 0) {
+            scene.commit(openStroke, sealed);
+            openStroke = -1;
+        }
+        //A step too large for the budget forgets every step before it
+        scene.trim(history.undoSteps(), history.redoSteps());
+        return sealed;
+    }
+
+    /**
+     * Marks the start of a new stroke, so that it can be undone on its own,
+     * and takes up <code>brush</code> for it. Must be called by the input
+     * thread before the stroke's first point.
+     *
+     * @return The number of the stroke, to start it in the
+     * <code>scene</code> with
+     */
+    public long beginStroke() {
+        strokeBrush = brush;
+        strokeStamp = strokeBrush == null ? null : stamps.get(strokeBrush);
+        dabCarry = 0;
+        strokeStart[0] = points.end();
+        //The stamp's slot is only free once the stroke that last used it is offloaded
+        while (strokes.size() == strokes.capacity() && !Thread.currentThread().isInterrupted()) {
+            if (drainRequest != null) {
+                drainRequest.run();
+            }
+            LockSupport.parkNanos(1_000_000L);
+        }
+        long number = strokes.end();
+        strokeStamps[(int) number & (STROKES - 1)] = strokeStamp;
+        strokes.offer(strokeStart, 0, 1);
+        return number;
+    }
+
+    /**
+     * Returns the brush of the stroke being added. Must be called by the
+     * input thread.
+     *
+     * @return The brush, or <code>null</code> for one pixel lines
+     */
+    public Brush getStrokeBrush() {
+        return strokeBrush;
+    }
+
+    /**
+     * Offloads every pending point, then undoes the most recent stroke.
+     *
+     * @return <code>false</code> if there was nothing to undo
+     */
+    public boolean undo() {
+        offloadPoints();
+        beginStep();
+        boolean undone = history.undo();
+        layers.composite();
+        if (undone) {
+            scene.undo();
+        }
+        scene.trim(history.undoSteps(), history.redoSteps());
+        return undone;
+    }
+
+    /**
+     * Offloads every pending point, then redoes the most recently undone
+     * stroke.
+     *
+     * @return <code>false</code> if there was nothing to redo
+     */
+    public boolean redo() {
+        offloadPoints();
+        beginStep();
+        boolean redone = history.redo();
+        layers.composite();
+        if (redone) {
+            scene.redo();
+        }
+        scene.trim(history.undoSteps(), history.redoSteps());
+        return redone;
+    }
+
+    /**
+     * Adds a new point to the <code>Mandala</code>, alongside all its
+     * rotations. If the stroke has a brush, each is one dab.
+     *
+     * @param x The x coordinate of the master <code>Point</code>
+     * @param y The y coordinate of the master <code>Point</code>
+     * @param radius The maximum allowed radius of the <code>Mandala</code>
+     */
+    public void addPoint(double x, double y, double radius) {
+        symmetry.setSegments(segments);
+        ensureCopies(symmetry.copies());
+        int n = symmetry.expand(x, y, radius, copiesX, copiesY, 0);
+        addCopies(n);
+        dabCarry = 0;
+    }
+
+    /**
+     * Adds a batch of new points to the <code>Mandala</code>, alongside all
+     * their rotations. This is equivalent to calling <code>addPoint</code> for
+     * each point, but the copies are stored in one step.
+     *
+     * @param xs The x coordinates of the master <code>Points</code>
+     * @param ys The y coordinates of the master <code>Points</code>
+     * @param radius The maximum allowed radius of the <code>Mandala</code>
+     */
+    public void addStroke(double[] xs, double[] ys, double radius) {
+        int count = Math.min(xs.length, ys.length);
+        if (count == 0) {
+            return;
+        }
+        symmetry.setSegments(segments);
+        ensureCopies(count * symmetry.copies());
+        int n = symmetry.expand(xs, ys, 0, count, radius, copiesX, copiesY, 0);
+        addCopies(n);
+        dabCarry = 0;
+    }
+
+    /**
+     * Adds a line segment to the <code>Mandala</code>, alongside all its
+     * rotations. Only the two end points are rotated, once per copy, and each
+     * rotated segment is then rasterized directly, so the copies stay
+     * connected however far apart the end points are. The start pixel is
+     * left out, since it is the end of the previous segment of the stroke.
+     * End points beyond <code>radius</code> are clamped to it, so a segment
+     * leaving the circle is drawn as a chord.
+     *
+     * @param x0 The x coordinate of the master start point
+     * @param y0 The y coordinate of the master start point
+     * @param x1 The x coordinate of the master end point
+     * @param y1 The y coordinate of the master end point
+     * @param radius The maximum allowed radius of the <code>Mandala</code>
+     */
+    public void addSegment(double x0, double y0, double x1, double y1, double radius) {
+        if (x0 == x1 && y0 == y1) {
+            return;
+        }
+        if (strokeStamp != null) {
+            addDabs(x0, y0, x1, y1, radius);
+            return;
+        }
+        symmetry.setSegments(segments);
+        int n = symmetry.copies();
+        ensureCopies(2 * n);
+        symmetry.expand(x0, y0, radius, copiesX, copiesY, 0);
+        symmetry.expand(x1, y1, radius, copiesX, copiesY, n);
+
+        //Rotation preserves length, so every copy fits in the same space
+        int perCopy = LineRasterizer.capacity(Math.hypot(x1 - x0, y1 - y0));
+        ensurePacked(n * perCopy);
+
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (antialias) {
+                count += LineRasterizer.wu(copiesX[i], copiesY[i], copiesX[n + i], copiesY[n + i], packed, count);
+            } else {
+                count += LineRasterizer.bresenham((int) (.5 + copiesX[i]), (int) (.5 + copiesY[i]),
+                        (int) (.5 + copiesX[n + i]), (int) (.5 + copiesY[n + i]), false, packed, count);
+            }
+        }
+        markDirty(packed, count, 0);
+        points.put(packed, 0, count, drainRequest);
+        metrics.pointsGenerated.addAndGet(count);
+    }
+
+    /**
+     * Places the dabs of the stroke's brush along a segment, every
+     * <code>Brush.step()</code> pixels counting on from the last dab of the
+     * previous segment, and adds every rotation of each.
+     */
+    private void addDabs(double x0, double y0, double x1, double y1, double radius) {
+        double length = Math.hypot(x1 - x0, y1 - y0);
+        double step = strokeBrush.step();
+        int count = 0;
+        double at = step - dabCarry;
+        for (; at <= length; at += step) {
+            if (count == dabX.length) {
+                dabX = Arrays.copyOf(dabX, count * 2);
+                dabY = Arrays.copyOf(dabY, count * 2);
+            }
+            dabX[count] = x0 + (x1 - x0) * at / length;
+            dabY[count] = y0 + (y1 - y0) * at / length;
+            count++;
+        }
+        dabCarry = length - (at - step);
+        if (count == 0) {
+            return;
+        }
+        symmetry.setSegments(segments);
+        ensureCopies(count * symmetry.copies());
+        addCopies(symmetry.expand(dabX, dabY, 0, count, radius, copiesX, copiesY, 0));
+    }
+
+    private void ensureCopies(int n) {
+        if (copiesX.length < n) {
+            copiesX = new double[n];
+            copiesY = new double[n];
+        }
+        ensurePacked(n);
+    }
+
+    private void ensurePacked(int n) {
+        if (packed.length < n) {
+            packed = new long[n];
+        }
+    }
+
+    /**
+     * Packs the copies as pixels, or as the dabs of the stroke's brush.
+     */
+    private void addCopies(int n) {
+        int alpha = strokeStamp == null ? 255 : strokeBrush.flow;
+        for (int i = 0; i < n; i++) {
+            packed[i] = PointBuffer.pack((int) (.5 + copiesX[i]), (int) (.5 + copiesY[i]), alpha);
+        }
+        markDirty(packed, n, strokeStamp == null ? 0 : strokeStamp.getRadius());
+        points.put(packed, 0, n, drainRequest);
+        metrics.pointsGenerated.addAndGet(n);
+    }
+
+    private void markDirty(long[] pixels, int n, int margin) {
+        int x0 = dirtyX0, y0 = dirtyY0, x1 = dirtyX1, y1 = dirtyY1;
+        for (int i = 0; i < n; i++) {
+            int x = PointBuffer.x(pixels[i]);
+            int y = PointBuffer.y(pixels[i]);
+            x0 = Math.min(x0, x - margin);
+            x1 = Math.max(x1, x + margin);
+            y0 = Math.min(y0, y - margin);
+            y1 = Math.max(y1, y + margin);
+        }
+        dirtyX0 = x0;
+        dirtyY0 = y0;
+        dirtyX1 = x1;
+        dirtyY1 = y1;
+    }
+
+    /**
+     * Returns the bounding box of every pixel added since the last call,
+     * summed across all copies, and starts a new one. Must be called from the
+     * thread that adds points.
+     *
+     * @param r Set to the bounding box, relative to the centre of the
+     * <code>Mandala</code>
+     * @return <code>true</code> if any pixel was added, otherwise
+     * <code>false</code> and <code>r</code> is left unchanged
+     */
+    public boolean takeDirty(Rectangle r) {
+        if (dirtyX0 > dirtyX1) {
+            return false;
+        }
+        r.setBounds(dirtyX0, dirtyY0, dirtyX1 - dirtyX0 + 1, dirtyY1 - dirtyY0 + 1);
+        dirtyX0 = dirtyY0 = Integer.MAX_VALUE;
+        dirtyX1 = dirtyY1 = Integer.MIN_VALUE;
+        return true;
+    }
+
+    /**
+     * Draws the <code>Mandala</code> in two steps. First, the stored
+     * <code>Canvas</code> is drawn, after blending any layer tiles changed
+     * since the last frame into it. Second, any pending points are
+     * drawn individually in the colour of the active layer. If the <code>OffloadPolicy</code> decides there are
+     * too many pending points, they are offloaded to the
+     * <code>Canvas</code> before the frame is drawn, as are any dabs of a
+     * brush.
+     * Only the part inside the clip of <code>G</code> is drawn, as seen
+     * through <code>viewport</code>.
+     *
+     * @param G The <code>Graphics</code> instance to draw into
+     * @param d The <code>Dimension</code> of the screen
+     */
+    public void draw(Graphics G, Dimension d) {
+        //Dabs are cheaper to stamp into the layer than to paint pixel by pixel
+        boolean dabs = hasPendingDabs();
+        if (dabs) {
+            offloadPoints();
+        } else if (points.size() > policy.threshold()) {
+            offloadPoints(policy.limit());
+        }
+        layers.composite();
+
+        Rectangle clip = G.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, d.width, d.height);
+        }
+        Viewport v = viewport;
+        if (v.isActualSize()) {
+            drawActualSize(G, clip, d, (int) v.centreX, (int) v.centreY);
+        } else {
+            drawScaled(G, clip, d, v);
+        }
+
+        long start = System.nanoTime();
+        int painted = 0;
+        int alpha = -1;
+        //Merge the pending points within the clip into memory order, each
+        //row of which is painted in runs of equal coverage
+        int dx = border + width / 2;
+        int dy = border + height / 2;
+        int left = (int) Math.floor(v.toCanvasX(clip.x, d.width));
+        int top = (int) Math.floor(v.toCanvasY(clip.y, d.height));
+        int right = (int) Math.ceil(v.toCanvasX(clip.x + clip.width, d.width));
+        int bottom = (int) Math.ceil(v.toCanvasY(clip.y + clip.height, d.height));
+        Layer layer = layers.getActive();
+        paintBatch.reset(left + dx, top + dy, right - left, bottom - top);
+        //Points added since the dabs were offloaded may be dabs too, so wait for the next frame
+        if (layer.isVisible() && !dabs) {
+            paintBatch.add(points, points.start(), points.end(), dx, dy);
+        }
+        int n = paintBatch.merge();
+        long[] pixels = paintBatch.getPixels();
+        for (int i = 0; i < n;) {
+            long p = pixels[i];
+            int x = PointBuffer.x(p) - dx;
+            int y = PointBuffer.y(p) - dy;
+            int a = PointBuffer.alpha(p);
+            int run = 1;
+            while (i + run < n && pixels[i + run] == PointBuffer.pack(x + dx + run, y + dy, a)) {
+                run++;
+            }
+            i += run;
+            if (a != alpha) {
+                alpha = a;
+                G.setColor(layer.shade(alpha));
+            }
+            //Each pixel covers at least one screen pixel, however far out
+            int sx = (int) Math.floor(v.toScreenX(x, d.width));
+            int sy = (int) Math.floor(v.toScreenY(y, d.height));
+            G.fillRect(sx, sy, Math.max(1, (int) Math.floor(v.toScreenX(x + run, d.width)) - sx),
+                    Math.max(1, (int) Math.floor(v.toScreenY(y + 1, d.height)) - sy));
+            painted += run;
+        }
+        policy.paintTimed(painted, System.nanoTime() - start);
+    }
+
+    /**
+     * Copies the canvas to the screen one pixel for one pixel.
+     */
+    private void drawActualSize(Graphics G, Rectangle clip, Dimension d, int cx, int cy) {
+        //The point cx, cy of the canvas is drawn at the centre of the screen
+        int ox = border + width / 2 + cx - d.width / 2;
+        int oy = border + height / 2 + cy - d.height / 2;
+        Rectangle src = new Rectangle(clip.x + ox, clip.y + oy, clip.width, clip.height)
+                .intersection(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()));
+        if (src.isEmpty()) {
+            return;
+        }
+        if (canvas instanceof SparseCanvas) {
+            //Blank tiles are filled rather than copied
+            ((SparseCanvas) canvas).draw(G, src.x, src.y, src.width, src.height, src.x - ox, src.y - oy);
+        } else {
+            int[] pixels = viewPixels(src.width, src.height, d);
+            canvas.readRect(src.x, src.y, src.width, src.height, pixels, 0, view.getWidth());
+            G.drawImage(view, src.x - ox, src.y - oy, src.x - ox + src.width, src.y - oy + src.height,
+                    0, 0, src.width, src.height, null);
+        }
+    }
+
+    /**
+     * Samples the nearest pixel of the smallest pyramid level with at least
+     * one pixel per screen pixel for each screen pixel in the clip, so the
+     * cost follows the size of the clip rather than the canvas.
+     */
+    private void drawScaled(Graphics G, Rectangle clip, Dimension d, Viewport v) {
+        int k = pyramid.levelFor(v.zoom);
+        pyramid.update(k);
+        Canvas level = pyramid.getLevel(k);
+        double scale = 1.0 / (1 << k);
+
+        //Map the centre of each screen column to a column of the level
+        if (columns.length < clip.width) {
+            columns = new int[clip.width];
+        }
+        int x0 = -1, x1 = -1;
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for (int i = 0; i < clip.width; i++) {
+            int c = (int) Math.floor((border + width / 2 + v.toCanvasX(clip.x + i + .5, d.width)) * scale);
+            columns[i] = c;
+            if (c >= 0 && c < level.getWidth()) {
+                if (x0 < 0) {
+                    x0 = i;
+                }
+                x1 = i + 1;
+                min = Math.min(min, c);
+                max = Math.max(max, c);
+            }
+        }
+        if (x0 < 0) {
+            return;
+        }
+
+        int[] pixels = viewPixels(Math.max(clip.width, max - min + 1), clip.height + 1, d);
+        int scan = view.getWidth();
+        //The last row of the view holds the level row being sampled
+        int source = clip.height * scan;
+        int y0 = -1, y1 = -1, last = -1;
+        for (int j = 0; j < clip.height; j++) {
+            int r = (int) Math.floor((border + height / 2 + v.toCanvasY(clip.y + j + .5, d.height)) * scale);
+            if (r < 0 || r >= level.getHeight()) {
+                continue;
+            }
+            if (y0 < 0) {
+                y0 = j;
+            }
+            y1 = j + 1;
+            if (r == last) {
+                System.arraycopy(pixels, (j - 1) * scan + x0, pixels, j * scan + x0, x1 - x0);
+                continue;
+            }
+            level.readRect(min, r, max - min + 1, 1, pixels, source, scan);
+            for (int i = x0; i < x1; i++) {
+                pixels[j * scan + i] = pixels[source + columns[i] - min];
+            }
+            last = r;
+        }
+        if (y0 >= 0) {
+            G.drawImage(view, clip.x + x0, clip.y + y0, clip.x + x1, clip.y + y1, x0, y0, x1, y1, null);
+        }
+    }
+
+    /**
+     * Returns the pixels of <code>view</code>, first growing it to at least
+     * the given size.
+     */
+    private int[] viewPixels(int w, int h, Dimension d) {
+        if (view == null || view.getWidth() < w || view.getHeight() < h) {
+            view = new BufferedImage(Math.max(w, d.width), Math.max(h, d.height + 1), BufferedImage.TYPE_INT_RGB);
+        }
+        return ((DataBufferInt) view.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Moves all pending points into the <code>Canvas</code> and
+     * releases them from the <code>PointBuffer</code>
+     */
+    public void offloadPoints() {
+        offloadPoints(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Moves up to <code>n</code> of the oldest pending points into the
+     * active layer and releases them from the <code>PointBuffer</code>, then
+     * brings the composite up to date. A new <code>history</code> step is
+     * started wherever a stroke begins among them
+     *
+     * @param n The most points to offload
+     */
+    public void offloadPoints(int n) {
+        long time = System.nanoTime();
+        long start = points.start();
+        long available = points.end();
+        long end = Math.min(available, start + n);
+        int dx = border + width / 2;
+        int dy = border + height / 2;
+        int black = Color.black.getRGB();
+        long from = start;
+        while (strokes.start() < strokes.end() && strokes.get(strokes.start()) <= end) {
+            long stroke = Math.max(from, strokes.get(strokes.start()));
+            offloadRange(from, stroke, dx, dy, black);
+            beginStep();
+            openStroke = strokes.start();
+            offloadStamp = strokeStamps[(int) strokes.start() & (STROKES - 1)];
+            strokes.consume(1);
+            from = stroke;
+        }
+        offloadRange(from, end, dx, dy, black);
+        points.consume((int) (end - start));
+        layers.composite();
+        long elapsed = System.nanoTime() - time;
+        policy.offloadTimed((int) (end - start), elapsed);
+        if (end > start) {
+            metrics.pendingAtOffload.record(available - start);
+            metrics.offloadTime.record(elapsed);
+            metrics.pointsOffloaded.addAndGet(end - start);
+        }
+    }
+
+    /**
+     * Offloads a range of pending points of the same stroke, stamping each
+     * as a dab if the stroke has a brush.
+     */
+    private void offloadRange(long from, long to, int dx, int dy, int rgb) {
+        Stamp s = offloadStamp;
+        if (s == null) {
+            plotDistinct(from, to, dx, dy, rgb);
+            return;
+        }
+        Canvas ink = layers.getActive().getCanvas();
+        for (long i = from; i < to; i++) {
+            long p = points.get(i);
+            ink.stamp(s, PointBuffer.x(p) + dx, PointBuffer.y(p) + dy, rgb, PointBuffer.alpha(p));
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if any pending point is the dab of a brush.
+     * Must be called from the drawing thread.
+     */
+    private boolean hasPendingDabs() {
+        long start = points.start();
+        long end = points.end();
+        if (start == end) {
+            return false;
+        }
+        long first = strokes.start();
+        if (offloadStamp != null && (first == strokes.end() || strokes.get(first) > start)) {
+            return true;
+        }
+        for (long i = first; i < strokes.end() && strokes.get(i) < end; i++) {
+            if (strokeStamps[(int) i & (STROKES - 1)] != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Plots a range of pending points in memory order, with each fully
+     * covered pixel written once.
+     */
+    private void plotDistinct(long from, long to, int dx, int dy, int rgb) {
+        if (from == to) {
+            return;
+        }
+        Canvas ink = layers.getActive().getCanvas();
+        offloadBatch.reset(0, 0, ink.getWidth(), ink.getHeight());
+        offloadBatch.add(points, from, to, dx, dy);
+        int n = offloadBatch.merge();
+        ink.plot(offloadBatch.getPixels(), 0, n, 0, 0, rgb);
+    }
+
+    /**
+     * Discards up to <code>n</code> of the oldest pending points without
+     * offloading them
+     *
+     * @param n The number of points to discard
+     */
+    public void reducePoints(int n) {
+        points.consume(n);
+    }
+
+    /**
+     * Saves the <code>Mandala</code> to a bitmap of the given name
+     *
+     * @param name The name to save under
+     * @throws IOException
+     */
+    public void save(String name) throws IOException {
+        save(new File(name + ".bmp"), Exporter.Format.BMP, 0);
+    }
+
+    /**
+     * Saves the <code>Mandala</code> to a file, streaming it row by row so a
+     * memory-mapped canvas is never loaded onto the heap. Must be called on
+     * the thread that offloads points.
+     *
+     * @param f The file to write
+     * @param format The format to write
+     * @param level The PNG compression level from 0 to 9, ignored for BMP
+     * @throws IOException If the file can't be written
+     */
+    public void save(File f, Exporter.Format format, int level) throws IOException {
+        long start = System.nanoTime();
+        offloadPoints();
+
+        Snapshot s = Snapshot.take(canvas, new Rectangle(border, border, width, height));
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(f), 1 << 16)) {
+            if (format == Exporter.Format.PNG) {
+                Exporter.writePng(s, out, level, null);
+            } else {
+                Exporter.writeBmp(s, out, null);
+            }
+        } finally {
+            s.close(Runnable::run);
+        }
+        metrics.saveTime.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Takes a snapshot of the <code>Mandala</code> as it is now and encodes it
+     * in the background, so drawing can carry on while the file is written.
+     * Must be called on the thread that offloads points.
+     *
+     * @param f The file to write
+     * @param format The format to write
+     * @param level The PNG compression level from 0 to 9, ignored for BMP
+     * @param listener Told about progress, may be <code>null</code>
+     * @param exporter Encodes the snapshot
+     * @param writer Runs tasks on the thread that offloads points
+     * @return A <code>Future</code> completing when the file is written
+     * @throws RejectedExecutionException If the exporter has been shut down,
+     * in which case the snapshot is closed again
+     */
+    public Future<?> export(File f, Exporter.Format format, int level, Exporter.Listener listener,
+            Exporter exporter, Executor writer) {
+        offloadPoints();
+        Snapshot s = Snapshot.take(canvas, new Rectangle(border, border, width, height));
+        try {
+            return exporter.export(s, f, format, level, new Exporter.Listener() {
+                @Override
+                public void progress(File f, double fraction) {
+                    if (listener != null) {
+                        listener.progress(f, fraction);
+                    }
+                }
+
+                @Override
+                public void finished(File f, long nanos) {
+                    metrics.saveTime.record(nanos);
+                    if (listener != null) {
+                        listener.finished(f, nanos);
+                    }
+                }
+
+                @Override
+                public void failed(File f, Exception e) {
+                    if (listener != null) {
+                        listener.failed(f, e);
+                    }
+                }
+            }, writer);
+        } catch (RuntimeException e) {
+            s.close(Runnable::run);
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,526 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.event.KeyEvent;
+import java.awt.event.KeyListener;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import javax.management.JMException;
+import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * The main entry point for the MandalaRotate application.
+ * @author chasehanson
+ */
+public class MandalaRotate {
+
+    /**
+     * The compression level of saved PNGs, trading file size for speed
+     */
+    private static final int PNG_LEVEL = 6;
+
+    /**
+     * How many times larger than the canvas the strokes are rendered again
+     */
+    private static final int RERENDER_SCALE = 4;
+
+    /**
+     * The side length of the regions the strokes are rendered again in
+     */
+    private static final int RERENDER_TILE = 512;
+
+    /**
+     * The colours given to new layers in turn, starting with the second
+     */
+    private static final int[] LAYER_COLOURS = {0xD62828, 0x1D6FB8, 0x2A9D3F, 0xE08A00, 0x7B2CBF, 0x00897B};
+
+    /**
+     * The hardness of a brush until it is changed
+     */
+    private static final double BRUSH_HARDNESS = .5;
+
+    /**
+     * Claims the first unused file name of the form <code>Mandala-N</code> by
+     * creating it, so saves still in progress are never overwritten
+     *
+     * @param extension The extension of the file
+     * @return The file to write
+     * @throws IOException If no file can be created
+     */
+    private static File nextFile(String extension) throws IOException {
+        for (int i = 1;; i++) {
+            File f = new File("Mandala-" + i + "." + extension);
+            if (f.createNewFile()) {
+                return f;
+            }
+        }
+    }
+
+    /**
+     * Recovers whatever was autosaved in a directory into the
+     * <code>Mandala</code>, then starts autosaving it there. Must be called
+     * before the <code>Mandala</code> is painted.
+     *
+     * @param dir The directory to autosave in
+     * @param m The <code>Mandala</code> to autosave
+     * @param radius The maximum allowed radius of the <code>Mandala</code>
+     * @return The autosave, or <code>null</code> if the directory can't be
+     * used, in which case it is left as it is
+     */
+    private static Autosave startAutosave(File dir, Mandala m, double radius) {
+        try {
+            Autosave autosave = new Autosave(dir, m, SwingUtilities::invokeLater);
+            autosave.recover(radius);
+            autosave.start();
+            return autosave;
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("Could not autosave in " + dir + ": " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * @param args the command line arguments, optionally
+     * <code>record=trace.bin</code> to record the session for
+     * <code>TraceReplay</code> and <code>history=MB</code> to limit the memory
+     * kept for undo, <code>mapped</code> or <code>mapped=file</code> to keep
+     * the canvas in a memory-mapped file, <code>autosave=dir</code> to
+     * autosave somewhere other than <code>autosave</code>, or
+     * <code>autosave=off</code> not to, and
+     * <code>brush=radius[,hardness[,flow]]</code> to draw with a brush rather
+     * than one pixel lines
+     */
+    public static void main(String[] args) {
+        Frame frame = new Frame();
+        JFrame screen = new JFrame("");
+
+        //X and Y dimensions of Mandala and Screen
+        int xSize = 800;
+        int ySize = 800;
+
+        frame.setSize(xSize, ySize);
+        screen.setSize(xSize, ySize + 23);
+
+        screen.add(frame);
+        screen.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        screen.setResizable(false);
+        screen.setVisible(true);
+        frame.setVisible(true);
+        
+        //There are double this number of points, value MUST be even
+        int segments = 8;
+        
+        //The canvas may be larger than the screen, and is then zoomed out to fit
+        int canvasX = xSize;
+        int canvasY = ySize;
+        boolean mapped = false;
+        File mapFile = null;
+        File autosaveDir = new File("autosave");
+        for (String arg : args) {
+            if (arg.startsWith("canvas=")) {
+                String[] size = arg.substring(7).split("x");
+                canvasX = Integer.parseInt(size[0]);
+                canvasY = Integer.parseInt(size[size.length - 1]);
+            } else if (arg.equals("mapped")) {
+                mapped = true;
+            } else if (arg.startsWith("mapped=")) {
+                mapped = true;
+                mapFile = new File(arg.substring(7));
+            } else if (arg.startsWith("autosave=")) {
+                autosaveDir = arg.equals("autosave=off") ? null : new File(arg.substring(9));
+            }
+        }
+
+        Mandala m = new Mandala(segments, canvasX, canvasY, mapped, mapFile);
+        m.drainRequest = frame::repaint;
+        Pen pen = new Pen(m, Math.min(canvasX, canvasY) / 2);
+        //Recovery draws into the Mandala, so it is only painted afterwards
+        Autosave autosave = autosaveDir == null ? null : startAutosave(autosaveDir, m, Math.min(canvasX, canvasY) / 2);
+        frame.add(m);
+        if (autosave != null) {
+            pen.autosave = autosave;
+            new Timer(Autosave.CHECKPOINT_INTERVAL, e -> autosave.checkpointIfChanged()).start();
+            Runtime.getRuntime().addShutdownHook(new Thread(autosave::close));
+        }
+        ViewNavigator navigator = new ViewNavigator(frame);
+        if (canvasX > xSize || canvasY > ySize) {
+            navigator.fit();
+        }
+
+        try {
+            m.metrics.register();
+        } catch (JMException ex) {
+            System.err.println("Could not publish metrics over JMX: " + ex);
+        }
+
+        for (String arg : args) {
+            if (arg.startsWith("history=")) {
+                m.historyBudget = Long.parseLong(arg.substring(8)) << 20;
+                m.history.setBudget(m.historyBudget);
+            }
+            if (arg.startsWith("brush=")) {
+                String[] b = arg.substring(6).split(",");
+                m.brush = new Brush(Double.parseDouble(b[0]),
+                        b.length > 1 ? Double.parseDouble(b[1]) : BRUSH_HARDNESS,
+                        b.length > 2 ? Integer.parseInt(b[2]) : 255);
+            }
+            if (arg.startsWith("smooth=")) {
+                double tolerance = Double.parseDouble(arg.substring(7));
+                pen.smoother = tolerance > 0 ? new StrokeSmoother(tolerance) : null;
+            }
+            if (arg.startsWith("record=")) {
+                try {
+                    TraceRecorder recorder = new TraceRecorder(new File(arg.substring(7)), segments, canvasX, canvasY);
+                    pen.recorder = recorder;
+                    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                        try {
+                            recorder.close();
+                        } catch (IOException ex) {
+                            System.err.println("Could not finish trace: " + ex);
+                        }
+                    }));
+                } catch (IOException ex) {
+                    System.err.println("Could not record trace: " + ex);
+                }
+            }
+        }
+        if (pen.recorder != null) {
+            //Start the trace with the settings the session starts with
+            pen.recorder.antialias(m.antialias);
+            pen.recorder.brush(m.brush);
+            pen.recorder.layers(m.layers);
+        }
+        
+        Exporter exporter = new Exporter();
+        Exporter.Listener progress = new Exporter.Listener() {
+            private int reported;
+
+            @Override
+            public void progress(File f, double fraction) {
+                int percent = (int) (fraction * 100);
+                if (percent >= reported + 25 || percent == 100) {
+                    reported = percent == 100 ? 0 : percent;
+                    System.out.println(f + ": " + percent + "%");
+                }
+            }
+
+            @Override
+            public void finished(File f, long nanos) {
+                System.out.printf("Saved %s in %.1f ms%n", f, nanos / 1e6);
+            }
+
+            @Override
+            public void failed(File f, Exception e) {
+                System.err.println("Could not save " + f + ": " + e);
+            }
+        };
+
+        //Pressing s saves the Mandala as a PNG and b as a BMP in the background, pressing v saves
+        //the strokes as an SVG and w as a stroke file for BatchRender, pressing e renders the
+        //strokes again at four times the size as a PNG, pressing c clears it,
+        //pressing z undoes the last stroke and y redoes it, pressing a toggles anti-aliasing,
+        //pressing p prints the offload policy, pressing m toggles the metrics overlay,
+        //pressing + and - zoom, 0 shows the actual size and f fits the drawing to the window,
+        //pressing n adds a layer, l draws on the next layer, h hides or shows it, o steps its
+        //opacity, r raises it, and < and > change its number of segments, pressing ] doubles the
+        //brush radius and [ halves it down to one pixel lines, } and { make it harder or softer,
+        //and pressing g fills the region under the pointer on the active layer
+        screen.addKeyListener(new KeyListener() {
+            @Override
+            public void keyTyped(KeyEvent e) {
+                return;
+            }
+
+            @Override
+            public void keyPressed(KeyEvent e) {
+                switch (e.getKeyChar()) {
+                    case 's': //Save as PNG
+                        export(Exporter.Format.PNG);
+                        break;
+                    case 'b': //Save as BMP
+                        export(Exporter.Format.BMP);
+                        break;
+                    case 'v': //Save the strokes as an SVG
+                        try {
+                            File f = nextFile("svg");
+                            try (Writer out = new BufferedWriter(new FileWriter(f))) {
+                                m.scene.writeSvg(out, m.width, m.height, 1, m.layers);
+                            }
+                            System.out.println("Saved " + f);
+                        } catch (IOException ex) {
+                            System.err.println("Could not save: " + ex);
+                        }
+                        break;
+                    case 'w': //Save the strokes for BatchRender
+                        try {
+                            File f = nextFile("txt");
+                            try (Writer out = new BufferedWriter(new FileWriter(f))) {
+                                m.scene.writeStrokes(out, m.layers);
+                            }
+                            System.out.println("Saved " + f);
+                        } catch (IOException ex) {
+                            System.err.println("Could not save: " + ex);
+                        }
+                        break;
+                    case 'e': //Render the strokes again, larger
+                        rerender();
+                        break;
+                    case 'c': //Clear
+                        if (pen.recorder != null) {
+                            pen.recorder.clear();
+                        }
+                        m.clear();
+                        if (autosave != null) {
+                            autosave.clear();
+                        }
+                        frame.repaint();
+                        break;
+                    case 'z': //Undo the last stroke
+                    case 26: //Ctrl-Z
+                        if (m.undo()) {
+                            if (pen.recorder != null) {
+                                pen.recorder.undo();
+                            }
+                            if (autosave != null) {
+                                autosave.undo();
+                            }
+                            frame.repaint();
+                        }
+                        break;
+                    case 'y': //Redo the last undone stroke
+                    case 25: //Ctrl-Y
+                        if (m.redo()) {
+                            if (pen.recorder != null) {
+                                pen.recorder.redo();
+                            }
+                            if (autosave != null) {
+                                autosave.redo();
+                            }
+                            frame.repaint();
+                        }
+                        break;
+                    case 'a': //Toggle anti-aliasing
+                        m.antialias = !m.antialias;
+                        if (pen.recorder != null) {
+                            pen.recorder.antialias(m.antialias);
+                        }
+                        break;
+                    case 'p': //Print the offload policy
+                        System.out.println(m.policy);
+                        break;
+                    case 'm': //Toggle the metrics overlay
+                        frame.setShowMetrics(!frame.isShowingMetrics());
+                        break;
+                    case '+': //Zoom in
+                    case '=':
+                        navigator.zoom(ViewNavigator.ZOOM_STEP);
+                        break;
+                    case '-': //Zoom out
+                        navigator.zoom(1 / ViewNavigator.ZOOM_STEP);
+                        break;
+                    case '0': //Show the actual size
+                        navigator.actualSize();
+                        break;
+                    case 'f': //Fit the drawing to the window
+                        navigator.fit();
+                        break;
+                    case 'n': //Add a layer and draw on it
+                        int count = m.layers.size();
+                        m.addLayer("Layer " + (count + 1), LAYER_COLOURS[(count - 1) % LAYER_COLOURS.length]);
+                        m.setLayer(count);
+                        layersChanged();
+                        break;
+                    case 'l': //Draw on the next layer
+                        m.setLayer((m.layers.getActiveIndex() + 1) % m.layers.size());
+                        layersChanged();
+                        break;
+                    case 'h': //Hide or show the active layer
+                        m.layers.getActive().setVisible(!m.layers.getActive().isVisible());
+                        frame.repaint();
+                        layersChanged();
+                        break;
+                    case 'o': //Step the opacity of the active layer down, wrapping to opaque
+                        Layer active = m.layers.getActive();
+                        active.setOpacity(active.getOpacity() <= 64 ? 255 : active.getOpacity() - 64);
+                        frame.repaint();
+                        layersChanged();
+                        break;
+                    case 'r': //Raise the active layer, wrapping to the bottom
+                        int from = m.layers.getActiveIndex();
+                        m.layers.move(from, (from + 1) % m.layers.size());
+                        frame.repaint();
+                        layersChanged();
+                        break;
+                    case '<': //Fewer segments on the active layer
+                    case ',':
+                        m.setSegments(Math.max(2, m.segments - 2));
+                        layersChanged();
+                        break;
+                    case '>': //More segments on the active layer
+                    case '.':
+                        m.setSegments(m.segments + 2);
+                        layersChanged();
+                        break;
+                    case ']': //A wider brush
+                        m.brush = m.brush == null ? new Brush(1, BRUSH_HARDNESS, 255) : m.brush.withRadius(m.brush.radius * 2);
+                        brushChanged();
+                        break;
+                    case '[': //A narrower brush, down to one pixel lines
+                        m.brush = m.brush == null || m.brush.radius <= 1 ? null : m.brush.withRadius(m.brush.radius / 2);
+                        brushChanged();
+                        break;
+                    case '}': //A harder brush
+                        if (m.brush != null) {
+                            m.brush = m.brush.withHardness(m.brush.hardness + .25);
+                        }
+                        brushChanged();
+                        break;
+                    case '{': //A softer brush
+                        if (m.brush != null) {
+                            m.brush = m.brush.withHardness(m.brush.hardness - .25);
+                        }
+                        brushChanged();
+                        break;
+                    case 'g': //Fill the region under the pointer
+                        java.awt.Point p = frame.getMousePosition();
+                        if (p != null) {
+                            Viewport v = m.viewport;
+                            double x = v.toCanvasX(p.x, frame.getWidth());
+                            double y = v.toCanvasY(p.y, frame.getHeight());
+                            long time = System.nanoTime();
+                            int filled = m.fill(x, y, pen.getRadius(), FloodFill.DEFAULT_TOLERANCE);
+                            System.out.printf("Filled %d pixels in %.1f ms%s%n", filled, (System.nanoTime() - time) / 1e6,
+                                    m.wasFillSymmetric() ? " from one wedge" : "");
+                            //A fill that changed nothing, as outside the disc, is no step to replay
+                            if (filled > 0 && pen.recorder != null) {
+                                pen.recorder.fill(x, y, FloodFill.DEFAULT_TOLERANCE);
+                            }
+                            if (filled > 0 && autosave != null) {
+                                autosave.fill(x, y, FloodFill.DEFAULT_TOLERANCE);
+                            }
+                            frame.repaint();
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                
+                
+            }
+
+            @Override
+            public void keyReleased(KeyEvent e) {
+                return;
+            }
+
+            private void layersChanged() {
+                if (pen.recorder != null) {
+                    pen.recorder.layers(m.layers);
+                }
+                if (autosave != null) {
+                    autosave.layers();
+                }
+                for (int i = m.layers.size() - 1; i >= 0; i--) {
+                    System.out.println((i == m.layers.getActiveIndex() ? "* " : "  ") + m.layers.get(i));
+                }
+            }
+
+            private void brushChanged() {
+                if (pen.recorder != null) {
+                    pen.recorder.brush(m.brush);
+                }
+                System.out.println(m.brush == null ? "Brush: one pixel lines" : m.brush);
+            }
+
+            /**
+             * Renders the strokes of the scene again at a larger size on a
+             * thread of their own, then saves the result as a PNG.
+             */
+            private void rerender() {
+                File f;
+                try {
+                    f = nextFile("png");
+                } catch (IOException ex) {
+                    System.err.println("Could not save: " + ex);
+                    return;
+                }
+                int w = m.width * RERENDER_SCALE;
+                int h = m.height * RERENDER_SCALE;
+                boolean antialias = m.antialias;
+                List<Layer> layers = m.layers.list();
+                Thread t = new Thread(() -> {
+                    try {
+                        long time = System.nanoTime();
+                        Canvas c = new RasterCanvas(w, h);
+                        c.fill(Color.white.getRGB());
+                        m.scene.render(c, w / 2, h / 2, RERENDER_SCALE, layers, antialias,
+                                ForkJoinPool.commonPool(), RERENDER_TILE);
+                        System.out.printf("Rendered %d strokes at %dx%d in %.1f ms%n", m.scene.size(), w, h,
+                                (System.nanoTime() - time) / 1e6);
+                        exporter.export(Snapshot.take(c, new Rectangle(0, 0, w, h)), f, Exporter.Format.PNG,
+                                PNG_LEVEL, progress, Runnable::run);
+                    } catch (RuntimeException | OutOfMemoryError ex) {
+                        f.delete();
+                        System.err.println("Could not render: " + ex);
+                    }
+                }, "Mandala re-render");
+                t.setDaemon(true);
+                t.start();
+            }
+
+            private void export(Exporter.Format format) {
+                File f;
+                try {
+                    f = nextFile(format.extension);
+                } catch (IOException ex) {
+                    System.err.println("Could not save: " + ex);
+                    return;
+                }
+                try {
+                    m.export(f, format, PNG_LEVEL, progress, exporter, SwingUtilities::invokeLater);
+                    System.out.println("Saving " + f);
+                } catch (RuntimeException ex) {
+                    //Don't leave the empty file claimed for it behind
+                    f.delete();
+                    System.err.println("Could not save: " + ex);
+                }
+            }
+            
+        });
+        
+        //Mouse events are queued on the EDT and turned into strokes on this thread
+        new InputScheduler(frame, pen).run();
+    }
+
+}
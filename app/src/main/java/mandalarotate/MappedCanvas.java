@@ -0,0 +1,315 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A <code>Canvas</code> whose pixels live in a memory-mapped file rather than
+ * on the heap, for canvases far larger than the heap could hold. The file is
+ * laid out tile by tile, each tile a contiguous run of
+ * <code>TILE_SIZE * TILE_SIZE</code> pixels, so a stroke touches only a few
+ * pages and the operating system keeps just the working set resident. The
+ * heap holds nothing that grows with the pixel count beyond one byte per
+ * tile.
+ * <p>
+ * A mapping can cover at most 2 GB, so the file is mapped in chunks of
+ * <code>CHUNK_TILES</code> tiles. Writes to different tiles may be made from
+ * different threads, as long as the tiles are not guarded.
+ *
+ * @author chasehanson
+ */
+public class MappedCanvas extends Canvas implements Closeable {
+
+    /**
+     * The number of tiles in each mapping, 1 GB of pixels.
+     */
+    public static final int CHUNK_TILES = 1 << 14;
+
+    private static final int TILE_PIXELS = TILE_SIZE * TILE_SIZE;
+
+    private static final int TILE_MASK = TILE_SIZE - 1;
+
+    private final RandomAccessFile file;
+
+    private final MappedByteBuffer[] mappings;
+
+    private final IntBuffer[] chunks;
+
+    /**
+     * Maps a file as the pixels of a new <code>MappedCanvas</code>, growing
+     * it to the needed size. A new file starts out black; an existing one
+     * keeps its pixels.
+     *
+     * @param width The width of the <code>Canvas</code> in pixels
+     * @param height The height of the <code>Canvas</code> in pixels
+     * @param f The file to keep the pixels in, or <code>null</code> for a
+     * temporary file that is deleted at once and vanishes once unmapped
+     * @throws IOException If the file can't be created or mapped
+     */
+    public MappedCanvas(int width, int height, File f) throws IOException {
+        super(width, height);
+        boolean temporary = f == null;
+        if (temporary) {
+            f = File.createTempFile("mandala", ".canvas");
+        }
+        file = new RandomAccessFile(f, "rw");
+        try {
+            int tiles = tilesX * tilesY;
+            long bytes = (long) tiles * TILE_PIXELS * Integer.BYTES;
+            if (file.length() < bytes) {
+                file.setLength(bytes);
+            }
+            FileChannel channel = file.getChannel();
+            int count = (tiles + CHUNK_TILES - 1) / CHUNK_TILES;
+            mappings = new MappedByteBuffer[count];
+            chunks = new IntBuffer[count];
+            for (int c = 0; c < count; c++) {
+                long start = (long) c * CHUNK_TILES * TILE_PIXELS * Integer.BYTES;
+                long size = Math.min(bytes - start, (long) CHUNK_TILES * TILE_PIXELS * Integer.BYTES);
+                mappings[c] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+                mappings[c].order(ByteOrder.nativeOrder());
+                chunks[c] = mappings[c].asIntBuffer();
+            }
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        } finally {
+            if (temporary && !f.delete()) {
+                f.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Writes every changed page back to the file.
+     */
+    public void force() {
+        for (MappedByteBuffer m : mappings) {
+            m.force();
+        }
+    }
+
+    /**
+     * Closes the file. The mappings stay valid until they are garbage
+     * collected, so the pixels may still be read, but nothing more should be
+     * drawn.
+     *
+     * @throws IOException If the file can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private IntBuffer chunk(int tile) {
+        return chunks[tile / CHUNK_TILES];
+    }
+
+    private static int base(int tile) {
+        return (tile % CHUNK_TILES) * TILE_PIXELS;
+    }
+
+    @Override
+    public void readTile(int tile, int[] out) {
+        chunk(tile).get(base(tile), out, 0, TILE_PIXELS);
+    }
+
+    @Override
+    public void writeTile(int tile, int[] in) {
+        touch(tile);
+        chunk(tile).put(base(tile), in, 0, TILE_PIXELS);
+    }
+
+    @Override
+    public void readRect(int x, int y, int w, int h, int[] out, int offset, int scan) {
+        for (int j = 0; j < h; j++) {
+            int row = y + j;
+            int dst = offset + j * scan;
+            for (int i = x; i < x + w;) {
+                int t = tileAt(i, row);
+                int n = Math.min(TILE_SIZE - (i & TILE_MASK), x + w - i);
+                chunk(t).get(base(t) + ((row & TILE_MASK) << TILE_SHIFT) + (i & TILE_MASK), out, dst, n);
+                dst += n;
+                i += n;
+            }
+        }
+    }
+
+    @Override
+    public void writeRect(int x, int y, int w, int h, int[] in, int offset, int scan) {
+        touch(x >> TILE_SHIFT, y >> TILE_SHIFT, (x + w - 1) >> TILE_SHIFT, (y + h - 1) >> TILE_SHIFT);
+        for (int j = 0; j < h; j++) {
+            int row = y + j;
+            int src = offset + j * scan;
+            for (int i = x; i < x + w;) {
+                int t = tileAt(i, row);
+                int n = Math.min(TILE_SIZE - (i & TILE_MASK), x + w - i);
+                chunk(t).put(base(t) + ((row & TILE_MASK) << TILE_SHIFT) + (i & TILE_MASK), in, src, n);
+                src += n;
+                i += n;
+            }
+        }
+    }
+
+    @Override
+    public int get(int x, int y) {
+        if (!contains(x, y)) {
+            return 0;
+        }
+        int t = tileAt(x, y);
+        return chunk(t).get(base(t) + ((y & TILE_MASK) << TILE_SHIFT) + (x & TILE_MASK));
+    }
+
+    @Override
+    public void fill(int rgb) {
+        touch(0, 0, tilesX - 1, tilesY - 1);
+        int[] tile = new int[TILE_PIXELS];
+        Arrays.fill(tile, rgb);
+        for (int t = 0; t < tilesX * tilesY; t++) {
+            chunk(t).put(base(t), tile, 0, TILE_PIXELS);
+        }
+    }
+
+    @Override
+    public void fillRect(int x, int y, int w, int h, int rgb) {
+        int x0 = Math.max(x, 0);
+        int y0 = Math.max(y, 0);
+        int x1 = (int) Math.min((long) x + w, width);
+        int y1 = (int) Math.min((long) y + h, height);
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        touch(x0 >> TILE_SHIFT, y0 >> TILE_SHIFT, (x1 - 1) >> TILE_SHIFT, (y1 - 1) >> TILE_SHIFT);
+        int[] span = new int[TILE_SIZE];
+        Arrays.fill(span, rgb);
+        for (int j = y0; j < y1; j++) {
+            for (int i = x0; i < x1;) {
+                int t = tileAt(i, j);
+                int n = Math.min(TILE_SIZE - (i & TILE_MASK), x1 - i);
+                chunk(t).put(base(t) + ((j & TILE_MASK) << TILE_SHIFT) + (i & TILE_MASK), span, 0, n);
+                i += n;
+            }
+        }
+    }
+
+    @Override
+    public void plot(int x, int y, int rgb) {
+        if ((x | y) >= 0 && x < width && y < height) {
+            int t = tileAt(x, y);
+            touch(t);
+            chunk(t).put(base(t) + ((y & TILE_MASK) << TILE_SHIFT) + (x & TILE_MASK), rgb);
+        }
+    }
+
+    @Override
+    public void plot(int x, int y, int rgb, int alpha) {
+        if ((x | y) >= 0 && x < width && y < height) {
+            int t = tileAt(x, y);
+            touch(t);
+            set(t, x, y, rgb, alpha);
+        }
+    }
+
+    private void set(int t, int x, int y, int rgb, int alpha) {
+        IntBuffer b = chunk(t);
+        int i = base(t) + ((y & TILE_MASK) << TILE_SHIFT) + (x & TILE_MASK);
+        b.put(i, alpha == 255 ? rgb : blend(b.get(i), rgb, alpha));
+    }
+
+    @Override
+    public void plot(long[] pixels, int from, int to, int dx, int dy, int rgb) {
+        for (int i = from; i < to; i++) {
+            long p = pixels[i];
+            int x = PointBuffer.x(p) + dx;
+            int y = PointBuffer.y(p) + dy;
+            if ((x | y) >= 0 && x < width && y < height) {
+                int t = tileAt(x, y);
+                if (armed[t] != 0) {
+                    touch(t);
+                }
+                set(t, x, y, rgb, PointBuffer.alpha(p));
+            }
+        }
+    }
+
+    @Override
+    public void stamp(Stamp s, int cx, int cy, int rgb, int flow) {
+        int r = s.radius;
+        int x0 = Math.max(cx - r, 0);
+        int y0 = Math.max(cy - r, 0);
+        int x1 = Math.min(cx + r + 1, width);
+        int y1 = Math.min(cy + r + 1, height);
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        touch(x0 >> TILE_SHIFT, y0 >> TILE_SHIFT, (x1 - 1) >> TILE_SHIFT, (y1 - 1) >> TILE_SHIFT);
+        int scale = flow + (flow >>> 7);
+        byte[] mask = s.mask;
+        for (int y = y0; y < y1; y++) {
+            int row = y - cy + r;
+            int from = Math.max(s.spanStart[row], x0 - cx + r);
+            int to = Math.min(s.spanEnd[row], x1 - cx + r);
+            int m = row * s.size;
+            //Blend each run of the row that lies within one tile
+            for (int i = from; i < to;) {
+                int x = cx - r + i;
+                int t = tileAt(x, y);
+                IntBuffer b = chunk(t);
+                int base = base(t) + ((y & TILE_MASK) << TILE_SHIFT) + (x & TILE_MASK) - i;
+                int n = Math.min(TILE_SIZE - (x & TILE_MASK), to - i);
+                for (int end = i + n; i < end; i++) {
+                    int a = (mask[m + i] & 0xFF) * scale >>> 8;
+                    if (a != 0) {
+                        b.put(base + i, blend(b.get(base + i), rgb, a));
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void plot(PointBuffer pixels, long start, long end, int dx, int dy, int rgb) {
+        for (long i = start; i < end; i++) {
+            long p = pixels.get(i);
+            int x = PointBuffer.x(p) + dx;
+            int y = PointBuffer.y(p) + dy;
+            if ((x | y) >= 0 && x < width && y < height) {
+                int t = tileAt(x, y);
+                if (armed[t] != 0) {
+                    touch(t);
+                }
+                set(t, x, y, rgb, PointBuffer.alpha(p));
+            }
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for the hot paths of a
+ * <code>Mandala</code>. Every recording method is a few atomic operations and
+ * never allocates, so the metrics can stay on in production. They can be
+ * published over JMX with <code>register</code>, and are drawn by
+ * <code>Frame</code> as an overlay.
+ * <p>
+ * Input to paint latency is measured in two stages: the time of the oldest
+ * unprocessed input sample is kept until the input thread has added its
+ * points, and then until the next paint has completed.
+ *
+ * @author chasehanson
+ */
+public class Metrics implements MetricsMBean {
+
+    private final Mandala m;
+
+    /**
+     * Counters.
+     */
+    public final AtomicLong pointsGenerated = new AtomicLong(),
+            pointsOffloaded = new AtomicLong(),
+            samplesDropped = new AtomicLong();
+
+    /**
+     * The time taken to paint each frame, in nanoseconds.
+     */
+    public final Histogram frameTime = new Histogram();
+
+    /**
+     * The time from an input sample to the paint showing it, in nanoseconds.
+     */
+    public final Histogram inputLatency = new Histogram();
+
+    /**
+     * The time taken by each offload, in nanoseconds.
+     */
+    public final Histogram offloadTime = new Histogram();
+
+    /**
+     * The number of pixels pending at each offload.
+     */
+    public final Histogram pendingAtOffload = new Histogram();
+
+    /**
+     * The time taken by each save, in nanoseconds.
+     */
+    public final Histogram saveTime = new Histogram();
+
+    /**
+     * The capture time of the oldest input sample not yet added to the
+     * <code>Mandala</code>, or 0.
+     */
+    private final AtomicLong captured = new AtomicLong();
+
+    /**
+     * The capture time of the oldest input sample added but not yet painted,
+     * or 0.
+     */
+    private final AtomicLong awaitingPaint = new AtomicLong();
+
+    /**
+     * Constructs new <code>Metrics</code> for the given <code>Mandala</code>.
+     *
+     * @param m The <code>Mandala</code> whose pending points are reported
+     */
+    public Metrics(Mandala m) {
+        this.m = m;
+    }
+
+    /**
+     * Publishes these metrics to the platform MBean server as
+     * <code>mandalarotate:type=Metrics</code>, replacing any earlier ones.
+     *
+     * @throws JMException If the metrics can't be registered
+     */
+    public void register() throws JMException {
+        ObjectName name = new ObjectName("mandalarotate:type=Metrics");
+        if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    }
+
+    /**
+     * Records that an input sample was captured, unless an older one is still
+     * waiting.
+     *
+     * @param nanos The time of capture from <code>System.nanoTime</code>
+     */
+    public void inputCaptured(long nanos) {
+        captured.compareAndSet(0, nanos == 0 ? 1 : nanos);
+    }
+
+    /**
+     * Records that every captured input sample has been added to the
+     * <code>Mandala</code>.
+     */
+    public void inputProcessed() {
+        long t = captured.getAndSet(0);
+        if (t != 0) {
+            awaitingPaint.compareAndSet(0, t);
+        }
+    }
+
+    /**
+     * Records that a frame has been painted.
+     *
+     * @param start The time the paint started from
+     * <code>System.nanoTime</code>
+     * @param end The time the paint completed
+     */
+    public void painted(long start, long end) {
+        frameTime.record(end - start);
+        long t = awaitingPaint.getAndSet(0);
+        if (t != 0) {
+            inputLatency.record(end - t);
+        }
+    }
+
+    @Override
+    public long getPointsGenerated() {
+        return pointsGenerated.get();
+    }
+
+    @Override
+    public long getPointsOffloaded() {
+        return pointsOffloaded.get();
+    }
+
+    @Override
+    public long getSamplesDropped() {
+        return samplesDropped.get();
+    }
+
+    @Override
+    public int getPending() {
+        return m.points.size();
+    }
+
+    @Override
+    public long getPendingAtOffloadP99() {
+        return pendingAtOffload.percentile(.99);
+    }
+
+    @Override
+    public long getFrames() {
+        return frameTime.count();
+    }
+
+    @Override
+    public long getFrameTimeP50() {
+        return frameTime.percentile(.5) / 1000;
+    }
+
+    @Override
+    public long getFrameTimeP99() {
+        return frameTime.percentile(.99) / 1000;
+    }
+
+    @Override
+    public long getFrameTimeMax() {
+        return frameTime.max() / 1000;
+    }
+
+    @Override
+    public long getInputLatencyP50() {
+        return inputLatency.percentile(.5) / 1000;
+    }
+
+    @Override
+    public long getInputLatencyP99() {
+        return inputLatency.percentile(.99) / 1000;
+    }
+
+    @Override
+    public long getOffloadTimeP99() {
+        return offloadTime.percentile(.99) / 1000;
+    }
+
+    @Override
+    public long getOffloadTimeMax() {
+        return offloadTime.max() / 1000;
+    }
+
+    @Override
+    public long getSaveTimeMax() {
+        return saveTime.max() / 1000;
+    }
+
+    @Override
+    public int getOffloadThreshold() {
+        return m.policy.threshold();
+    }
+
+    @Override
+    public int getOffloadLimit() {
+        return m.policy.limit();
+    }
+
+    @Override
+    public void reset() {
+        pointsGenerated.set(0);
+        pointsOffloaded.set(0);
+        samplesDropped.set(0);
+        frameTime.reset();
+        inputLatency.reset();
+        offloadTime.reset();
+        pendingAtOffload.reset();
+        saveTime.reset();
+    }
+}
@@ -0,0 +1,123 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+/**
+ * The management interface of <code>Metrics</code>, published over JMX as
+ * <code>mandalarotate:type=Metrics</code>. Times are reported in
+ * microseconds.
+ *
+ * @author chasehanson
+ */
+public interface MetricsMBean {
+
+    /**
+     * @return The number of pixels generated by all copies of every stroke
+     */
+    long getPointsGenerated();
+
+    /**
+     * @return The number of pixels offloaded into the image
+     */
+    long getPointsOffloaded();
+
+    /**
+     * @return The number of drag samples dropped, so the stroke runs
+     * straight to the next, because the input queue was nearly full
+     */
+    long getSamplesDropped();
+
+    /**
+     * @return The number of pixels currently pending
+     */
+    int getPending();
+
+    /**
+     * @return The 99th percentile of the number of pixels pending at each
+     * offload
+     */
+    long getPendingAtOffloadP99();
+
+    /**
+     * @return The number of frames painted
+     */
+    long getFrames();
+
+    /**
+     * @return The median time taken to paint a frame
+     */
+    long getFrameTimeP50();
+
+    /**
+     * @return The 99th percentile time taken to paint a frame
+     */
+    long getFrameTimeP99();
+
+    /**
+     * @return The longest time taken to paint a frame
+     */
+    long getFrameTimeMax();
+
+    /**
+     * @return The median time from an input sample to the paint showing it
+     */
+    long getInputLatencyP50();
+
+    /**
+     * @return The 99th percentile time from an input sample to the paint
+     * showing it
+     */
+    long getInputLatencyP99();
+
+    /**
+     * @return The 99th percentile time taken by one offload
+     */
+    long getOffloadTimeP99();
+
+    /**
+     * @return The longest time taken by one offload
+     */
+    long getOffloadTimeMax();
+
+    /**
+     * @return The longest time taken to save
+     */
+    long getSaveTimeMax();
+
+    /**
+     * @return The current offload threshold of the <code>OffloadPolicy</code>
+     */
+    int getOffloadThreshold();
+
+    /**
+     * @return The current per frame offload limit of the
+     * <code>OffloadPolicy</code>
+     */
+    int getOffloadLimit();
+
+    /**
+     * Forgets every recorded value.
+     */
+    void reset();
+}
@@ -0,0 +1,179 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+/**
+ * Decides when a <code>Mandala</code> offloads its pending points into the
+ * <code>BufferedImage</code>, and how many. It replaces a fixed cap on the
+ * number of pending points with measured costs.
+ * <p>
+ * Every pending point costs <code>paintNanosPerPoint</code> on each frame it
+ * stays pending, and <code>offloadNanosPerPoint</code> once when it is
+ * offloaded. If offloading is cheaper than painting, points are offloaded on
+ * every frame; otherwise they are left pending until painting them would use
+ * up the frame budget. Either way, no more points are offloaded in one frame
+ * than fit in the budget, so a large backlog is spread over several frames.
+ * <p>
+ * The costs are running averages, updated by <code>Mandala</code> from the
+ * event dispatch thread. The decisions may be read from any thread.
+ *
+ * @author chasehanson
+ */
+public class OffloadPolicy {
+
+    /**
+     * Batches smaller than this are too noisy to time.
+     */
+    private static final int MIN_SAMPLE = 64;
+
+    /**
+     * The fewest points offloaded in one frame, so a backlog always drains.
+     */
+    private static final int MIN_LIMIT = 1024;
+
+    private volatile long targetFrameNanos;
+
+    private volatile double paintNanosPerPoint = 200;
+
+    private volatile double offloadNanosPerPoint = 20;
+
+    private volatile int threshold, limit;
+
+    /**
+     * Constructs a new <code>OffloadPolicy</code> with a frame budget of 8
+     * milliseconds.
+     */
+    public OffloadPolicy() {
+        this(8_000_000L);
+    }
+
+    /**
+     * Constructs a new <code>OffloadPolicy</code> with the given frame
+     * budget.
+     *
+     * @param targetFrameNanos The time drawing pending points may take per
+     * frame, in nanoseconds
+     */
+    public OffloadPolicy(long targetFrameNanos) {
+        setTargetFrameNanos(targetFrameNanos);
+    }
+
+    /**
+     * Returns the time drawing pending points may take per frame.
+     *
+     * @return The frame budget in nanoseconds
+     */
+    public long getTargetFrameNanos() {
+        return targetFrameNanos;
+    }
+
+    /**
+     * Sets the time drawing pending points may take per frame.
+     *
+     * @param nanos The frame budget in nanoseconds
+     */
+    public void setTargetFrameNanos(long nanos) {
+        if (nanos <= 0) {
+            throw new IllegalArgumentException("frame budget must be positive: " + nanos);
+        }
+        targetFrameNanos = nanos;
+        decide();
+    }
+
+    /**
+     * Returns the number of pending points above which they are offloaded.
+     *
+     * @return The offload threshold
+     */
+    public int threshold() {
+        return threshold;
+    }
+
+    /**
+     * Returns the most points offloaded in one frame.
+     *
+     * @return The per frame offload limit
+     */
+    public int limit() {
+        return limit;
+    }
+
+    /**
+     * Returns the measured cost of painting one pending point.
+     *
+     * @return The cost in nanoseconds
+     */
+    public double paintNanosPerPoint() {
+        return paintNanosPerPoint;
+    }
+
+    /**
+     * Returns the measured cost of offloading one point.
+     *
+     * @return The cost in nanoseconds
+     */
+    public double offloadNanosPerPoint() {
+        return offloadNanosPerPoint;
+    }
+
+    /**
+     * Records the time taken to paint a number of pending points.
+     *
+     * @param points The number of points painted
+     * @param nanos The time taken in nanoseconds
+     */
+    public void paintTimed(int points, long nanos) {
+        if (points >= MIN_SAMPLE) {
+            paintNanosPerPoint += ((double) nanos / points - paintNanosPerPoint) / 8;
+            decide();
+        }
+    }
+
+    /**
+     * Records the time taken to offload a number of points.
+     *
+     * @param points The number of points offloaded
+     * @param nanos The time taken in nanoseconds
+     */
+    public void offloadTimed(int points, long nanos) {
+        if (points >= MIN_SAMPLE) {
+            offloadNanosPerPoint += ((double) nanos / points - offloadNanosPerPoint) / 8;
+            decide();
+        }
+    }
+
+    private void decide() {
+        double budget = targetFrameNanos;
+        threshold = offloadNanosPerPoint <= paintNanosPerPoint
+                ? 0
+                : (int) Math.min(Integer.MAX_VALUE, budget / paintNanosPerPoint);
+        limit = (int) Math.max(MIN_LIMIT, Math.min(Integer.MAX_VALUE, budget / offloadNanosPerPoint));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("OffloadPolicy[budget=%.1f ms, paint=%.1f ns/point, offload=%.1f ns/point, threshold=%d, limit=%d]",
+                targetFrameNanos / 1e6, paintNanosPerPoint, offloadNanosPerPoint, threshold, limit);
+    }
+}
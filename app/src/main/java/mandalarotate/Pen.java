@@ -0,0 +1,232 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.util.Arrays;
+
+/**
+ * Turns a sequence of press, move and release events into strokes on a
+ * <code>Mandala</code>. The first point of a stroke is added on its own and
+ * every following point is joined to the previous one with a segment. Unless
+ * <code>smoother</code> is <code>null</code>, the samples are decimated and
+ * smoothed first, and only the conditioned points reach the
+ * <code>Mandala</code> and its <code>Scene</code>.
+ * <p>
+ * All coordinates are measured in pixels from the centre of the
+ * <code>Mandala</code>. A <code>Pen</code> must only be used from the thread
+ * that adds points to its <code>Mandala</code>.
+ *
+ * @author chasehanson
+ */
+public class Pen {
+
+    private final Mandala m;
+
+    private final double radius;
+
+    private boolean down;
+
+    private double lastX, lastY;
+
+    /**
+     * The number the <code>Mandala</code> gave the current stroke.
+     */
+    private long strokeNumber;
+
+    /**
+     * The layer and number of segments the current stroke is drawn with.
+     */
+    private Layer strokeLayer;
+
+    private int strokeSegments;
+
+    /**
+     * If not <code>null</code>, every event is also written to this recorder.
+     */
+    public TraceRecorder recorder;
+
+    /**
+     * Conditions the samples of each stroke, or <code>null</code> to draw
+     * every sample as it comes.
+     */
+    public StrokeSmoother smoother = new StrokeSmoother(StrokeSmoother.DEFAULT_TOLERANCE);
+
+    /**
+     * <code>true</code> to hold each stroke back from the <code>Scene</code>
+     * until it is released, so strokes drawn at once by several pens on one
+     * thread are still recorded one after another.
+     */
+    public boolean deferScene;
+
+    /**
+     * If not <code>null</code>, every finished stroke is journaled here.
+     */
+    public Autosave autosave;
+
+    /**
+     * The points of the current stroke, held back for the <code>Scene</code>
+     * or the <code>Autosave</code>.
+     */
+    private double[] held = new double[64];
+
+    private int heldCount;
+
+    /**
+     * Constructs a new <code>Pen</code> drawing into the given
+     * <code>Mandala</code>.
+     *
+     * @param m The <code>Mandala</code> to draw into
+     * @param radius The maximum allowed radius of the <code>Mandala</code>
+     */
+    public Pen(Mandala m, double radius) {
+        this.m = m;
+        this.radius = radius;
+    }
+
+    /**
+     * Returns the maximum allowed radius of the <code>Mandala</code>.
+     *
+     * @return The radius points are clamped to
+     */
+    public double getRadius() {
+        return radius;
+    }
+
+    /**
+     * Returns <code>true</code> if a stroke is in progress.
+     *
+     * @return <code>true</code> between a press and a release
+     */
+    public boolean isDown() {
+        return down;
+    }
+
+    /**
+     * Starts a new stroke at the given point.
+     *
+     * @param x The x coordinate of the point
+     * @param y The y coordinate of the point
+     */
+    public void press(double x, double y) {
+        if (recorder != null) {
+            recorder.press(x, y);
+        }
+        down = true;
+        if (autosave != null) {
+            autosave.press();
+        }
+        strokeNumber = m.beginStroke();
+        strokeLayer = m.layers.getActive();
+        strokeSegments = m.segments;
+        if (deferScene || autosave != null) {
+            heldCount = 0;
+            hold(x, y);
+        }
+        if (!deferScene) {
+            m.scene.press(strokeNumber, strokeLayer, strokeSegments, x, y, radius);
+        }
+        lastX = x;
+        lastY = y;
+        m.addPoint(x, y, radius);
+        if (smoother != null) {
+            smoother.begin(x, y);
+        }
+    }
+
+    /**
+     * Continues the current stroke to the given point. Ignored if no stroke
+     * is in progress.
+     *
+     * @param x The x coordinate of the point
+     * @param y The y coordinate of the point
+     */
+    public void move(double x, double y) {
+        if (!down) {
+            return;
+        }
+        if (recorder != null) {
+            recorder.move(x, y);
+        }
+        if (smoother == null) {
+            lineTo(x, y);
+        } else {
+            lineTo(smoother.add(x, y));
+        }
+    }
+
+    private void lineTo(int n) {
+        double[] xs = smoother.getX();
+        double[] ys = smoother.getY();
+        for (int i = 0; i < n; i++) {
+            lineTo(xs[i], ys[i]);
+        }
+    }
+
+    private void lineTo(double x, double y) {
+        m.addSegment(lastX, lastY, x, y, radius);
+        if (deferScene || autosave != null) {
+            hold(x, y);
+        }
+        if (!deferScene) {
+            m.scene.move(x, y, radius);
+        }
+        lastX = x;
+        lastY = y;
+    }
+
+    /**
+     * Ends the current stroke. Ignored if no stroke is in progress.
+     */
+    public void release() {
+        if (!down) {
+            return;
+        }
+        if (recorder != null) {
+            recorder.release();
+        }
+        if (smoother != null) {
+            lineTo(smoother.end());
+        }
+        if (deferScene) {
+            m.scene.press(strokeNumber, strokeLayer, strokeSegments, held[0], held[1], radius);
+            for (int i = 1; i < heldCount; i++) {
+                m.scene.move(held[2 * i], held[2 * i + 1], radius);
+            }
+        }
+        m.scene.release();
+        if (autosave != null) {
+            autosave.stroke(held, heldCount);
+        }
+        down = false;
+    }
+
+    private void hold(double x, double y) {
+        if (2 * heldCount + 2 > held.length) {
+            held = Arrays.copyOf(held, held.length * 2);
+        }
+        held[2 * heldCount] = x;
+        held[2 * heldCount + 1] = y;
+        heldCount++;
+    }
+}
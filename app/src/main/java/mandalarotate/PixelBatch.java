@@ -0,0 +1,217 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.util.Arrays;
+
+/**
+ * Collects packed pixels, then sorts them into memory order and merges the
+ * repeats, so a fully covered pixel is written once however many copies and
+ * neighbouring points rounded onto it. Whatever is painted on a pixel before
+ * it is fully covered is painted over, so only the last full cover of each
+ * pixel is kept along with the partial ones after it, in the order they were
+ * added. Painting the merged batch therefore leaves exactly what painting
+ * every pixel in turn would, however the pixels are split into batches.
+ * <p>
+ * Pixels are keyed by their offset within a region, row by row, and sorted
+ * with a radix sort of as many 11 bit passes as the region needs, so the
+ * work grows with the number of pixels rather than their logarithm. The
+ * arrays are kept from batch to batch, and starting a new batch only resets
+ * a count.
+ *
+ * @author chasehanson
+ */
+public class PixelBatch {
+
+    private static final int DIGIT = 11;
+
+    private static final int RADIX = 1 << DIGIT;
+
+    /**
+     * Batches up to this size are sorted by comparison instead.
+     */
+    private static final int SMALL = 256;
+
+    private long[] keys = new long[1 << 10], spare = new long[1 << 10];
+
+    private final int[] counts = new int[RADIX];
+
+    private int size;
+
+    private int x0, y0, w, h;
+
+    /**
+     * Starts a new, empty batch. Pixels outside the region are dropped as
+     * they are added.
+     *
+     * @param x The x coordinate of the top left corner of the region
+     * @param y The y coordinate of the top left corner of the region
+     * @param width The width of the region
+     * @param height The height of the region
+     */
+    public void reset(int x, int y, int width, int height) {
+        x0 = x;
+        y0 = y;
+        w = Math.max(width, 0);
+        h = Math.max(height, 0);
+        size = 0;
+    }
+
+    /**
+     * Adds a range of packed pixels from a <code>PointBuffer</code>.
+     *
+     * @param pixels The buffer holding the pixels
+     * @param start The index of the first pixel, inclusive
+     * @param end The index of the last pixel, exclusive
+     * @param dx The offset added to each x coordinate
+     * @param dy The offset added to each y coordinate
+     */
+    public void add(PointBuffer pixels, long start, long end, int dx, int dy) {
+        ensure(size + (int) (end - start));
+        long[] k = keys;
+        int n = size;
+        int ox = dx - x0;
+        int oy = dy - y0;
+        for (long i = start; i < end; i++) {
+            long p = pixels.get(i);
+            int x = PointBuffer.x(p) + ox;
+            int y = PointBuffer.y(p) + oy;
+            if ((x | y) >= 0 && x < w && y < h) {
+                k[n++] = ((long) y * w + x) << 8 | PointBuffer.alpha(p);
+            }
+        }
+        size = n;
+    }
+
+    /**
+     * Sorts the batch into memory order, keeping the repeats of each pixel in
+     * the order they were added, and drops those painted over by a later full
+     * cover. The pixels are left in <code>getPixels</code> packed as by
+     * <code>PointBuffer.pack</code>.
+     *
+     * @return The number of pixels left, which are only distinct where
+     * fully covered
+     */
+    public int merge() {
+        long[] k = keys;
+        if (size <= SMALL) {
+            //Break ties by the order added, which the radix sort keeps anyway
+            for (int i = 0; i < size; i++) {
+                k[i] = (k[i] >>> 8) << 16 | (long) i << 8 | (k[i] & 0xFF);
+            }
+            Arrays.sort(k, 0, size);
+            for (int i = 0; i < size; i++) {
+                k[i] = (k[i] >>> 16) << 8 | (k[i] & 0xFF);
+            }
+        } else {
+            sort();
+            k = keys;
+        }
+        int n = 0;
+        for (int i = 0; i < size;) {
+            long offset = k[i] >>> 8;
+            int end = i + 1;
+            while (end < size && k[end] >>> 8 == offset) {
+                end++;
+            }
+            int first = end - 1;
+            while (first > i && (k[first] & 0xFF) != 255) {
+                first--;
+            }
+            if ((k[first] & 0xFF) != 255) {
+                first = i;
+            }
+            int x = x0 + (int) (offset % w);
+            int y = y0 + (int) (offset / w);
+            for (int j = first; j < end; j++) {
+                k[n++] = PointBuffer.pack(x, y, (int) (k[j] & 0xFF));
+            }
+            i = end;
+        }
+        size = n;
+        return n;
+    }
+
+    /**
+     * Returns the pixels of the batch, valid up to <code>size</code>. The
+     * array may be swapped by <code>merge</code>, so get it afterwards.
+     *
+     * @return The packed pixels
+     */
+    public long[] getPixels() {
+        return keys;
+    }
+
+    /**
+     * Returns the number of pixels in the batch.
+     *
+     * @return The number of pixels added, or after <code>merge</code> the
+     * number left
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Least significant digit first radix sort of the offsets, skipping any
+     * pass where every key has the same digit.
+     */
+    private void sort() {
+        int bits = 64 - Long.numberOfLeadingZeros(Math.max((long) w * h - 1, 1));
+        long[] src = keys;
+        long[] dst = spare;
+        for (int shift = 8; shift < 8 + bits; shift += DIGIT) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < size; i++) {
+                counts[(int) (src[i] >>> shift) & (RADIX - 1)]++;
+            }
+            if (counts[(int) (src[0] >>> shift) & (RADIX - 1)] == size) {
+                continue;
+            }
+            int sum = 0;
+            for (int d = 0; d < RADIX; d++) {
+                int c = counts[d];
+                counts[d] = sum;
+                sum += c;
+            }
+            for (int i = 0; i < size; i++) {
+                long key = src[i];
+                dst[counts[(int) (key >>> shift) & (RADIX - 1)]++] = key;
+            }
+            long[] t = src;
+            src = dst;
+            dst = t;
+        }
+        keys = src;
+        spare = dst;
+    }
+
+    private void ensure(int capacity) {
+        if (keys.length < capacity) {
+            int length = Math.max(capacity, keys.length * 2);
+            keys = Arrays.copyOf(keys, length);
+            spare = new long[length];
+        }
+    }
+}
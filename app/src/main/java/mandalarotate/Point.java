@@ -96,7 +96,7 @@ public class Point {
             if (y >= 0) {
                 //theta is correct
             } else {
-                theta += 3 * Math.PI / 2;
+                theta = 2 * Math.PI - theta;
             }
         } else {
             if (y >= 0) {
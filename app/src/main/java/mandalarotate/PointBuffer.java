@@ -0,0 +1,272 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free single-producer, single-consumer ring buffer of pixel
+ * coordinates. Each pixel is packed into one <code>long</code>, with the x
+ * coordinate in the upper 28 bits, the y coordinate in the next 28 bits and
+ * an 8 bit coverage in the lowest bits, so anti-aliased pixels can share the
+ * buffer with solid ones.
+ * <p>
+ * Exactly one thread may call the producer methods (<code>offer</code> and
+ * <code>put</code>) and exactly one thread may call the consumer methods
+ * (<code>get</code>, <code>consume</code> and <code>clear</code>). Slots
+ * between <code>start()</code> and <code>end()</code> are never overwritten
+ * until the consumer has released them, so every pixel is handed over exactly
+ * once.
+ * <p>
+ * When the buffer is full, <code>put</code> applies back-pressure: it asks the
+ * consumer to drain through a callback and parks the producer until space is
+ * released, rather than dropping pixels.
+ *
+ * @author chasehanson
+ */
+public class PointBuffer {
+
+    private final long[] buffer;
+
+    private final int mask;
+
+    /**
+     * The index of the next slot to be written, only advanced by the producer.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * The index of the next slot to be read, only advanced by the consumer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The producer's last view of <code>tail</code>, refreshed only when the
+     * buffer appears full.
+     */
+    private long cachedTail;
+
+    /**
+     * Constructs a new <code>PointBuffer</code> holding at least the given
+     * number of pixels, rounded up to a power of two.
+     *
+     * @param capacity The minimum number of pixels the buffer can hold
+     */
+    public PointBuffer(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity out of range: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        buffer = new long[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Packs a fully covered pixel coordinate into a single <code>long</code>.
+     * Coordinates must lie within 2<sup>27</sup> of the origin.
+     *
+     * @param x The x coordinate of the pixel
+     * @param y The y coordinate of the pixel
+     * @return The packed pixel
+     */
+    public static long pack(int x, int y) {
+        return pack(x, y, 255);
+    }
+
+    /**
+     * Packs a partially covered pixel coordinate into a single
+     * <code>long</code>.
+     *
+     * @param x The x coordinate of the pixel
+     * @param y The y coordinate of the pixel
+     * @param alpha The coverage of the pixel, from 0 to 255
+     * @return The packed pixel
+     */
+    public static long pack(int x, int y, int alpha) {
+        return ((long) x << 36) | ((y & 0xFFFFFFFL) << 8) | (alpha & 0xFF);
+    }
+
+    /**
+     * Returns the x coordinate of a packed pixel.
+     *
+     * @param p The packed pixel
+     * @return The x coordinate
+     */
+    public static int x(long p) {
+        return (int) (p >> 36);
+    }
+
+    /**
+     * Returns the y coordinate of a packed pixel.
+     *
+     * @param p The packed pixel
+     * @return The y coordinate
+     */
+    public static int y(long p) {
+        return (int) (p << 28 >> 36);
+    }
+
+    /**
+     * Returns the coverage of a packed pixel.
+     *
+     * @param p The packed pixel
+     * @return The coverage, from 0 to 255
+     */
+    public static int alpha(long p) {
+        return (int) p & 0xFF;
+    }
+
+    /**
+     * Returns the number of pixels the buffer can hold.
+     *
+     * @return The capacity of the buffer
+     */
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Returns the number of pixels currently waiting to be consumed. Safe to
+     * call from either thread, though the producer only sees a lower bound of
+     * the free space.
+     *
+     * @return The number of pending pixels
+     */
+    public int size() {
+        long t = tail.get();
+        return (int) (head.get() - t);
+    }
+
+    /**
+     * Publishes as many of the given pixels as fit without blocking.
+     * Producer only.
+     *
+     * @param src The packed pixels to publish
+     * @param from The index of the first pixel, inclusive
+     * @param to The index of the last pixel, exclusive
+     * @return The number of pixels published
+     */
+    public int offer(long[] src, int from, int to) {
+        long h = head.get();
+        int free = buffer.length - (int) (h - cachedTail);
+        if (free < to - from) {
+            cachedTail = tail.get();
+            free = buffer.length - (int) (h - cachedTail);
+        }
+        int n = Math.min(free, to - from);
+        for (int i = 0; i < n; i++) {
+            buffer[(int) (h + i) & mask] = src[from + i];
+        }
+        //Ordered store publishes the slots before the new head is visible
+        head.lazySet(h + n);
+        return n;
+    }
+
+    /**
+     * Publishes all of the given pixels, waiting for the consumer whenever the
+     * buffer is full. Each time the producer has to wait, <code>drain</code> is
+     * run so the consumer can be prompted to release space. Producer only.
+     * <p>
+     * If the producer thread is interrupted while waiting, the remaining
+     * pixels are discarded and the interrupt flag is left set.
+     *
+     * @param src The packed pixels to publish
+     * @param from The index of the first pixel, inclusive
+     * @param to The index of the last pixel, exclusive
+     * @param drain Run whenever the buffer is full, may be <code>null</code>
+     * @return The number of pixels published
+     */
+    public int put(long[] src, int from, int to, Runnable drain) {
+        int i = from;
+        while (i < to) {
+            int n = offer(src, i, to);
+            i += n;
+            if (n == 0) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                if (drain != null) {
+                    drain.run();
+                }
+                LockSupport.parkNanos(1_000_000L);
+            }
+        }
+        return i - from;
+    }
+
+    /**
+     * Returns the index of the oldest pending pixel. Consumer only.
+     *
+     * @return The start index, inclusive
+     */
+    public long start() {
+        return tail.get();
+    }
+
+    /**
+     * Returns the index one past the newest published pixel. Pixels between
+     * <code>start()</code> and this index may be read with <code>get</code>.
+     *
+     * @return The end index, exclusive
+     */
+    public long end() {
+        return head.get();
+    }
+
+    /**
+     * Returns the packed pixel at the given index. Consumer only.
+     *
+     * @param index An index between <code>start()</code> and
+     * <code>end()</code>
+     * @return The packed pixel
+     */
+    public long get(long index) {
+        return buffer[(int) index & mask];
+    }
+
+    /**
+     * Releases up to <code>n</code> of the oldest pending pixels back to the
+     * producer. Consumer only.
+     *
+     * @param n The number of pixels to release
+     * @return The number of pixels released
+     */
+    public int consume(int n) {
+        long t = tail.get();
+        int released = (int) Math.min(Math.max(n, 0), head.get() - t);
+        tail.lazySet(t + released);
+        return released;
+    }
+
+    /**
+     * Releases every pending pixel without reading it. Consumer only.
+     */
+    public void clear() {
+        tail.lazySet(head.get());
+    }
+}
@@ -0,0 +1,235 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * A mipmap pyramid over a <code>Canvas</code>, so a zoomed out view can be
+ * drawn from a smaller copy rather than by reading every pixel of a large
+ * drawing. Each level is half the width and height of the one below it,
+ * with every pixel the average of the four beneath it, down to a level that
+ * fits within <code>MIN_SIZE</code>.
+ * <p>
+ * The <code>Pyramid</code> is a <code>TileGuard</code> on the base
+ * <code>Canvas</code>: the first write into a tile marks it stale, and
+ * <code>update</code> later rebuilds only the parts of each level above the
+ * stale tiles. Tiles are only re-armed once they have been rebuilt, so
+ * drawing at full size while the pyramid is not in use costs nothing after
+ * the first write into each tile. The levels use the same kind of
+ * <code>Canvas</code> as the base, so the pyramid of a memory-mapped canvas
+ * stays off the heap as well. Blank tiles of the base are never read, and
+ * the parts of a level above them are only written if they differ.
+ *
+ * @author chasehanson
+ */
+public class Pyramid implements Canvas.TileGuard, Closeable {
+
+    /**
+     * The smallest level is the first no wider or taller than this.
+     */
+    public static final int MIN_SIZE = 64;
+
+    private static final int TILE_SIZE = Canvas.TILE_SIZE;
+
+    private static final int HALF = TILE_SIZE / 2;
+
+    private final Canvas[] levels;
+
+    /**
+     * For each level but the last, the tiles whose halves have to be written
+     * into the level above.
+     */
+    private final BitSet[] stale;
+
+    private final int[] tile = new int[TILE_SIZE * TILE_SIZE];
+
+    private final int[] half = new int[HALF * HALF];
+
+    /**
+     * Constructs a new <code>Pyramid</code> over a <code>Canvas</code> and
+     * adds itself as a guard. Every level starts out stale.
+     *
+     * @param base The <code>Canvas</code> to build the pyramid over
+     * @throws IOException If the base is memory-mapped and a level can't be
+     * mapped
+     */
+    public Pyramid(Canvas base) throws IOException {
+        int count = 1;
+        for (int w = base.getWidth(), h = base.getHeight(); Math.max(w, h) > MIN_SIZE; w = (w + 1) / 2, h = (h + 1) / 2) {
+            count++;
+        }
+        levels = new Canvas[count];
+        stale = new BitSet[count - 1];
+        levels[0] = base;
+        try {
+            for (int k = 1; k < count; k++) {
+                int w = (levels[k - 1].getWidth() + 1) / 2;
+                int h = (levels[k - 1].getHeight() + 1) / 2;
+                if (base instanceof MappedCanvas) {
+                    levels[k] = new MappedCanvas(w, h, null);
+                } else {
+                    //Start out the colour a blank base shrinks to
+                    levels[k] = new SparseCanvas(w, h);
+                    levels[k].fill(0xFF000000 | base.get(0, 0));
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        for (int k = 0; k < count - 1; k++) {
+            stale[k] = new BitSet();
+            stale[k].set(0, levels[k].getTilesX() * levels[k].getTilesY());
+        }
+        base.addGuard(this);
+    }
+
+    /**
+     * Returns the number of levels, counting the base.
+     *
+     * @return The number of levels
+     */
+    public int getLevels() {
+        return levels.length;
+    }
+
+    /**
+     * Returns a level of the pyramid, which is only up to date after
+     * <code>update</code>.
+     *
+     * @param k The level, where 0 is the base
+     * @return The <code>Canvas</code> of that level
+     */
+    public Canvas getLevel(int k) {
+        return levels[k];
+    }
+
+    /**
+     * Returns the level to sample for a zoom, the smallest one that still has
+     * at least one pixel for every screen pixel.
+     *
+     * @param zoom The number of screen pixels covering each base pixel
+     * @return The level to sample
+     */
+    public int levelFor(double zoom) {
+        if (zoom >= 1) {
+            return 0;
+        }
+        return Math.min(levels.length - 1, Math.getExponent(1 / zoom));
+    }
+
+    @Override
+    public void beforeWrite(Canvas c, int t) {
+        stale[0].set(t);
+    }
+
+    /**
+     * Brings every level up to and including <code>top</code> up to date with
+     * the base. Must be called on the thread that writes to the base.
+     *
+     * @param top The highest level needed
+     */
+    public void update(int top) {
+        for (int k = 0; k < Math.min(top, levels.length - 1); k++) {
+            Canvas src = levels[k];
+            Canvas dst = levels[k + 1];
+            for (int t = stale[k].nextSetBit(0); t >= 0; t = stale[k].nextSetBit(t + 1)) {
+                int tx = t % src.getTilesX();
+                int ty = t / src.getTilesX();
+                int w = Math.min(TILE_SIZE, src.getWidth() - tx * TILE_SIZE);
+                int h = Math.min(TILE_SIZE, src.getHeight() - ty * TILE_SIZE);
+                if (k == 0) {
+                    //Read before arming, so any write after this marks it again
+                    src.arm(this, t);
+                }
+                if (src.isBlank(t)) {
+                    int rgb = 0xFF000000 | src.get(tx * TILE_SIZE, ty * TILE_SIZE);
+                    if (!dst.isBlank(dst.tileAt(tx * HALF, ty * HALF)) || dst.get(tx * HALF, ty * HALF) != rgb) {
+                        dst.fillRect(tx * HALF, ty * HALF, (w + 1) / 2, (h + 1) / 2, rgb);
+                    }
+                } else {
+                    src.readTile(t, tile);
+                    shrink(w, h);
+                    dst.writeRect(tx * HALF, ty * HALF, (w + 1) / 2, (h + 1) / 2, half, 0, HALF);
+                }
+                if (k + 1 < stale.length) {
+                    stale[k + 1].set((ty >> 1) * dst.getTilesX() + (tx >> 1));
+                }
+            }
+            stale[k].clear();
+        }
+    }
+
+    /**
+     * Averages each two by two block of <code>tile</code> into
+     * <code>half</code>. Red and blue are summed together in one int and green
+     * in another, since four 8 bit values never overflow their 16 bit lanes.
+     *
+     * @param w The width of the pixels in <code>tile</code>
+     * @param h The height of the pixels in <code>tile</code>
+     */
+    private void shrink(int w, int h) {
+        //Repeat the last column and row of an odd sized edge tile
+        if (w < TILE_SIZE && (w & 1) != 0) {
+            for (int j = 0; j < h; j++) {
+                tile[j * TILE_SIZE + w] = tile[j * TILE_SIZE + w - 1];
+            }
+        }
+        if (h < TILE_SIZE && (h & 1) != 0) {
+            System.arraycopy(tile, (h - 1) * TILE_SIZE, tile, h * TILE_SIZE, TILE_SIZE);
+        }
+        int hw = (w + 1) / 2;
+        int hh = (h + 1) / 2;
+        for (int j = 0; j < hh; j++) {
+            int row = 2 * j * TILE_SIZE;
+            for (int i = 0; i < hw; i++) {
+                int a = tile[row + 2 * i];
+                int b = tile[row + 2 * i + 1];
+                int c = tile[row + TILE_SIZE + 2 * i];
+                int d = tile[row + TILE_SIZE + 2 * i + 1];
+                int rb = ((a & 0xFF00FF) + (b & 0xFF00FF) + (c & 0xFF00FF) + (d & 0xFF00FF) + 0x20002) >>> 2;
+                int g = ((a & 0xFF00) + (b & 0xFF00) + (c & 0xFF00) + (d & 0xFF00) + 0x200) >>> 2;
+                half[j * HALF + i] = 0xFF000000 | (rb & 0xFF00FF) | (g & 0xFF00);
+            }
+        }
+    }
+
+    /**
+     * Removes the pyramid from its base and releases the levels above it.
+     *
+     * @throws IOException If a memory-mapped level can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        levels[0].removeGuard(this);
+        for (int k = 1; k < levels.length; k++) {
+            if (levels[k] instanceof MappedCanvas) {
+                ((MappedCanvas) levels[k]).close();
+            }
+        }
+    }
+}
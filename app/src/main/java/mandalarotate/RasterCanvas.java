@@ -0,0 +1,231 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * A <code>Canvas</code> that writes straight into the <code>int[]</code>
+ * backing a <code>BufferedImage</code> on the heap. Writes made directly into
+ * <code>getData()</code> bypass the tile guards.
+ *
+ * @author chasehanson
+ */
+public class RasterCanvas extends Canvas {
+
+    private final BufferedImage image;
+
+    private final int[] data;
+
+    /**
+     * Constructs a new <code>RasterCanvas</code> of the given size. The pixels
+     * start out black.
+     *
+     * @param width The width of the <code>Canvas</code> in pixels
+     * @param height The height of the <code>Canvas</code> in pixels
+     */
+    public RasterCanvas(int width, int height) {
+        super(width, height);
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Returns the <code>BufferedImage</code> backing this <code>Canvas</code>.
+     *
+     * @return The backing image
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * Returns the pixel array backing this <code>Canvas</code>, in row-major
+     * order.
+     *
+     * @return The backing pixels
+     */
+    public int[] getData() {
+        return data;
+    }
+
+    @Override
+    public void readTile(int tile, int[] out) {
+        int x0 = (tile % tilesX) << TILE_SHIFT;
+        int y0 = (tile / tilesX) << TILE_SHIFT;
+        int w = Math.min(TILE_SIZE, width - x0);
+        int h = Math.min(TILE_SIZE, height - y0);
+        for (int j = 0; j < h; j++) {
+            System.arraycopy(data, (y0 + j) * width + x0, out, j * TILE_SIZE, w);
+        }
+    }
+
+    @Override
+    public void writeTile(int tile, int[] in) {
+        touch(tile);
+        int x0 = (tile % tilesX) << TILE_SHIFT;
+        int y0 = (tile / tilesX) << TILE_SHIFT;
+        int w = Math.min(TILE_SIZE, width - x0);
+        int h = Math.min(TILE_SIZE, height - y0);
+        for (int j = 0; j < h; j++) {
+            System.arraycopy(in, j * TILE_SIZE, data, (y0 + j) * width + x0, w);
+        }
+    }
+
+    @Override
+    public void readRect(int x, int y, int w, int h, int[] out, int offset, int scan) {
+        for (int j = 0; j < h; j++) {
+            System.arraycopy(data, (y + j) * width + x, out, offset + j * scan, w);
+        }
+    }
+
+    @Override
+    public void writeRect(int x, int y, int w, int h, int[] in, int offset, int scan) {
+        touch(x >> TILE_SHIFT, y >> TILE_SHIFT, (x + w - 1) >> TILE_SHIFT, (y + h - 1) >> TILE_SHIFT);
+        for (int j = 0; j < h; j++) {
+            System.arraycopy(in, offset + j * scan, data, (y + j) * width + x, w);
+        }
+    }
+
+    @Override
+    public int get(int x, int y) {
+        return contains(x, y) ? data[y * width + x] : 0;
+    }
+
+    @Override
+    public void fill(int rgb) {
+        touch(0, 0, tilesX - 1, tilesY - 1);
+        Arrays.fill(data, rgb);
+    }
+
+    @Override
+    public void fillRect(int x, int y, int w, int h, int rgb) {
+        int x0 = Math.max(x, 0);
+        int y0 = Math.max(y, 0);
+        int x1 = (int) Math.min((long) x + w, width);
+        int y1 = (int) Math.min((long) y + h, height);
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        touch(x0 >> TILE_SHIFT, y0 >> TILE_SHIFT, (x1 - 1) >> TILE_SHIFT, (y1 - 1) >> TILE_SHIFT);
+        for (int j = y0; j < y1; j++) {
+            Arrays.fill(data, j * width + x0, j * width + x1, rgb);
+        }
+    }
+
+    @Override
+    public void plot(int x, int y, int rgb) {
+        if ((x | y) >= 0 && x < width && y < height) {
+            touch(tileAt(x, y));
+            data[y * width + x] = rgb;
+        }
+    }
+
+    @Override
+    public void plot(int x, int y, int rgb, int alpha) {
+        if ((x | y) >= 0 && x < width && y < height) {
+            touch(tileAt(x, y));
+            int i = y * width + x;
+            data[i] = alpha == 255 ? rgb : blend(data[i], rgb, alpha);
+        }
+    }
+
+    @Override
+    public void plot(long[] pixels, int from, int to, int dx, int dy, int rgb) {
+        int w = width;
+        int h = height;
+        int[] d = data;
+        byte[] arm = armed;
+        int tx = tilesX;
+        for (int i = from; i < to; i++) {
+            long p = pixels[i];
+            int x = PointBuffer.x(p) + dx;
+            int y = PointBuffer.y(p) + dy;
+            if ((x | y) >= 0 && x < w && y < h) {
+                int t = (y >> TILE_SHIFT) * tx + (x >> TILE_SHIFT);
+                if (arm[t] != 0) {
+                    touch(t);
+                }
+                int a = PointBuffer.alpha(p);
+                int j = y * w + x;
+                d[j] = a == 255 ? rgb : blend(d[j], rgb, a);
+            }
+        }
+    }
+
+    @Override
+    public void stamp(Stamp s, int cx, int cy, int rgb, int flow) {
+        int r = s.radius;
+        int x0 = Math.max(cx - r, 0);
+        int y0 = Math.max(cy - r, 0);
+        int x1 = Math.min(cx + r + 1, width);
+        int y1 = Math.min(cy + r + 1, height);
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        touch(x0 >> TILE_SHIFT, y0 >> TILE_SHIFT, (x1 - 1) >> TILE_SHIFT, (y1 - 1) >> TILE_SHIFT);
+        //Scale coverage by flow in 1/256ths, so full flow keeps it as it is
+        int scale = flow + (flow >>> 7);
+        byte[] mask = s.mask;
+        int[] d = data;
+        for (int y = y0; y < y1; y++) {
+            int row = y - cy + r;
+            int from = Math.max(s.spanStart[row], x0 - cx + r);
+            int to = Math.min(s.spanEnd[row], x1 - cx + r);
+            int m = row * s.size;
+            int j = y * width + cx - r;
+            for (int i = from; i < to; i++) {
+                int a = (mask[m + i] & 0xFF) * scale >>> 8;
+                if (a != 0) {
+                    d[j + i] = blend(d[j + i], rgb, a);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void plot(PointBuffer pixels, long start, long end, int dx, int dy, int rgb) {
+        int w = width;
+        int h = height;
+        int[] d = data;
+        byte[] arm = armed;
+        int tx = tilesX;
+        for (long i = start; i < end; i++) {
+            long p = pixels.get(i);
+            int x = PointBuffer.x(p) + dx;
+            int y = PointBuffer.y(p) + dy;
+            if ((x | y) >= 0 && x < w && y < h) {
+                int t = (y >> TILE_SHIFT) * tx + (x >> TILE_SHIFT);
+                if (arm[t] != 0) {
+                    touch(t);
+                }
+                int a = PointBuffer.alpha(p);
+                int j = y * w + x;
+                d[j] = a == 255 ? rgb : blend(d[j], rgb, a);
+            }
+        }
+    }
+}
@@ -0,0 +1,917 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The vector model of a <code>Mandala</code>: every master stroke as it was
+ * drawn, before symmetry, along with the layer it was drawn on and the
+ * number of segments it was rotated into, so the drawing can be rendered
+ * again at any scale, or exported as SVG with each layer in its colour.
+ * <p>
+ * Strokes are split into pieces of at most <code>PIECE_POINTS</code> points,
+ * and each piece is indexed by its bounding box in a quadtree. A region of the
+ * output is rendered by mapping it back through every copy of the symmetry
+ * and drawing only that copy of the pieces found there, so the cost follows
+ * the strokes that touch the region rather than the whole drawing. The
+ * points of a stroke being drawn are gathered in a reusable buffer, and a
+ * piece is only built and indexed once it is full or the stroke ends, so
+ * rendering and export leave out the last few points of a stroke still in
+ * progress.
+ * <p>
+ * Coordinates are measured in pixels from the centre of the
+ * <code>Mandala</code>, clamped to the radius of the <code>Pen</code> just as
+ * the drawn points are. All methods are safe to call from any thread; the
+ * input thread adds strokes while others render or export.
+ * <p>
+ * A stroke is part of the drawing as soon as it is started, but it only
+ * becomes a step that can be undone once the raster has committed it, in
+ * the order the raster's <code>History</code> closed its steps. Strokes,
+ * clears and fills that the <code>History</code> kept no step for are never
+ * undone, so the two undo stacks always hold the same steps.
+ *
+ * @author chasehanson
+ */
+public class Scene {
+
+    /**
+     * The most points in one indexed piece of a stroke.
+     */
+    public static final int PIECE_POINTS = 32;
+
+    private static final int WHITE = 0xFFFFFF;
+
+    /**
+     * Half the side of the area covered by the quadtree. Pieces reaching
+     * outside it are kept in the root.
+     */
+    private static final double ROOT_HALF = 1 << 15;
+
+    /**
+     * The depth of the smallest quadtree nodes, 32 pixels across.
+     */
+    private static final int MAX_DEPTH = 10;
+
+    /**
+     * A run of consecutive points of a stroke. Never changed once built, so
+     * it can be drawn outside the lock.
+     */
+    private static final class Piece {
+
+        private final float[] xy;
+
+        private final Stroke stroke;
+
+        /**
+         * <code>true</code> if this piece starts its stroke, whose first
+         * point is drawn as a solid pixel.
+         */
+        private final boolean first;
+
+        private final float minX, minY, maxX, maxY;
+
+        private Node node;
+
+        private int slot;
+
+        Piece(float[] xy, Stroke stroke, boolean first) {
+            this.xy = xy;
+            this.stroke = stroke;
+            this.first = first;
+            float x0 = Float.MAX_VALUE, y0 = Float.MAX_VALUE;
+            float x1 = -Float.MAX_VALUE, y1 = -Float.MAX_VALUE;
+            for (int i = 0; i < xy.length; i += 2) {
+                x0 = Math.min(x0, xy[i]);
+                x1 = Math.max(x1, xy[i]);
+                y0 = Math.min(y0, xy[i + 1]);
+                y1 = Math.max(y1, xy[i + 1]);
+            }
+            minX = x0;
+            minY = y0;
+            maxX = x1;
+            maxY = y1;
+        }
+    }
+
+    /**
+     * A square of the quadtree, holding the pieces that fit inside it but
+     * inside none of its quarters.
+     */
+    private static final class Node {
+
+        private final double cx, cy, half;
+
+        private final int depth;
+
+        private Node[] children;
+
+        private Piece[] items = new Piece[4];
+
+        private int count;
+
+        Node(double cx, double cy, double half, int depth) {
+            this.cx = cx;
+            this.cy = cy;
+            this.half = half;
+            this.depth = depth;
+        }
+
+        /**
+         * Returns the quarter that wholly contains a piece, or -1 if none
+         * does.
+         */
+        int quarter(Piece p) {
+            if (p.minX < cx - half || p.maxX > cx + half || p.minY < cy - half || p.maxY > cy + half) {
+                return -1;
+            }
+            int q;
+            if (p.maxX < cx) {
+                q = 0;
+            } else if (p.minX >= cx) {
+                q = 1;
+            } else {
+                return -1;
+            }
+            if (p.minY >= cy) {
+                q += 2;
+            } else if (p.maxY >= cy) {
+                return -1;
+            }
+            return q;
+        }
+
+        Node child(int q) {
+            if (children == null) {
+                children = new Node[4];
+            }
+            if (children[q] == null) {
+                double h = half / 2;
+                children[q] = new Node(cx + ((q & 1) == 0 ? -h : h), cy + ((q & 2) == 0 ? -h : h), h, depth + 1);
+            }
+            return children[q];
+        }
+
+        void add(Piece p) {
+            if (count == items.length) {
+                items = Arrays.copyOf(items, count * 2);
+            }
+            p.node = this;
+            p.slot = count;
+            items[count++] = p;
+        }
+
+        void remove(Piece p) {
+            Piece last = items[--count];
+            items[p.slot] = last;
+            last.slot = p.slot;
+            items[count] = null;
+            p.node = null;
+        }
+    }
+
+    /**
+     * One stroke, as the pieces it was split into.
+     */
+    private static final class Stroke {
+
+        private final ArrayList<Piece> pieces = new ArrayList<>(1);
+
+        private final Layer layer;
+
+        private final int segments;
+
+        Stroke(Layer layer, int segments) {
+            this.layer = layer;
+            this.segments = segments;
+        }
+
+        /**
+         * <code>true</code> while the stroke is part of the drawing and its
+         * pieces are indexed.
+         */
+        private boolean shown;
+    }
+
+    /**
+     * Something that can be undone: either a stroke that was added, every
+     * stroke that was cleared, or for a fill nothing at all.
+     */
+    private static final class Action {
+
+        /**
+         * The stroke added, or <code>null</code> until it is started if the
+         * raster committed it first.
+         */
+        private Stroke added;
+
+        private final List<Stroke> cleared;
+
+        private boolean undone;
+
+        Action(Stroke added, List<Stroke> cleared) {
+            this.added = added;
+            this.cleared = cleared;
+        }
+    }
+
+    /**
+     * Marks a stroke the raster kept no step for.
+     */
+    private static final Action NONE = new Action(null, null);
+
+    private Node root = new Node(0, 0, ROOT_HALF, 0);
+
+    private final ArrayList<Stroke> strokes = new ArrayList<>();
+
+    private final ArrayDeque<Action> undo = new ArrayDeque<>();
+
+    private final ArrayDeque<Action> redo = new ArrayDeque<>();
+
+    private int pieces;
+
+    /**
+     * The strokes started but not yet committed, and the steps committed for
+     * strokes not yet started, by stroke number.
+     */
+    private final HashMap<Long, Stroke> uncommitted = new HashMap<>();
+
+    private final HashMap<Long, Action> committed = new HashMap<>();
+
+    /**
+     * The stroke being drawn and the points of its piece still being
+     * gathered.
+     */
+    private Stroke open;
+
+    private float[] openXY = new float[PIECE_POINTS * 2];
+
+    private int openCount;
+
+    /**
+     * Starts a new stroke at the given point. It is drawn straight away, and
+     * can be undone once <code>commit</code> is called for it.
+     *
+     * @param number The number <code>Mandala.beginStroke</code> gave the
+     * stroke
+     * @param layer The layer the stroke is drawn on
+     * @param segments The number of segments the stroke is rotated into
+     * @param x The x coordinate of the point
+     * @param y The y coordinate of the point
+     * @param radius The radius the point is clamped to
+     */
+    public synchronized void press(long number, Layer layer, int segments, double x, double y, double radius) {
+        end();
+        open = new Stroke(layer, segments);
+        Action a = committed.remove(number);
+        if (a == null) {
+            uncommitted.put(number, open);
+            add(open);
+        } else {
+            if (a != NONE) {
+                a.added = open;
+            }
+            if (!a.undone) {
+                add(open);
+            }
+        }
+        openCount = 0;
+        append(x, y, radius);
+    }
+
+    /**
+     * Commits a stroke once the raster has closed the step it was drawn in,
+     * either as a step that can be undone or, if the raster kept none, as a
+     * lasting part of the drawing. Steps are committed in the order the
+     * raster closed them, which may be before the stroke is started here.
+     *
+     * @param number The number <code>Mandala.beginStroke</code> gave the
+     * stroke
+     * @param undoable <code>true</code> if the raster kept a step for it
+     */
+    public synchronized void commit(long number, boolean undoable) {
+        Stroke s = uncommitted.remove(number);
+        Action a = NONE;
+        if (undoable) {
+            a = new Action(s, null);
+            redo.clear();
+            undo.addLast(a);
+        }
+        if (s == null) {
+            committed.put(number, a);
+        }
+    }
+
+    /**
+     * Continues the current stroke to the given point. Ignored if no stroke
+     * is in progress or the point repeats the last one.
+     *
+     * @param x The x coordinate of the point
+     * @param y The y coordinate of the point
+     * @param radius The radius the point is clamped to
+     */
+    public synchronized void move(double x, double y, double radius) {
+        if (open != null) {
+            append(x, y, radius);
+        }
+    }
+
+    /**
+     * Ends the current stroke.
+     */
+    public synchronized void release() {
+        end();
+    }
+
+    /**
+     * Builds the last piece of the open stroke, if it has any points not yet
+     * in one, and ends the stroke.
+     */
+    private void end() {
+        if (open != null && (openCount > 1 || open.pieces.isEmpty())) {
+            piece();
+        }
+        open = null;
+    }
+
+    private void piece() {
+        Piece p = new Piece(Arrays.copyOf(openXY, openCount * 2), open, open.pieces.isEmpty());
+        open.pieces.add(p);
+        if (open.shown) {
+            insert(p);
+        }
+    }
+
+    private void append(double x, double y, double radius) {
+        double r2 = x * x + y * y;
+        if (r2 > radius * radius) {
+            double scale = radius / Math.sqrt(r2);
+            x *= scale;
+            y *= scale;
+        }
+        if (openCount > 0 && openXY[openCount * 2 - 2] == (float) x && openXY[openCount * 2 - 1] == (float) y) {
+            return;
+        }
+        if (openCount == PIECE_POINTS) {
+            //The full piece is indexed, and the next starts where it ends
+            piece();
+            openXY[0] = openXY[openCount * 2 - 2];
+            openXY[1] = openXY[openCount * 2 - 1];
+            openCount = 1;
+        }
+        openXY[openCount * 2] = (float) x;
+        openXY[openCount * 2 + 1] = (float) y;
+        openCount++;
+    }
+
+    /**
+     * Removes every stroke.
+     *
+     * @param undoable <code>true</code> if the raster kept a step for the
+     * clear, so it can be undone
+     */
+    public synchronized void clear(boolean undoable) {
+        end();
+        if (undoable) {
+            redo.clear();
+            undo.addLast(new Action(null, new ArrayList<>(strokes)));
+        }
+        for (Stroke s : strokes) {
+            s.shown = false;
+            for (Piece p : s.pieces) {
+                p.node = null;
+            }
+        }
+        strokes.clear();
+        root = new Node(0, 0, ROOT_HALF, 0);
+        pieces = 0;
+    }
+
+    /**
+     * Records a step that changes no stroke, such as a fill, so that undo
+     * and redo stay in step with the raster they follow. Only to be called
+     * for steps the raster kept.
+     */
+    public synchronized void mark() {
+        end();
+        redo.clear();
+        undo.addLast(new Action(null, new ArrayList<>()));
+    }
+
+    /**
+     * Undoes the most recent stroke or clear.
+     *
+     * @return <code>false</code> if there was nothing to undo
+     */
+    public synchronized boolean undo() {
+        end();
+        Action a = undo.pollLast();
+        if (a == null) {
+            return false;
+        }
+        if (a.cleared == null) {
+            if (a.added != null) {
+                remove(a.added);
+            }
+        } else {
+            for (Stroke s : a.cleared) {
+                add(s);
+            }
+        }
+        a.undone = true;
+        redo.addLast(a);
+        return true;
+    }
+
+    /**
+     * Redoes the most recently undone stroke or clear.
+     *
+     * @return <code>false</code> if there was nothing to redo
+     */
+    public synchronized boolean redo() {
+        Action a = redo.pollLast();
+        if (a == null) {
+            return false;
+        }
+        if (a.cleared == null) {
+            if (a.added != null) {
+                add(a.added);
+            }
+        } else {
+            for (Stroke s : a.cleared) {
+                remove(s);
+            }
+        }
+        a.undone = false;
+        undo.addLast(a);
+        return true;
+    }
+
+    /**
+     * Forgets the oldest steps beyond the given counts, so a
+     * <code>Scene</code> keeps no more history than the raster it follows.
+     *
+     * @param undoSteps The most steps to keep for undo
+     * @param redoSteps The most steps to keep for redo
+     */
+    public synchronized void trim(int undoSteps, int redoSteps) {
+        while (undo.size() > undoSteps) {
+            undo.pollFirst();
+        }
+        while (redo.size() > redoSteps) {
+            redo.pollFirst();
+        }
+    }
+
+    /**
+     * Returns the number of strokes in the drawing.
+     *
+     * @return The number of strokes
+     */
+    public synchronized int size() {
+        return strokes.size();
+    }
+
+    /**
+     * Returns the number of indexed pieces the strokes were split into.
+     *
+     * @return The number of pieces
+     */
+    public synchronized int pieces() {
+        return pieces;
+    }
+
+    private void add(Stroke s) {
+        strokes.add(s);
+        s.shown = true;
+        for (Piece p : s.pieces) {
+            insert(p);
+        }
+    }
+
+    private void remove(Stroke s) {
+        //Undo almost always removes the newest stroke, so search from the end
+        strokes.remove(strokes.lastIndexOf(s));
+        s.shown = false;
+        for (Piece p : s.pieces) {
+            if (p.node != null) {
+                p.node.remove(p);
+                pieces--;
+            }
+        }
+    }
+
+    private void insert(Piece p) {
+        Node n = root;
+        while (n.depth < MAX_DEPTH) {
+            int q = n.quarter(p);
+            if (q < 0) {
+                break;
+            }
+            n = n.child(q);
+        }
+        n.add(p);
+        pieces++;
+    }
+
+    /**
+     * Collects every piece of the strokes on a layer with a number of
+     * segments whose bounding box meets the given box.
+     */
+    private synchronized void query(double minX, double minY, double maxX, double maxY, Layer layer, int segments,
+            List<Piece> out) {
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node n = stack.pop();
+            for (int i = 0; i < n.count; i++) {
+                Piece p = n.items[i];
+                if (p.minX <= maxX && p.maxX >= minX && p.minY <= maxY && p.maxY >= minY
+                        && p.stroke.layer == layer && p.stroke.segments == segments) {
+                    out.add(p);
+                }
+            }
+            if (n.children != null) {
+                for (Node c : n.children) {
+                    if (c != null && c.cx - c.half <= maxX && c.cx + c.half >= minX
+                            && c.cy - c.half <= maxY && c.cy + c.half >= minY) {
+                        stack.push(c);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the numbers of segments of the strokes on each layer, in the
+     * order the layers and numbers were first drawn with.
+     */
+    private synchronized Map<Layer, List<Integer>> groups() {
+        Map<Layer, List<Integer>> groups = new LinkedHashMap<>();
+        for (Stroke s : strokes) {
+            List<Integer> segments = groups.computeIfAbsent(s.layer, l -> new ArrayList<>(1));
+            if (!segments.contains(s.segments)) {
+                segments.add(s.segments);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Draws the strokes on one layer with one number of segments that reach
+     * a region of a <code>Canvas</code>, leaving the pixels outside the
+     * region untouched.
+     *
+     * @param c The <code>Canvas</code> to draw into
+     * @param region The region of the <code>Canvas</code> to draw
+     * @param cx The x coordinate of the centre of the drawing on the
+     * <code>Canvas</code>
+     * @param cy The y coordinate of the centre of the drawing
+     * @param scale The number of pixels drawn for each pixel of the
+     * <code>Scene</code>
+     * @param layer The layer whose strokes are drawn
+     * @param symmetry The rotation table to copy the strokes with, whose
+     * number of segments chooses the strokes drawn
+     * @param rgb The RGB colour to draw in
+     * @param antialias <code>true</code> to draw anti-aliased lines
+     */
+    public void render(Canvas c, Rectangle region, int cx, int cy, double scale, Layer layer, Symmetry symmetry,
+            int rgb, boolean antialias) {
+        Rectangle clip = region.intersection(new Rectangle(0, 0, c.getWidth(), c.getHeight()));
+        if (clip.isEmpty()) {
+            return;
+        }
+        //The region relative to the centre, in Scene pixels, padded for rounding
+        double x0 = (clip.x - cx - 2) / scale, x1 = (clip.x + clip.width - cx + 2) / scale;
+        double y0 = (clip.y - cy - 2) / scale, y1 = (clip.y + clip.height - cy + 2) / scale;
+        double[] corners = {x0, y0, x1, y0, x0, y1, x1, y1};
+        double[] m = new double[2];
+        List<Piece> found = new ArrayList<>();
+        long[] scratch = new long[1024];
+        for (int k = 0; k < symmetry.copies(); k++) {
+            double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+            double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+            for (int i = 0; i < corners.length; i += 2) {
+                symmetry.inverse(k, corners[i], corners[i + 1], m);
+                minX = Math.min(minX, m[0]);
+                maxX = Math.max(maxX, m[0]);
+                minY = Math.min(minY, m[1]);
+                maxY = Math.max(maxY, m[1]);
+            }
+            found.clear();
+            query(minX, minY, maxX, maxY, layer, symmetry.getSegments(), found);
+            for (Piece p : found) {
+                scratch = draw(c, clip, p, k, cx, cy, scale, symmetry, rgb, antialias, scratch);
+            }
+        }
+    }
+
+    /**
+     * Draws every stroke onto a whole white <code>Canvas</code>, blending
+     * the visible layers from the bottom up in their colours and opacities
+     * as a <code>LayerStack</code> does. Each layer is drawn one region per
+     * task; a layer that isn't opaque is drawn into a canvas of its own
+     * first and then blended in. The <code>Canvas</code> must have no tile
+     * guards, since the regions are drawn in parallel.
+     *
+     * @param c The <code>Canvas</code> to draw into
+     * @param cx The x coordinate of the centre of the drawing on the
+     * <code>Canvas</code>
+     * @param cy The y coordinate of the centre of the drawing
+     * @param scale The number of pixels drawn for each pixel of the
+     * <code>Scene</code>
+     * @param layers The layers the strokes were drawn on, from the bottom up
+     * @param antialias <code>true</code> to draw anti-aliased lines
+     * @param pool The pool to run the region tasks on
+     * @param tileSize The side length of a region in pixels
+     */
+    public void render(Canvas c, int cx, int cy, double scale, List<Layer> layers, boolean antialias,
+            ForkJoinPool pool, int tileSize) {
+        Map<Layer, List<Integer>> groups = groups();
+        Canvas ink = null;
+        for (Layer l : layers) {
+            List<Integer> segments = groups.get(l);
+            if (segments == null || !l.isVisible() || l.getOpacity() == 0) {
+                continue;
+            }
+            //Drawing straight over the layers below blends as the composite does when opaque
+            boolean opaque = l.getOpacity() == 255;
+            if (!opaque) {
+                if (ink == null) {
+                    ink = new RasterCanvas(c.getWidth(), c.getHeight());
+                }
+                ink.fill(WHITE);
+            }
+            for (int s : segments) {
+                render(opaque ? c : ink, cx, cy, scale, l, new Symmetry(s), opaque ? l.getColour() : 0,
+                        antialias, pool, tileSize);
+            }
+            if (!opaque) {
+                blend(c, ink, l.getColour(), l.getOpacity());
+            }
+        }
+    }
+
+    private void render(Canvas c, int cx, int cy, double scale, Layer layer, Symmetry symmetry, int rgb,
+            boolean antialias, ForkJoinPool pool, int tileSize) {
+        int tilesX = (c.getWidth() + tileSize - 1) / tileSize;
+        int tilesY = (c.getHeight() + tileSize - 1) / tileSize;
+
+        class RegionTask extends RecursiveAction {
+
+            private static final long serialVersionUID = 1L;
+
+            private final int from, to;
+
+            RegionTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= 2) {
+                    for (int t = from; t < to; t++) {
+                        Rectangle r = new Rectangle((t % tilesX) * tileSize, (t / tilesX) * tileSize, tileSize, tileSize);
+                        render(c, r, cx, cy, scale, layer, symmetry, rgb, antialias);
+                    }
+                } else {
+                    int mid = (from + to) >>> 1;
+                    invokeAll(new RegionTask(from, mid), new RegionTask(mid, to));
+                }
+            }
+        }
+        pool.invoke(new RegionTask(0, tilesX * tilesY));
+    }
+
+    /**
+     * Blends black on white ink into a <code>Canvas</code> in a colour, with
+     * its coverage scaled by an opacity.
+     */
+    private static void blend(Canvas c, Canvas ink, int rgb, int opacity) {
+        int[] tile = new int[Canvas.TILE_SIZE * Canvas.TILE_SIZE];
+        int[] cover = new int[tile.length];
+        for (int t = 0; t < c.getTilesX() * c.getTilesY(); t++) {
+            ink.readTile(t, cover);
+            c.readTile(t, tile);
+            boolean changed = false;
+            for (int i = 0; i < tile.length; i++) {
+                int a = (255 - (cover[i] & 0xFF)) * opacity / 255;
+                if (a != 0) {
+                    tile[i] = Canvas.blend(tile[i], rgb, a);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                c.writeTile(t, tile);
+            }
+        }
+    }
+
+    /**
+     * Draws one copy of a piece, keeping only the pixels inside the clip.
+     * Each segment is clipped first, so a long one costs a region only the
+     * steps that cross it.
+     */
+    private static long[] draw(Canvas c, Rectangle clip, Piece p, int copy, int cx, int cy, double scale,
+            Symmetry symmetry, int rgb, boolean antialias, long[] scratch) {
+        int left = clip.x, top = clip.y, right = clip.x + clip.width, bottom = clip.y + clip.height;
+        double[] a = new double[2];
+        float[] xy = p.xy;
+        symmetry.transform(copy, xy[0] * scale, xy[1] * scale, a);
+        double px = a[0], py = a[1];
+        if (xy.length == 2 || (p.first && antialias)) {
+            int x = (int) (.5 + px) + cx;
+            int y = (int) (.5 + py) + cy;
+            if (x >= left && x < right && y >= top && y < bottom) {
+                c.plot(x, y, rgb);
+            }
+            if (xy.length == 2) {
+                return scratch;
+            }
+        }
+        for (int i = 2; i < xy.length; i += 2) {
+            symmetry.transform(copy, xy[i] * scale, xy[i + 1] * scale, a);
+            double qx = a[0], qy = a[1];
+            int need = LineRasterizer.capacity(Math.hypot(qx - px, qy - py));
+            if (scratch.length < need) {
+                scratch = new long[need];
+            }
+            int count = antialias
+                    ? LineRasterizer.wu(px, py, qx, qy, left - cx, top - cy, right - cx, bottom - cy, scratch, 0)
+                    : LineRasterizer.bresenham((int) (.5 + px), (int) (.5 + py), (int) (.5 + qx), (int) (.5 + qy),
+                            i == 2, left - cx, top - cy, right - cx, bottom - cy, scratch, 0);
+            for (int j = 0; j < count; j++) {
+                long q = scratch[j];
+                int x = PointBuffer.x(q) + cx;
+                int y = PointBuffer.y(q) + cy;
+                if (x >= left && x < right && y >= top && y < bottom) {
+                    c.plot(x, y, rgb, PointBuffer.alpha(q));
+                }
+            }
+            px = qx;
+            py = qy;
+        }
+        return scratch;
+    }
+
+    /**
+     * Writes the drawing as an SVG image, with one group per layer from the
+     * bottom up in its colour and opacity, and hidden layers kept but not
+     * shown. The master strokes are written once for each number of
+     * segments on a layer, and every copy of the symmetry refers to them
+     * with a transform, so the file grows with the strokes drawn rather than
+     * with the copies.
+     *
+     * @param out The writer to write to
+     * @param width The width of the image in pixels
+     * @param height The height of the image in pixels
+     * @param scale The number of pixels drawn for each pixel of the
+     * <code>Scene</code>
+     * @param layers The layers the strokes were drawn on
+     * @throws IOException If the writer fails
+     */
+    public synchronized void writeSvg(Writer out, int width, int height, double scale, LayerStack layers)
+            throws IOException {
+        Map<Layer, List<Integer>> groups = groups();
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\""
+                + width + "\" height=\"" + height + "\" viewBox=\"0 0 " + width + " " + height + "\">\n");
+        out.write("<rect width=\"100%\" height=\"100%\" fill=\"white\"/>\n");
+        out.write("<defs>\n");
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < layers.size(); i++) {
+            Layer l = layers.get(i);
+            for (int segments : groups.getOrDefault(l, new ArrayList<>())) {
+                out.write("<g id=\"l" + i + "s" + segments + "\" fill=\"none\" stroke-width=\"1\""
+                        + " stroke-linecap=\"round\" stroke-linejoin=\"round\">\n");
+                for (Stroke s : strokes) {
+                    if (s.layer == l && s.segments == segments) {
+                        b.setLength(0);
+                        polyline(b, s, scale);
+                        out.append(b);
+                    }
+                }
+                out.write("</g>\n");
+            }
+        }
+        out.write("</defs>\n");
+        out.write("<g transform=\"translate(" + width / 2.0 + " " + height / 2.0 + ")\">\n");
+        for (int i = 0; i < layers.size(); i++) {
+            Layer l = layers.get(i);
+            out.write("<g id=\"layer" + i + "\" stroke=\"" + String.format("#%06x", l.getColour()) + "\""
+                    + (l.getOpacity() == 255 ? "" : " opacity=\"" + round(l.getOpacity() / 255.0) + "\"")
+                    + (l.isVisible() ? "" : " display=\"none\"") + ">\n");
+            out.write("<title>" + escape(l.getName()) + "</title>\n");
+            for (int segments : groups.getOrDefault(l, new ArrayList<>())) {
+                for (int k = 0; k < segments; k++) {
+                    double angle = 360.0 * k / segments;
+                    //Nearby copies are reflected across the x axis before rotating
+                    out.write("<use xlink:href=\"#l" + i + "s" + segments + "\" transform=\"rotate(" + round(angle)
+                            + ") scale(1 -1)\"/>\n");
+                    out.write("<use xlink:href=\"#l" + i + "s" + segments + "\" transform=\"rotate(" + round(angle)
+                            + ")\"/>\n");
+                }
+            }
+            out.write("</g>\n");
+        }
+        out.write("</g>\n</svg>\n");
+    }
+
+    private static void polyline(StringBuilder b, Stroke s, double scale) {
+        b.append("<polyline points=\"");
+        for (int i = 0; i < s.pieces.size(); i++) {
+            float[] xy = s.pieces.get(i).xy;
+            //Pieces after the first repeat the last point of the one before
+            for (int j = i == 0 ? 0 : 2; j < xy.length; j += 2) {
+                b.append(round(xy[j] * scale)).append(',').append(round(xy[j + 1] * scale)).append(' ');
+            }
+            if (i == 0 && xy.length == 2) {
+                //A zero length line with round caps draws a dot
+                b.append(round(xy[0] * scale)).append(',').append(round(xy[1] * scale)).append(' ');
+            }
+        }
+        b.setLength(b.length() - 1);
+        b.append("\"/>\n");
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /**
+     * Writes the master strokes of the visible layers in the stroke file
+     * format read by <code>BatchRender</code>, from the bottom layer up. The
+     * strokes of each layer with each number of segments follow a
+     * <code>layer</code> line giving their colour and segments.
+     *
+     * @param out The writer to write to
+     * @param layers The layers the strokes were drawn on
+     * @throws IOException If the writer fails
+     */
+    public synchronized void writeStrokes(Writer out, LayerStack layers) throws IOException {
+        Map<Layer, List<Integer>> groups = groups();
+        out.write("# Rotary Mandala strokes, one x y point per line from the centre\n");
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < layers.size(); i++) {
+            Layer l = layers.get(i);
+            if (!l.isVisible() || l.getOpacity() == 0) {
+                continue;
+            }
+            for (int segments : groups.getOrDefault(l, new ArrayList<>())) {
+                out.write("# " + l.getName() + "\n");
+                out.write("layer " + String.format("%06x", l.getColour()) + " " + segments + "\n\n");
+                for (Stroke s : strokes) {
+                    if (s.layer != l || s.segments != segments) {
+                        continue;
+                    }
+                    b.setLength(0);
+                    for (int j = 0; j < s.pieces.size(); j++) {
+                        float[] xy = s.pieces.get(j).xy;
+                        for (int k = j == 0 ? 0 : 2; k < xy.length; k += 2) {
+                            b.append(xy[k]).append(' ').append(xy[k + 1]).append('\n');
+                        }
+                    }
+                    b.append('\n');
+                    out.append(b);
+                }
+            }
+        }
+    }
+
+    private static double round(double v) {
+        return Math.round(v * 100) / 100.0;
+    }
+}
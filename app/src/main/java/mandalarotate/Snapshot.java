@@ -0,0 +1,285 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A consistent, copy-on-write view of a region of a <code>Canvas</code> at
+ * the moment it was taken. Taking a snapshot copies nothing: every tile of
+ * the region is armed, and a tile is only copied when the <code>Canvas</code>
+ * is about to write into it, or when the reader gets to it first. Drawing can
+ * therefore carry on while the snapshot is read on another thread.
+ * <p>
+ * Whichever thread copies a tile first publishes its copy with a
+ * compare-and-set. The writing thread only writes into a tile after a copy
+ * has been published, so every copy holds the pixels as they were when the
+ * snapshot was taken.
+ * <p>
+ * However many snapshots of a <code>Canvas</code> are open, they share a
+ * single guard on it, which copies a tile once for all of the snapshots that
+ * still need it. Snapshots therefore never run out of guard slots, and the
+ * guard is removed again once the last of them is closed.
+ *
+ * @author chasehanson
+ */
+public class Snapshot {
+
+    /**
+     * Receives the rows of a snapshot in order.
+     */
+    public interface RowSink {
+
+        /**
+         * Receives one row of the snapshot.
+         *
+         * @param rgb The RGB pixels of the row, valid only during the call
+         * @param done The number of rows received so far, including this one
+         * @throws IOException If the row can't be written
+         */
+        void row(int[] rgb, int done) throws IOException;
+    }
+
+    /**
+     * Marks a tile that has been read and no longer needs a copy.
+     */
+    private static final int[] RELEASED = new int[0];
+
+    private static final int TILE_PIXELS = Canvas.TILE_SIZE * Canvas.TILE_SIZE;
+
+    /**
+     * The guard shared by the open snapshots of each <code>Canvas</code>.
+     * Snapshots of different canvases may be taken on different threads.
+     */
+    private static final Map<Canvas, Copier> COPIERS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Copies each tile about to be written for every open snapshot that
+     * keeps it and hasn't got a copy yet. Only used on the thread that
+     * writes to its <code>Canvas</code>.
+     */
+    private static final class Copier implements Canvas.TileGuard {
+
+        private final List<Snapshot> open = new ArrayList<>();
+
+        @Override
+        public void beforeWrite(Canvas c, int tile) {
+            int[] copy = null;
+            for (Snapshot s : open) {
+                if (s.kept.get(tile) && s.copies.get(tile) == null) {
+                    if (copy == null) {
+                        copy = new int[TILE_PIXELS];
+                        c.readTile(tile, copy);
+                    }
+                    //Copies are never written to, so the snapshots can share one
+                    s.copies.compareAndSet(tile, null, copy);
+                }
+            }
+        }
+    }
+
+    private final Canvas canvas;
+
+    private final Rectangle region;
+
+    /**
+     * The tiles this snapshot keeps.
+     */
+    private final BitSet kept;
+
+    private final AtomicReferenceArray<int[]> copies;
+
+    private Snapshot(Canvas canvas, Rectangle region, BitSet kept) {
+        this.canvas = canvas;
+        this.region = region;
+        this.kept = kept;
+        copies = new AtomicReferenceArray<>(canvas.getTilesX() * canvas.getTilesY());
+    }
+
+    /**
+     * Opens a snapshot keeping the given tiles, adding the shared guard to
+     * the <code>Canvas</code> if it is the first.
+     */
+    private static Snapshot open(Canvas c, Rectangle region, BitSet kept) {
+        Snapshot s = new Snapshot(c, region, kept);
+        Copier copier = COPIERS.get(c);
+        if (copier == null) {
+            copier = new Copier();
+            c.addGuard(copier);
+            COPIERS.put(c, copier);
+        }
+        copier.open.add(s);
+        for (int t = kept.nextSetBit(0); t >= 0; t = kept.nextSetBit(t + 1)) {
+            c.arm(copier, t);
+        }
+        return s;
+    }
+
+    /**
+     * Takes a snapshot of a region of a <code>Canvas</code>. Must be called
+     * on the thread that writes to the <code>Canvas</code>.
+     *
+     * @param c The <code>Canvas</code> to take a snapshot of
+     * @param region The region to keep, which must lie on the
+     * <code>Canvas</code>
+     * @return The snapshot
+     */
+    public static Snapshot take(Canvas c, Rectangle region) {
+        BitSet kept = new BitSet();
+        int tx0 = region.x >> Canvas.TILE_SHIFT;
+        int ty0 = region.y >> Canvas.TILE_SHIFT;
+        int tx1 = (region.x + region.width - 1) >> Canvas.TILE_SHIFT;
+        int ty1 = (region.y + region.height - 1) >> Canvas.TILE_SHIFT;
+        for (int ty = ty0; ty <= ty1; ty++) {
+            kept.set(ty * c.getTilesX() + tx0, ty * c.getTilesX() + tx1 + 1);
+        }
+        return open(c, new Rectangle(region), kept);
+    }
+
+    /**
+     * Takes a snapshot of some of the tiles of a <code>Canvas</code>, which
+     * can then only be read a tile at a time. Must be called on the thread
+     * that writes to the <code>Canvas</code>.
+     *
+     * @param c The <code>Canvas</code> to take a snapshot of
+     * @param tiles The indices of the tiles to keep
+     * @return The snapshot
+     */
+    public static Snapshot take(Canvas c, BitSet tiles) {
+        return open(c, new Rectangle(0, 0, c.getWidth(), c.getHeight()), (BitSet) tiles.clone());
+    }
+
+    /**
+     * Copies one tile of the snapshot, laid out as by
+     * <code>Canvas.readTile</code> with any part beyond the
+     * <code>Canvas</code> zeroed, then drops its copy. The tile must have been
+     * kept, and may be read on any thread, but only once.
+     *
+     * @param tile The index of the tile
+     * @param out The array to copy into, at least
+     * <code>TILE_SIZE * TILE_SIZE</code> long
+     */
+    public void readTile(int tile, int[] out) {
+        System.arraycopy(tile(tile), 0, out, 0, TILE_PIXELS);
+        copies.set(tile, RELEASED);
+    }
+
+    /**
+     * Returns the width of the snapshot in pixels.
+     *
+     * @return The width
+     */
+    public int getWidth() {
+        return region.width;
+    }
+
+    /**
+     * Returns the height of the snapshot in pixels.
+     *
+     * @return The height
+     */
+    public int getHeight() {
+        return region.height;
+    }
+
+    private int[] tile(int t) {
+        int[] copy = copies.get(t);
+        if (copy == null) {
+            copy = new int[TILE_PIXELS];
+            canvas.readTile(t, copy);
+            if (!copies.compareAndSet(t, null, copy)) {
+                copy = copies.get(t);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Reads every row of the snapshot, one band of tiles at a time. Each
+     * band's copies are dropped as soon as it has been read, so at most one
+     * band plus the tiles written to since the snapshot are held at once.
+     * May be called on any thread, but only once.
+     *
+     * @param bottomUp <code>true</code> to read the last row first
+     * @param sink Receives each row
+     * @throws IOException If the sink fails
+     */
+    public void readRows(boolean bottomUp, RowSink sink) throws IOException {
+        int tilesX = canvas.getTilesX();
+        int tx0 = region.x >> Canvas.TILE_SHIFT;
+        int tx1 = (region.x + region.width - 1) >> Canvas.TILE_SHIFT;
+        int ty0 = region.y >> Canvas.TILE_SHIFT;
+        int ty1 = (region.y + region.height - 1) >> Canvas.TILE_SHIFT;
+        int[][] band = new int[tx1 - tx0 + 1][];
+        int[] row = new int[region.width];
+        int done = 0;
+
+        for (int k = 0; k <= ty1 - ty0; k++) {
+            int ty = bottomUp ? ty1 - k : ty0 + k;
+            for (int tx = tx0; tx <= tx1; tx++) {
+                band[tx - tx0] = tile(ty * tilesX + tx);
+            }
+            int top = Math.max(region.y, ty << Canvas.TILE_SHIFT);
+            int bottom = Math.min(region.y + region.height, (ty + 1) << Canvas.TILE_SHIFT);
+            for (int j = 0; j < bottom - top; j++) {
+                int y = bottomUp ? bottom - 1 - j : top + j;
+                int offset = (y & (Canvas.TILE_SIZE - 1)) * Canvas.TILE_SIZE;
+                for (int x = 0; x < region.width; x++) {
+                    int cx = region.x + x;
+                    row[x] = band[(cx >> Canvas.TILE_SHIFT) - tx0][offset + (cx & (Canvas.TILE_SIZE - 1))];
+                }
+                sink.row(row, ++done);
+            }
+            for (int tx = tx0; tx <= tx1; tx++) {
+                copies.set(ty * tilesX + tx, RELEASED);
+            }
+        }
+    }
+
+    /**
+     * Stops copying tiles for this snapshot, and removes the shared guard
+     * from the <code>Canvas</code> if no other snapshot of it is open.
+     *
+     * @param writer Runs tasks on the thread that writes to the
+     * <code>Canvas</code>
+     */
+    public void close(Executor writer) {
+        writer.execute(() -> {
+            Copier copier = COPIERS.get(canvas);
+            if (copier != null && copier.open.remove(this) && copier.open.isEmpty()) {
+                canvas.removeGuard(copier);
+                COPIERS.remove(canvas);
+            }
+        });
+    }
+}
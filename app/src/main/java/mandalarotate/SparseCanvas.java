@@ -0,0 +1,367 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * A <code>Canvas</code> on the heap that only allocates the tiles that are
+ * drawn on. Every other tile is blank: it holds nothing but the background
+ * colour, which costs no memory at all, so a new canvas or one that has just
+ * been filled costs time and memory in proportion to what is drawn on it
+ * rather than to its size.
+ * <p>
+ * A tile is allocated the first time it is written to, as a
+ * <code>BufferedImage</code> of its own so that it can be drawn straight to
+ * the screen. Filling the whole canvas only changes the background and moves
+ * on to a new generation: tiles written in an earlier one read as blank, and
+ * their pixels are reused when they are written to again. Filling a whole
+ * tile with the background makes it blank too. Writes to different tiles may
+ * be made from different threads, as long as the tiles are not guarded.
+ *
+ * @author chasehanson
+ */
+public class SparseCanvas extends Canvas {
+
+    private static final int TILE_PIXELS = TILE_SIZE * TILE_SIZE;
+
+    private static final int TILE_MASK = TILE_SIZE - 1;
+
+    private final BufferedImage[] images;
+
+    private final int[][] tiles;
+
+    /**
+     * The generation each tile was last allocated in. Only the tiles of the
+     * current generation hold pixels of their own.
+     */
+    private final int[] generations;
+
+    private int generation = 1;
+
+    private int background;
+
+    /**
+     * Constructs a new <code>SparseCanvas</code> of the given size. The pixels
+     * start out black, and no tile is allocated.
+     *
+     * @param width The width of the <code>Canvas</code> in pixels
+     * @param height The height of the <code>Canvas</code> in pixels
+     */
+    public SparseCanvas(int width, int height) {
+        super(width, height);
+        images = new BufferedImage[tilesX * tilesY];
+        tiles = new int[tilesX * tilesY][];
+        generations = new int[tilesX * tilesY];
+    }
+
+    /**
+     * Returns the colour of every blank tile.
+     *
+     * @return The RGB background colour
+     */
+    public int getBackground() {
+        return background;
+    }
+
+    @Override
+    public boolean isBlank(int tile) {
+        return generations[tile] != generation;
+    }
+
+    /**
+     * Returns the pixels of a tile to be written to, allocating them or
+     * taking them into the current generation as the background first. The
+     * guards must already have been told.
+     */
+    private int[] tile(int t) {
+        int[] p = tiles[t];
+        if (generations[t] != generation) {
+            if (p == null) {
+                BufferedImage im = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+                p = ((DataBufferInt) im.getRaster().getDataBuffer()).getData();
+                images[t] = im;
+                tiles[t] = p;
+            }
+            Arrays.fill(p, background);
+            generations[t] = generation;
+        }
+        return p;
+    }
+
+    private static int index(int x, int y) {
+        return ((y & TILE_MASK) << TILE_SHIFT) + (x & TILE_MASK);
+    }
+
+    @Override
+    public void readTile(int tile, int[] out) {
+        if (isBlank(tile)) {
+            Arrays.fill(out, 0, TILE_PIXELS, background);
+        } else {
+            System.arraycopy(tiles[tile], 0, out, 0, TILE_PIXELS);
+        }
+    }
+
+    @Override
+    public void writeTile(int tile, int[] in) {
+        touch(tile);
+        System.arraycopy(in, 0, tile(tile), 0, TILE_PIXELS);
+    }
+
+    @Override
+    public void readRect(int x, int y, int w, int h, int[] out, int offset, int scan) {
+        for (int j = 0; j < h; j++) {
+            int row = y + j;
+            int dst = offset + j * scan;
+            for (int i = x; i < x + w;) {
+                int t = tileAt(i, row);
+                int n = Math.min(TILE_SIZE - (i & TILE_MASK), x + w - i);
+                if (isBlank(t)) {
+                    Arrays.fill(out, dst, dst + n, background);
+                } else {
+                    System.arraycopy(tiles[t], index(i, row), out, dst, n);
+                }
+                dst += n;
+                i += n;
+            }
+        }
+    }
+
+    @Override
+    public void writeRect(int x, int y, int w, int h, int[] in, int offset, int scan) {
+        touch(x >> TILE_SHIFT, y >> TILE_SHIFT, (x + w - 1) >> TILE_SHIFT, (y + h - 1) >> TILE_SHIFT);
+        for (int j = 0; j < h; j++) {
+            int row = y + j;
+            int src = offset + j * scan;
+            for (int i = x; i < x + w;) {
+                int t = tileAt(i, row);
+                int n = Math.min(TILE_SIZE - (i & TILE_MASK), x + w - i);
+                System.arraycopy(in, src, tile(t), index(i, row), n);
+                src += n;
+                i += n;
+            }
+        }
+    }
+
+    @Override
+    public int get(int x, int y) {
+        if (!contains(x, y)) {
+            return 0;
+        }
+        int t = tileAt(x, y);
+        return isBlank(t) ? background : tiles[t][index(x, y)];
+    }
+
+    /**
+     * Makes every tile blank in the given colour. Only the guards of tiles
+     * whose pixels change are told, which is none of the blank ones if the
+     * background stays the same.
+     *
+     * @param rgb The RGB colour to fill with
+     */
+    @Override
+    public void fill(int rgb) {
+        for (int t = 0; t < tiles.length; t++) {
+            if (armed[t] != 0 && (rgb != background || !isBlank(t))) {
+                touch(t);
+            }
+        }
+        background = rgb;
+        generation++;
+    }
+
+    @Override
+    public void fillRect(int x, int y, int w, int h, int rgb) {
+        int x0 = Math.max(x, 0);
+        int y0 = Math.max(y, 0);
+        int x1 = (int) Math.min((long) x + w, width);
+        int y1 = (int) Math.min((long) y + h, height);
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        for (int ty = y0 >> TILE_SHIFT; ty <= (y1 - 1) >> TILE_SHIFT; ty++) {
+            int top = Math.max(y0, ty << TILE_SHIFT);
+            int bottom = Math.min(y1, (ty + 1) << TILE_SHIFT);
+            for (int tx = x0 >> TILE_SHIFT; tx <= (x1 - 1) >> TILE_SHIFT; tx++) {
+                int t = ty * tilesX + tx;
+                if (rgb == background && isBlank(t)) {
+                    continue;
+                }
+                touch(t);
+                int left = Math.max(x0, tx << TILE_SHIFT);
+                int right = Math.min(x1, (tx + 1) << TILE_SHIFT);
+                if (rgb == background && left == tx << TILE_SHIFT && top == ty << TILE_SHIFT
+                        && right == Math.min(width, (tx + 1) << TILE_SHIFT)
+                        && bottom == Math.min(height, (ty + 1) << TILE_SHIFT)) {
+                    generations[t] = 0;
+                    continue;
+                }
+                int[] p = tile(t);
+                for (int j = top; j < bottom; j++) {
+                    Arrays.fill(p, index(left, j), index(left, j) + right - left, rgb);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void plot(int x, int y, int rgb) {
+        if ((x | y) >= 0 && x < width && y < height) {
+            int t = tileAt(x, y);
+            touch(t);
+            tile(t)[index(x, y)] = rgb;
+        }
+    }
+
+    @Override
+    public void plot(int x, int y, int rgb, int alpha) {
+        if ((x | y) >= 0 && x < width && y < height) {
+            int t = tileAt(x, y);
+            touch(t);
+            set(t, x, y, rgb, alpha);
+        }
+    }
+
+    private void set(int t, int x, int y, int rgb, int alpha) {
+        int[] p = tile(t);
+        int i = index(x, y);
+        p[i] = alpha == 255 ? rgb : blend(p[i], rgb, alpha);
+    }
+
+    @Override
+    public void plot(long[] pixels, int from, int to, int dx, int dy, int rgb) {
+        for (int i = from; i < to; i++) {
+            long p = pixels[i];
+            int x = PointBuffer.x(p) + dx;
+            int y = PointBuffer.y(p) + dy;
+            if ((x | y) >= 0 && x < width && y < height) {
+                int t = tileAt(x, y);
+                if (armed[t] != 0) {
+                    touch(t);
+                }
+                set(t, x, y, rgb, PointBuffer.alpha(p));
+            }
+        }
+    }
+
+    @Override
+    public void stamp(Stamp s, int cx, int cy, int rgb, int flow) {
+        int r = s.radius;
+        int x0 = Math.max(cx - r, 0);
+        int y0 = Math.max(cy - r, 0);
+        int x1 = Math.min(cx + r + 1, width);
+        int y1 = Math.min(cy + r + 1, height);
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        touch(x0 >> TILE_SHIFT, y0 >> TILE_SHIFT, (x1 - 1) >> TILE_SHIFT, (y1 - 1) >> TILE_SHIFT);
+        int scale = flow + (flow >>> 7);
+        byte[] mask = s.mask;
+        for (int y = y0; y < y1; y++) {
+            int row = y - cy + r;
+            int from = Math.max(s.spanStart[row], x0 - cx + r);
+            int to = Math.min(s.spanEnd[row], x1 - cx + r);
+            int m = row * s.size;
+            //Blend each run of the row that lies within one tile
+            for (int i = from; i < to;) {
+                int x = cx - r + i;
+                int[] p = tile(tileAt(x, y));
+                int base = index(x, y) - i;
+                int n = Math.min(TILE_SIZE - (x & TILE_MASK), to - i);
+                for (int end = i + n; i < end; i++) {
+                    int a = (mask[m + i] & 0xFF) * scale >>> 8;
+                    if (a != 0) {
+                        p[base + i] = blend(p[base + i], rgb, a);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void plot(PointBuffer pixels, long start, long end, int dx, int dy, int rgb) {
+        for (long i = start; i < end; i++) {
+            long p = pixels.get(i);
+            int x = PointBuffer.x(p) + dx;
+            int y = PointBuffer.y(p) + dy;
+            if ((x | y) >= 0 && x < width && y < height) {
+                int t = tileAt(x, y);
+                if (armed[t] != 0) {
+                    touch(t);
+                }
+                set(t, x, y, rgb, PointBuffer.alpha(p));
+            }
+        }
+    }
+
+    /**
+     * Draws a rectangle of the <code>Canvas</code> one pixel for one pixel.
+     * Tiles that have been drawn on are drawn straight from their images,
+     * while each run of blank tiles along a row is filled with the background
+     * in one go. Must be called on the thread that writes to the
+     * <code>Canvas</code>.
+     *
+     * @param g The graphics to draw with
+     * @param x The x coordinate of the top left corner
+     * @param y The y coordinate of the top left corner
+     * @param w The width of the rectangle, which must lie on the
+     * <code>Canvas</code>
+     * @param h The height of the rectangle
+     * @param dx The x coordinate to draw the top left corner at
+     * @param dy The y coordinate to draw the top left corner at
+     */
+    public void draw(Graphics g, int x, int y, int w, int h, int dx, int dy) {
+        g.setColor(new Color(background));
+        for (int ty = y >> TILE_SHIFT; ty <= (y + h - 1) >> TILE_SHIFT; ty++) {
+            int top = Math.max(y, ty << TILE_SHIFT);
+            int bottom = Math.min(y + h, (ty + 1) << TILE_SHIFT);
+            int blank = -1;
+            for (int tx = x >> TILE_SHIFT; tx <= (x + w - 1) >> TILE_SHIFT; tx++) {
+                int t = ty * tilesX + tx;
+                int left = Math.max(x, tx << TILE_SHIFT);
+                if (isBlank(t)) {
+                    if (blank < 0) {
+                        blank = left;
+                    }
+                    continue;
+                }
+                if (blank >= 0) {
+                    g.fillRect(blank - x + dx, top - y + dy, left - blank, bottom - top);
+                    blank = -1;
+                }
+                int right = Math.min(x + w, (tx + 1) << TILE_SHIFT);
+                g.drawImage(images[t], left - x + dx, top - y + dy, right - x + dx, bottom - y + dy,
+                        left & TILE_MASK, top & TILE_MASK, (left & TILE_MASK) + right - left,
+                        (top & TILE_MASK) + bottom - top, null);
+            }
+            if (blank >= 0) {
+                g.fillRect(blank - x + dx, top - y + dy, x + w - blank, bottom - top);
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+/**
+ * The coverage mask of one dab of a round brush, worked out once so that
+ * stamping it only blends precomputed bytes. The mask is a square of
+ * <code>2 * getRadius() + 1</code> pixels centred on the dab, and each row
+ * keeps the span of pixels it covers at all, so stamping never visits the
+ * empty corners.
+ *
+ * @author chasehanson
+ */
+public class Stamp {
+
+    /**
+     * The distance from the centre pixel to the edge of the mask.
+     */
+    final int radius;
+
+    /**
+     * The width and height of the mask.
+     */
+    final int size;
+
+    /**
+     * The coverage of each pixel from 0 to 255, row by row.
+     */
+    final byte[] mask;
+
+    /**
+     * The first covered column of each row, inclusive, and the last,
+     * exclusive. An empty row has a start no less than its end.
+     */
+    final int[] spanStart, spanEnd;
+
+    /**
+     * Works out the mask of a brush. The edge is anti-aliased over one pixel,
+     * and beyond <code>hardness * radius</code> the coverage fades smoothly
+     * to nothing at the edge.
+     *
+     * @param radius The radius of the brush in pixels
+     * @param hardness The hardness of the brush, from 0 to 1
+     */
+    public Stamp(double radius, double hardness) {
+        this.radius = (int) Math.ceil(radius);
+        size = 2 * this.radius + 1;
+        mask = new byte[size * size];
+        spanStart = new int[size];
+        spanEnd = new int[size];
+        double inner = hardness * radius;
+        for (int j = 0; j < size; j++) {
+            int start = size, end = 0;
+            for (int i = 0; i < size; i++) {
+                double d = Math.hypot(i - this.radius, j - this.radius);
+                double edge = Math.max(0, Math.min(1, radius + .5 - d));
+                double fade = 1;
+                if (d > inner && inner < radius) {
+                    double t = Math.min(1, (d - inner) / (radius - inner));
+                    fade = 1 - t * t * (3 - 2 * t);
+                }
+                int a = (int) Math.round(255 * edge * fade);
+                if (a > 0) {
+                    mask[j * size + i] = (byte) a;
+                    start = Math.min(start, i);
+                    end = i + 1;
+                }
+            }
+            spanStart[j] = start;
+            spanEnd[j] = end;
+        }
+    }
+
+    /**
+     * Returns the distance from the centre pixel to the edge of the mask.
+     *
+     * @return The radius of the mask in whole pixels
+     */
+    public int getRadius() {
+        return radius;
+    }
+
+    /**
+     * Returns the coverage of a pixel of the mask.
+     *
+     * @param x The x offset from the centre
+     * @param y The y offset from the centre
+     * @return The coverage from 0 to 255, or 0 beyond the mask
+     */
+    public int coverage(int x, int y) {
+        if (Math.abs(x) > radius || Math.abs(y) > radius) {
+            return 0;
+        }
+        return mask[(y + radius) * size + x + radius] & 0xFF;
+    }
+}
@@ -0,0 +1,98 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the <code>Stamp</code>s of recently used brushes, so a mask is only
+ * worked out again once it has dropped out of the cache. Radii are quantized
+ * to half pixels and hardness to 1/64, so nearby brushes share a stamp. The
+ * least recently used stamp is evicted once <code>capacity</code> are kept.
+ * A <code>StampCache</code> must only be used from one thread; the stamps it
+ * returns never change and can be shared.
+ *
+ * @author chasehanson
+ */
+public class StampCache {
+
+    /**
+     * The number of stamps kept by default.
+     */
+    public static final int DEFAULT_CAPACITY = 32;
+
+    private final Map<Integer, Stamp> stamps;
+
+    private long hits, misses;
+
+    /**
+     * Constructs a new, empty <code>StampCache</code>.
+     *
+     * @param capacity The most stamps to keep
+     */
+    public StampCache(int capacity) {
+        stamps = new LinkedHashMap<Integer, Stamp>(16, .75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Stamp> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the stamp of a brush, working it out if it isn't kept.
+     *
+     * @param b The brush
+     * @return The stamp of the brush
+     */
+    public Stamp get(Brush b) {
+        int r = (int) Math.round(b.radius * 2);
+        int h = (int) Math.round(b.hardness * 64);
+        Integer key = r << 7 | h;
+        Stamp s = stamps.get(key);
+        if (s == null) {
+            misses++;
+            s = new Stamp(r / 2.0, h / 64.0);
+            stamps.put(key, s);
+        } else {
+            hits++;
+        }
+        return s;
+    }
+
+    /**
+     * Returns the number of stamps kept.
+     *
+     * @return The number of stamps
+     */
+    public int size() {
+        return stamps.size();
+    }
+
+    @Override
+    public String toString() {
+        return "Stamps: " + stamps.size() + " kept, " + hits + " hits, " + misses + " misses";
+    }
+}
@@ -0,0 +1,353 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Puts a <code>StrokeServer</code> under load from many simulated clients at
+ * once, all driven by one thread around a NIO <code>Selector</code>. Each
+ * drawing client wanders about the canvas in strokes, sending events at a
+ * steady rate, and each watching client subscribes and counts the tiles and
+ * frames it is sent.
+ * <p>
+ * A drawing client only makes up a new event when its socket has room for
+ * it, so when the server pushes back the events are not sent at all and are
+ * counted as throttled, which shows how much of the offered load the server
+ * is taking.
+ *
+ * @author chasehanson
+ */
+public class StrokeLoad {
+
+    /**
+     * The distance moved by each event, in pixels.
+     */
+    private static final double STEP = 3;
+
+    private static final int TILE_HEADER = 17;
+
+    /**
+     * One simulated client.
+     */
+    private static final class Sim {
+
+        private final SocketChannel channel;
+
+        private final boolean watching;
+
+        private final Random random;
+
+        private final ByteBuffer in = ByteBuffer.allocate(1 << 16);
+
+        private final ByteBuffer out = ByteBuffer.allocate(1 << 12);
+
+        private double x, y, heading;
+
+        private int moves = -1;
+
+        private long sent, throttled, tiles, frames, received;
+
+        /**
+         * The bytes of a tile still to be skipped.
+         */
+        private int skip;
+
+        Sim(SocketChannel channel, boolean watching, long seed) {
+            this.channel = channel;
+            this.watching = watching;
+            random = new Random(seed);
+        }
+    }
+
+    private final List<Sim> sims = new ArrayList<>();
+
+    private final Selector selector;
+
+    private final double rate;
+
+    private final int strokeLength;
+
+    private double radius = 400 * 0.9;
+
+    /**
+     * Constructs a new <code>StrokeLoad</code>, connecting every client.
+     *
+     * @param port The port of the server on the loopback address
+     * @param drawing The number of drawing clients
+     * @param watching The number of watching clients
+     * @param rate The events sent per second by each drawing client
+     * @param strokeLength The number of moves in each stroke
+     * @throws IOException If a client can't connect
+     */
+    public StrokeLoad(int port, int drawing, int watching, double rate, int strokeLength) throws IOException {
+        this.rate = rate;
+        this.strokeLength = strokeLength;
+        selector = Selector.open();
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        for (int i = 0; i < drawing + watching; i++) {
+            SocketChannel channel = SocketChannel.open(address);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.configureBlocking(false);
+            Sim s = new Sim(channel, i >= drawing, i);
+            channel.register(selector, SelectionKey.OP_READ, s);
+            if (s.watching) {
+                s.out.put(StrokeServer.SUBSCRIBE);
+            }
+            sims.add(s);
+        }
+    }
+
+    /**
+     * Runs the load for a while, printing what was sent and received every
+     * second.
+     *
+     * @param seconds How long to run for
+     * @throws IOException If a client fails
+     */
+    public void run(double seconds) throws IOException {
+        long start = System.nanoTime();
+        long end = start + (long) (seconds * 1e9);
+        long nextReport = start + 1_000_000_000L;
+        long[] last = new long[5];
+        long[] total = new long[5];
+        for (long now = start; now < end; now = System.nanoTime()) {
+            selector.select(2);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid() && key.isReadable()) {
+                    read((Sim) key.attachment());
+                }
+            }
+            double elapsed = (now - start) / 1e9;
+            for (Sim s : sims) {
+                if (!s.watching) {
+                    generate(s, (long) (elapsed * rate));
+                }
+                if (s.out.position() > 0) {
+                    s.out.flip();
+                    s.channel.write(s.out);
+                    s.out.compact();
+                }
+            }
+            if (now >= nextReport || System.nanoTime() >= end) {
+                sum(total);
+                System.out.printf("%,d events sent, %,d throttled, %,d tiles and %,d frames received, %,d bytes%n",
+                        total[0] - last[0], total[1] - last[1], total[2] - last[2], total[3] - last[3],
+                        total[4] - last[4]);
+                System.arraycopy(total, 0, last, 0, total.length);
+                nextReport += 1_000_000_000L;
+            }
+        }
+        sum(total);
+        long watchers = sims.stream().filter(s -> s.watching).count();
+        System.out.printf("%d clients over %.1f s: %,.0f events/s sent, %.1f%% throttled, %.1f frames/s per watcher%n",
+                sims.size(), seconds, total[0] / seconds, 100.0 * total[1] / Math.max(1, total[0] + total[1]),
+                watchers == 0 ? 0 : total[3] / seconds / watchers);
+    }
+
+    private void sum(long[] total) {
+        Arrays.fill(total, 0);
+        for (Sim s : sims) {
+            total[0] += s.sent;
+            total[1] += s.throttled;
+            total[2] += s.tiles;
+            total[3] += s.frames;
+            total[4] += s.received;
+        }
+    }
+
+    /**
+     * Makes up the events a drawing client is due to have sent by now, as
+     * far as its buffer has room.
+     */
+    private void generate(Sim s, long due) {
+        ByteBuffer out = s.out;
+        while (s.sent + s.throttled < due) {
+            if (out.remaining() < 9) {
+                s.throttled++;
+                continue;
+            }
+            if (s.moves < 0) {
+                double r = radius * Math.sqrt(s.random.nextDouble()) * 0.8;
+                double a = s.random.nextDouble() * 2 * Math.PI;
+                s.x = r * Math.cos(a);
+                s.y = r * Math.sin(a);
+                s.heading = s.random.nextDouble() * 2 * Math.PI;
+                out.put(StrokeServer.PRESS).putInt(fixed(s.x)).putInt(fixed(s.y));
+                s.moves = 0;
+            } else if (s.moves == strokeLength) {
+                out.put(StrokeServer.RELEASE);
+                s.moves = -1;
+            } else {
+                s.heading += s.random.nextGaussian() * 0.3;
+                if (Math.hypot(s.x, s.y) > radius) {
+                    //Turn back towards the centre
+                    s.heading = Math.atan2(-s.y, -s.x);
+                }
+                int dx = fixed(STEP * Math.cos(s.heading));
+                int dy = fixed(STEP * Math.sin(s.heading));
+                s.x += dx / (double) StrokeServer.SUBPIXEL;
+                s.y += dy / (double) StrokeServer.SUBPIXEL;
+                out.put(StrokeServer.MOVE_BY).putShort((short) dx).putShort((short) dy);
+                s.moves++;
+            }
+            s.sent++;
+        }
+    }
+
+    private static int fixed(double v) {
+        return (int) Math.round(v * StrokeServer.SUBPIXEL);
+    }
+
+    /**
+     * Reads and counts everything the server has sent a client.
+     */
+    private void read(Sim s) throws IOException {
+        ByteBuffer in = s.in;
+        int n;
+        while ((n = s.channel.read(in)) > 0) {
+            s.received += n;
+            in.flip();
+            parse(s);
+            in.compact();
+        }
+        if (n < 0) {
+            throw new IOException("Server closed the connection");
+        }
+    }
+
+    private void parse(Sim s) throws IOException {
+        ByteBuffer in = s.in;
+        while (true) {
+            if (s.skip > 0) {
+                int n = Math.min(s.skip, in.remaining());
+                in.position(in.position() + n);
+                s.skip -= n;
+                if (s.skip > 0) {
+                    return;
+                }
+            }
+            if (!in.hasRemaining()) {
+                return;
+            }
+            byte type = in.get(in.position());
+            switch (type) {
+                case StrokeServer.HELLO:
+                    if (in.remaining() < 13) {
+                        return;
+                    }
+                    in.get();
+                    int w = in.getInt();
+                    int h = in.getInt();
+                    in.getInt();
+                    radius = Math.min(w, h) / 2 * 0.9;
+                    break;
+                case StrokeServer.TILE:
+                    if (in.remaining() < TILE_HEADER) {
+                        return;
+                    }
+                    in.position(in.position() + TILE_HEADER - 4);
+                    s.skip = in.getInt();
+                    s.tiles++;
+                    break;
+                case StrokeServer.FRAME:
+                    if (in.remaining() < 5) {
+                        return;
+                    }
+                    in.get();
+                    in.getInt();
+                    s.frames++;
+                    break;
+                default:
+                    throw new IOException("Unknown message type: " + type);
+            }
+        }
+    }
+
+    /**
+     * Disconnects every client.
+     *
+     * @throws IOException If a connection can't be closed
+     */
+    public void close() throws IOException {
+        for (Sim s : sims) {
+            s.channel.close();
+        }
+        selector.close();
+    }
+
+    /**
+     * @param args Optionally <code>port=N</code>, <code>clients=N</code>
+     * drawing clients, <code>watchers=N</code> watching clients,
+     * <code>rate=N</code> events per second per drawing client,
+     * <code>stroke=N</code> moves per stroke and <code>seconds=N</code>
+     * @throws IOException If a client fails
+     */
+    public static void main(String[] args) throws IOException {
+        int port = StrokeServer.DEFAULT_PORT;
+        int clients = 200;
+        int watchers = 8;
+        double rate = 120;
+        int stroke = 200;
+        double seconds = 10;
+        for (String arg : args) {
+            if (arg.startsWith("port=")) {
+                port = Integer.parseInt(arg.substring(5));
+            } else if (arg.startsWith("clients=")) {
+                clients = Integer.parseInt(arg.substring(8));
+            } else if (arg.startsWith("watchers=")) {
+                watchers = Integer.parseInt(arg.substring(9));
+            } else if (arg.startsWith("rate=")) {
+                rate = Double.parseDouble(arg.substring(5));
+            } else if (arg.startsWith("stroke=")) {
+                stroke = Integer.parseInt(arg.substring(7));
+            } else if (arg.startsWith("seconds=")) {
+                seconds = Double.parseDouble(arg.substring(8));
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        StrokeLoad load = new StrokeLoad(port, clients, watchers, rate, stroke);
+        try {
+            load.run(seconds);
+        } finally {
+            load.close();
+        }
+    }
+}
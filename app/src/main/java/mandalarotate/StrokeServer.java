@@ -0,0 +1,697 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Serves one shared <code>Mandala</code> to many drawing clients over TCP, so
+ * a wall display can be drawn on from many tablets at once. Clients send
+ * strokes in a compact binary protocol, and subscribers are sent every tile
+ * of the canvas that changes.
+ * <p>
+ * Everything runs on one thread around a NIO <code>Selector</code>, which is
+ * also the only thread adding points to and offloading the
+ * <code>Mandala</code>. Once every <code>FRAME_INTERVAL</code> the queued
+ * events of each client are fed through a <code>Pen</code> of its own, at
+ * most <code>FRAME_EVENTS</code> per client so no client can starve the
+ * others, and the points are offloaded. The tiles of the composite written
+ * during the frame are found with a <code>TileGuard</code>, and the guard is
+ * re-armed as they are sent.
+ * <p>
+ * The protocol is big-endian and every message starts with a type byte.
+ * Coordinates are in sixteenths of a pixel from the centre of the canvas.
+ * From the client:
+ * <ul>
+ * <li><code>PRESS x:int y:int</code> starts a stroke</li>
+ * <li><code>MOVE x:int y:int</code> continues it to a point</li>
+ * <li><code>MOVE_BY dx:short dy:short</code> continues it by an offset from
+ * the last point</li>
+ * <li><code>RELEASE</code> ends it</li>
+ * <li><code>SUBSCRIBE</code> asks for the whole canvas, then its changes</li>
+ * </ul>
+ * To the client:
+ * <ul>
+ * <li><code>HELLO width:int height:int segments:int</code> on connecting,
+ * giving the size of the canvas including its border. The origin of the
+ * stroke coordinates is the pixel at half the width and height, rounded
+ * down</li>
+ * <li><code>TILE x:int y:int w:short h:short length:int data</code> with the
+ * RGB bytes of a rectangle of the canvas at <code>x, y</code>, row by row and
+ * deflated</li>
+ * <li><code>FRAME number:int</code> once every changed tile up to that frame
+ * has been sent</li>
+ * </ul>
+ * Back-pressure works differently in each direction. Each client's events
+ * wait in a queue of <code>QUEUE</code> events; while it is full the server
+ * stops reading from that client, so its socket buffers fill and its writes
+ * block or fail, and no event is ever dropped. Subscribers are never queued
+ * deltas: each remembers only which tiles it is owed, and is sent the
+ * latest pixels of those tiles whenever its socket has room for them. A slow
+ * subscriber therefore skips intermediate states rather than falling behind,
+ * and costs at most one bit per tile plus an output buffer of
+ * <code>OUT_BUFFER</code> bytes.
+ *
+ * @author chasehanson
+ */
+public class StrokeServer implements Runnable, Closeable {
+
+    /**
+     * Message types sent by clients.
+     */
+    public static final byte PRESS = 1, MOVE = 2, MOVE_BY = 3, RELEASE = 4, SUBSCRIBE = 5;
+
+    /**
+     * Message types sent by the server.
+     */
+    public static final byte HELLO = 16, TILE = 17, FRAME = 18;
+
+    /**
+     * Coordinates are sent in fractions of a pixel.
+     */
+    public static final int SUBPIXEL = 16;
+
+    /**
+     * The port served by default.
+     */
+    public static final int DEFAULT_PORT = 7313;
+
+    /**
+     * The time between frames, 60 frames per second.
+     */
+    public static final long FRAME_INTERVAL = 1_000_000_000L / 60;
+
+    /**
+     * The most events of one client drawn in a frame.
+     */
+    public static final int FRAME_EVENTS = 512;
+
+    /**
+     * The most events of one client waiting to be drawn.
+     */
+    public static final int QUEUE = 4096;
+
+    /**
+     * The size of a subscriber's output buffer in bytes, which holds any
+     * compressed tile.
+     */
+    public static final int OUT_BUFFER = 1 << 17;
+
+    private static final int TILE_HEADER = 17;
+
+    private final Mandala m;
+
+    private final double radius;
+
+    private final Selector selector;
+
+    private final ServerSocketChannel server;
+
+    private final List<Client> clients = new ArrayList<>();
+
+    /**
+     * The tiles of the composite written since they were last sent, found by
+     * <code>guard</code>.
+     */
+    private final BitSet changed = new BitSet();
+
+    private final Canvas.TileGuard guard = (c, t) -> changed.set(t);
+
+    /**
+     * The latest compressed copy of each tile, and the frame it was taken
+     * in, so a tile owed to many subscribers is compressed once.
+     */
+    private final byte[][] encoded;
+
+    private final int[] encodedFrame;
+
+    /**
+     * The last frame in which each tile changed.
+     */
+    private final int[] changedFrame;
+
+    private final long[] event = new long[1];
+
+    private final int[] pixels = new int[Canvas.TILE_SIZE * Canvas.TILE_SIZE];
+
+    private final byte[] rgb = new byte[3 * Canvas.TILE_SIZE * Canvas.TILE_SIZE];
+
+    private byte[] deflated = new byte[1 << 16];
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    private volatile int frame;
+
+    private int next;
+
+    private volatile boolean running = true;
+
+    private final AtomicLong events = new AtomicLong(), tilesSent = new AtomicLong(),
+            bytesSent = new AtomicLong(), paused = new AtomicLong();
+
+    /**
+     * One connection, with its queue of events, its pen, and if it has
+     * subscribed the tiles it is owed.
+     */
+    private final class Client {
+
+        private final SocketChannel channel;
+
+        private final SelectionKey key;
+
+        private final ByteBuffer in = ByteBuffer.allocate(1 << 12);
+
+        private ByteBuffer out = ByteBuffer.allocate(16);
+
+        private final PointBuffer queue = new PointBuffer(QUEUE);
+
+        private final Pen pen = new Pen(m, radius);
+
+        private int lastX, lastY;
+
+        /**
+         * The tiles to send, or <code>null</code> if not subscribed.
+         */
+        private BitSet owed;
+
+        /**
+         * <code>true</code> once the end of the latest frame has been sent.
+         */
+        private boolean framed = true;
+
+        Client(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            pen.deferScene = true;
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+    }
+
+    /**
+     * Constructs a new <code>StrokeServer</code> listening on the loopback
+     * address.
+     *
+     * @param m The <code>Mandala</code> to draw into, which from now on must
+     * only be used by <code>run</code>
+     * @param radius The maximum allowed radius of the <code>Mandala</code>
+     * @param port The port to listen on, or 0 for any free port
+     * @throws IOException If the port can't be bound
+     */
+    public StrokeServer(Mandala m, double radius, int port) throws IOException {
+        this.m = m;
+        this.radius = radius;
+        int tiles = m.canvas.getTilesX() * m.canvas.getTilesY();
+        encoded = new byte[tiles][];
+        encodedFrame = new int[tiles];
+        changedFrame = new int[tiles];
+        Arrays.fill(encodedFrame, -1);
+        //The server both adds and offloads points
+        m.drainRequest = m::offloadPoints;
+        m.canvas.addGuard(guard);
+        m.canvas.armAll(guard);
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            selector.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the port being listened on.
+     *
+     * @return The port
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Returns the number of connected clients.
+     *
+     * @return The number of clients
+     */
+    public synchronized int getClients() {
+        return clients.size();
+    }
+
+    /**
+     * Serves clients on the calling thread until closed.
+     */
+    @Override
+    public void run() {
+        long nextFrame = System.nanoTime();
+        try {
+            while (running) {
+                long wait = nextFrame - System.nanoTime();
+                if (wait > 0) {
+                    selector.select(Math.max(1, wait / 1_000_000));
+                } else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Client c = (Client) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(c);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(c);
+                        }
+                    } catch (IOException e) {
+                        disconnect(c);
+                    }
+                }
+                long now = System.nanoTime();
+                if (now >= nextFrame) {
+                    frame();
+                    //Skip frames rather than run them back to back after a stall
+                    nextFrame = Math.max(nextFrame + FRAME_INTERVAL, now);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for (Client c : new ArrayList<>(clients)) {
+                disconnect(c);
+            }
+            m.canvas.removeGuard(guard);
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+                //Nothing left to release
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Client c = new Client(channel);
+            synchronized (this) {
+                clients.add(c);
+            }
+            c.out.put(HELLO).putInt(m.canvas.getWidth()).putInt(m.canvas.getHeight()).putInt(m.segments);
+            try {
+                flush(c);
+            } catch (IOException e) {
+                disconnect(c);
+            }
+        }
+    }
+
+    private void disconnect(Client c) {
+        synchronized (this) {
+            clients.remove(c);
+        }
+        c.key.cancel();
+        try {
+            c.channel.close();
+        } catch (IOException e) {
+            //Already gone
+        }
+        c.pen.release();
+    }
+
+    /**
+     * Reads what has arrived from a client and queues the complete events.
+     */
+    private void read(Client c) throws IOException {
+        if (c.channel.read(c.in) < 0) {
+            disconnect(c);
+            return;
+        }
+        parse(c);
+    }
+
+    /**
+     * Queues the complete events held in a client's input buffer until its
+     * queue is full, in which case the client is no longer read from.
+     */
+    private void parse(Client c) throws IOException {
+        ByteBuffer in = c.in;
+        in.flip();
+        while (in.hasRemaining() && c.queue.size() < c.queue.capacity()) {
+            byte type = in.get(in.position());
+            if (in.remaining() < length(type)) {
+                //Wait for the rest of the message
+                break;
+            }
+            in.get();
+            int x = c.lastX, y = c.lastY;
+            switch (type) {
+                case PRESS:
+                case MOVE:
+                    x = in.getInt();
+                    y = in.getInt();
+                    break;
+                case MOVE_BY:
+                    x += in.getShort();
+                    y += in.getShort();
+                    type = MOVE;
+                    break;
+                case SUBSCRIBE:
+                    subscribe(c);
+                    continue;
+                default:
+                    break;
+            }
+            c.lastX = x;
+            c.lastY = y;
+            event[0] = PointBuffer.pack(x, y, type);
+            c.queue.offer(event, 0, 1);
+            events.incrementAndGet();
+        }
+        in.compact();
+        boolean full = c.queue.size() == c.queue.capacity();
+        if (full == ((c.key.interestOps() & SelectionKey.OP_READ) != 0)) {
+            //Stop reading while the queue is full, and carry on once it drains
+            c.key.interestOps(c.key.interestOps() ^ SelectionKey.OP_READ);
+            if (full) {
+                paused.incrementAndGet();
+            }
+        }
+    }
+
+    private static int length(byte type) throws IOException {
+        switch (type) {
+            case PRESS:
+            case MOVE:
+                return 9;
+            case MOVE_BY:
+                return 5;
+            case RELEASE:
+            case SUBSCRIBE:
+                return 1;
+            default:
+                throw new IOException("Unknown message type: " + type);
+        }
+    }
+
+    /**
+     * Sends a client the whole canvas, and from then on every tile that
+     * changes.
+     */
+    private void subscribe(Client c) throws IOException {
+        if (c.owed != null) {
+            return;
+        }
+        ByteBuffer out = ByteBuffer.allocate(OUT_BUFFER);
+        c.out.flip();
+        out.put(c.out);
+        c.out = out;
+        c.owed = new BitSet();
+        c.owed.set(0, encoded.length);
+        c.framed = false;
+        flush(c);
+    }
+
+    /**
+     * Draws up to <code>FRAME_EVENTS</code> of each client's events, taking
+     * the clients in a different order each frame, then offloads the points
+     * and sends each subscriber the tiles that changed.
+     */
+    private void frame() {
+        List<Client> failed = new ArrayList<>();
+        int count = clients.size();
+        for (int k = 0; k < count; k++) {
+            Client c = clients.get((next + k) % count);
+            try {
+                drain(c);
+            } catch (IOException e) {
+                failed.add(c);
+            }
+        }
+        next = count == 0 ? 0 : (next + 1) % count;
+        m.offloadPoints();
+        frame++;
+
+        for (int t = changed.nextSetBit(0); t >= 0; t = changed.nextSetBit(t + 1)) {
+            changedFrame[t] = frame;
+            //Arm before the tile is read, so any write after this marks it again
+            m.canvas.arm(guard, t);
+        }
+        for (Client c : clients) {
+            if (c.owed != null && !failed.contains(c)) {
+                c.owed.or(changed);
+                c.framed = false;
+                try {
+                    flush(c);
+                } catch (IOException e) {
+                    failed.add(c);
+                }
+            }
+        }
+        changed.clear();
+        for (Client c : failed) {
+            disconnect(c);
+        }
+    }
+
+    /**
+     * Feeds up to <code>FRAME_EVENTS</code> of a client's queued events
+     * through its pen, then resumes reading from it if its queue was full.
+     */
+    private void drain(Client c) throws IOException {
+        long start = c.queue.start();
+        long end = Math.min(c.queue.end(), start + FRAME_EVENTS);
+        for (long i = start; i < end; i++) {
+            long e = c.queue.get(i);
+            double x = PointBuffer.x(e) / (double) SUBPIXEL;
+            double y = PointBuffer.y(e) / (double) SUBPIXEL;
+            switch (PointBuffer.alpha(e)) {
+                case PRESS:
+                    c.pen.release();
+                    c.pen.press(x, y);
+                    break;
+                case MOVE:
+                    c.pen.move(x, y);
+                    break;
+                case RELEASE:
+                    c.pen.release();
+                    break;
+                default:
+                    break;
+            }
+        }
+        c.queue.consume((int) (end - start));
+        if ((c.key.interestOps() & SelectionKey.OP_READ) == 0) {
+            parse(c);
+        }
+    }
+
+    /**
+     * Fills a client's output buffer with as many owed tiles as fit, marks
+     * the end of the frame once none are owed, and writes what the socket
+     * will take without blocking. The client is only watched for room to
+     * write while something is left over.
+     */
+    private void flush(Client c) throws IOException {
+        ByteBuffer out = c.out;
+        if (c.owed != null) {
+            Canvas canvas = m.canvas;
+            int tilesX = canvas.getTilesX();
+            for (int t = c.owed.nextSetBit(0); t >= 0; t = c.owed.nextSetBit(t + 1)) {
+                byte[] data = encode(t);
+                if (out.remaining() < TILE_HEADER + data.length) {
+                    break;
+                }
+                int x = (t % tilesX) << Canvas.TILE_SHIFT;
+                int y = (t / tilesX) << Canvas.TILE_SHIFT;
+                out.put(TILE).putInt(x).putInt(y)
+                        .putShort((short) Math.min(Canvas.TILE_SIZE, canvas.getWidth() - x))
+                        .putShort((short) Math.min(Canvas.TILE_SIZE, canvas.getHeight() - y))
+                        .putInt(data.length).put(data);
+                c.owed.clear(t);
+                tilesSent.incrementAndGet();
+            }
+            if (!c.framed && c.owed.isEmpty() && out.remaining() >= 5) {
+                out.put(FRAME).putInt(frame);
+                c.framed = true;
+            }
+        }
+        out.flip();
+        bytesSent.addAndGet(c.channel.write(out));
+        out.compact();
+        boolean more = out.position() > 0 || (c.owed != null && (!c.owed.isEmpty() || !c.framed));
+        int ops = c.key.interestOps();
+        c.key.interestOps(more ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Returns the deflated RGB bytes of a tile as it is now, compressing it
+     * only if it has changed since it was last compressed.
+     */
+    private byte[] encode(int t) {
+        if (encodedFrame[t] >= changedFrame[t]) {
+            return encoded[t];
+        }
+        Canvas canvas = m.canvas;
+        int x0 = (t % canvas.getTilesX()) << Canvas.TILE_SHIFT;
+        int y0 = (t / canvas.getTilesX()) << Canvas.TILE_SHIFT;
+        int w = Math.min(Canvas.TILE_SIZE, canvas.getWidth() - x0);
+        int h = Math.min(Canvas.TILE_SIZE, canvas.getHeight() - y0);
+        canvas.readTile(t, pixels);
+        int n = 0;
+        for (int j = 0; j < h; j++) {
+            for (int i = 0; i < w; i++) {
+                int v = pixels[j * Canvas.TILE_SIZE + i];
+                rgb[n++] = (byte) (v >> 16);
+                rgb[n++] = (byte) (v >> 8);
+                rgb[n++] = (byte) v;
+            }
+        }
+        deflater.reset();
+        deflater.setInput(rgb, 0, n);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == deflated.length) {
+                deflated = Arrays.copyOf(deflated, deflated.length * 2);
+            }
+            size += deflater.deflate(deflated, size, deflated.length - size);
+        }
+        encoded[t] = Arrays.copyOf(deflated, size);
+        encodedFrame[t] = frame;
+        return encoded[t];
+    }
+
+    /**
+     * Returns a line of statistics since the last call.
+     *
+     * @return The statistics
+     */
+    public String report() {
+        return String.format("%d clients, %d events, %d tiles, %,d bytes sent, %d pauses, frame %d",
+                getClients(), events.getAndSet(0), tilesSent.getAndSet(0), bytesSent.getAndSet(0),
+                paused.getAndSet(0), frame);
+    }
+
+    /**
+     * Stops serving. <code>run</code> returns once it has disconnected every
+     * client.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * @param args Optionally <code>port=N</code>, <code>canvas=WxH</code>,
+     * <code>segments=N</code>, <code>antialias</code> and
+     * <code>out=file.png</code> to save the drawing when the server stops
+     * @throws IOException If the port can't be bound
+     * @throws InterruptedException If interrupted while waiting for the
+     * server to stop
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        System.setProperty("java.awt.headless", "true");
+        int port = DEFAULT_PORT;
+        int width = 800, height = 800;
+        int segments = 8;
+        boolean antialias = false;
+        File out = null;
+        for (String arg : args) {
+            if (arg.startsWith("port=")) {
+                port = Integer.parseInt(arg.substring(5));
+            } else if (arg.startsWith("canvas=")) {
+                String[] size = arg.substring(7).split("x");
+                width = Integer.parseInt(size[0]);
+                height = Integer.parseInt(size[size.length - 1]);
+            } else if (arg.startsWith("segments=")) {
+                segments = Integer.parseInt(arg.substring(9));
+            } else if (arg.equals("antialias")) {
+                antialias = true;
+            } else if (arg.startsWith("out=")) {
+                out = new File(arg.substring(4));
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        Mandala m = new Mandala(segments, width, height);
+        m.antialias = antialias;
+        //Nothing is undone on a shared wall, so keep no history
+        m.historyBudget = 0;
+        m.history.setBudget(0);
+        StrokeServer s = new StrokeServer(m, Math.min(width, height) / 2, port);
+        Thread serving = new Thread(s, "Stroke server");
+        serving.start();
+        System.out.printf("Serving a %dx%d canvas with %d segments on port %d%n", width, height, segments, s.getPort());
+
+        File f = out;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            s.close();
+            try {
+                serving.join();
+                if (f != null) {
+                    m.save(f, f.getName().toLowerCase().endsWith(".bmp") ? Exporter.Format.BMP : Exporter.Format.PNG, 6);
+                    System.out.println("Saved " + f);
+                }
+            } catch (InterruptedException | IOException e) {
+                System.err.println("Could not save " + f + ": " + e);
+            }
+        }));
+        while (serving.isAlive()) {
+            serving.join(1000);
+            System.out.println(s.report());
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.util.Arrays;
+
+/**
+ * Conditions the raw samples of a stroke before they reach the
+ * <code>Mandala</code>, so fewer points go through the symmetry expansion
+ * while the lines come out smoother.
+ * <p>
+ * First the samples are decimated in the manner of Ramer-Douglas-Peucker: a
+ * sample only becomes a key point once the samples since the last key can no
+ * longer all be kept within <code>tolerance</code> of a single chord. Since
+ * every sample in between was within tolerance of the chord to the new key,
+ * splitting the run further would add nothing. Then a centripetal
+ * Catmull-Rom spline is fitted through the keys, which neither overshoots
+ * nor forms loops between unevenly spaced keys, and each piece is cut into
+ * just enough straight segments to stay within <code>FLATNESS</code> of the
+ * curve. Straight runs become a single segment and tight bends many.
+ * <p>
+ * Each piece of the spline needs the key after it, so the drawn stroke trails
+ * the pointer by up to two keys; <code>MAX_SPAN</code> bounds how far apart
+ * keys can be so the lag stays short on long straight drags.
+ *
+ * @author chasehanson
+ */
+public class StrokeSmoother {
+
+    /**
+     * The default distance in pixels samples may stray from the decimated
+     * stroke, enough to hide the jitter of whole pixel mouse positions.
+     */
+    public static final double DEFAULT_TOLERANCE = 1;
+
+    /**
+     * The longest chord in pixels between two keys.
+     */
+    public static final double MAX_SPAN = 32;
+
+    /**
+     * The furthest in pixels a segment may stray from the spline, no more
+     * than the rasterizer itself rounds by.
+     */
+    public static final double FLATNESS = .5;
+
+    /**
+     * The most samples kept between two keys, after which a key is forced.
+     */
+    private static final int MAX_RUN = 256;
+
+    private final double tolerance;
+
+    /**
+     * The last four keys, oldest first, and how many of them are real.
+     */
+    private final double[] kx = new double[4], ky = new double[4];
+
+    private int keys;
+
+    /**
+     * The samples since the last key.
+     */
+    private final double[] rx = new double[MAX_RUN], ry = new double[MAX_RUN];
+
+    private int run;
+
+    private double[] outX = new double[64], outY = new double[64];
+
+    private int out;
+
+    private long samples, emitted;
+
+    /**
+     * Constructs a new <code>StrokeSmoother</code>.
+     *
+     * @param tolerance The distance in pixels samples may stray from the
+     * decimated stroke
+     */
+    public StrokeSmoother(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Starts a new stroke at the given point, which is always kept.
+     *
+     * @param x The x coordinate of the point
+     * @param y The y coordinate of the point
+     */
+    public void begin(double x, double y) {
+        keys = 0;
+        run = 0;
+        pushKey(x, y);
+        samples++;
+    }
+
+    /**
+     * Adds a sample to the stroke.
+     *
+     * @param x The x coordinate of the sample
+     * @param y The y coordinate of the sample
+     * @return The number of points now in <code>getX</code> and
+     * <code>getY</code> to continue the stroke with, possibly none
+     */
+    public int add(double x, double y) {
+        out = 0;
+        samples++;
+        if (run == MAX_RUN || !fits(kx[keys - 1], ky[keys - 1], x, y)) {
+            if (run > 0) {
+                //The previous sample is as far as one chord can go
+                double px = rx[run - 1];
+                double py = ry[run - 1];
+                run = 0;
+                pushKey(px, py);
+            }
+            if (!fits(kx[keys - 1], ky[keys - 1], x, y)) {
+                //Only when the sample is too far from the key to start a chord
+                pushKey(x, y);
+                return out;
+            }
+        }
+        rx[run] = x;
+        ry[run] = y;
+        run++;
+        return out;
+    }
+
+    /**
+     * Ends the stroke at the last sample added.
+     *
+     * @return The number of points now in <code>getX</code> and
+     * <code>getY</code> to finish the stroke with
+     */
+    public int end() {
+        out = 0;
+        if (run > 0) {
+            pushKey(rx[run - 1], ry[run - 1]);
+            run = 0;
+        }
+        //Finish the last piece as though the final key were repeated
+        if (keys > 1) {
+            pushKey(kx[keys - 1], ky[keys - 1]);
+        }
+        return out;
+    }
+
+    /**
+     * Returns the x coordinates of the points from the last call to
+     * <code>add</code> or <code>end</code>.
+     *
+     * @return The x coordinates, valid up to the returned count
+     */
+    public double[] getX() {
+        return outX;
+    }
+
+    /**
+     * Returns the y coordinates of the points from the last call to
+     * <code>add</code> or <code>end</code>.
+     *
+     * @return The y coordinates, valid up to the returned count
+     */
+    public double[] getY() {
+        return outY;
+    }
+
+    /**
+     * Returns the number of points emitted for every sample added, over all
+     * strokes so far.
+     *
+     * @return The ratio of points out to samples in
+     */
+    public double getRatio() {
+        return samples == 0 ? 1 : (double) emitted / samples;
+    }
+
+    /**
+     * Returns <code>true</code> if every sample since the last key lies within
+     * <code>tolerance</code> of the chord from <code>x0, y0</code> to
+     * <code>x1, y1</code>, and the chord is no longer than
+     * <code>MAX_SPAN</code>.
+     */
+    private boolean fits(double x0, double y0, double x1, double y1) {
+        double dx = x1 - x0;
+        double dy = y1 - y0;
+        double length2 = dx * dx + dy * dy;
+        if (length2 > MAX_SPAN * MAX_SPAN) {
+            return false;
+        }
+        double limit = tolerance * tolerance * Math.max(length2, 1e-12);
+        for (int i = 0; i < run; i++) {
+            double ex = rx[i] - x0;
+            double ey = ry[i] - y0;
+            double cross;
+            if (length2 == 0) {
+                cross = ex * ex + ey * ey;
+                if (cross > tolerance * tolerance) {
+                    return false;
+                }
+                continue;
+            }
+            cross = ex * dy - ey * dx;
+            if (cross * cross > limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends a key and emits the piece of the spline it
+     * completes: the piece between the second and third newest keys.
+     */
+    private void pushKey(double x, double y) {
+        if (keys == 4) {
+            System.arraycopy(kx, 1, kx, 0, 3);
+            System.arraycopy(ky, 1, ky, 0, 3);
+            keys = 3;
+        }
+        kx[keys] = x;
+        ky[keys] = y;
+        keys++;
+        if (keys == 2) {
+            //The first piece uses its start as the key before it
+            System.arraycopy(kx, 0, kx, 1, 2);
+            System.arraycopy(ky, 0, ky, 1, 2);
+            keys = 3;
+        } else if (keys == 4) {
+            piece();
+        }
+    }
+
+    /**
+     * Emits the centripetal Catmull-Rom piece from key 1 to key 2 as a cubic
+     * Bezier curve, cut into the fewest segments within
+     * <code>FLATNESS</code> of it by Wang's bound.
+     */
+    private void piece() {
+        double d1 = Math.sqrt(Math.hypot(kx[1] - kx[0], ky[1] - ky[0]));
+        double d2 = Math.sqrt(Math.hypot(kx[2] - kx[1], ky[2] - ky[1]));
+        double d3 = Math.sqrt(Math.hypot(kx[3] - kx[2], ky[3] - ky[2]));
+        if (d2 == 0) {
+            return;
+        }
+        double b1x = kx[1], b1y = ky[1];
+        if (d1 > 0) {
+            double a = 2 * d1 * d1 + 3 * d1 * d2 + d2 * d2;
+            double n = 3 * d1 * (d1 + d2);
+            b1x = (d1 * d1 * kx[2] - d2 * d2 * kx[0] + a * kx[1]) / n;
+            b1y = (d1 * d1 * ky[2] - d2 * d2 * ky[0] + a * ky[1]) / n;
+        }
+        double b2x = kx[2], b2y = ky[2];
+        if (d3 > 0) {
+            double a = 2 * d3 * d3 + 3 * d3 * d2 + d2 * d2;
+            double n = 3 * d3 * (d3 + d2);
+            b2x = (d3 * d3 * kx[1] - d2 * d2 * kx[3] + a * kx[2]) / n;
+            b2y = (d3 * d3 * ky[1] - d2 * d2 * ky[3] + a * ky[2]) / n;
+        }
+        double m = Math.max(Math.hypot(kx[1] - 2 * b1x + b2x, ky[1] - 2 * b1y + b2y),
+                Math.hypot(b1x - 2 * b2x + kx[2], b1y - 2 * b2y + ky[2]));
+        int count = Math.max(1, (int) Math.ceil(Math.sqrt(.75 * m / FLATNESS)));
+        ensure(out + count);
+        for (int i = 1; i < count; i++) {
+            double t = (double) i / count;
+            double s = 1 - t;
+            double c0 = s * s * s, c1 = 3 * s * s * t, c2 = 3 * s * t * t, c3 = t * t * t;
+            outX[out] = c0 * kx[1] + c1 * b1x + c2 * b2x + c3 * kx[2];
+            outY[out] = c0 * ky[1] + c1 * b1y + c2 * b2y + c3 * ky[2];
+            out++;
+        }
+        //End exactly on the key, so the stroke passes through every key
+        outX[out] = kx[2];
+        outY[out] = ky[2];
+        out++;
+        emitted += count;
+    }
+
+    private void ensure(int capacity) {
+        if (outX.length < capacity) {
+            int size = Math.max(capacity, outX.length * 2);
+            outX = Arrays.copyOf(outX, size);
+            outY = Arrays.copyOf(outY, size);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+/**
+ * The rotation kernel behind a <code>Mandala</code>. Holds a precomputed table
+ * of the sine and cosine of every segment angle, so expanding a master point
+ * into its symmetric copies costs only multiply-adds.
+ * <p>
+ * The nearby copies produced by rotating a point by twice its offset from the
+ * closest segment boundary are the mirror image of the point across that
+ * boundary. Because every boundary is a multiple of the segment angle, the set
+ * of nearby copies is simply the point reflected across the x axis and then
+ * rotated by each segment angle, and no per-point angle is needed at all.
+ *
+ * @author chasehanson
+ */
+public class Symmetry {
+
+    private int segments;
+
+    private double[] cos;
+
+    private double[] sin;
+
+    /**
+     * Constructs a new <code>Symmetry</code> for the given number of segments.
+     *
+     * @param segments The number of segments to rotate points around
+     */
+    public Symmetry(int segments) {
+        setSegments(segments);
+    }
+
+    /**
+     * Returns the number of segments the rotation table was built for.
+     *
+     * @return The number of segments
+     */
+    public int getSegments() {
+        return segments;
+    }
+
+    /**
+     * Rebuilds the rotation table if the number of segments has changed,
+     * otherwise does nothing.
+     *
+     * @param s The number of segments to rotate points around
+     */
+    public void setSegments(int s) {
+        if (s == segments && cos != null) {
+            return;
+        }
+        if (s < 1) {
+            throw new IllegalArgumentException("segments must be positive: " + s);
+        }
+        double segmentAngle = 2 * Math.PI / s;
+        double[] c = new double[s];
+        double[] sn = new double[s];
+        for (int i = 0; i < s; i++) {
+            c[i] = Math.cos(segmentAngle * i);
+            sn[i] = Math.sin(segmentAngle * i);
+        }
+        cos = c;
+        sin = sn;
+        segments = s;
+    }
+
+    /**
+     * Returns the number of copies produced for each master point, which is
+     * twice the number of segments.
+     *
+     * @return The number of copies per master point
+     */
+    public int copies() {
+        return 2 * segments;
+    }
+
+    /**
+     * Expands a single master point into all of its copies. The point is
+     * clamped to <code>radius</code> first, since rotation preserves the
+     * distance from the origin.
+     *
+     * @param x The x coordinate of the master point
+     * @param y The y coordinate of the master point
+     * @param radius The maximum allowed radius of the copies
+     * @param outX The array to write the x coordinates into
+     * @param outY The array to write the y coordinates into
+     * @param offset The index of the first copy in the output arrays
+     * @return The number of copies written, <code>copies()</code>
+     */
+    public int expand(double x, double y, double radius, double[] outX, double[] outY, int offset) {
+        double r2 = x * x + y * y;
+        if (r2 > radius * radius) {
+            double scale = radius / Math.sqrt(r2);
+            x *= scale;
+            y *= scale;
+        }
+
+        double[] c = cos;
+        double[] s = sin;
+        int n = segments;
+        int j = offset;
+        for (int i = 0; i < n; i++) {
+            //Nearby Point: reflected across the x axis, then rotated
+            outX[j] = x * c[i] + y * s[i];
+            outY[j] = x * s[i] - y * c[i];
+            j++;
+            //Distant Point
+            outX[j] = x * c[i] - y * s[i];
+            outY[j] = x * s[i] + y * c[i];
+            j++;
+        }
+        return j - offset;
+    }
+
+    /**
+     * Maps a master point to one of its copies, without clamping it.
+     *
+     * @param copy The index of the copy, as ordered by <code>expand</code>
+     * @param x The x coordinate of the master point
+     * @param y The y coordinate of the master point
+     * @param out The array to write the x and y coordinates of the copy into
+     */
+    public void transform(int copy, double x, double y, double[] out) {
+        double c = cos[copy >> 1];
+        double s = sin[copy >> 1];
+        if ((copy & 1) == 0) {
+            out[0] = x * c + y * s;
+            out[1] = x * s - y * c;
+        } else {
+            out[0] = x * c - y * s;
+            out[1] = x * s + y * c;
+        }
+    }
+
+    /**
+     * Maps a point of one of the copies back to the master point it came
+     * from. A nearby copy is a reflection, so it is its own inverse, while a
+     * distant copy is undone by rotating the other way.
+     *
+     * @param copy The index of the copy, as ordered by <code>expand</code>
+     * @param x The x coordinate of the point of the copy
+     * @param y The y coordinate of the point of the copy
+     * @param out The array to write the x and y coordinates of the master
+     * point into
+     */
+    public void inverse(int copy, double x, double y, double[] out) {
+        double c = cos[copy >> 1];
+        double s = sin[copy >> 1];
+        if ((copy & 1) == 0) {
+            out[0] = x * c + y * s;
+            out[1] = x * s - y * c;
+        } else {
+            out[0] = x * c + y * s;
+            out[1] = -x * s + y * c;
+        }
+    }
+
+    /**
+     * Expands a batch of master points into all of their copies.
+     *
+     * @param xs The x coordinates of the master points
+     * @param ys The y coordinates of the master points
+     * @param from The index of the first master point, inclusive
+     * @param to The index of the last master point, exclusive
+     * @param radius The maximum allowed radius of the copies
+     * @param outX The array to write the x coordinates into, which must hold
+     * <code>(to - from) * copies()</code> values from <code>offset</code>
+     * @param outY The array to write the y coordinates into
+     * @param offset The index of the first copy in the output arrays
+     * @return The number of copies written
+     */
+    public int expand(double[] xs, double[] ys, int from, int to, double radius,
+            double[] outX, double[] outY, int offset) {
+        int j = offset;
+        for (int i = from; i < to; i++) {
+            j += expand(xs[i], ys[i], radius, outX, outY, j);
+        }
+        return j - offset;
+    }
+}
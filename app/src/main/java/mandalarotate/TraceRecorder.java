@@ -0,0 +1,304 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the input of a drawing session into a compact binary trace, so it
+ * can be replayed exactly by <code>TraceReplay</code>.
+ * <p>
+ * A trace starts with the magic number <code>MTRC</code>, a version byte and
+ * the segment count, width and height of the <code>Mandala</code>. Every
+ * event then takes one type byte and the time since the previous event in
+ * microseconds as a variable length integer. Press and move events follow it
+ * with their x and y coordinates relative to the centre, in sixteenths of a
+ * pixel as the input is sampled, as zig-zag encoded variable length
+ * integers. A typical sample takes five to seven bytes.
+ * <p>
+ * Everything else that changes the drawing is recorded too: clears, undos,
+ * redos, fills, the anti-aliasing setting, the brush and the layers, each
+ * with its new state, so a replay reproduces the whole session.
+ * <p>
+ * Events may be recorded from more than one thread, for example clears from
+ * the event dispatch thread; they are written in the order they arrive.
+ *
+ * @author chasehanson
+ */
+public class TraceRecorder implements Closeable {
+
+    /**
+     * The magic number at the start of every trace.
+     */
+    public static final int MAGIC = 0x4D545243;
+
+    /**
+     * The version of the trace format.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * The number of steps per pixel coordinates are recorded in.
+     */
+    public static final int SUBPIXEL = 16;
+
+    /**
+     * Event types.
+     */
+    public static final int PRESS = 0, MOVE = 1, RELEASE = 2, CLEAR = 3, UNDO = 4, REDO = 5,
+            ANTIALIAS = 6, BRUSH = 7, FILL = 8, LAYERS = 9;
+
+    private final DataOutputStream out;
+
+    private long last;
+
+    private boolean failed;
+
+    /**
+     * Every layer seen, by the id it is recorded under.
+     */
+    private final List<Layer> layers = new ArrayList<>();
+
+    /**
+     * Constructs a new <code>TraceRecorder</code>, writing the header of a
+     * new trace to the given file.
+     *
+     * @param f The file to write the trace into
+     * @param segments The number of segments of the recorded
+     * <code>Mandala</code>
+     * @param width The width of the recorded <code>Mandala</code> in pixels
+     * @param height The height of the recorded <code>Mandala</code> in pixels
+     * @throws IOException If the file can't be written
+     */
+    public TraceRecorder(File f, int segments, int width, int height) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(segments);
+        out.writeInt(width);
+        out.writeInt(height);
+        last = System.nanoTime();
+    }
+
+    /**
+     * Records the start of a stroke.
+     *
+     * @param x The x coordinate of the point
+     * @param y The y coordinate of the point
+     */
+    public synchronized void press(double x, double y) {
+        event(PRESS, x, y);
+    }
+
+    /**
+     * Records a point continuing the current stroke.
+     *
+     * @param x The x coordinate of the point
+     * @param y The y coordinate of the point
+     */
+    public synchronized void move(double x, double y) {
+        event(MOVE, x, y);
+    }
+
+    /**
+     * Records the end of a stroke.
+     */
+    public synchronized void release() {
+        event(RELEASE);
+    }
+
+    /**
+     * Records the <code>Mandala</code> being cleared.
+     */
+    public synchronized void clear() {
+        event(CLEAR);
+    }
+
+    /**
+     * Records the last step being undone.
+     */
+    public synchronized void undo() {
+        event(UNDO);
+    }
+
+    /**
+     * Records the last undone step being redone.
+     */
+    public synchronized void redo() {
+        event(REDO);
+    }
+
+    /**
+     * Records anti-aliasing being turned on or off.
+     *
+     * @param on Whether strokes are now anti-aliased
+     */
+    public synchronized void antialias(boolean on) {
+        if (event(ANTIALIAS)) {
+            try {
+                out.writeBoolean(on);
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    }
+
+    /**
+     * Records the brush new strokes are drawn with.
+     *
+     * @param brush The brush, or <code>null</code> for one pixel lines
+     */
+    public synchronized void brush(Brush brush) {
+        if (event(BRUSH)) {
+            try {
+                out.writeBoolean(brush != null);
+                if (brush != null) {
+                    out.writeDouble(brush.radius);
+                    out.writeDouble(brush.hardness);
+                    out.writeByte(brush.flow);
+                    out.writeDouble(brush.spacing);
+                }
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    }
+
+    /**
+     * Records a fill of the active layer.
+     *
+     * @param x The x coordinate of the point filled around, relative to the
+     * centre
+     * @param y The y coordinate of the point
+     * @param tolerance The tolerance the fill was made with
+     */
+    public synchronized void fill(double x, double y, int tolerance) {
+        event(FILL, x, y);
+        if (!failed) {
+            try {
+                writeVarint(tolerance);
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    }
+
+    /**
+     * Records the layers after one has been added, chosen, moved, or has had
+     * any of its settings changed. Each layer is recorded under an id in the
+     * order it was first seen, so a replay can follow it as it moves.
+     *
+     * @param stack The layers
+     */
+    public synchronized void layers(LayerStack stack) {
+        if (!event(LAYERS)) {
+            return;
+        }
+        try {
+            out.writeInt(stack.size());
+            for (int i = 0; i < stack.size(); i++) {
+                Layer l = stack.get(i);
+                if (!layers.contains(l)) {
+                    layers.add(l);
+                }
+                out.writeInt(layers.indexOf(l));
+                out.writeUTF(l.getName());
+                out.writeInt(l.getColour());
+                out.writeInt(l.getOpacity());
+                out.writeBoolean(l.isVisible());
+                out.writeInt(l.getSegments());
+            }
+            out.writeInt(stack.getActiveIndex());
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    private void event(int type, double x, double y) {
+        if (event(type)) {
+            try {
+                writeVarint(zigzag((int) Math.round(x * SUBPIXEL)));
+                writeVarint(zigzag((int) Math.round(y * SUBPIXEL)));
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    }
+
+    private boolean event(int type) {
+        if (failed) {
+            return false;
+        }
+        long now = System.nanoTime();
+        try {
+            out.writeByte(type);
+            writeVarint((int) Math.min((now - last) / 1000, Integer.MAX_VALUE));
+            last = now;
+            return true;
+        } catch (IOException e) {
+            failed(e);
+            return false;
+        }
+    }
+
+    private void failed(IOException e) {
+        //Recording must never interrupt drawing, so report the error once
+        System.err.println("Trace recording failed: " + e);
+        failed = true;
+        try {
+            out.close();
+        } catch (IOException ex) {
+
+        }
+    }
+
+    private static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    private void writeVarint(int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    /**
+     * Flushes and closes the trace.
+     *
+     * @throws IOException If the trace can't be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
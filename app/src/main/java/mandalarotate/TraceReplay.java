@@ -0,0 +1,504 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
+
+/**
+ * Replays a trace written by <code>TraceRecorder</code> into a
+ * <code>Mandala</code>, either at the pace it was recorded or as fast as
+ * possible, with or without a window. Headless replays print the time taken
+ * and a checksum of the resulting pixels, so runs can be compared exactly.
+ * Traces of the first version, which only held strokes and clears in whole
+ * pixels, are replayed too.
+ * Usage:
+ *
+ * <pre>
+ * java mandalarotate.TraceReplay trace.bin [fast] [headless] [antialias] [mapped] [smooth=px] [repeat=N] [out=file.png]
+ * </pre>
+ *
+ * @author chasehanson
+ */
+public class TraceReplay {
+
+    /**
+     * The segment count, width and height of the recorded
+     * <code>Mandala</code>.
+     */
+    public final int segments, width, height;
+
+    private final byte[] types;
+
+    /**
+     * The time of each event in microseconds since the start of the trace.
+     */
+    private final long[] times;
+
+    /**
+     * The coordinates of each event in steps of <code>1 / subpixel</code>
+     * pixels, or its setting for an anti-aliasing event.
+     */
+    private final int[] xs, ys;
+
+    /**
+     * The brush, layers or fill tolerance of each event that has one.
+     */
+    private final Object[] values;
+
+    private final int size;
+
+    private final int subpixel;
+
+    /**
+     * The layers of a recorded layers event, bottom first.
+     */
+    private static final class Layers {
+
+        final int[] ids, colours, opacities, segments;
+
+        final String[] names;
+
+        final boolean[] visible;
+
+        final int active;
+
+        Layers(DataInputStream in) throws IOException {
+            int count = in.readInt();
+            ids = new int[count];
+            colours = new int[count];
+            opacities = new int[count];
+            segments = new int[count];
+            names = new String[count];
+            visible = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = in.readInt();
+                names[i] = in.readUTF();
+                colours[i] = in.readInt();
+                opacities[i] = in.readInt();
+                visible[i] = in.readBoolean();
+                segments[i] = in.readInt();
+            }
+            active = in.readInt();
+        }
+    }
+
+    private TraceReplay(int segments, int width, int height, byte[] types, long[] times, int[] xs, int[] ys,
+            Object[] values, int size, int subpixel) {
+        this.segments = segments;
+        this.width = width;
+        this.height = height;
+        this.types = types;
+        this.times = times;
+        this.xs = xs;
+        this.ys = ys;
+        this.values = values;
+        this.size = size;
+        this.subpixel = subpixel;
+    }
+
+    /**
+     * Reads a whole trace into memory.
+     *
+     * @param f The trace file
+     * @return The decoded trace
+     * @throws IOException If the file can't be read or isn't a trace
+     */
+    public static TraceReplay read(File f) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(f.toPath())));
+        if (in.readInt() != TraceRecorder.MAGIC) {
+            throw new IOException(f + " is not a trace");
+        }
+        int version = in.readUnsignedByte();
+        if (version != 1 && version != TraceRecorder.VERSION) {
+            throw new IOException(f + " has unsupported trace version " + version);
+        }
+        int segments = in.readInt();
+        int width = in.readInt();
+        int height = in.readInt();
+
+        byte[] types = new byte[1024];
+        long[] times = new long[1024];
+        int[] xs = new int[1024];
+        int[] ys = new int[1024];
+        Object[] values = new Object[1024];
+        int n = 0;
+        long time = 0;
+        while (true) {
+            int type = in.read();
+            if (type < 0) {
+                break;
+            }
+            if (n == types.length) {
+                types = Arrays.copyOf(types, n * 2);
+                times = Arrays.copyOf(times, n * 2);
+                xs = Arrays.copyOf(xs, n * 2);
+                ys = Arrays.copyOf(ys, n * 2);
+                values = Arrays.copyOf(values, n * 2);
+            }
+            try {
+                time += readVarint(in);
+                types[n] = (byte) type;
+                times[n] = time;
+                switch (version == 1 && type > TraceRecorder.CLEAR ? -1 : type) {
+                    case TraceRecorder.PRESS:
+                    case TraceRecorder.MOVE:
+                        xs[n] = unzigzag(readVarint(in));
+                        ys[n] = unzigzag(readVarint(in));
+                        break;
+                    case TraceRecorder.FILL:
+                        xs[n] = unzigzag(readVarint(in));
+                        ys[n] = unzigzag(readVarint(in));
+                        values[n] = readVarint(in);
+                        break;
+                    case TraceRecorder.ANTIALIAS:
+                        xs[n] = in.readBoolean() ? 1 : 0;
+                        break;
+                    case TraceRecorder.BRUSH:
+                        values[n] = in.readBoolean()
+                                ? new Brush(in.readDouble(), in.readDouble(), in.readUnsignedByte(), in.readDouble())
+                                : null;
+                        break;
+                    case TraceRecorder.LAYERS:
+                        values[n] = new Layers(in);
+                        break;
+                    case TraceRecorder.RELEASE:
+                    case TraceRecorder.CLEAR:
+                    case TraceRecorder.UNDO:
+                    case TraceRecorder.REDO:
+                        break;
+                    default:
+                        throw new IOException(f + " has unknown event type " + type);
+                }
+            } catch (EOFException e) {
+                //A trace cut off by a crash still replays up to its last whole event
+                break;
+            }
+            n++;
+        }
+        return new TraceReplay(segments, width, height, types, times, xs, ys, values, n,
+                version == 1 ? 1 : TraceRecorder.SUBPIXEL);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    private static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Returns the number of events in the trace.
+     *
+     * @return The number of events
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the recorded length of the trace in microseconds.
+     *
+     * @return The time of the last event
+     */
+    public long duration() {
+        return size == 0 ? 0 : times[size - 1];
+    }
+
+    /**
+     * Feeds every event of the trace into a <code>Pen</code> and its
+     * <code>Mandala</code>. Strokes, the brush and anti-aliasing are fed in
+     * on the calling thread, and everything else through
+     * <code>drawing</code>. Layers are matched to those recorded in the order
+     * they are first seen, starting from those the <code>Mandala</code> has.
+     *
+     * @param m The <code>Mandala</code> the <code>Pen</code> draws into
+     * @param pen The <code>Pen</code> to draw with
+     * @param drawing Runs clears, undos, redos, fills and changes to the
+     * layers on the thread that offloads points, and waits for them
+     * @param afterEvent Run after every event, may be <code>null</code>
+     * @param realTime <code>true</code> to wait between events as long as
+     * they were apart when recorded, <code>false</code> to replay as fast as
+     * possible
+     */
+    public void replay(Mandala m, Pen pen, Executor drawing, Runnable afterEvent, boolean realTime) {
+        List<Layer> layers = new ArrayList<>();
+        for (int i = 0; i < m.layers.size(); i++) {
+            layers.add(m.layers.get(i));
+        }
+        double scale = subpixel;
+        long start = System.nanoTime();
+        for (int i = 0; i < size; i++) {
+            if (realTime) {
+                long deadline = start + times[i] * 1000;
+                long wait;
+                while ((wait = deadline - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            switch (types[i]) {
+                case TraceRecorder.PRESS:
+                    pen.press(xs[i] / scale, ys[i] / scale);
+                    break;
+                case TraceRecorder.MOVE:
+                    pen.move(xs[i] / scale, ys[i] / scale);
+                    break;
+                case TraceRecorder.RELEASE:
+                    pen.release();
+                    break;
+                case TraceRecorder.CLEAR:
+                    drawing.execute(m::clear);
+                    break;
+                case TraceRecorder.UNDO:
+                    drawing.execute(m::undo);
+                    break;
+                case TraceRecorder.REDO:
+                    drawing.execute(m::redo);
+                    break;
+                case TraceRecorder.ANTIALIAS:
+                    m.antialias = xs[i] != 0;
+                    break;
+                case TraceRecorder.BRUSH:
+                    m.brush = (Brush) values[i];
+                    break;
+                case TraceRecorder.FILL:
+                    double x = xs[i] / scale;
+                    double y = ys[i] / scale;
+                    int tolerance = (Integer) values[i];
+                    drawing.execute(() -> m.fill(x, y, pen.getRadius(), tolerance));
+                    break;
+                case TraceRecorder.LAYERS:
+                    Layers state = (Layers) values[i];
+                    drawing.execute(() -> applyLayers(m, layers, state));
+                    break;
+                default:
+                    break;
+            }
+            if (afterEvent != null) {
+                afterEvent.run();
+            }
+        }
+    }
+
+    /**
+     * Brings the layers of a <code>Mandala</code> in line with a recorded
+     * state, adding any that are missing.
+     */
+    private static void applyLayers(Mandala m, List<Layer> layers, Layers state) {
+        for (int i = 0; i < state.ids.length; i++) {
+            while (layers.size() <= state.ids[i]) {
+                layers.add(m.addLayer("", 0));
+            }
+            Layer l = layers.get(state.ids[i]);
+            l.setName(state.names[i]);
+            l.setColour(state.colours[i]);
+            l.setOpacity(state.opacities[i]);
+            l.setVisible(state.visible[i]);
+            l.setSegments(state.segments[i]);
+            int from = m.layers.indexOf(l);
+            if (from != i) {
+                m.layers.move(from, i);
+            }
+        }
+        m.setLayer(state.active);
+    }
+
+    /**
+     * Returns a checksum of every pixel of a <code>Canvas</code>, for exact
+     * comparison of replay results.
+     *
+     * @param c The canvas to checksum
+     * @return The CRC-32 of the pixels
+     */
+    public static long checksum(Canvas c) {
+        CRC32 crc = new CRC32();
+        byte[] row = new byte[c.getWidth() * 4];
+        int[] pixels = new int[c.getWidth()];
+        for (int y = 0; y < c.getHeight(); y++) {
+            c.readRect(0, y, c.getWidth(), 1, pixels, 0, pixels.length);
+            for (int x = 0; x < c.getWidth(); x++) {
+                int v = pixels[x];
+                row[x * 4] = (byte) (v >>> 24);
+                row[x * 4 + 1] = (byte) (v >>> 16);
+                row[x * 4 + 2] = (byte) (v >>> 8);
+                row[x * 4 + 3] = (byte) v;
+            }
+            crc.update(row);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * @param args The trace file, and optionally <code>fast</code>,
+     * <code>headless</code>, <code>antialias</code>, <code>mapped</code>,
+     * <code>smooth=px</code>, <code>repeat=N</code>
+     * and <code>out=file.png</code>
+     * @throws IOException If the trace can't be read or the image written
+     * @throws InterruptedException If interrupted while clearing the window
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: TraceReplay <trace> [fast] [headless] [antialias] [mapped] [repeat=N] [out=file.png]");
+            System.exit(2);
+        }
+        boolean realTime = true;
+        boolean headless = false;
+        boolean antialias = false;
+        boolean mapped = false;
+        int repeat = 1;
+        double smooth = StrokeSmoother.DEFAULT_TOLERANCE;
+        File out = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("fast")) {
+                realTime = false;
+            } else if (args[i].equals("headless")) {
+                headless = true;
+            } else if (args[i].equals("antialias")) {
+                antialias = true;
+            } else if (args[i].equals("mapped")) {
+                mapped = true;
+            } else if (args[i].startsWith("smooth=")) {
+                smooth = Double.parseDouble(args[i].substring(7));
+            } else if (args[i].startsWith("repeat=")) {
+                repeat = Integer.parseInt(args[i].substring(7));
+            } else if (args[i].startsWith("out=")) {
+                out = new File(args[i].substring(4));
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (headless) {
+            System.setProperty("java.awt.headless", "true");
+        }
+        TraceReplay trace = read(new File(args[0]));
+        System.out.printf("%d events over %.1f s at %d segments, %dx%d%n", trace.size(),
+                trace.duration() / 1e6, trace.segments, trace.width, trace.height);
+
+        Mandala m = new Mandala(trace.segments, trace.width, trace.height, mapped, null);
+        m.antialias = antialias;
+        Pen pen = new Pen(m, trace.width / 2);
+        pen.smoother = smooth > 0 ? new StrokeSmoother(smooth) : null;
+
+        if (headless) {
+            //One thread both adds and offloads points
+            m.drainRequest = m::offloadPoints;
+            for (int r = 0; r < repeat; r++) {
+                m.clear();
+                long generated = m.metrics.getPointsGenerated();
+                long start = System.nanoTime();
+                trace.replay(m, pen, Runnable::run, () -> {
+                    if (m.points.size() > m.policy.threshold()) {
+                        m.offloadPoints(m.policy.limit());
+                    }
+                }, realTime);
+                m.offloadPoints();
+                long elapsed = System.nanoTime() - start;
+                System.out.printf("Run %d: %.1f ms, %.0f events/s, %,d points, checksum %08x%n", r + 1,
+                        elapsed / 1e6, trace.size() / (elapsed / 1e9), m.metrics.getPointsGenerated() - generated,
+                        checksum(m.canvas));
+            }
+        } else {
+            Frame frame = new Frame();
+            JFrame screen = new JFrame("Replay");
+            frame.setSize(trace.width, trace.height);
+            screen.setSize(trace.width, trace.height + 23);
+            screen.add(frame);
+            screen.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+            screen.setResizable(false);
+            screen.setVisible(true);
+            frame.add(m);
+            m.drainRequest = frame::repaint;
+            for (int r = 0; r < repeat; r++) {
+                long start = System.nanoTime();
+                trace.replay(m, pen, task -> {
+                    try {
+                        SwingUtilities.invokeAndWait(task);
+                        frame.repaint();
+                    } catch (InterruptedException | InvocationTargetException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }, frame::repaintDirty, realTime);
+                System.out.printf("Run %d: %.1f ms%n", r + 1, (System.nanoTime() - start) / 1e6);
+            }
+            try {
+                SwingUtilities.invokeAndWait(m::offloadPoints);
+            } catch (InvocationTargetException e) {
+                throw new IllegalStateException(e);
+            }
+            frame.repaint();
+        }
+
+        if (out != null) {
+            String name = out.getName().toLowerCase();
+            Exporter.Format format;
+            if (name.endsWith(".bmp")) {
+                format = Exporter.Format.BMP;
+            } else if (name.endsWith(".png")) {
+                format = Exporter.Format.PNG;
+            } else {
+                throw new IllegalArgumentException("out must name a .png or .bmp file: " + out);
+            }
+            File f = out;
+            if (headless) {
+                m.save(f, format, 6);
+            } else {
+                //Saving offloads points, which only the event dispatch thread may do
+                try {
+                    SwingUtilities.invokeAndWait(() -> {
+                        try {
+                            m.save(f, format, 6);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (InvocationTargetException e) {
+                    throw new IOException(e.getCause());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionListener;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
+
+/**
+ * Pans and zooms the <code>Viewport</code> of a <code>Frame</code>. The mouse
+ * wheel zooms about the pointer and dragging with the right or middle button
+ * pans, leaving the left button to draw. Runs on the event dispatch thread.
+ *
+ * @author chasehanson
+ */
+public class ViewNavigator implements MouseListener, MouseMotionListener, MouseWheelListener {
+
+    /**
+     * The factor the zoom changes by for each notch of the wheel.
+     */
+    public static final double ZOOM_STEP = 1.25;
+
+    private final Frame frame;
+
+    private int lastX, lastY;
+
+    private boolean panning;
+
+    /**
+     * Constructs a new <code>ViewNavigator</code> and adds it to the mouse
+     * listeners of a <code>Frame</code>.
+     *
+     * @param frame The <code>Frame</code> whose view to move
+     */
+    public ViewNavigator(Frame frame) {
+        this.frame = frame;
+        frame.addMouseListener(this);
+        frame.addMouseMotionListener(this);
+        frame.addMouseWheelListener(this);
+    }
+
+    /**
+     * Zooms about the centre of the screen.
+     *
+     * @param factor The factor to multiply the zoom by
+     */
+    public void zoom(double factor) {
+        set(frame.m.viewport.zoomAt(frame.getWidth() / 2, frame.getHeight() / 2, factor, frame.getSize()));
+    }
+
+    /**
+     * Shows the centre of the drawing at its actual size.
+     */
+    public void actualSize() {
+        set(Viewport.ACTUAL_SIZE);
+    }
+
+    /**
+     * Shows the whole drawing, centred on the screen.
+     */
+    public void fit() {
+        set(Viewport.fit(frame.m.width, frame.m.height, frame.getSize()));
+    }
+
+    private void set(Viewport v) {
+        frame.m.viewport = v;
+        frame.repaint();
+    }
+
+    @Override
+    public void mouseWheelMoved(MouseWheelEvent e) {
+        double factor = Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation());
+        set(frame.m.viewport.zoomAt(e.getX(), e.getY(), factor, frame.getSize()));
+    }
+
+    @Override
+    public void mousePressed(MouseEvent e) {
+        if (e.getButton() != MouseEvent.BUTTON1) {
+            panning = true;
+            lastX = e.getX();
+            lastY = e.getY();
+        }
+    }
+
+    @Override
+    public void mouseDragged(MouseEvent e) {
+        if (panning) {
+            set(frame.m.viewport.pan(e.getX() - lastX, e.getY() - lastY));
+            lastX = e.getX();
+            lastY = e.getY();
+        }
+    }
+
+    @Override
+    public void mouseReleased(MouseEvent e) {
+        if (e.getButton() != MouseEvent.BUTTON1) {
+            panning = false;
+        }
+    }
+
+    @Override
+    public void mouseClicked(MouseEvent e) {
+        return;
+    }
+
+    @Override
+    public void mouseEntered(MouseEvent e) {
+        return;
+    }
+
+    @Override
+    public void mouseExited(MouseEvent e) {
+        return;
+    }
+
+    @Override
+    public void mouseMoved(MouseEvent e) {
+        return;
+    }
+}
@@ -0,0 +1,186 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.awt.Dimension;
+
+/**
+ * Which part of a <code>Mandala</code> is shown on the screen and how large.
+ * The point of the drawing at <code>centreX, centreY</code>, measured in
+ * canvas pixels from the centre of the <code>Mandala</code>, is shown at the
+ * centre of the screen, and each canvas pixel covers <code>zoom</code> screen
+ * pixels.
+ * <p>
+ * A <code>Viewport</code> never changes; panning and zooming return a new
+ * one, so it can be read by the input and render threads without locking.
+ *
+ * @author chasehanson
+ */
+public class Viewport {
+
+    /**
+     * The closest zoom allowed, in screen pixels per canvas pixel.
+     */
+    public static final double MAX_ZOOM = 32;
+
+    /**
+     * The furthest zoom allowed.
+     */
+    public static final double MIN_ZOOM = 1.0 / 256;
+
+    /**
+     * Shows the centre of the drawing at its actual size.
+     */
+    public static final Viewport ACTUAL_SIZE = new Viewport(1, 0, 0);
+
+    /**
+     * The number of screen pixels covering each canvas pixel.
+     */
+    public final double zoom;
+
+    /**
+     * The point shown at the centre of the screen, in canvas pixels from the
+     * centre of the <code>Mandala</code>.
+     */
+    public final double centreX, centreY;
+
+    /**
+     * Constructs a new <code>Viewport</code>, clamping the zoom to the allowed
+     * range.
+     *
+     * @param zoom The number of screen pixels covering each canvas pixel
+     * @param centreX The x coordinate of the point shown at the centre
+     * @param centreY The y coordinate of the point shown at the centre
+     */
+    public Viewport(double zoom, double centreX, double centreY) {
+        this.zoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom));
+        this.centreX = centreX;
+        this.centreY = centreY;
+    }
+
+    /**
+     * Returns a <code>Viewport</code> that shows the whole of a drawing of the
+     * given size, centred on the screen.
+     *
+     * @param width The width of the drawing in canvas pixels
+     * @param height The height of the drawing in canvas pixels
+     * @param d The size of the screen
+     * @return The fitting <code>Viewport</code>
+     */
+    public static Viewport fit(int width, int height, Dimension d) {
+        return new Viewport(Math.min((double) d.width / width, (double) d.height / height), 0, 0);
+    }
+
+    /**
+     * Returns <code>true</code> if canvas pixels map one to one onto screen
+     * pixels, so the canvas can be copied to the screen without resampling.
+     *
+     * @return <code>true</code> at a zoom of one on whole pixels
+     */
+    public boolean isActualSize() {
+        return zoom == 1 && centreX == Math.rint(centreX) && centreY == Math.rint(centreY);
+    }
+
+    /**
+     * Maps a screen x coordinate to canvas pixels from the centre of the
+     * <code>Mandala</code>.
+     *
+     * @param x The x coordinate on the screen
+     * @param screenWidth The width of the screen
+     * @return The x coordinate on the canvas
+     */
+    public double toCanvasX(double x, int screenWidth) {
+        return centreX + (x - screenWidth / 2) / zoom;
+    }
+
+    /**
+     * Maps a screen y coordinate to canvas pixels from the centre of the
+     * <code>Mandala</code>.
+     *
+     * @param y The y coordinate on the screen
+     * @param screenHeight The height of the screen
+     * @return The y coordinate on the canvas
+     */
+    public double toCanvasY(double y, int screenHeight) {
+        return centreY + (y - screenHeight / 2) / zoom;
+    }
+
+    /**
+     * Maps an x coordinate in canvas pixels from the centre of the
+     * <code>Mandala</code> to the screen.
+     *
+     * @param x The x coordinate on the canvas
+     * @param screenWidth The width of the screen
+     * @return The x coordinate on the screen
+     */
+    public double toScreenX(double x, int screenWidth) {
+        return screenWidth / 2 + (x - centreX) * zoom;
+    }
+
+    /**
+     * Maps a y coordinate in canvas pixels from the centre of the
+     * <code>Mandala</code> to the screen.
+     *
+     * @param y The y coordinate on the canvas
+     * @param screenHeight The height of the screen
+     * @return The y coordinate on the screen
+     */
+    public double toScreenY(double y, int screenHeight) {
+        return screenHeight / 2 + (y - centreY) * zoom;
+    }
+
+    /**
+     * Returns a <code>Viewport</code> zoomed by a factor, keeping the canvas
+     * point under a screen point where it is.
+     *
+     * @param x The x coordinate on the screen to zoom about
+     * @param y The y coordinate on the screen to zoom about
+     * @param factor The factor to multiply the zoom by
+     * @param d The size of the screen
+     * @return The zoomed <code>Viewport</code>
+     */
+    public Viewport zoomAt(double x, double y, double factor, Dimension d) {
+        double z = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom * factor));
+        double cx = toCanvasX(x, d.width);
+        double cy = toCanvasY(y, d.height);
+        return new Viewport(z, cx - (x - d.width / 2) / z, cy - (y - d.height / 2) / z);
+    }
+
+    /**
+     * Returns a <code>Viewport</code> moved so that the drawing follows the
+     * pointer by the given number of screen pixels.
+     *
+     * @param dx The distance to move right on the screen
+     * @param dy The distance to move down on the screen
+     * @return The moved <code>Viewport</code>
+     */
+    public Viewport pan(double dx, double dy) {
+        return new Viewport(zoom, centreX - dx / zoom, centreY - dy / zoom);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("zoom %.3f at (%.1f, %.1f)", zoom, centreX, centreY);
+    }
+}
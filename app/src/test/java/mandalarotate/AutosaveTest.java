@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Recovers what an <code>Autosave</code> wrote and compares it with the
+ * drawing it was written from.
+ *
+ * @author chasehanson
+ */
+public class AutosaveTest {
+
+    private static final int SIZE = 2560;
+
+    @TempDir
+    File dir;
+
+    @Test
+    public void recoversRapidUndos() throws IOException {
+        Mandala m = newMandala();
+        Autosave autosave = new Autosave(dir, m, Runnable::run);
+        autosave.start();
+        Pen pen = new Pen(m, SIZE / 2);
+        pen.autosave = autosave;
+        Random r = new Random(1);
+        for (int s = 0; s < 20; s++) {
+            double x = r.nextGaussian() * SIZE / 6;
+            double y = r.nextGaussian() * SIZE / 6;
+            pen.press(x, y);
+            for (int i = 0; i < 40; i++) {
+                x += r.nextGaussian() * 8;
+                y += r.nextGaussian() * 8;
+                pen.move(x, y);
+            }
+            pen.release();
+            m.offloadPoints();
+        }
+        autosave.checkpointIfChanged();
+        for (int i = 0; i < 12; i++) {
+            m.undo();
+            autosave.undo();
+        }
+        autosave.close();
+
+        Mandala recovered = newMandala();
+        assertTrue(new Autosave(dir, recovered, Runnable::run).recover(SIZE / 2));
+        assertEquals(0, wrongTiles(m.layers.getActive().getCanvas(), recovered.layers.getActive().getCanvas()));
+    }
+
+    @Test
+    public void recoversStrokesCheckpointedHalfway() throws IOException, InterruptedException {
+        Mandala m = newMandala();
+        //Blended pixels darken if a stroke is drawn twice
+        m.antialias = true;
+        Autosave autosave = new Autosave(dir, m, Runnable::run);
+        autosave.start();
+        //So the checkpoint below isn't put off behind the first
+        while (!new File(dir, "checkpoint-00000001.dat").exists()) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        Pen pen = new Pen(m, SIZE / 2);
+        pen.autosave = autosave;
+        pen.smoother = null;
+        pen.press(10, 10);
+        pen.move(300, 200);
+        m.offloadPoints();
+        autosave.checkpoint();
+        pen.move(500, 100);
+        pen.release();
+        m.offloadPoints();
+        autosave.close();
+
+        Mandala recovered = newMandala();
+        assertTrue(new Autosave(dir, recovered, Runnable::run).recover(SIZE / 2));
+        assertEquals(0, wrongTiles(m.layers.getActive().getCanvas(), recovered.layers.getActive().getCanvas()));
+    }
+
+    private static Mandala newMandala() {
+        Mandala m = new Mandala(8, SIZE, SIZE);
+        m.drainRequest = m::offloadPoints;
+        return m;
+    }
+
+    /**
+     * Counts the tiles whose colours differ. Checkpoints keep only the RGB
+     * of each pixel, as the top byte is never read.
+     */
+    private static int wrongTiles(Canvas expected, Canvas actual) {
+        int[] a = new int[Canvas.TILE_SIZE * Canvas.TILE_SIZE];
+        int[] b = new int[a.length];
+        int wrong = 0;
+        for (int t = 0; t < expected.getTilesX() * expected.getTilesY(); t++) {
+            expected.readTile(t, a);
+            actual.readTile(t, b);
+            for (int i = 0; i < a.length; i++) {
+                if (((a[i] ^ b[i]) & 0xFFFFFF) != 0) {
+                    wrong++;
+                    break;
+                }
+            }
+        }
+        return wrong;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Undoes and redoes steps changing more tiles than are copied plainly, and
+ * checks what is kept within the budget.
+ *
+ * @author chasehanson
+ */
+public class HistoryTest {
+
+    private static final int SIZE = 2048;
+
+    @Test
+    public void undoesStepsLargerThanTheScratchTiles() {
+        Canvas c = new RasterCanvas(SIZE, SIZE);
+        History h = new History(c, History.DEFAULT_BUDGET);
+        Random r = new Random(5);
+        for (int i = 0; i < 2000; i++) {
+            c.fillRect(r.nextInt(SIZE), r.nextInt(SIZE), 1 + r.nextInt(40), 1 + r.nextInt(40), r.nextInt(0x1000000));
+        }
+        h.beginStep();
+        int[] drawn = pixels(c);
+        c.fill(0xFFFFFF);
+        h.beginStep();
+        int[] cleared = pixels(c);
+
+        assertTrue(h.undo());
+        assertEquals(0, mismatches(drawn, pixels(c)));
+        assertTrue(h.redo());
+        assertEquals(0, mismatches(cleared, pixels(c)));
+        assertTrue(h.size() < History.DEFAULT_BUDGET / 4);
+    }
+
+    @Test
+    public void forgetsStepsLargerThanTheBudget() {
+        Canvas c = new RasterCanvas(SIZE, SIZE);
+        History h = new History(c, 1 << 20);
+        c.fillRect(10, 10, 20, 20, 0x123456);
+        h.beginStep();
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                c.plot(x, y, x * 31 + y * 17);
+            }
+        }
+        h.beginStep();
+
+        assertFalse(h.undo());
+        assertTrue(h.size() <= 1 << 20);
+    }
+
+    private static int[] pixels(Canvas c) {
+        int[] p = new int[SIZE * SIZE];
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                p[y * SIZE + x] = c.get(x, y);
+            }
+        }
+        return p;
+    }
+
+    private static int mismatches(int[] a, int[] b) {
+        int n = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i]) {
+                n++;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that painting merged batches leaves exactly what painting every
+ * pixel in turn does, wherever the batches are cut.
+ *
+ * @author chasehanson
+ */
+public class PixelBatchTest {
+
+    private static final int SIZE = 24;
+
+    private static final int RGB = 0x3366CC;
+
+    @Test
+    public void mergedBatchesMatchSequentialBlending() {
+        Random r = new Random(7);
+        for (int round = 0; round < 20; round++) {
+            long[] pixels = new long[1000 + r.nextInt(1000)];
+            for (int i = 0; i < pixels.length; i++) {
+                int alpha = r.nextInt(4) == 0 ? 255 : 1 + r.nextInt(254);
+                pixels[i] = PointBuffer.pack(r.nextInt(SIZE), r.nextInt(SIZE), alpha);
+            }
+            PointBuffer points = new PointBuffer(1 << 11);
+            points.offer(pixels, 0, pixels.length);
+
+            Canvas expected = new RasterCanvas(SIZE, SIZE);
+            for (long p : pixels) {
+                expected.plot(PointBuffer.x(p), PointBuffer.y(p), RGB, PointBuffer.alpha(p));
+            }
+            Canvas actual = new RasterCanvas(SIZE, SIZE);
+            PixelBatch batch = new PixelBatch();
+            for (int from = 0; from < pixels.length;) {
+                //Cut batches either side of the comparison sort's limit
+                int to = Math.min(pixels.length, from + 1 + r.nextInt(r.nextBoolean() ? 256 : 900));
+                batch.reset(0, 0, SIZE, SIZE);
+                batch.add(points, from, to, 0, 0);
+                int n = batch.merge();
+                actual.plot(batch.getPixels(), 0, n, 0, 0, RGB);
+                from = to;
+            }
+            for (int y = 0; y < SIZE; y++) {
+                for (int x = 0; x < SIZE; x++) {
+                    assertEquals(expected.get(x, y), actual.get(x, y));
+                }
+            }
+        }
+    }
+}
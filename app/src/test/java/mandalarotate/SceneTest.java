@@ -0,0 +1,170 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Undoes and redoes a <code>Mandala</code> and checks that its
+ * <code>Scene</code> keeps the same strokes as its raster.
+ *
+ * @author chasehanson
+ */
+public class SceneTest {
+
+    private static final int SIZE = 800;
+
+    @Test
+    public void undoesOnlyWhatTheRasterCan() {
+        Mandala m = newMandala();
+        Pen pen = newPen(m);
+        stroke(m, pen, 0);
+        m.clear();
+        //Clearing a blank canvas changes nothing, so there is nothing to undo
+        m.clear();
+
+        assertTrue(m.undo());
+        assertTrue(ink(m) > 0);
+        assertEquals(1, m.scene.size());
+        assertTrue(m.undo());
+        assertEquals(0, ink(m));
+        assertEquals(0, m.scene.size());
+        assertFalse(m.undo());
+    }
+
+    @Test
+    public void skipsFillsThatChangeNothing() {
+        Mandala m = newMandala();
+        Pen pen = newPen(m);
+        stroke(m, pen, 0);
+        stroke(m, pen, 1);
+        int drawn = ink(m);
+        //Outside the disc, so nothing is filled
+        assertEquals(0, m.fill(SIZE, SIZE, SIZE / 2, FloodFill.DEFAULT_TOLERANCE));
+
+        assertTrue(m.undo());
+        assertTrue(ink(m) > 0 && ink(m) < drawn);
+        assertEquals(1, m.scene.size());
+        assertTrue(m.undo());
+        assertEquals(0, m.scene.size());
+        assertFalse(m.undo());
+    }
+
+    @Test
+    public void commitsStrokesStartedLate() {
+        Scene s = new Scene();
+        Layer layer = newMandala().layers.getActive();
+        //A stroke the raster has already closed a step for
+        s.commit(7, true);
+        s.press(7, layer, 8, 0, 0, SIZE);
+        s.move(100, 100, SIZE);
+        s.release();
+        //A stroke the raster kept no step for
+        s.press(8, layer, 8, 0, 0, SIZE);
+        s.move(0, 100, SIZE);
+        s.release();
+        s.commit(8, false);
+
+        assertEquals(2, s.size());
+        assertTrue(s.undo());
+        assertEquals(1, s.size());
+        assertFalse(s.undo());
+    }
+
+    @Test
+    public void keepsTheLayersOfStrokes() throws IOException {
+        Mandala m = newMandala();
+        Pen pen = newPen(m);
+        stroke(m, pen, 0);
+        m.addLayer("Layer 2", 0xC03020);
+        m.setLayer(1);
+        m.layers.getActive().setOpacity(128);
+        m.setSegments(6);
+        stroke(m, pen, 1);
+
+        Canvas c = new RasterCanvas(m.canvas.getWidth(), m.canvas.getHeight());
+        c.fill(0xFFFFFF);
+        int centre = m.border + SIZE / 2;
+        m.scene.render(c, centre, centre, 1, m.layers.list(), false, ForkJoinPool.commonPool(), 128);
+        for (int y = 0; y < c.getHeight(); y++) {
+            for (int x = 0; x < c.getWidth(); x++) {
+                assertEquals(m.canvas.get(x, y) & 0xFFFFFF, c.get(x, y) & 0xFFFFFF);
+            }
+        }
+
+        m.layers.get(0).setVisible(false);
+        StringWriter svg = new StringWriter();
+        m.scene.writeSvg(svg, SIZE, SIZE, 1, m.layers);
+        assertTrue(svg.toString().contains("<g id=\"layer0\" stroke=\"#000000\" display=\"none\">"));
+        assertTrue(svg.toString().contains("<g id=\"layer1\" stroke=\"#c03020\" opacity=\"0.5\">"));
+        StringWriter strokes = new StringWriter();
+        m.scene.writeStrokes(strokes, m.layers);
+        assertFalse(strokes.toString().contains("layer 000000 8"));
+        assertTrue(strokes.toString().contains("layer c03020 6"));
+    }
+
+    private static Mandala newMandala() {
+        Mandala m = new Mandala(8, SIZE, SIZE);
+        m.drainRequest = m::offloadPoints;
+        return m;
+    }
+
+    private static Pen newPen(Mandala m) {
+        Pen pen = new Pen(m, SIZE / 2);
+        pen.smoother = null;
+        return pen;
+    }
+
+    private static void stroke(Mandala m, Pen pen, double angle) {
+        pen.press(10 * Math.cos(angle), 10 * Math.sin(angle));
+        pen.move(200 * Math.cos(angle), 200 * Math.sin(angle));
+        pen.release();
+        m.offloadPoints();
+    }
+
+    /**
+     * Counts the pixels of the active layer with ink in them.
+     */
+    private static int ink(Mandala m) {
+        Canvas c = m.layers.getActive().getCanvas();
+        int[] tile = new int[Canvas.TILE_SIZE * Canvas.TILE_SIZE];
+        int n = 0;
+        for (int t = 0; t < c.getTilesX() * c.getTilesY(); t++) {
+            c.readTile(t, tile);
+            for (int p : tile) {
+                if ((p & 0xFFFFFF) != 0xFFFFFF) {
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+}
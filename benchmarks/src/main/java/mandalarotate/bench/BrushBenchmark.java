@@ -0,0 +1,104 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate.bench;
+
+import java.util.concurrent.TimeUnit;
+import mandalarotate.Brush;
+import mandalarotate.Mandala;
+import mandalarotate.Pen;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks one frame of drawing with a brush at 16 segments: a stroke moves
+ * on by 30 pixels in four samples, and its dabs are then stamped into the
+ * layer and blended into the composite. Holding 60 fps needs a frame well
+ * under 16 ms.
+ *
+ * @author chasehanson
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class BrushBenchmark {
+
+    /**
+     * The radius of the brush in pixels.
+     */
+    @Param({"4", "32"})
+    public double radius;
+
+    /**
+     * The hardness of the brush.
+     */
+    @Param({"0", "1"})
+    public double hardness;
+
+    private Mandala m;
+
+    private Pen pen;
+
+    private double angle;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        m = new Mandala(16, 800, 800);
+        m.drainRequest = m::offloadPoints;
+        m.brush = new Brush(radius, hardness, 255);
+        pen = new Pen(m, 400);
+        pen.smoother = null;
+        pen.press(250, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pen.release();
+    }
+
+    /**
+     * Moves the stroke around a circle and offloads its dabs.
+     */
+    @Benchmark
+    public void frame() {
+        for (int i = 0; i < 4; i++) {
+            angle += 7.5 / 250;
+            pen.move(250 * Math.cos(angle), 250 * Math.sin(angle));
+        }
+        m.offloadPoints();
+    }
+}
@@ -0,0 +1,95 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate.bench;
+
+import java.util.concurrent.TimeUnit;
+import mandalarotate.Mandala;
+import mandalarotate.Pen;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks starting a large <code>Mandala</code>, and clearing one with a
+ * single stroke on it. Both should cost time in proportion to what has been
+ * drawn rather than to the size of the canvas.
+ *
+ * @author chasehanson
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class CanvasBenchmark {
+
+    /**
+     * The width and height of the canvas in pixels.
+     */
+    @Param({"2048", "16384"})
+    public int size;
+
+    private Mandala m;
+
+    private Pen pen;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        m = new Mandala(16, size, size);
+        m.drainRequest = m::offloadPoints;
+        pen = new Pen(m, size / 2.0);
+        pen.smoother = null;
+    }
+
+    @Benchmark
+    public Mandala startup() {
+        return new Mandala(16, size, size);
+    }
+
+    /**
+     * Draws a ring of strokes, then clears them.
+     */
+    @Benchmark
+    public void clear() {
+        double r = size * .4;
+        pen.press(r, 0);
+        for (int i = 1; i <= 64; i++) {
+            pen.move(r * Math.cos(i * Math.PI / 32), r * Math.sin(i * Math.PI / 32));
+        }
+        pen.release();
+        m.offloadPoints();
+        m.clear();
+        m.layers.composite();
+    }
+}
@@ -0,0 +1,115 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate.bench;
+
+import java.util.concurrent.TimeUnit;
+import mandalarotate.Brush;
+import mandalarotate.Canvas;
+import mandalarotate.FloodFill;
+import mandalarotate.Mandala;
+import mandalarotate.Pen;
+import mandalarotate.RasterCanvas;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks filling one cell of a 16 segment drawing of rings cut by
+ * spokes, either from one wedge of the mandala or, with no segments, across
+ * the whole disc. Filling within a frame needs well under 16 ms.
+ *
+ * @author chasehanson
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx4g"})
+public class FloodFillBenchmark {
+
+    /**
+     * The width and height of the canvas in pixels.
+     */
+    @Param({"2048", "8192"})
+    public int size;
+
+    /**
+     * The number of segments the fill may assume, 0 to fill the whole disc.
+     */
+    @Param({"16", "0"})
+    public int segments;
+
+    private final FloodFill fill = new FloodFill();
+
+    private Mandala m;
+
+    private Canvas target;
+
+    private int centre;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        m = new Mandala(16, size, size);
+        m.drainRequest = m::offloadPoints;
+        m.brush = new Brush(size / 2048.0, 1, 255);
+        double r = size / 2.0;
+        Pen pen = new Pen(m, r);
+        pen.smoother = null;
+        for (double ring = r * .12; ring < r; ring += r * .17) {
+            pen.press(ring, 0);
+            for (int i = 1; i <= 40; i++) {
+                double a = i * Math.PI / 16 / 40 * 1.2;
+                pen.move(ring * Math.cos(a), ring * Math.sin(a));
+            }
+            pen.release();
+        }
+        pen.press(r * .05 * Math.cos(.1), r * .05 * Math.sin(.1));
+        pen.move(r * Math.cos(.1), r * Math.sin(.1));
+        pen.release();
+        m.offloadPoints();
+        target = new RasterCanvas(m.canvas.getWidth(), m.canvas.getHeight());
+        centre = m.border + size / 2;
+    }
+
+    /**
+     * Fills the cell between the second and third rings.
+     */
+    @Benchmark
+    public int cell() {
+        double r = size * .35;
+        return fill.fill(m.canvas, target, centre, centre, size / 2.0, segments,
+                centre + (int) (.5 + r * Math.cos(1.0)), centre + (int) (.5 + r * Math.sin(1.0)),
+                FloodFill.DEFAULT_TOLERANCE, 0);
+    }
+}
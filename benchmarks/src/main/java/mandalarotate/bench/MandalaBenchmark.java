@@ -0,0 +1,123 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import mandalarotate.Mandala;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks expanding new points into a <code>Mandala</code>, and saving
+ * it.
+ *
+ * @author chasehanson
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class MandalaBenchmark {
+
+    /**
+     * The number of segments to rotate points around.
+     */
+    @Param({"8", "32", "128"})
+    public int segments;
+
+    private Mandala m;
+
+    private double[] xs, ys;
+
+    private int next;
+
+    private File saved;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        m = new Mandala(segments, 800, 800);
+
+        Random r = new Random(42);
+        xs = new double[4096];
+        ys = new double[4096];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = r.nextDouble() * 800 - 400;
+            ys[i] = r.nextDouble() * 800 - 400;
+        }
+        saved = File.createTempFile("mandala-bench", "");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        new File(saved.getPath() + ".bmp").delete();
+        saved.delete();
+    }
+
+    /**
+     * Keeps the buffer from filling up without measuring an offload.
+     */
+    private void discardIfFull() {
+        if (m.points.size() > m.points.capacity() / 2) {
+            m.reducePoints(Integer.MAX_VALUE);
+        }
+    }
+
+    @Benchmark
+    public void addPoint() {
+        int i = next++ & (xs.length - 1);
+        m.addPoint(xs[i], ys[i], 400);
+        discardIfFull();
+    }
+
+    @Benchmark
+    public void addSegment() {
+        int i = next++ & (xs.length - 1);
+        int j = (i + 1) & (xs.length - 1);
+        //Short segments, as produced by a drag between two mouse samples
+        m.addSegment(xs[i], ys[i], xs[i] + (xs[j] - xs[i]) / 40, ys[i] + (ys[j] - ys[i]) / 40, 400);
+        discardIfFull();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public void save() throws IOException {
+        m.save(saved.getPath());
+    }
+}
@@ -0,0 +1,122 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate.bench;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import mandalarotate.Mandala;
+import mandalarotate.PointBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the paths that consume pending points of a
+ * <code>Mandala</code>: drawing them into an offscreen <code>Graphics</code>,
+ * offloading them into the image and discarding them. The pending points are
+ * refilled before every invocation.
+ *
+ * @author chasehanson
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PendingBenchmark {
+
+    /**
+     * The number of pending points drawn or offloaded per invocation.
+     */
+    @Param({"3000", "100000"})
+    public int pending;
+
+    private Mandala m;
+
+    private BufferedImage screen;
+
+    private Graphics2D G;
+
+    private Dimension d;
+
+    private long[] batch;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        m = new Mandala(800, 800);
+        screen = new BufferedImage(800, 800, BufferedImage.TYPE_INT_RGB);
+        G = screen.createGraphics();
+        d = new Dimension(800, 800);
+
+        Random r = new Random(42);
+        batch = new long[pending];
+        for (int i = 0; i < pending; i++) {
+            batch[i] = PointBuffer.pack(r.nextInt(800) - 400, r.nextInt(800) - 400);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        G.dispose();
+    }
+
+    /**
+     * Publishes the random points straight into the buffer, without rotating
+     * them.
+     */
+    @Setup(Level.Invocation)
+    public void fill() {
+        m.points.clear();
+        m.points.put(batch, 0, pending, null);
+    }
+
+    @Benchmark
+    public void offloadPoints() {
+        m.offloadPoints();
+    }
+
+    @Benchmark
+    public void reducePoints() {
+        m.reducePoints(pending);
+    }
+
+    @Benchmark
+    public void draw() {
+        m.draw(G, d);
+    }
+}
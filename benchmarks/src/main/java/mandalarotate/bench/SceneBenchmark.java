@@ -0,0 +1,144 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2018 chasehanson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mandalarotate.bench;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import mandalarotate.Canvas;
+import mandalarotate.Layer;
+import mandalarotate.LayerStack;
+import mandalarotate.RasterCanvas;
+import mandalarotate.Scene;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks rendering a <code>Scene</code> of random walk strokes drawn on
+ * an 800x800 canvas again at 8192x8192 with 8 segments, on the common pool,
+ * and adding a stroke to it as the input thread does. Rendering tens of
+ * thousands of strokes at that size should take seconds.
+ *
+ * @author chasehanson
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx4g"})
+public class SceneBenchmark {
+
+    private static final int SOURCE = 800;
+
+    private static final int SIZE = 8192;
+
+    private static final int POINTS = 40;
+
+    /**
+     * The number of strokes in the scene.
+     */
+    @Param({"10000", "40000"})
+    public int strokes;
+
+    private Scene scene;
+
+    private LayerStack layers;
+
+    private Layer layer;
+
+    private Canvas canvas;
+
+    /**
+     * The scene strokes are added to, started afresh every iteration.
+     */
+    private Scene input;
+
+    private final Random random = new Random(3);
+
+    private long number;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        layers = new LayerStack(new RasterCanvas(SOURCE, SOURCE));
+        layer = layers.add("Layer 1", 0, 8);
+        scene = new Scene();
+        Random r = new Random(1);
+        for (int i = 0; i < strokes; i++) {
+            addStroke(scene, layer, i, r);
+        }
+        canvas = new RasterCanvas(SIZE, SIZE);
+        canvas.fill(Color.white.getRGB());
+    }
+
+    @Setup(Level.Iteration)
+    public void newInput() {
+        input = new Scene();
+    }
+
+    private static void addStroke(Scene s, Layer layer, long number, Random r) {
+        double x = r.nextGaussian() * SOURCE / 6;
+        double y = r.nextGaussian() * SOURCE / 6;
+        s.press(number, layer, 8, x, y, SOURCE / 2);
+        for (int j = 1; j < POINTS; j++) {
+            x += r.nextGaussian() * 3;
+            y += r.nextGaussian() * 3;
+            s.move(x, y, SOURCE / 2);
+        }
+        s.release();
+        s.commit(number, false);
+    }
+
+    /**
+     * Renders every stroke at 8192x8192.
+     */
+    @Benchmark
+    public Canvas render() {
+        scene.render(canvas, SIZE / 2, SIZE / 2, (double) SIZE / SOURCE, layers.list(), false,
+                ForkJoinPool.commonPool(), 512);
+        return canvas;
+    }
+
+    /**
+     * Adds one stroke of 40 points.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Scene stroke() {
+        addStroke(input, layer, number++, random);
+        return input;
+    }
+}